@@ -2,7 +2,7 @@ package general
 
 import java.io.File
 
-import general.common.{Common, JatosUpdater}
+import general.common.{Common, JatosUpdater, ResultFileIndexer}
 import javax.inject.Inject
 import play.api.Logger
 import play.api.inject.ApplicationLifecycle
@@ -15,12 +15,14 @@ import scala.concurrent.Future
   *
   * @author Kristian Lange
   */
-class OnStartStop @Inject()(lifecycle: ApplicationLifecycle, environment: play.Environment, jatosUpdater: JatosUpdater) {
+class OnStartStop @Inject()(lifecycle: ApplicationLifecycle, environment: play.Environment, jatosUpdater: JatosUpdater,
+                            resultFileIndexer: ResultFileIndexer) {
 
   private val logger = Logger(this.getClass)
 
   checkUpdate()
   checkStudyAssetsRootDir()
+  resultFileIndexer.indexExistingUploadsInBackground()
 
   logger.info("JATOS started")
   if (environment.isProd) {
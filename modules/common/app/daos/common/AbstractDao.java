@@ -2,6 +2,8 @@ package daos.common;
 
 import javax.inject.Singleton;
 
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import play.db.jpa.JPAApi;
 
 /**
@@ -14,6 +16,12 @@ import play.db.jpa.JPAApi;
 @Singleton
 public abstract class AbstractDao {
 
+	/**
+	 * Number of rows the JDBC driver fetches at once while scrolling. MySQL only
+	 * uses it with 'useCursorFetch=true' in the JDBC URL.
+	 */
+	private static final int SCROLL_FETCH_SIZE = 100;
+
 	protected final JPAApi jpa;
 
 	protected AbstractDao(JPAApi jpa) {
@@ -36,4 +44,11 @@ public abstract class AbstractDao {
 		jpa.em().refresh(entity);
 	}
 
+	/**
+	 * Runs the query with a forward-only cursor
+	 */
+	protected ScrollableResults scroll(org.hibernate.query.Query<?> query) {
+		return query.setFetchSize(SCROLL_FETCH_SIZE).scroll(ScrollMode.FORWARD_ONLY);
+	}
+
 }
@@ -4,8 +4,15 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import models.common.Batch;
+import models.common.workers.Worker;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
 import play.db.jpa.JPAApi;
 
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * DAO of Batch entity
  * 
@@ -35,4 +42,72 @@ public class BatchDao extends AbstractDao {
 		return jpa.em().find(Batch.class, id);
 	}
 
+	/**
+	 * Writes the given batch session data and version into the Batch with the
+	 * given ID, but only if the stored batch session version is still the
+	 * expected one (compare-and-set in one UPDATE). Returns false if the batch
+	 * doesn't exist (anymore) or if its batch session was changed by someone
+	 * else in the meantime (e.g. edited in the GUI).
+	 */
+	public boolean updateBatchSession(Long batchId, String batchSessionData,
+			long batchSessionVersion, long expectedVersion) {
+		String queryStr = "UPDATE Batch SET batchSessionData = :data, "
+				+ "batchSessionVersion = :version "
+				+ "WHERE id = :id AND batchSessionVersion = :expectedVersion";
+		int updated = jpa.em().createNativeQuery(queryStr)
+				.setParameter("data", batchSessionData)
+				.setParameter("version", batchSessionVersion)
+				.setParameter("id", batchId)
+				.setParameter("expectedVersion", expectedVersion)
+				.executeUpdate();
+		return updated > 0;
+	}
+
+	/**
+	 * Adds the given (already persisted) worker to the batch. If the batch's
+	 * worker list isn't loaded yet, the worker is inserted directly into
+	 * BatchWorkerMap - this way the list doesn't have to be initialized, which
+	 * would load all workers of the batch.
+	 */
+	public void addWorker(Batch batch, Worker worker) {
+		if (Hibernate.isInitialized(batch.getWorkerList())) {
+			batch.addWorker(worker);
+			merge(batch);
+			return;
+		}
+		// Extra lazy list: contains() is an existence check against BatchWorkerMap
+		if (batch.getWorkerList().contains(worker)) return;
+		jpa.em().createNativeQuery(
+				"INSERT INTO BatchWorkerMap (batch_id, worker_id) VALUES (:batchId, :workerId)")
+				.setParameter("batchId", batch.getId())
+				.setParameter("workerId", worker.getId())
+				.executeUpdate();
+	}
+
+	/**
+	 * Adds the given newly created (and already persisted) workers to the
+	 * batch. If the batch's worker list isn't loaded yet, all workers are
+	 * inserted into BatchWorkerMap with a single JDBC batch.
+	 */
+	public void addNewWorkers(Batch batch, List<? extends Worker> workerList) {
+		if (workerList.isEmpty()) return;
+		if (Hibernate.isInitialized(batch.getWorkerList())) {
+			batch.addAllWorkers(new ArrayList<>(workerList));
+			merge(batch);
+			return;
+		}
+		jpa.em().flush();
+		jpa.em().unwrap(Session.class).doWork(connection -> {
+			String sql = "INSERT INTO BatchWorkerMap (batch_id, worker_id) VALUES (?, ?)";
+			try (PreparedStatement statement = connection.prepareStatement(sql)) {
+				for (Worker worker : workerList) {
+					statement.setLong(1, batch.getId());
+					statement.setLong(2, worker.getId());
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			}
+		});
+	}
+
 }
@@ -2,15 +2,26 @@ package daos.common;
 
 import models.common.Component;
 import models.common.ComponentResult;
-import org.hibernate.ScrollMode;
+import models.common.ComponentResult.ComponentState;
+import models.common.ComponentResultTableRow;
+import models.common.ResultDataChunk;
+import models.common.ResultFile;
+import models.common.ResultPageQuery;
+import org.hibernate.Hibernate;
 import org.hibernate.ScrollableResults;
 import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.persistence.EntityManager;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * DAO for ComponentResult entity
@@ -20,6 +31,18 @@ import java.util.List;
 @Singleton
 public class ComponentResultDao extends AbstractDao {
 
+    /**
+     * One character more than the preview length is fetched to find out whether the data are longer
+     */
+    private static final int PREVIEW_FETCH_LENGTH = ComponentResultTableRow.DATA_PREVIEW_LENGTH + 1;
+
+    /**
+     * Selects the fields of a ComponentResultTableRow - the aliases 'cr', 'sr' and 'c' have to be defined in the FROM
+     */
+    private static final String TABLE_ROW_SELECT = "SELECT cr.id, sr.id, c.id, c.title, cr.startDate, cr.endDate, "
+            + "cr.componentState, cr.message, SUBSTRING(cr.data, 1, " + PREVIEW_FETCH_LENGTH + "), "
+            + "(SELECT COUNT(ch) FROM ResultDataChunk ch WHERE ch.componentResult = cr) ";
+
     @Inject
     ComponentResultDao(JPAApi jpa) {
         super(jpa);
@@ -33,7 +56,13 @@ public class ComponentResultDao extends AbstractDao {
         merge(componentResult);
     }
 
+    /**
+     * Removes the ComponentResult together with all its appended result data chunks and its entries in the index of
+     * uploaded result files (the files themselves are not touched)
+     */
     public void remove(ComponentResult componentResult) {
+        removeDataChunks(componentResult);
+        removeResultFiles(componentResult);
         super.remove(componentResult);
     }
 
@@ -41,6 +70,127 @@ public class ComponentResultDao extends AbstractDao {
         super.refresh(componentResult);
     }
 
+    /**
+     * Appends the given data to the result data of the ComponentResult. The data are persisted as a new
+     * ResultDataChunk - the data already stored in the ComponentResult are neither loaded nor rewritten.
+     */
+    public void appendData(ComponentResult componentResult, String data) {
+        ResultDataChunk chunk = new ResultDataChunk(componentResult, data);
+        persist(chunk);
+        componentResult.addDataChunk(chunk);
+    }
+
+    /**
+     * Like {@link #appendData(ComponentResult, String)} but the new ResultDataChunk is written into the database
+     * immediately and then detached from the persistence context. This way many chunks can be stored within one
+     * transaction without keeping their data in memory. The ComponentResult's list of chunks is only updated if it
+     * is already loaded.
+     */
+    public void appendDataAndDetach(ComponentResult componentResult, String data) {
+        ResultDataChunk chunk = new ResultDataChunk(componentResult, data);
+        persist(chunk);
+        jpa.em().flush();
+        jpa.em().detach(chunk);
+        if (Hibernate.isInitialized(componentResult.getDataChunkList())) componentResult.addDataChunk(chunk);
+    }
+
+    /**
+     * Returns the size of the result data of the given ComponentResult (its data field plus all its
+     * ResultDataChunks) in characters. It's calculated by the database's CHAR_LENGTH function - unlike LENGTH it
+     * counts characters in MySQL and H2 alike. The data themselves are not loaded.
+     */
+    public long sizeOfData(ComponentResult componentResult) {
+        if (componentResult.getId() == null) return 0;
+        String queryStr = "SELECT COALESCE(CHAR_LENGTH(cr.data), 0) + COALESCE((SELECT SUM(CHAR_LENGTH(c.data)) "
+                + "FROM ResultDataChunk c WHERE c.componentResult_id = cr.id), 0) "
+                + "FROM ComponentResult cr WHERE cr.id = :id";
+        Number result = (Number) jpa.em().createNativeQuery(queryStr)
+                .setParameter("id", componentResult.getId())
+                .getSingleResult();
+        return result != null ? result.longValue() : 0;
+    }
+
+    /**
+     * Removes all appended ResultDataChunks of the given ComponentResult with a single bulk delete. The data field of
+     * the ComponentResult itself is untouched.
+     */
+    public void removeDataChunks(ComponentResult componentResult) {
+        if (componentResult.getId() == null) return;
+        jpa.em().createQuery("DELETE FROM ResultDataChunk c WHERE c.componentResult = :componentResult")
+                .setParameter("componentResult", componentResult)
+                .executeUpdate();
+        componentResult.clearDataChunks();
+    }
+
+    /**
+     * Adds an uploaded file to the index of result files of the given ComponentResult. If there is already an entry
+     * with this filename (the file was overwritten) the unique key on ComponentResult and filename turns the insert
+     * into an update of the size - in one statement, so two concurrent uploads of the same file can't both insert.
+     */
+    public void putResultFile(ComponentResult componentResult, String filename, long size) {
+        String queryStr = "INSERT INTO ResultFile (componentResult_id, filename, size) "
+                + "VALUES (:componentResultId, :filename, :size) ON DUPLICATE KEY UPDATE size = :size";
+        jpa.em().createNativeQuery(queryStr)
+                .setParameter("componentResultId", componentResult.getId())
+                .setParameter("filename", filename)
+                .setParameter("size", size)
+                .executeUpdate();
+        if (!Hibernate.isInitialized(componentResult.getResultFileList())) return;
+
+        // Keep an already loaded list in sync: the query returns the managed entity if it's in the list already
+        ResultFile resultFile = jpa.em()
+                .createQuery("SELECT rf FROM ResultFile rf WHERE rf.componentResult = :componentResult "
+                        + "AND rf.filename = :filename", ResultFile.class)
+                .setParameter("componentResult", componentResult)
+                .setParameter("filename", filename)
+                .getSingleResult();
+        resultFile.setSize(size);
+        if (!componentResult.getResultFileList().contains(resultFile)) componentResult.addResultFile(resultFile);
+    }
+
+    /**
+     * Removes all entries in the index of uploaded result files of the given ComponentResult with a single bulk
+     * delete. The files themselves are untouched.
+     */
+    public void removeResultFiles(ComponentResult componentResult) {
+        if (componentResult.getId() == null) return;
+        jpa.em().createQuery("DELETE FROM ResultFile rf WHERE rf.componentResult = :componentResult")
+                .setParameter("componentResult", componentResult)
+                .executeUpdate();
+        componentResult.clearResultFiles();
+    }
+
+    /**
+     * Whether the files that were uploaded before the index of result files existed were added to it already (see
+     * general.common.ResultFileIndexer). The flag is set to false by the evolution that created the index.
+     */
+    public boolean isExistingUploadsIndexed() {
+        String queryStr = "SELECT COUNT(*) FROM ResultFileIndexState WHERE existingUploadsIndexed = 0";
+        Number notIndexed = (Number) jpa.em().createNativeQuery(queryStr).getSingleResult();
+        return notIndexed.longValue() == 0;
+    }
+
+    public void setExistingUploadsIndexed() {
+        jpa.em().createNativeQuery("UPDATE ResultFileIndexState SET existingUploadsIndexed = 1").executeUpdate();
+    }
+
+    /**
+     * Returns the filenames in the index of uploaded result files of each of the ComponentResults with the given IDs
+     * (ComponentResult ID -> filenames ordered by name) with one query. ComponentResults without files are left out.
+     */
+    public Map<Long, List<String>> findResultFilenames(EntityManager em, List<Long> componentResultIds) {
+        Map<Long, List<String>> filenames = new HashMap<>();
+        if (componentResultIds.isEmpty()) return filenames;
+        String queryStr = "SELECT rf.componentResult.id, rf.filename FROM ResultFile rf "
+                + "WHERE rf.componentResult.id IN :ids ORDER BY rf.filename";
+        List<?> results = em.createQuery(queryStr).setParameter("ids", componentResultIds).getResultList();
+        for (Object result : results) {
+            Object[] r = (Object[]) result;
+            filenames.computeIfAbsent((Long) r[0], id -> new ArrayList<>()).add((String) r[1]);
+        }
+        return filenames;
+    }
+
     public ComponentResult findById(Long id) {
         return jpa.em().find(ComponentResult.class, id);
     }
@@ -61,11 +211,125 @@ public class ComponentResultDao extends AbstractDao {
         return query.setParameter("component", component).getResultList();
     }
 
-    public ScrollableResults findAllByComponentScrollable(Component component) {
+    /**
+     * Returns a ScrollableResults of all ComponentResults that belong to the given Component. The ScrollableResults
+     * stays open after this call, therefore the EntityManager is passed in and not taken from the current context.
+     */
+    public ScrollableResults findAllByComponentScrollable(EntityManager em, Component component) {
         String queryStr = "SELECT cr FROM ComponentResult cr WHERE cr.component=:component";
-        org.hibernate.query.Query query = (org.hibernate.query.Query) jpa.em().createQuery(queryStr,
-                ComponentResult.class);
-        return query.setParameter("component", component).scroll(ScrollMode.FORWARD_ONLY);
+        TypedQuery<ComponentResult> query = em.createQuery(queryStr, ComponentResult.class);
+        return scroll(query.setParameter("component", component).unwrap(org.hibernate.query.Query.class));
+    }
+
+    /**
+     * Returns a ScrollableResults of the ComponentResults with the given IDs ordered by ID (see
+     * findAllByComponentScrollable). IDs that don't exist are skipped.
+     */
+    public ScrollableResults findByIdsScrollable(EntityManager em, List<Long> ids) {
+        String queryStr = "SELECT cr FROM ComponentResult cr WHERE cr.id IN :ids ORDER BY cr.id";
+        TypedQuery<ComponentResult> query = em.createQuery(queryStr, ComponentResult.class);
+        return scroll(query.setParameter("ids", ids).unwrap(org.hibernate.query.Query.class));
+    }
+
+    /**
+     * Returns a ScrollableResults of the data of the given ComponentResult's appended ResultDataChunks in the order
+     * they were stored (see findAllByComponentScrollable). The chunks' entities aren't loaded - only their data.
+     */
+    public ScrollableResults findDataChunksScrollable(EntityManager em, Long componentResultId) {
+        String queryStr = "SELECT ch.data FROM ResultDataChunk ch WHERE ch.componentResult.id = :componentResultId "
+                + "ORDER BY ch.id";
+        TypedQuery<String> query = em.createQuery(queryStr, String.class);
+        return scroll(query.setParameter("componentResultId", componentResultId)
+                .unwrap(org.hibernate.query.Query.class));
+    }
+
+    /**
+     * Returns one page of table rows (see ComponentResultTableRow) of the ComponentResults that belong to the given
+     * Component, filtered, sorted and positioned as the given ResultPageQuery says. Like in
+     * findTableRowsByStudyResultIds no ComponentResult entities are loaded and the result data are truncated already
+     * in the database. It returns up to the page's limit plus one rows - the additional row only tells whether there
+     * is a next page.
+     */
+    public List<ComponentResultTableRow> findTableRowsPageByComponent(Component component, ResultPageQuery page) {
+        List<ComponentState> states = page.getStates().stream()
+                .map(ComponentState::valueOf)
+                .collect(Collectors.toList());
+        ResultPageClause clause = new ResultPageClause(page, "cr", "componentState", "w", "b", states);
+        String queryStr = TABLE_ROW_SELECT + "FROM ComponentResult cr JOIN cr.studyResult sr JOIN sr.worker w "
+                + "JOIN sr.batch b JOIN cr.component c WHERE cr.component = :component" + clause.conditions()
+                + clause.orderBy();
+        Query query = jpa.em().createQuery(queryStr).setParameter("component", component);
+        return toTableRows(jpa.em(), clause.apply(query, page).getResultList());
+    }
+
+    /**
+     * Like {@link #findTableRowsByStudyResultIds(EntityManager, List)} but with the EntityManager of the current
+     * context
+     */
+    public List<ComponentResultTableRow> findTableRowsByStudyResultIds(List<Long> studyResultIds) {
+        return findTableRowsByStudyResultIds(jpa.em(), studyResultIds);
+    }
+
+    /**
+     * Returns the table rows (see ComponentResultTableRow) of all ComponentResults that belong to the StudyResults
+     * with the given IDs, ordered by StudyResult ID and then in the order of the StudyResult's ComponentResult list.
+     * No ComponentResult entities are loaded and the result data are truncated to
+     * ComponentResultTableRow.DATA_PREVIEW_LENGTH characters already in the database. It needs three queries,
+     * regardless of the number of ComponentResults: one for the rows, one for the filenames of the uploaded result
+     * files and one for the beginning of the first appended ResultDataChunk of those ComponentResults whose data field
+     * is shorter than the preview. Data in later chunks are never part of the preview. The EntityManager is passed in
+     * so it can be used from within a stream (see StudyResultDao.findTableRowsByStudyScrollable).
+     */
+    public List<ComponentResultTableRow> findTableRowsByStudyResultIds(EntityManager em, List<Long> studyResultIds) {
+        if (studyResultIds.isEmpty()) return new ArrayList<>();
+
+        String queryStr = TABLE_ROW_SELECT + "FROM StudyResult sr JOIN sr.componentResultList cr JOIN cr.component c "
+                + "WHERE sr.id IN :ids ORDER BY sr.id, INDEX(cr)";
+        return toTableRows(em, em.createQuery(queryStr).setParameter("ids", studyResultIds).getResultList());
+    }
+
+    /**
+     * Turns the results of a TABLE_ROW_SELECT query into table rows and adds the filenames of the uploaded result
+     * files and the previews of the data that are in ResultDataChunks (two more queries)
+     */
+    private List<ComponentResultTableRow> toTableRows(EntityManager em, List<?> results) {
+        List<ComponentResultTableRow> rows = new ArrayList<>();
+        if (results.isEmpty()) return rows;
+        Map<Long, ComponentResultTableRow> rowsWithChunks = new HashMap<>();
+        for (Object result : results) {
+            Object[] r = (Object[]) result;
+            String data = (String) r[8];
+            long chunkCount = ((Number) r[9]).longValue();
+            boolean truncated = data != null && data.length() > ComponentResultTableRow.DATA_PREVIEW_LENGTH;
+            ComponentResultTableRow row = new ComponentResultTableRow((Long) r[0], (Long) r[1], (Long) r[2],
+                    (String) r[3], (Timestamp) r[4], (Timestamp) r[5], (ComponentState) r[6], (String) r[7],
+                    truncated ? data.substring(0, ComponentResultTableRow.DATA_PREVIEW_LENGTH) : data,
+                    truncated || chunkCount > 1);
+            if (!truncated && chunkCount > 0) rowsWithChunks.put(row.getId(), row);
+            rows.add(row);
+        }
+        Map<Long, List<String>> filenames = findResultFilenames(em,
+                rows.stream().map(ComponentResultTableRow::getId).collect(Collectors.toList()));
+        rows.forEach(row -> row.setFiles(filenames.getOrDefault(row.getId(), new ArrayList<>())));
+        if (rowsWithChunks.isEmpty()) return rows;
+
+        // Complete the previews with the beginning of the first chunk
+        String chunkQueryStr = "SELECT ch.componentResult.id, SUBSTRING(ch.data, 1, " + PREVIEW_FETCH_LENGTH + ") "
+                + "FROM ResultDataChunk ch WHERE ch.id IN (SELECT MIN(ch2.id) FROM ResultDataChunk ch2 "
+                + "WHERE ch2.componentResult.id IN :ids GROUP BY ch2.componentResult.id)";
+        List<?> chunkResults = em.createQuery(chunkQueryStr)
+                .setParameter("ids", new ArrayList<>(rowsWithChunks.keySet()))
+                .getResultList();
+        for (Object result : chunkResults) {
+            Object[] r = (Object[]) result;
+            ComponentResultTableRow row = rowsWithChunks.get((Long) r[0]);
+            String data = (row.getDataPreview() != null ? row.getDataPreview() : "")
+                    + (r[1] != null ? (String) r[1] : "");
+            boolean truncated = data.length() > ComponentResultTableRow.DATA_PREVIEW_LENGTH;
+            row.setDataPreview(truncated ? data.substring(0, ComponentResultTableRow.DATA_PREVIEW_LENGTH) : data,
+                    truncated || row.isDataTruncated());
+        }
+        return rows;
     }
 
 }
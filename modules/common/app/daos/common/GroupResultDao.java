@@ -46,6 +46,43 @@ public class GroupResultDao extends AbstractDao {
         return jpa.em().find(GroupResult.class, id);
     }
 
+    /**
+     * Like findById but with a PESSIMISTIC_WRITE lock on the GroupResult's row - the GroupResult always has the current
+     * activeMemberCount and historyMemberCount.
+     */
+    public GroupResult findByIdForUpdate(Long id) {
+        return jpa.em().find(GroupResult.class, id, LockModeType.PESSIMISTIC_WRITE);
+    }
+
+    /**
+     * Writes the given group session data and version into the GroupResult with the given ID, but only if the stored
+     * group session version is still the expected one (compare-and-set in one UPDATE). Returns false if the
+     * GroupResult doesn't exist (anymore) or if its group session was changed by someone else in the meantime (e.g.
+     * edited in the GUI or removed because the group finished).
+     */
+    public boolean updateGroupSession(Long groupResultId, String groupSessionData, long groupSessionVersion,
+            long expectedVersion) {
+        String queryStr = "UPDATE GroupResult SET groupSessionData = :data, groupSessionVersion = :version "
+                + "WHERE id = :id AND groupSessionVersion = :expectedVersion";
+        int updated = jpa.em().createNativeQuery(queryStr)
+                .setParameter("data", groupSessionData)
+                .setParameter("version", groupSessionVersion)
+                .setParameter("id", groupResultId)
+                .setParameter("expectedVersion", expectedVersion)
+                .executeUpdate();
+        return updated > 0;
+    }
+
+    /**
+     * Removes the group session data of the GroupResult with the given ID and increases its group session version by
+     * one (a GroupDispatcher that still holds the session in memory won't write it back)
+     */
+    public void removeGroupSession(Long groupResultId) {
+        String queryStr = "UPDATE GroupResult SET groupSessionData = NULL, "
+                + "groupSessionVersion = groupSessionVersion + 1 WHERE id = :id";
+        jpa.em().createNativeQuery(queryStr).setParameter("id", groupResultId).executeUpdate();
+    }
+
     public List<GroupResult> findAllByBatch(Batch batch) {
         String queryStr = "SELECT gr FROM GroupResult gr WHERE gr.batch=:batch";
         TypedQuery<GroupResult> query = jpa.em().createQuery(queryStr, GroupResult.class);
@@ -0,0 +1,87 @@
+package daos.common;
+
+import models.common.ResultPageQuery;
+import models.common.ResultPageQuery.Sort;
+
+import javax.persistence.Query;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the JPQL conditions and the ORDER BY for one page of results (see ResultPageQuery) and sets their parameters.
+ * The cursor becomes a condition on the sort columns (keyset pagination), e.g. 'sr.id > :afterId', so the database
+ * seeks to the page's first result via the index instead of counting through all the results before it.
+ *
+ * @author Kristian Lange
+ */
+class ResultPageClause {
+
+    private final List<String> conditions = new ArrayList<>();
+    private final Map<String, Object> parameters = new HashMap<>();
+    private final String orderBy;
+
+    /**
+     * @param alias       alias of the result (StudyResult or ComponentResult) in the query
+     * @param stateField  name of the result's state field
+     * @param workerAlias alias of the result's worker in the query
+     * @param batchAlias  alias of the result's batch in the query
+     * @param states      the page's states already turned into the result's state enum
+     */
+    ResultPageClause(ResultPageQuery page, String alias, String stateField, String workerAlias, String batchAlias,
+            List<? extends Enum<?>> states) {
+        String id = alias + ".id";
+        String startDate = alias + ".startDate";
+        if (!states.isEmpty()) add(alias + "." + stateField + " IN :states", "states", states);
+        if (!page.getWorkerTypes().isEmpty()) {
+            add(workerAlias + ".class IN :workerTypes", "workerTypes", page.getWorkerTypes());
+        }
+        if (page.getBatchId() != null) add(batchAlias + ".id = :batchId", "batchId", page.getBatchId());
+        if (page.getFrom() != null) add(startDate + " >= :from", "from", page.getFrom());
+        if (page.getTo() != null) add(startDate + " < :to", "to", page.getTo());
+
+        String comparator = page.isDescending() ? " < " : " > ";
+        String direction = page.isDescending() ? " DESC" : " ASC";
+        if (page.getSort() == Sort.START_DATE) {
+            if (page.getAfterId() != null) {
+                conditions.add("(" + startDate + comparator + ":afterStartDate OR (" + startDate
+                        + " = :afterStartDate AND " + id + comparator + ":afterId))");
+                parameters.put("afterStartDate", page.getAfterStartDate());
+                parameters.put("afterId", page.getAfterId());
+            }
+            orderBy = startDate + direction + ", " + id + direction;
+        } else {
+            if (page.getAfterId() != null) add(id + comparator + ":afterId", "afterId", page.getAfterId());
+            orderBy = id + direction;
+        }
+    }
+
+    private void add(String condition, String name, Object value) {
+        conditions.add(condition);
+        parameters.put(name, value);
+    }
+
+    /**
+     * Returns the conditions, each starting with ' AND ', to be appended to a WHERE clause
+     */
+    String conditions() {
+        StringBuilder sb = new StringBuilder();
+        conditions.forEach(condition -> sb.append(" AND ").append(condition));
+        return sb.toString();
+    }
+
+    String orderBy() {
+        return " ORDER BY " + orderBy;
+    }
+
+    /**
+     * Sets the parameters of the conditions in the given query and limits the query to one result more than the
+     * page's limit - this way the caller finds out whether there is a next page
+     */
+    Query apply(Query query, ResultPageQuery page) {
+        parameters.forEach(query::setParameter);
+        return query.setMaxResults(page.getLimit() + 1);
+    }
+
+}
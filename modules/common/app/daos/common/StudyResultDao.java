@@ -2,16 +2,18 @@ package daos.common;
 
 import models.common.*;
 import models.common.workers.Worker;
-import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.persistence.EntityManager;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import static models.common.StudyResult.StudyState;
 
@@ -23,6 +25,15 @@ import static models.common.StudyResult.StudyState;
 @Singleton
 public class StudyResultDao extends AbstractDao {
 
+    /**
+     * All columns that the results table in the GUI shows about a StudyResult in the order StudyResultTableRow expects
+     * them. The study, batch, worker and group results are joined and therefore fetched within the same SQL query.
+     */
+    private static final String TABLE_ROW_SELECT = "SELECT sr.id, sr.startDate, sr.endDate, sr.lastSeenDate, "
+            + "sr.studyState, sr.confirmationCode, sr.message, st.id, st.title, b.title, w, ag.id, hg.id "
+            + "FROM StudyResult sr JOIN sr.study st JOIN sr.batch b JOIN sr.worker w "
+            + "LEFT JOIN sr.activeGroupResult ag LEFT JOIN sr.historyGroupResult hg ";
+
     @Inject
     StudyResultDao(JPAApi jpa) {
         super(jpa);
@@ -48,6 +59,26 @@ public class StudyResultDao extends AbstractDao {
         return jpa.em().find(StudyResult.class, id);
     }
 
+    /**
+     * Retrieves the StudyResult with the given ID together with its study, its batch (incl. the batch's allowed worker
+     * types) and its worker in one query. If a component ID is given, the component with this ID is loaded within the
+     * same query. All loaded entities end up in the persistence context and subsequent finds of them within the same
+     * transaction won't hit the database again. Returns null if there is no such StudyResult.
+     */
+    public StudyResult findByIdWithRunEntities(Long id, Long componentId) {
+        String queryStr = "SELECT sr" + (componentId != null ? ", c" : "") + " FROM StudyResult sr "
+                + "JOIN FETCH sr.study JOIN FETCH sr.batch b LEFT JOIN FETCH b.allowedWorkerTypes JOIN FETCH sr.worker "
+                + (componentId != null ? "LEFT JOIN Component c ON c.id = :componentId " : "")
+                + "WHERE sr.id = :id";
+        Query query = jpa.em().createQuery(queryStr).setParameter("id", id);
+        if (componentId != null) query.setParameter("componentId", componentId);
+        // The fetched collection of allowed worker types multiplies the rows but they all refer to the same entities
+        List<?> results = query.getResultList();
+        if (results.isEmpty()) return null;
+        Object first = results.get(0);
+        return (StudyResult) (componentId != null ? ((Object[]) first)[0] : first);
+    }
+
     /**
      * Returns the number of StudyResult rows
      */
@@ -86,6 +117,43 @@ public class StudyResultDao extends AbstractDao {
         return result.intValue();
     }
 
+    /**
+     * Returns the size of all files uploaded during the study run with the given StudyResult ID (the quota ledger).
+     * It's read from the database directly and not from the (maybe outdated) StudyResult entity. Returns null if the
+     * size was never calculated.
+     */
+    public Long findUploadsSize(Long studyResultId) {
+        String queryStr = "SELECT sr.uploadsSize FROM StudyResult sr WHERE sr.id = :id";
+        List<?> result = jpa.em().createNativeQuery(queryStr).setParameter("id", studyResultId).getResultList();
+        if (result.isEmpty() || result.get(0) == null) return null;
+        return ((Number) result.get(0)).longValue();
+    }
+
+    /**
+     * Sets the size of all files uploaded during the study run with the given StudyResult ID (the quota ledger)
+     */
+    public void updateUploadsSize(Long studyResultId, long uploadsSize) {
+        String queryStr = "UPDATE StudyResult SET uploadsSize = :uploadsSize WHERE id = :id";
+        jpa.em().createNativeQuery(queryStr)
+                .setParameter("uploadsSize", uploadsSize)
+                .setParameter("id", studyResultId)
+                .executeUpdate();
+    }
+
+    /**
+     * Adds the given delta (can be negative) to the size of all files uploaded during the study run with the given
+     * StudyResult ID. It's done in one atomic UPDATE so concurrent uploads don't overwrite each other. If the size was
+     * never calculated (is null) nothing happens. The size never drops below 0.
+     */
+    public void addToUploadsSize(Long studyResultId, long delta) {
+        String queryStr = "UPDATE StudyResult SET uploadsSize = GREATEST(uploadsSize + :delta, 0) "
+                + "WHERE id = :id AND uploadsSize IS NOT NULL";
+        jpa.em().createNativeQuery(queryStr)
+                .setParameter("delta", delta)
+                .setParameter("id", studyResultId)
+                .executeUpdate();
+    }
+
     /**
      * Returns the number of StudyResults belonging to the given group.
      */
@@ -110,10 +178,14 @@ public class StudyResultDao extends AbstractDao {
         return result.intValue();
     }
 
-    public ScrollableResults findAllByStudyScrollable(Study study) {
+    /**
+     * Returns a ScrollableResults of all StudyResults that belong to the given Study. The ScrollableResults stays open
+     * after this call, therefore the EntityManager is passed in and not taken from the current context.
+     */
+    public ScrollableResults findAllByStudyScrollable(EntityManager em, Study study) {
         String queryStr = "SELECT sr FROM StudyResult sr WHERE sr.study=:study";
-        org.hibernate.query.Query query = (org.hibernate.query.Query) jpa.em().createQuery(queryStr, StudyResult.class);
-        return query.setParameter("study", study).scroll(ScrollMode.FORWARD_ONLY);
+        TypedQuery<StudyResult> query = em.createQuery(queryStr, StudyResult.class);
+        return scroll(query.setParameter("study", study).unwrap(org.hibernate.query.Query.class));
     }
 
     public List<StudyResult> findAllByStudy(Study study) {
@@ -122,12 +194,6 @@ public class StudyResultDao extends AbstractDao {
         return query.setParameter("study", study).getResultList();
     }
 
-    public ScrollableResults findAllByBatchScrollable(Batch batch) {
-        String queryStr = "SELECT sr FROM StudyResult sr WHERE sr.batch=:batch";
-        org.hibernate.query.Query query = (org.hibernate.query.Query) jpa.em().createQuery(queryStr, StudyResult.class);
-        return query.setParameter("batch", batch).scroll(ScrollMode.FORWARD_ONLY);
-    }
-
     public List<StudyResult> findAllByBatch(Batch batch) {
         String queryStr = "SELECT sr FROM StudyResult sr WHERE sr.batch=:batch";
         TypedQuery<StudyResult> query = jpa.em().createQuery(queryStr, StudyResult.class);
@@ -135,27 +201,102 @@ public class StudyResultDao extends AbstractDao {
     }
 
     /**
-     * Returns a ScrollableResults of all StudyResults that belongs to the given Batch and worker type.
+     * Returns a ScrollableResults of the StudyResults with the given IDs ordered by ID (see findAllByStudyScrollable).
+     * IDs that don't exist are skipped.
+     */
+    public ScrollableResults findByIdsScrollable(EntityManager em, List<Long> ids) {
+        String queryStr = "SELECT sr FROM StudyResult sr WHERE sr.id IN :ids ORDER BY sr.id";
+        TypedQuery<StudyResult> query = em.createQuery(queryStr, StudyResult.class);
+        return scroll(query.setParameter("ids", ids).unwrap(org.hibernate.query.Query.class));
+    }
+
+    /**
+     * Returns a ScrollableResults of table rows (see StudyResultTableRow) of all StudyResults that belong to the given
+     * Study and that the given user is allowed to see. Each row is an Object[] that holds only the columns the results
+     * table needs - no StudyResult entities are loaded. The ScrollableResults stays open after this call, therefore the
+     * EntityManager is passed in and not taken from the current context.
      */
-    public ScrollableResults findAllByBatchAndWorkerTypeScrollable(Batch batch, String workerType) {
-        String queryStr = "SELECT sr FROM StudyResult sr WHERE sr.batch=:batch "
-                + "AND sr.worker IN (SELECT w FROM Worker w WHERE w.class=:workerType)";
-        org.hibernate.query.Query query = (org.hibernate.query.Query) jpa.em().createQuery(queryStr, StudyResult.class);
-        return query.setParameter("batch", batch).setParameter("workerType", workerType).scroll(
-                ScrollMode.FORWARD_ONLY);
+    public ScrollableResults findTableRowsByStudyScrollable(EntityManager em, Study study, User user) {
+        Query query = createTableRowQuery(em, "sr.study = :study", user).setParameter("study", study);
+        return scroll(query.unwrap(org.hibernate.query.Query.class));
     }
 
-    public ScrollableResults findAllByWorkerScrollable(Worker worker) {
-        String queryStr = "SELECT sr FROM StudyResult sr WHERE sr.worker=:worker";
-        org.hibernate.query.Query query = (org.hibernate.query.Query)  jpa.em().createQuery(queryStr, StudyResult.class);
-        return query.setParameter("worker", worker).scroll(ScrollMode.FORWARD_ONLY);
+    /**
+     * Like findTableRowsByStudyScrollable but for all StudyResults that belong to the given Batch
+     */
+    public ScrollableResults findTableRowsByBatchScrollable(EntityManager em, Batch batch, User user) {
+        Query query = createTableRowQuery(em, "sr.batch = :batch", user).setParameter("batch", batch);
+        return scroll(query.unwrap(org.hibernate.query.Query.class));
+    }
+
+    /**
+     * Like findTableRowsByStudyScrollable but for all StudyResults that belong to the given Batch and one of the given
+     * worker types
+     */
+    public ScrollableResults findTableRowsByBatchAndWorkerTypesScrollable(EntityManager em, Batch batch,
+            List<String> workerTypes, User user) {
+        Query query = createTableRowQuery(em, "sr.batch = :batch AND w.class IN :workerTypes", user)
+                .setParameter("batch", batch)
+                .setParameter("workerTypes", workerTypes);
+        return scroll(query.unwrap(org.hibernate.query.Query.class));
+    }
+
+    /**
+     * Like findTableRowsByStudyScrollable but for all StudyResults of the given Worker
+     */
+    public ScrollableResults findTableRowsByWorkerScrollable(EntityManager em, Worker worker, User user) {
+        Query query = createTableRowQuery(em, "sr.worker = :worker", user).setParameter("worker", worker);
+        return scroll(query.unwrap(org.hibernate.query.Query.class));
+    }
+
+    /**
+     * Like findTableRowsByStudyScrollable but for all StudyResults that are or were in the given group
+     */
+    public ScrollableResults findTableRowsByGroupScrollable(EntityManager em, GroupResult groupResult, User user) {
+        Query query = createTableRowQuery(em, "sr.activeGroupResult = :group OR sr.historyGroupResult = :group", user)
+                .setParameter("group", groupResult);
+        return scroll(query.unwrap(org.hibernate.query.Query.class));
+    }
+
+    /**
+     * Returns the table rows (like findTableRowsByStudyScrollable) of the StudyResults with the given IDs
+     */
+    @SuppressWarnings("unchecked")
+    public List<Object[]> findTableRowsByIds(List<Long> ids, User user) {
+        if (ids.isEmpty()) return Collections.emptyList();
+        return createTableRowQuery(jpa.em(), "sr.id IN :ids", user).setParameter("ids", ids).getResultList();
+    }
+
+    private Query createTableRowQuery(EntityManager em, String condition, User user) {
+        String queryStr = TABLE_ROW_SELECT + "WHERE (" + condition + ") AND :user MEMBER OF st.userList "
+                + "ORDER BY sr.id";
+        return em.createQuery(queryStr).setParameter("user", user);
+    }
+
+    /**
+     * Returns one page of table rows (like findTableRowsByStudyScrollable) of the StudyResults that belong to the given
+     * Study, filtered, sorted and positioned as the given ResultPageQuery says. It returns up to the page's limit plus
+     * one rows - the additional row only tells whether there is a next page.
+     */
+    public List<Object[]> findTableRowsPageByStudy(Study study, ResultPageQuery page, User user) {
+        return findTableRowsPage("sr.study = :owner", study, page, user);
+    }
+
+    /**
+     * Like findTableRowsPageByStudy but for the StudyResults of the given Worker
+     */
+    public List<Object[]> findTableRowsPageByWorker(Worker worker, ResultPageQuery page, User user) {
+        return findTableRowsPage("sr.worker = :owner", worker, page, user);
     }
 
-    public ScrollableResults findAllByGroupScrollable(GroupResult groupResult) {
-        String queryStr = "SELECT sr FROM StudyResult sr WHERE sr.activeGroupResult = :group "
-                + "OR sr.historyGroupResult = :group";
-        org.hibernate.query.Query query = (org.hibernate.query.Query)  jpa.em().createQuery(queryStr, StudyResult.class);
-        return query.setParameter("group", groupResult).scroll(ScrollMode.FORWARD_ONLY);
+    @SuppressWarnings("unchecked")
+    private List<Object[]> findTableRowsPage(String condition, Object owner, ResultPageQuery page, User user) {
+        List<StudyState> states = page.getStates().stream().map(StudyState::valueOf).collect(Collectors.toList());
+        ResultPageClause clause = new ResultPageClause(page, "sr", "studyState", "w", "b", states);
+        String queryStr = TABLE_ROW_SELECT + "WHERE " + condition + " AND :user MEMBER OF st.userList"
+                + clause.conditions() + clause.orderBy();
+        Query query = jpa.em().createQuery(queryStr).setParameter("owner", owner).setParameter("user", user);
+        return clause.apply(query, page).getResultList();
     }
 
     public List<StudyResultStatus> findLastUnfinished(int count) {
@@ -12,6 +12,7 @@ import javax.inject.Singleton;
 import java.io.File;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
@@ -56,6 +57,21 @@ public class Common {
     private static String resultUploadsPath;
     private static long resultUploadsMaxFileSize;
     private static long resultUploadsLimitPerStudyRun;
+    private static int resultUploadsZipThreadPoolSize;
+    private static long resultDataMaxSize;
+    private static Duration heartbeatFlushInterval;
+    private static Duration batchSessionPersistInterval;
+    private static Duration groupSessionPersistInterval;
+    private static int groupSessionPersistAfterPatches;
+    private static Duration batchSessionCoalesceWindow;
+    private static Duration groupSessionCoalesceWindow;
+    private static int channelRegistryShards;
+    private static int channelOutBufferSize;
+    private static int channelDeflateThreshold;
+    private static int workersBulkCreationBatchSize;
+    private static int workersBulkCreationMaxAmount;
+    private static boolean publixAsync;
+    private static int publixDbThreadPoolSize;
     private static boolean inMemoryDb;
     private static int userSessionTimeout;
     private static int userSessionInactivity;
@@ -101,6 +117,21 @@ public class Common {
         resultUploadsPath = fillResultUploadsPath(config);
         resultUploadsMaxFileSize = config.getBytes("jatos.resultUploads.maxFileSize");
         resultUploadsLimitPerStudyRun = config.getBytes("jatos.resultUploads.limitPerStudyRun");
+        resultUploadsZipThreadPoolSize = Math.max(config.getInt("jatos.resultUploads.zipThreadPoolSize"), 1);
+        resultDataMaxSize = config.getBytes("jatos.resultData.maxSize");
+        heartbeatFlushInterval = config.getDuration("jatos.heartbeat.flushInterval");
+        batchSessionPersistInterval = config.getDuration("jatos.batchSession.persistInterval");
+        groupSessionPersistInterval = config.getDuration("jatos.groupSession.persistInterval");
+        groupSessionPersistAfterPatches = config.getInt("jatos.groupSession.persistAfterPatches");
+        batchSessionCoalesceWindow = config.getDuration("jatos.batchSession.coalesceWindow");
+        groupSessionCoalesceWindow = config.getDuration("jatos.groupSession.coalesceWindow");
+        channelRegistryShards = Math.max(config.getInt("jatos.channel.registryShards"), 1);
+        channelOutBufferSize = Math.max(config.getInt("jatos.channel.outBufferSize"), 1);
+        channelDeflateThreshold = Math.max(config.getInt("jatos.channel.deflateThreshold"), 0);
+        workersBulkCreationBatchSize = Math.max(config.getInt("jatos.workers.bulkCreationBatchSize"), 1);
+        workersBulkCreationMaxAmount = Math.max(config.getInt("jatos.workers.bulkCreationMaxAmount"), 1);
+        publixAsync = config.getBoolean("jatos.publix.async");
+        publixDbThreadPoolSize = Math.max(config.getInt("jatos.publix.dbThreadPoolSize"), 1);
         inMemoryDb = config.getString("db.default.url").contains("jdbc:h2:mem:");
         userSessionTimeout = config.getInt("jatos.userSession.timeout");
         userSessionInactivity = config.getInt("jatos.userSession.inactivity");
@@ -267,6 +298,118 @@ public class Common {
         return resultUploadsLimitPerStudyRun;
     }
 
+    /**
+     * Number of threads of the thread pool that compresses result files for the ZIP export
+     */
+    public static int getResultUploadsZipThreadPoolSize() {
+        return resultUploadsZipThreadPoolSize;
+    }
+
+    /**
+     * Max size of the result data of a single component result: the stored data are counted in characters and the
+     * posted data in bytes
+     */
+    public static long getResultDataMaxSize() {
+        return resultDataMaxSize;
+    }
+
+    /**
+     * Interval in which the heartbeats of study runs, collected in memory, are written into the database
+     */
+    public static Duration getHeartbeatFlushInterval() {
+        return heartbeatFlushInterval;
+    }
+
+    /**
+     * Interval in which the batch session data, kept in memory by the batch's dispatcher, are written into the
+     * database
+     */
+    public static Duration getBatchSessionPersistInterval() {
+        return batchSessionPersistInterval;
+    }
+
+    /**
+     * Interval in which the group session data, kept in memory by the group's dispatcher, are written into the
+     * database
+     */
+    public static Duration getGroupSessionPersistInterval() {
+        return groupSessionPersistInterval;
+    }
+
+    /**
+     * Number of group session patches after which the group session data are written into the database without
+     * waiting for the interval. 0 or less means only the interval counts.
+     */
+    public static int getGroupSessionPersistAfterPatches() {
+        return groupSessionPersistAfterPatches;
+    }
+
+    /**
+     * Batch session patches arriving within this window are sent to the batch members together in one message. Zero
+     * means every patch is sent right away.
+     */
+    public static Duration getBatchSessionCoalesceWindow() {
+        return batchSessionCoalesceWindow;
+    }
+
+    /**
+     * Group session patches arriving within this window are sent to the group members together in one message. Zero
+     * means every patch is sent right away.
+     */
+    public static Duration getGroupSessionCoalesceWindow() {
+        return groupSessionCoalesceWindow;
+    }
+
+    /**
+     * Number of registry actors (shards) that look up and create the batch and group dispatchers
+     */
+    public static int getChannelRegistryShards() {
+        return channelRegistryShards;
+    }
+
+    /**
+     * Number of messages that can wait to be sent to the client in each batch or group channel
+     */
+    public static int getChannelOutBufferSize() {
+        return channelOutBufferSize;
+    }
+
+    /**
+     * Channel messages of at least this size (in bytes) are sent deflated to clients that support it. Zero means no
+     * deflate.
+     */
+    public static int getChannelDeflateThreshold() {
+        return channelDeflateThreshold;
+    }
+
+    /**
+     * Number of workers that are persisted and committed together during a bulk creation of workers
+     */
+    public static int getWorkersBulkCreationBatchSize() {
+        return workersBulkCreationBatchSize;
+    }
+
+    /**
+     * Max number of personal workers that can be created in bulk with one request
+     */
+    public static int getWorkersBulkCreationMaxAmount() {
+        return workersBulkCreationMaxAmount;
+    }
+
+    /**
+     * If true Publix' actions run their database work asynchronously on a dedicated thread pool
+     */
+    public static boolean isPublixAsync() {
+        return publixAsync;
+    }
+
+    /**
+     * Number of threads of the thread pool that runs Publix' database work
+     */
+    public static int getPublixDbThreadPoolSize() {
+        return publixDbThreadPoolSize;
+    }
+
     /**
      * Is true if an in-memory database is used.
      */
@@ -0,0 +1,97 @@
+package general.common;
+
+import play.db.jpa.JPAApi;
+import play.inject.ApplicationLifecycle;
+import play.libs.concurrent.HttpExecution;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Dedicated thread pool for blocking database work, e.g. of Publix (the API used by running studies). This way a
+ * burst of requests that all wait for the database (e.g. many study starts at the same time) doesn't block Play's
+ * default dispatcher that also serves the study assets and the WebSockets. The pool's size is configured in
+ * 'jatos.publix.dbThreadPoolSize' and should be about the size of the database's connection pool - more threads
+ * would only wait for a connection. Requests that find all threads busy are queued. The queue's depth and other
+ * metrics can be seen in the GUI's status (e.g. if the pool is too small).
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class DatabaseExecutionContext implements Executor {
+
+    private final ThreadPoolExecutor executor;
+    private final JPAApi jpa;
+
+    @Inject
+    DatabaseExecutionContext(JPAApi jpa, ApplicationLifecycle applicationLifecycle) {
+        this.jpa = jpa;
+        int poolSize = Common.getPublixDbThreadPoolSize();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "jatos-db-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        applicationLifecycle.addStopHook(() -> {
+            executor.shutdown();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        executor.execute(runnable);
+    }
+
+    /**
+     * Runs the given supplier within a JPA transaction. If 'jatos.publix.async' is true it's run on this thread pool
+     * and the current Http.Context (request, session, cookies) is carried over to the pool's thread. Otherwise it's run
+     * right away on the calling thread and the returned CompletionStage is already completed. In both cases an
+     * exception thrown by the supplier rolls back the transaction.
+     */
+    public <T> CompletionStage<T> withTransaction(Supplier<T> supplier) {
+        if (!Common.isPublixAsync()) {
+            return CompletableFuture.completedFuture(jpa.withTransaction(supplier));
+        }
+        return CompletableFuture.supplyAsync(() -> jpa.withTransaction(supplier), HttpExecution.fromThread(this));
+    }
+
+    /**
+     * Number of tasks that wait for a free thread
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Number of threads that are currently busy
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Number of threads currently in the pool
+     */
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    /**
+     * Number of tasks that were completed since JATOS' start
+     */
+    public long getCompletedTaskCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+}
@@ -0,0 +1,61 @@
+package general.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of changes to entities whose JSON is cached (e.g. study, batch and component properties of the init
+ * data). Our entities don't have a version column, so this is done in memory: each committed change of an entity
+ * draws a new number from a global counter and remembers it as the entity's version ('last changed'). A cached JSON
+ * is still valid as long as its entity's version isn't newer than the counter was when the JSON was built.
+ * <p>
+ * The changes are reported by the {@link EntityVersionsIntegrator} AFTER the transaction committed. Therefore
+ * {@link #current()} has to be read BEFORE the entities are loaded from the database - this way a JSON can be built
+ * from outdated entities but then it's already marked as outdated.
+ * <p>
+ * It's static since the Hibernate integrator isn't created by Guice.
+ *
+ * @author Kristian Lange
+ */
+public class EntityVersions {
+
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    private static final Map<String, Long> LAST_CHANGED = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the current value of the global counter
+     */
+    public static long current() {
+        return COUNTER.get();
+    }
+
+    /**
+     * Returns the version of the entity with the given type and ID or 0 if it was never changed since JATOS' start
+     */
+    public static long lastChanged(Class<?> type, Long id) {
+        return LAST_CHANGED.getOrDefault(key(type, id), 0L);
+    }
+
+    /**
+     * Checks whether the entity with the given type and ID wasn't changed after the counter had the given value
+     */
+    public static boolean isUnchangedSince(Class<?> type, Long id, long counterValue) {
+        return lastChanged(type, id) <= counterValue;
+    }
+
+    /**
+     * Marks the entity with the given type and ID as changed. Concurrent changes of the same entity never decrease its
+     * version.
+     */
+    public static void changed(Class<?> type, Long id) {
+        if (id == null) return;
+        LAST_CHANGED.merge(key(type, id), COUNTER.incrementAndGet(), Math::max);
+    }
+
+    private static String key(Class<?> type, Long id) {
+        return type.getSimpleName() + "#" + id;
+    }
+
+}
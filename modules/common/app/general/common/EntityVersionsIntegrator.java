@@ -0,0 +1,119 @@
+package general.common;
+
+import models.common.Batch;
+import models.common.Component;
+import models.common.Study;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.boot.Metadata;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.*;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+/**
+ * Hibernate integrator that reports changes of studies, batches and components (incl. changes of their collections,
+ * e.g. the order of a study's components or a batch's allowed worker types) to {@link EntityVersions}. A change of a
+ * component is a change of its study too, since the study's component list is part of the init data.
+ * <p>
+ * The changes are noticed during the flush but reported only after the transaction is completed. Otherwise a request
+ * could build and cache a JSON from the not yet committed (old) state after the change was reported.
+ * <p>
+ * It's registered via META-INF/services/org.hibernate.integrator.spi.Integrator.
+ *
+ * @author Kristian Lange
+ */
+public class EntityVersionsIntegrator implements Integrator {
+
+    @Override
+    public void integrate(Metadata metadata, SessionFactoryImplementor sessionFactory,
+            SessionFactoryServiceRegistry serviceRegistry) {
+        EventListenerRegistry registry = serviceRegistry.getService(EventListenerRegistry.class);
+        ChangeListener listener = new ChangeListener();
+        registry.appendListeners(EventType.POST_INSERT, listener);
+        registry.appendListeners(EventType.POST_UPDATE, listener);
+        registry.appendListeners(EventType.POST_DELETE, listener);
+        registry.appendListeners(EventType.POST_COLLECTION_RECREATE, listener);
+        registry.appendListeners(EventType.POST_COLLECTION_UPDATE, listener);
+        registry.appendListeners(EventType.POST_COLLECTION_REMOVE, listener);
+    }
+
+    @Override
+    public void disintegrate(SessionFactoryImplementor sessionFactory,
+            SessionFactoryServiceRegistry serviceRegistry) {
+    }
+
+    private static class ChangeListener implements PostInsertEventListener, PostUpdateEventListener,
+            PostDeleteEventListener, PostCollectionRecreateEventListener, PostCollectionUpdateEventListener,
+            PostCollectionRemoveEventListener {
+
+        @Override
+        public void onPostInsert(PostInsertEvent event) {
+            changed(event.getEntity(), event.getSession());
+        }
+
+        @Override
+        public void onPostUpdate(PostUpdateEvent event) {
+            changed(event.getEntity(), event.getSession());
+        }
+
+        @Override
+        public void onPostDelete(PostDeleteEvent event) {
+            changed(event.getEntity(), event.getSession());
+        }
+
+        @Override
+        public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+            changed(event.getAffectedOwnerOrNull(), event.getSession());
+        }
+
+        @Override
+        public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+            changed(event.getAffectedOwnerOrNull(), event.getSession());
+        }
+
+        @Override
+        public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+            changed(event.getAffectedOwnerOrNull(), event.getSession());
+        }
+
+        @Override
+        public boolean requiresPostCommitHanding(EntityPersister persister) {
+            return false;
+        }
+
+        private void changed(Object entity, EventSource session) {
+            if (entity instanceof Study) {
+                Long studyId = ((Study) entity).getId();
+                registerChange(session, Study.class, studyId);
+            } else if (entity instanceof Batch) {
+                Long batchId = ((Batch) entity).getId();
+                registerChange(session, Batch.class, batchId);
+            } else if (entity instanceof Component) {
+                Component component = (Component) entity;
+                registerChange(session, Component.class, component.getId());
+                registerChange(session, Study.class, getId(component.getStudy()));
+            }
+        }
+
+        /**
+         * Gets the study's ID without initializing it in case it's a proxy
+         */
+        private Long getId(Study study) {
+            if (study == null) return null;
+            if (study instanceof HibernateProxy) {
+                return (Long) ((HibernateProxy) study).getHibernateLazyInitializer().getIdentifier();
+            }
+            return study.getId();
+        }
+
+        private void registerChange(EventSource session, Class<?> type, Long id) {
+            // Reported regardless of commit or rollback - an unnecessary new version costs only a rebuild of the JSON
+            session.getActionQueue().registerProcess(
+                    (AfterTransactionCompletionProcess) (success, s) -> EntityVersions.changed(type, id));
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package general.common;
+
+import akka.actor.ActorSystem;
+import models.common.StudyResult;
+import org.hibernate.Session;
+import play.Logger;
+import play.db.jpa.JPAApi;
+import play.inject.ApplicationLifecycle;
+import scala.concurrent.ExecutionContext;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the heartbeats of study runs (jatos.js sends them periodically) in memory instead of writing each one into the
+ * database. The collected heartbeats are written in one batch into StudyResult's lastSeenDate in the interval
+ * configured in 'jatos.heartbeat.flushInterval' and during JATOS' shutdown. Everybody who reads the lastSeenDate
+ * should use {@link #getLastSeenDate(StudyResult)} to get the freshest value.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class HeartbeatRegistry {
+
+    private static final Logger.ALogger LOGGER = Logger.of(HeartbeatRegistry.class);
+
+    /**
+     * Maps StudyResult IDs to their last heartbeat that is not yet written into the database
+     */
+    private final Map<Long, Timestamp> lastSeenDates = new ConcurrentHashMap<>();
+
+    private final JPAApi jpa;
+
+    @Inject
+    HeartbeatRegistry(JPAApi jpa, ActorSystem actorSystem, ExecutionContext executionContext,
+            ApplicationLifecycle applicationLifecycle) {
+        this.jpa = jpa;
+        Duration interval = Common.getHeartbeatFlushInterval();
+        actorSystem.scheduler().schedule(interval, interval, this::flush, executionContext);
+        applicationLifecycle.addStopHook(() -> {
+            flush();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Registers a heartbeat for the StudyResult with the given ID with the current time
+     */
+    public void beat(Long studyResultId) {
+        lastSeenDates.put(studyResultId, new Timestamp(System.currentTimeMillis()));
+    }
+
+    /**
+     * Returns the freshest lastSeenDate of the given StudyResult: either the one stored in the database or, if there
+     * is a newer one, the one kept in memory. Can be null if the StudyResult was never seen.
+     */
+    public Timestamp getLastSeenDate(StudyResult studyResult) {
+        return freshest(studyResult.getLastSeenDate(), studyResult.getId());
+    }
+
+    /**
+     * Returns the given lastSeenDate (usually loaded from the database) or the in-memory one of the StudyResult with
+     * the given ID if it is newer
+     */
+    public Timestamp freshest(Timestamp lastSeenDate, Long studyResultId) {
+        Timestamp pending = lastSeenDates.get(studyResultId);
+        if (pending == null) return lastSeenDate;
+        if (lastSeenDate == null || pending.after(lastSeenDate)) return pending;
+        return lastSeenDate;
+    }
+
+    /**
+     * Writes all heartbeats collected so far into the database with one batched UPDATE statement. An entry is only
+     * removed from memory if no newer heartbeat arrived in the meantime.
+     */
+    public synchronized void flush() {
+        if (lastSeenDates.isEmpty()) return;
+        Map<Long, Timestamp> snapshot = new HashMap<>(lastSeenDates);
+        try {
+            jpa.withTransaction(entityManager -> {
+                entityManager.unwrap(Session.class).doWork(connection -> {
+                    String sql = "UPDATE StudyResult SET lastSeenDate = ? WHERE id = ?";
+                    try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                        for (Map.Entry<Long, Timestamp> entry : snapshot.entrySet()) {
+                            statement.setTimestamp(1, entry.getValue());
+                            statement.setLong(2, entry.getKey());
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                });
+            });
+            snapshot.forEach(lastSeenDates::remove);
+        } catch (Exception e) {
+            LOGGER.error(".flush: couldn't write heartbeats of " + snapshot.size() + " study runs into database", e);
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package general.common;
+
+import daos.common.ComponentResultDao;
+import models.common.ComponentResult;
+import play.Logger;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fills the index of uploaded result files (see models.common.ResultFile) with the files that were uploaded before
+ * the index existed. Every upload since then is added to the index right away (see Publix.uploadResultFile). It walks
+ * once through the result uploads folder in the background after JATOS started, on the DatabaseExecutionContext since
+ * most of its time it waits for the database. Afterwards a flag in the database (set to false by the evolution that
+ * created the index) prevents it from running again. This way the flag belongs to the index it describes: e.g. if the
+ * database is restored from a backup the flag is restored with it.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ResultFileIndexer {
+
+    private static final Logger.ALogger LOGGER = Logger.of(ResultFileIndexer.class);
+
+    private static final String STUDY_RESULT_DIR_PREFIX = "study-result_";
+    private static final String COMPONENT_RESULT_DIR_PREFIX = "comp-result_";
+
+    private final JPAApi jpa;
+    private final ComponentResultDao componentResultDao;
+    private final DatabaseExecutionContext dbExecutionContext;
+
+    @Inject
+    ResultFileIndexer(JPAApi jpa, ComponentResultDao componentResultDao,
+            DatabaseExecutionContext dbExecutionContext) {
+        this.jpa = jpa;
+        this.componentResultDao = componentResultDao;
+        this.dbExecutionContext = dbExecutionContext;
+    }
+
+    /**
+     * Indexes the files in the result uploads folder in the background - unless it was done already
+     */
+    public void indexExistingUploadsInBackground() {
+        CompletableFuture.runAsync(() -> {
+            try {
+                if (jpa.withTransaction(componentResultDao::isExistingUploadsIndexed)) return;
+                indexExistingUploads();
+            } catch (Exception e) {
+                LOGGER.error(".indexExistingUploadsInBackground: couldn't index result upload files", e);
+            }
+        }, dbExecutionContext);
+    }
+
+    /**
+     * Adds all files in the result uploads folder to the index (files already in the index are only updated) and
+     * sets the flag in the database
+     */
+    public void indexExistingUploads() throws IOException {
+        Path root = Paths.get(Common.getResultUploadsPath());
+        Files.createDirectories(root);
+        int count = 0;
+        try (DirectoryStream<Path> studyResultDirs = Files.newDirectoryStream(root, STUDY_RESULT_DIR_PREFIX + "*")) {
+            for (Path studyResultDir : studyResultDirs) {
+                if (!Files.isDirectory(studyResultDir)) continue;
+                try (DirectoryStream<Path> componentResultDirs = Files.newDirectoryStream(studyResultDir,
+                        COMPONENT_RESULT_DIR_PREFIX + "*")) {
+                    for (Path componentResultDir : componentResultDirs) {
+                        count += indexComponentResultDir(componentResultDir);
+                    }
+                }
+            }
+        }
+        jpa.withTransaction(componentResultDao::setExistingUploadsIndexed);
+        if (count > 0) LOGGER.info(".indexExistingUploads: added " + count + " result upload files to the index");
+    }
+
+    /**
+     * Adds the files of one ComponentResult's upload folder to the index within one transaction. Folders of
+     * ComponentResults that don't exist (anymore) are skipped. Returns the number of files.
+     */
+    private int indexComponentResultDir(Path componentResultDir) throws IOException {
+        if (!Files.isDirectory(componentResultDir)) return 0;
+        Long componentResultId;
+        try {
+            componentResultId = Long.valueOf(componentResultDir.getFileName().toString()
+                    .substring(COMPONENT_RESULT_DIR_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(componentResultDir)) {
+            dirStream.forEach(file -> {
+                if (Files.isRegularFile(file)) files.add(file);
+            });
+        }
+        if (files.isEmpty()) return 0;
+
+        return jpa.withTransaction(() -> {
+            ComponentResult componentResult = componentResultDao.findById(componentResultId);
+            if (componentResult == null) return 0;
+            for (Path file : files) {
+                String filename = file.getFileName().toString();
+                componentResultDao.putResultFile(componentResult, filename, file.toFile().length());
+            }
+            return files.size();
+        });
+    }
+
+}
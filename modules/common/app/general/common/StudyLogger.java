@@ -178,10 +178,22 @@ public class StudyLogger {
      * @param file File that will be stored
      */
     public void logResultUploading(Path file, ComponentResult componentResult) throws IOException {
+        if (!Common.isStudyLogsEnabled()) return;
+        if (file == null) return;
+        logResultUploading(file, componentResult, HashUtils.getHash(file, HashUtils.SHA_256));
+    }
+
+    /**
+     * Like {@link #logResultUploading(Path, ComponentResult)} but with an already calculated hash of the file, e.g. if
+     * the file was hashed while it was streamed to the disk
+     *
+     * @param file     File that will be stored
+     * @param fileHash SHA-256 hash of the file
+     */
+    public void logResultUploading(Path file, ComponentResult componentResult, String fileHash) {
         if (!Common.isStudyLogsEnabled()) return;
         if (file == null) return;
         StudyResult studyResult = componentResult.getStudyResult();
-        String fileHash = HashUtils.getHash(file, HashUtils.SHA_256);
 
         ObjectNode jsonObj = Json.newObject();
         jsonObj.put(MSG, "Uploaded file");
@@ -201,14 +213,50 @@ public class StudyLogger {
         if (!Common.isStudyLogsEnabled()) return;
         if (componentResult == null) return;
 
-        StudyResult studyResult = componentResult.getStudyResult();
         String resultDataHash = (componentResult.getData() != null) ? HashUtils.getHash(componentResult.getData(),
-                HashUtils.SHA_256) : NO_DATA;
+                HashUtils.SHA_256) : null;
+        logResultDataStoring(componentResult, resultDataHash);
+    }
+
+    /**
+     * Like {@link #logResultDataStoring(ComponentResult)} but with an already calculated hash of the result data, e.g.
+     * if the data were hashed while they were streamed into the database.
+     *
+     * @param componentResult ComponentResults that will be stored
+     * @param resultDataHash  SHA-256 hash of the result data (can be null if there are no data)
+     */
+    public void logResultDataStoring(ComponentResult componentResult, String resultDataHash) {
+        if (!Common.isStudyLogsEnabled()) return;
+        if (componentResult == null) return;
+
+        StudyResult studyResult = componentResult.getStudyResult();
         ObjectNode jsonObj = Json.newObject();
         jsonObj.put(MSG, "Stored component result data");
         jsonObj.put(COMPONENT_UUID, componentResult.getComponent().getUuid());
         jsonObj.put(WORKER_ID, componentResult.getWorkerId());
-        jsonObj.put(DATA_HASH, resultDataHash);
+        jsonObj.put(DATA_HASH, (resultDataHash != null) ? resultDataHash : NO_DATA);
+        log(studyResult.getStudy(), null, jsonObj);
+    }
+
+    /**
+     * Adds an entry to the study log: adds the hash of the appended result data, component UUID, and the worker ID.
+     * Only the appended data are hashed and not the whole result data of the component result. The hash is
+     * calculated by the caller while the data are streamed into the database - this way the appended data don't have
+     * to be held in memory.
+     *
+     * @param componentResult  ComponentResults to which the data were appended
+     * @param appendedDataHash SHA-256 hash of the appended result data (can be null if there are no data)
+     */
+    public void logResultDataAppending(ComponentResult componentResult, String appendedDataHash) {
+        if (!Common.isStudyLogsEnabled()) return;
+        if (componentResult == null) return;
+
+        StudyResult studyResult = componentResult.getStudyResult();
+        ObjectNode jsonObj = Json.newObject();
+        jsonObj.put(MSG, "Appended component result data");
+        jsonObj.put(COMPONENT_UUID, componentResult.getComponent().getUuid());
+        jsonObj.put(WORKER_ID, componentResult.getWorkerId());
+        jsonObj.put(DATA_HASH, (appendedDataHash != null) ? appendedDataHash : NO_DATA);
         log(studyResult.getStudy(), null, jsonObj);
     }
 
@@ -3,6 +3,8 @@ package models.common;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonView;
 import models.common.workers.Worker;
+import org.hibernate.annotations.LazyCollection;
+import org.hibernate.annotations.LazyCollectionOption;
 import utils.common.JsonUtils;
 
 import javax.persistence.*;
@@ -86,10 +88,12 @@ public class Batch {
      * before the study starts (PersonalMultipleWorker or PersonalSingleWorker)
      * or created on-the-fly after the study started (MTWorker,
      * GeneralSingleWorker, GeneralMultipleWorker). JatosWorker are created together with the User
-     * and added to this list too. This relationship is bidirectional.
+     * and added to this list too. This relationship is bidirectional. The list is extra lazy: size()
+     * and contains() are answered by queries on BatchWorkerMap without loading all workers.
      */
     @JsonIgnore
     @ManyToMany(fetch = FetchType.LAZY)
+    @LazyCollection(LazyCollectionOption.EXTRA)
     @JoinTable(name = "BatchWorkerMap", joinColumns = {
             @JoinColumn(name = "batch_id", referencedColumnName = "id")}, inverseJoinColumns = {
             @JoinColumn(name = "worker_id", referencedColumnName = "id")})
@@ -125,10 +129,13 @@ public class Batch {
      * exchange data between all study runs of this batch. All members of this
      * batch share the same batchSessionData. It's stored as a normal string in
      * the database but jatos.js converts it into JSON. We use versioning to
-     * prevent concurrent changes of the data.
+     * prevent concurrent changes of the data. While a study of this batch runs
+     * the BatchDispatcher keeps it in memory - therefore it's never written by
+     * merging the Batch but only with BatchDao.updateBatchSession.
      */
     @JsonIgnore
     @Lob
+    @Column(updatable = false)
     private String batchSessionData = "{}";
 
     /**
@@ -137,7 +144,7 @@ public class Batch {
      * the data.
      */
     @JsonIgnore
-    @Column(nullable = false)
+    @Column(nullable = false, updatable = false)
     private Long batchSessionVersion = 1L;
 
     public Batch() {
@@ -1,8 +1,10 @@
 package models.common;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
@@ -11,10 +13,13 @@ import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.Lob;
 import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
+import javax.persistence.OrderBy;
 import javax.persistence.Table;
 
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.annotations.BatchSize;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -98,6 +103,27 @@ public class ComponentResult {
     @JsonIgnore
     private String data;
 
+    /**
+     * Result data that were appended (jatos.appendResultData) after the data were submitted. Each append is stored as
+     * a separate chunk so that appending doesn't need to load and rewrite the data already stored. This relationship
+     * is bidirectional. Chunks are only added via ComponentResultDao.
+     */
+    @JsonIgnore
+    @OneToMany(fetch = FetchType.LAZY, mappedBy = "componentResult")
+    @OrderBy("id")
+    private List<ResultDataChunk> dataChunkList = new ArrayList<>();
+
+    /**
+     * Index of the files uploaded (jatos.uploadResultFile) during this component run. This relationship is
+     * bidirectional. ResultFiles are only added via ComponentResultDao. The collections of up to 100 ComponentResults
+     * are loaded together.
+     */
+    @JsonIgnore
+    @OneToMany(fetch = FetchType.LAZY, mappedBy = "componentResult")
+    @OrderBy("filename")
+    @BatchSize(size = 100)
+    private List<ResultFile> resultFileList = new ArrayList<>();
+
     /**
      * Some message usually set via jatos.startComponent. Max 255 characters. Can be left null.
      */
@@ -166,10 +192,63 @@ public class ComponentResult {
         this.data = data;
     }
 
+    /**
+     * Returns the whole result data: the submitted data followed by all appended chunks. Returns null if there are no
+     * data at all.
+     */
     public String getData() {
+        if (dataChunkList.isEmpty()) return this.data;
+        StringBuilder sb = new StringBuilder();
+        getDataSegments().forEach(sb::append);
+        return sb.toString();
+    }
+
+    /**
+     * Returns only the submitted result data without the appended chunks. Can be null.
+     */
+    @JsonIgnore
+    public String getSubmittedData() {
         return this.data;
     }
 
+    /**
+     * Returns the result data as a list of segments in the order they were stored: first the submitted data (if not
+     * null), then the data of each appended chunk. Useful to stream the data without concatenating them first.
+     */
+    @JsonIgnore
+    public List<String> getDataSegments() {
+        List<String> segments = new ArrayList<>();
+        if (this.data != null) segments.add(this.data);
+        for (ResultDataChunk chunk : dataChunkList) {
+            if (chunk.getData() != null) segments.add(chunk.getData());
+        }
+        return segments;
+    }
+
+    public List<ResultDataChunk> getDataChunkList() {
+        return dataChunkList;
+    }
+
+    public void addDataChunk(ResultDataChunk chunk) {
+        dataChunkList.add(chunk);
+    }
+
+    public void clearDataChunks() {
+        dataChunkList.clear();
+    }
+
+    public List<ResultFile> getResultFileList() {
+        return resultFileList;
+    }
+
+    public void addResultFile(ResultFile resultFile) {
+        resultFileList.add(resultFile);
+    }
+
+    public void clearResultFiles() {
+        resultFileList.clear();
+    }
+
     public void setMessage(String message) {
         this.message = StringUtils.substring(message, 0, 255);
     }
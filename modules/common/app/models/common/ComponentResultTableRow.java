@@ -0,0 +1,112 @@
+package models.common;
+
+import models.common.ComponentResult.ComponentState;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Projection of a ComponentResult with everything the results table in the GUI needs (not an entity). Instead of the
+ * whole result data it has only a preview of them: the beginning of the data, truncated in SQL (see
+ * ComponentResultDao.findTableRowsByStudyResultIds). The whole data can be loaded separately.
+ *
+ * @author Kristian Lange
+ */
+public class ComponentResultTableRow {
+
+    /**
+     * Max number of characters of the result data that are shown in the results table
+     */
+    public static final int DATA_PREVIEW_LENGTH = 1000;
+
+    private final Long id;
+    private final Long studyResultId;
+    private final Long componentId;
+    private final String componentTitle;
+    private final Timestamp startDate;
+    private final Timestamp endDate;
+    private final ComponentState componentState;
+    private final String message;
+    private String dataPreview;
+    private boolean dataTruncated;
+    private List<String> files = new ArrayList<>();
+
+    public ComponentResultTableRow(Long id, Long studyResultId, Long componentId, String componentTitle,
+            Timestamp startDate, Timestamp endDate, ComponentState componentState, String message, String dataPreview,
+            boolean dataTruncated) {
+        this.id = id;
+        this.studyResultId = studyResultId;
+        this.componentId = componentId;
+        this.componentTitle = componentTitle;
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.componentState = componentState;
+        this.message = message;
+        this.dataPreview = dataPreview;
+        this.dataTruncated = dataTruncated;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getStudyResultId() {
+        return studyResultId;
+    }
+
+    public Long getComponentId() {
+        return componentId;
+    }
+
+    public String getComponentTitle() {
+        return componentTitle;
+    }
+
+    public Timestamp getStartDate() {
+        return startDate;
+    }
+
+    public Timestamp getEndDate() {
+        return endDate;
+    }
+
+    public ComponentState getComponentState() {
+        return componentState;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Beginning of the result data or null if there are none
+     */
+    public String getDataPreview() {
+        return dataPreview;
+    }
+
+    /**
+     * True if the result data are longer than the preview
+     */
+    public boolean isDataTruncated() {
+        return dataTruncated;
+    }
+
+    public void setDataPreview(String dataPreview, boolean dataTruncated) {
+        this.dataPreview = dataPreview;
+        this.dataTruncated = dataTruncated;
+    }
+
+    /**
+     * Filenames of the uploaded result files (from the index of result files, see ResultFile)
+     */
+    public List<String> getFiles() {
+        return files;
+    }
+
+    public void setFiles(List<String> files) {
+        this.files = files;
+    }
+
+}
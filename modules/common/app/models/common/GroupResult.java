@@ -54,17 +54,20 @@ public class GroupResult {
      * Temporary, global data storage that can be accessed via jatos.js to exchange data in between a group while the
      * study is running. All members of this group share the same groupSessionData. It will be deleted after the group
      * is finished. It's stored as a normal string but jatos.js converts it into JSON. We use versioning to prevent
-     * concurrent changes of the data. It's initialised with an empty JSON object.
+     * concurrent changes of the data. It's initialised with an empty JSON object. While the group is running the
+     * GroupDispatcher keeps it in memory - therefore it's never written by merging the GroupResult but only with
+     * GroupResultDao.updateGroupSession and GroupResultDao.removeGroupSession.
      */
     @JsonIgnore
     @Lob
+    @Column(updatable = false)
     private String groupSessionData = "{}";
 
     /**
      * Current version of the groupSessionData. With each change of the data it is increased by 1. We use versioning to
      * prevent concurrent changes of the data.
      */
-    @Column(nullable = false)
+    @Column(nullable = false, updatable = false)
     private Long groupSessionVersion = 1L;
 
     @JsonIgnore
@@ -0,0 +1,98 @@
+package models.common;
+
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.Lob;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+
+/**
+ * Domain model / entity of a chunk of result data. Each time result data are appended to a ComponentResult (via
+ * jatos.appendResultData) they are stored as a new chunk instead of rewriting the whole data of the ComponentResult.
+ * The ComponentResult's result data are its data field followed by all its chunks in the order of their IDs.
+ *
+ * @author Kristian Lange
+ */
+@Entity
+@Table(name = "ResultDataChunk")
+public class ResultDataChunk {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    /**
+     * ComponentResult that this chunk belongs to. This relationship is bidirectional.
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "componentResult_id", nullable = false)
+    private ComponentResult componentResult;
+
+    /**
+     * Appended result data
+     */
+    @Lob
+    private String data;
+
+    public ResultDataChunk() {
+    }
+
+    public ResultDataChunk(ComponentResult componentResult, String data) {
+        this.componentResult = componentResult;
+        this.data = data;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getId() {
+        return this.id;
+    }
+
+    public void setComponentResult(ComponentResult componentResult) {
+        this.componentResult = componentResult;
+    }
+
+    public ComponentResult getComponentResult() {
+        return this.componentResult;
+    }
+
+    public void setData(String data) {
+        this.data = data;
+    }
+
+    public String getData() {
+        return this.data;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(id);
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((getId() == null) ? 0 : getId().hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+
+        if (obj == null) return false;
+
+        if (!(obj instanceof ResultDataChunk)) return false;
+
+        ResultDataChunk other = (ResultDataChunk) obj;
+        if (getId() == null) return other.getId() == null;
+        return getId().equals(other.getId());
+    }
+
+}
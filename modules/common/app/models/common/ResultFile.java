@@ -0,0 +1,109 @@
+package models.common;
+
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * Domain model / entity of a file uploaded during a component run (via jatos.uploadResultFile). The file itself is
+ * stored in the result uploads folder - this is only its entry in the index of uploaded files. This way the uploaded
+ * files of a ComponentResult can be listed without accessing the file system. A ComponentResult has at most one
+ * ResultFile per filename: uploading a file with the same name again overwrites the file.
+ *
+ * @author Kristian Lange
+ */
+@Entity
+@Table(name = "ResultFile", uniqueConstraints = @UniqueConstraint(columnNames = {"componentResult_id", "filename"}))
+public class ResultFile {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    /**
+     * ComponentResult during which the file was uploaded. This relationship is bidirectional.
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "componentResult_id", nullable = false)
+    private ComponentResult componentResult;
+
+    private String filename;
+
+    /**
+     * Size of the file in bytes
+     */
+    private long size;
+
+    public ResultFile() {
+    }
+
+    public ResultFile(ComponentResult componentResult, String filename, long size) {
+        this.componentResult = componentResult;
+        this.filename = filename;
+        this.size = size;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getId() {
+        return this.id;
+    }
+
+    public void setComponentResult(ComponentResult componentResult) {
+        this.componentResult = componentResult;
+    }
+
+    public ComponentResult getComponentResult() {
+        return this.componentResult;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public String getFilename() {
+        return this.filename;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    @Override
+    public String toString() {
+        return filename;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((getId() == null) ? 0 : getId().hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+
+        if (obj == null) return false;
+
+        if (!(obj instanceof ResultFile)) return false;
+
+        ResultFile other = (ResultFile) obj;
+        if (getId() == null) return other.getId() == null;
+        return getId().equals(other.getId());
+    }
+
+}
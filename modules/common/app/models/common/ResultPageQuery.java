@@ -0,0 +1,192 @@
+package models.common;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Model of a request for one page of results (not persisted in DB): the filters, the sorting and the position of the
+ * page. Pages are addressed with keyset pagination: instead of an offset the page starts after the last result of the
+ * previous page (the cursor), given by its ID and, if sorted by start date, its start date. This way the database can
+ * seek directly to the page's first result with an index and the latency doesn't depend on the page's depth.
+ *
+ * The states are the names of either StudyResult.StudyState or ComponentResult.ComponentState, depending on which
+ * results are requested.
+ *
+ * @author Kristian Lange
+ */
+public class ResultPageQuery {
+
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    /**
+     * Columns the results can be sorted by. Both are backed by an index. Results with the same start date are
+     * sorted by ID.
+     */
+    public enum Sort {
+        ID("id"), START_DATE("startDate");
+
+        private final String param;
+
+        Sort(String param) {
+            this.param = param;
+        }
+
+        public String getParam() {
+            return param;
+        }
+
+        /**
+         * Returns the Sort with the given request parameter value or null if there is none
+         */
+        public static Sort fromParam(String param) {
+            for (Sort sort : values()) {
+                if (sort.param.equals(param)) return sort;
+            }
+            return null;
+        }
+    }
+
+    private Sort sort = Sort.ID;
+    private boolean descending = false;
+    private int limit = DEFAULT_LIMIT;
+    private Long afterId;
+    private Timestamp afterStartDate;
+    private List<String> states = new ArrayList<>();
+    private List<String> workerTypes = new ArrayList<>();
+    private Timestamp from;
+    private Timestamp to;
+    private Long batchId;
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    public void setSort(Sort sort) {
+        this.sort = sort;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public void setDescending(boolean descending) {
+        this.descending = descending;
+    }
+
+    /**
+     * Max number of results on this page
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+    }
+
+    /**
+     * ID of the last result of the previous page or null if this is the first page
+     */
+    public Long getAfterId() {
+        return afterId;
+    }
+
+    /**
+     * Start date of the last result of the previous page (only used if sorted by start date)
+     */
+    public Timestamp getAfterStartDate() {
+        return afterStartDate;
+    }
+
+    /**
+     * Sets the cursor: this page starts after the given result
+     */
+    public void setAfter(Long afterId, Timestamp afterStartDate) {
+        this.afterId = afterId;
+        this.afterStartDate = afterStartDate;
+    }
+
+    /**
+     * Returns the cursor (that can be parsed with {@link #parseCursor}) of the page that follows the given result
+     */
+    public String cursorAfter(Long id, Timestamp startDate) {
+        return sort == Sort.START_DATE ? startDate.getTime() + "_" + id : id.toString();
+    }
+
+    /**
+     * Sets the cursor from its string form (see {@link #cursorAfter}). Throws an IllegalArgumentException if it's
+     * malformed.
+     */
+    public void parseCursor(String cursor) {
+        String[] parts = cursor.split("_");
+        try {
+            if (sort == Sort.START_DATE && parts.length == 2) {
+                setAfter(Long.valueOf(parts[1]), new Timestamp(Long.parseLong(parts[0])));
+            } else if (sort == Sort.ID && parts.length == 1) {
+                setAfter(Long.valueOf(parts[0]), null);
+            } else {
+                throw new IllegalArgumentException("Malformed cursor " + cursor);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed cursor " + cursor, e);
+        }
+    }
+
+    /**
+     * Only results in one of these states - or in all states if empty
+     */
+    public List<String> getStates() {
+        return states;
+    }
+
+    public void setStates(List<String> states) {
+        this.states = states;
+    }
+
+    /**
+     * Only results of workers of these types - or of all types if empty
+     */
+    public List<String> getWorkerTypes() {
+        return workerTypes;
+    }
+
+    public void setWorkerTypes(List<String> workerTypes) {
+        this.workerTypes = workerTypes;
+    }
+
+    /**
+     * Only results started at or after this date - or null if not limited
+     */
+    public Timestamp getFrom() {
+        return from;
+    }
+
+    public void setFrom(Timestamp from) {
+        this.from = from;
+    }
+
+    /**
+     * Only results started before this date - or null if not limited
+     */
+    public Timestamp getTo() {
+        return to;
+    }
+
+    public void setTo(Timestamp to) {
+        this.to = to;
+    }
+
+    /**
+     * Only results of the batch with this ID - or null if of all batches
+     */
+    public Long getBatchId() {
+        return batchId;
+    }
+
+    public void setBatchId(Long batchId) {
+        this.batchId = batchId;
+    }
+
+}
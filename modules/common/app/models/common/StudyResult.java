@@ -140,6 +140,14 @@ public class StudyResult {
      */
     private String urlQueryParameters;
 
+    /**
+     * Size in bytes of all files uploaded during this study run (quota ledger). It's null if it wasn't calculated yet.
+     * This field is read-only: it's only changed via StudyResultDao's atomic updates, to not lose concurrent uploads.
+     */
+    @JsonIgnore
+    @Column(insertable = false, updatable = false)
+    private Long uploadsSize;
+
     public StudyResult() {
     }
 
@@ -307,6 +315,10 @@ public class StudyResult {
         this.urlQueryParameters = urlQueryParameters;
     }
 
+    public Long getUploadsSize() {
+        return uploadsSize;
+    }
+
     @Override
     public String toString() {
         return String.valueOf(id);
@@ -0,0 +1,109 @@
+package models.common;
+
+import models.common.StudyResult.StudyState;
+import models.common.workers.Worker;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Projection of a StudyResult with everything the results table in the GUI needs (not an entity). It's created from
+ * a row of StudyResultDao's table row queries (see StudyResultDao.TABLE_ROW_SELECT), which fetch all columns
+ * including the study, batch, worker and group result in one SQL query, and gets its ComponentResultTableRows
+ * afterwards.
+ *
+ * @author Kristian Lange
+ */
+public class StudyResultTableRow {
+
+    private final Long id;
+    private final Timestamp startDate;
+    private final Timestamp endDate;
+    private final Timestamp lastSeenDate;
+    private final StudyState studyState;
+    private final String confirmationCode;
+    private final String message;
+    private final Long studyId;
+    private final String studyTitle;
+    private final String batchTitle;
+    private final Worker worker;
+    private final Long groupResultId;
+    private final List<ComponentResultTableRow> componentResults = new ArrayList<>();
+
+    /**
+     * @param row a row in the order of StudyResultDao.TABLE_ROW_SELECT
+     */
+    public StudyResultTableRow(Object[] row) {
+        this.id = (Long) row[0];
+        this.startDate = (Timestamp) row[1];
+        this.endDate = (Timestamp) row[2];
+        this.lastSeenDate = (Timestamp) row[3];
+        this.studyState = (StudyState) row[4];
+        this.confirmationCode = (String) row[5];
+        this.message = (String) row[6];
+        this.studyId = (Long) row[7];
+        this.studyTitle = (String) row[8];
+        this.batchTitle = (String) row[9];
+        this.worker = (Worker) row[10];
+        // Active group result or, if there is none, history group result
+        this.groupResultId = row[11] != null ? (Long) row[11] : (Long) row[12];
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Timestamp getStartDate() {
+        return startDate;
+    }
+
+    public Timestamp getEndDate() {
+        return endDate;
+    }
+
+    public Timestamp getLastSeenDate() {
+        return lastSeenDate;
+    }
+
+    public StudyState getStudyState() {
+        return studyState;
+    }
+
+    public String getConfirmationCode() {
+        return confirmationCode;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public Long getStudyId() {
+        return studyId;
+    }
+
+    public String getStudyTitle() {
+        return studyTitle;
+    }
+
+    public String getBatchTitle() {
+        return batchTitle;
+    }
+
+    public Worker getWorker() {
+        return worker;
+    }
+
+    public Long getGroupResultId() {
+        return groupResultId;
+    }
+
+    public List<ComponentResultTableRow> getComponentResults() {
+        return componentResults;
+    }
+
+    public void addComponentResult(ComponentResultTableRow componentResult) {
+        componentResults.add(componentResult);
+    }
+
+}
@@ -44,10 +44,11 @@ public class HashUtils {
     public static String getHash(Path file, String hashFunction) throws IOException {
         try {
             MessageDigest digest = MessageDigest.getInstance(hashFunction);
+            byte[] buffer = new byte[8192];
             try (InputStream is = Files.newInputStream(file);
                     DigestInputStream dis = new DigestInputStream(is, digest)) {
-                while ((dis.read()) != -1) {}
-
+                // Read in blocks - reading byte by byte is very slow for larger files
+                while ((dis.read(buffer)) != -1) {}
             }
             byte[] hashByte = digest.digest();
             return bytesToHex(hashByte);
@@ -56,6 +57,27 @@ public class HashUtils {
         }
     }
 
+    /**
+     * Returns a new MessageDigest for the given hash function. Use it together with {@link #getHash(MessageDigest)}
+     * if the data are hashed incrementally. To get the same hash as {@link #getHash(String, String)} strings have to
+     * be passed as ISO_8859_1 bytes.
+     */
+    public static MessageDigest getDigest(String hashFunction) {
+        try {
+            return MessageDigest.getInstance(hashFunction);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Completes the hash calculation of the given MessageDigest and converts the result into a String of hexadecimal
+     * characters.
+     */
+    public static String getHash(MessageDigest digest) {
+        return bytesToHex(digest.digest());
+    }
+
     private static String bytesToHex(byte[] hashByte) {
         StringBuilder sb = new StringBuilder();
         for (byte aHashByte : hashByte) {
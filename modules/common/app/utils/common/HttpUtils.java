@@ -5,6 +5,8 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 
 import play.Logger;
@@ -99,6 +101,18 @@ public class HttpUtils {
         return decodedStr;
     }
 
+    /**
+     * Returns the charset of the request's body as specified in its Content-Type header. Defaults to UTF-8 if the
+     * header has no charset or an unknown one.
+     */
+    public static Charset getCharset() {
+        try {
+            return Controller.request().charset().map(Charset::forName).orElse(StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
     /**
      * Gets the value of to the given key in request's query string and trims whitespace.
      */
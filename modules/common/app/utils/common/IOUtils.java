@@ -15,6 +15,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * Utility class that handles access to the system's file system.
@@ -403,7 +404,9 @@ public class IOUtils {
     public long getResultUploadDirSize(Long studyResultId) throws IOException {
         Path path = Paths.get(IOUtils.getResultUploadsDir(studyResultId));
         if (!Files.exists(path)) return 0;
-        return Files.walk(path).mapToLong(p -> p.toFile().length()).sum();
+        try (Stream<Path> paths = Files.walk(path)) {
+            return paths.mapToLong(p -> p.toFile().length()).sum();
+        }
     }
 
     public File getResultUploadFileSecurely(Long studyResultId, Long componentResultId, String filename)
@@ -420,10 +423,14 @@ public class IOUtils {
         }
     }
 
-    public void removeResultUploadsDir(Long studyResultId, Long componentResultId) throws IOException {
+    /**
+     * Removes the upload directory of the given component result and returns the size in bytes of the removed files
+     */
+    public long removeResultUploadsDir(Long studyResultId, Long componentResultId) throws IOException {
         Path dir = Paths.get(getResultUploadsDir(studyResultId, componentResultId));
-        if (Files.isDirectory(dir)) {
-            FileUtils.deleteDirectory(dir.toFile());
-        }
+        if (!Files.isDirectory(dir)) return 0;
+        long size = FileUtils.sizeOfDirectory(dir.toFile());
+        FileUtils.deleteDirectory(dir.toFile());
+        return size;
     }
 }
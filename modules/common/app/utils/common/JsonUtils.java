@@ -6,6 +6,8 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
+import general.common.EntityVersions;
+import general.common.HeartbeatRegistry;
 import models.common.*;
 import models.common.workers.JatosWorker;
 import models.common.workers.Worker;
@@ -16,14 +18,16 @@ import play.Logger.ALogger;
 import play.libs.Json;
 import utils.common.JsonUtils.SidebarStudy.SidebarComponent;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -41,6 +45,23 @@ public class JsonUtils {
     public static final String DATA = "data";
     public static final String VERSION = "version";
 
+    private final HeartbeatRegistry heartbeatRegistry;
+
+    /**
+     * Caches for the static parts of the init data: study ID -> study
+     * properties, batch ID -> batch properties, study ID -> component list and
+     * component ID -> component properties
+     */
+    private final Map<Long, CachedJson> studyPropertiesCache = new ConcurrentHashMap<>();
+    private final Map<Long, CachedJson> batchPropertiesCache = new ConcurrentHashMap<>();
+    private final Map<Long, CachedJson> componentListCache = new ConcurrentHashMap<>();
+    private final Map<Long, CachedJson> componentPropertiesCache = new ConcurrentHashMap<>();
+
+    @Inject
+    JsonUtils(HeartbeatRegistry heartbeatRegistry) {
+        this.heartbeatRegistry = heartbeatRegistry;
+    }
+
     /**
      * Helper class for selectively marshaling an Object to JSON. Only fields of
      * that Object that are annotated with this class will be serialised. The
@@ -107,27 +128,88 @@ public class JsonUtils {
      * Returns init data that are requested during initialisation of each
      * component run: Marshals the study properties and the component properties
      * and puts them together with the session data (stored in StudyResult) into
-     * a new JSON object.
-     */
-    public JsonNode initData(Batch batch, StudyResult studyResult, Study study,
-            Component component) throws IOException {
-        String studyProperties = asJsonForPublix(study);
-        String batchProperties = asJsonForPublix(batch);
-        ArrayNode componentList = getComponentListForInitData(study);
-        String componentProperties = asJsonForPublix(component);
+     * a new JSON object. It's returned already serialized.
+     *
+     * The study, batch and component properties and the component list are the
+     * same for all runs of a study. They are cached as serialized JSON and only
+     * rebuilt if their entity changed (see {@link EntityVersions}). Only the
+     * study session data and the URL query parameters are serialized per
+     * request.
+     *
+     * @param versionsSeen value of {@link EntityVersions#current()} read before
+     *                     the given entities were loaded from the database
+     */
+    public byte[] initData(Batch batch, StudyResult studyResult, Study study,
+            Component component, long versionsSeen) throws IOException {
+        byte[] studyProperties = getCachedJson(studyPropertiesCache, Study.class,
+                study.getId(), versionsSeen, () -> asJsonForPublix(study));
+        byte[] batchProperties = getCachedJson(batchPropertiesCache, Batch.class,
+                batch.getId(), versionsSeen, () -> asJsonForPublix(batch));
+        // Every change of a component is a change of its study too
+        byte[] componentList = getCachedJson(componentListCache, Study.class,
+                study.getId(), versionsSeen,
+                () -> getComponentListForInitData(study).toString());
+        byte[] componentProperties = getCachedJson(componentPropertiesCache,
+                Component.class, component.getId(), versionsSeen,
+                () -> asJsonForPublix(component));
         String studySessionData = studyResult.getStudySessionData();
         String urlQueryParameters = studyResult.getUrlQueryParameters();
 
-        ObjectNode initData = Json.mapper().createObjectNode();
-        initData.put("studySessionData", studySessionData);
-        // This is ugly: first marshaling, now unmarshaling again
-        // https://stackoverflow.com/questions/23006241/converting-pojo-to-jsonnode-using-a-jsonview
-        initData.set("studyProperties", Json.mapper().readTree(studyProperties));
-        initData.set("batchProperties", Json.mapper().readTree(batchProperties));
-        initData.set("componentList", componentList);
-        initData.set("componentProperties", Json.mapper().readTree(componentProperties));
-        initData.set("urlQueryParameters", Json.mapper().readTree(urlQueryParameters));
-        return initData;
+        ByteArrayOutputStream initData = new ByteArrayOutputStream();
+        writeField(initData, "{\"studySessionData\":",
+                Json.mapper().writeValueAsBytes(studySessionData));
+        writeField(initData, ",\"studyProperties\":", studyProperties);
+        writeField(initData, ",\"batchProperties\":", batchProperties);
+        writeField(initData, ",\"componentList\":", componentList);
+        writeField(initData, ",\"componentProperties\":", componentProperties);
+        writeField(initData, ",\"urlQueryParameters\":", Json.mapper()
+                .writeValueAsBytes(Json.mapper().readTree(urlQueryParameters)));
+        initData.write('}');
+        return initData.toByteArray();
+    }
+
+    private void writeField(ByteArrayOutputStream out, String prefix,
+            byte[] value) throws IOException {
+        out.write(prefix.getBytes(StandardCharsets.UTF_8));
+        out.write(value);
+    }
+
+    /**
+     * Returns the cached JSON of the entity with the given type and ID if it
+     * wasn't changed since it was cached. Otherwise it builds the JSON anew and
+     * caches it together with the given versionsSeen.
+     */
+    private byte[] getCachedJson(Map<Long, CachedJson> cache, Class<?> type,
+            Long id, long versionsSeen, JsonBuilder builder)
+            throws JsonProcessingException {
+        CachedJson cached = cache.get(id);
+        if (cached != null && EntityVersions.isUnchangedSince(type, id, cached.builtAt)) {
+            return cached.json;
+        }
+        byte[] json = builder.build().getBytes(StandardCharsets.UTF_8);
+        cache.merge(id, new CachedJson(versionsSeen, json),
+                (c1, c2) -> c1.builtAt >= c2.builtAt ? c1 : c2);
+        return json;
+    }
+
+    @FunctionalInterface
+    private interface JsonBuilder {
+        String build() throws JsonProcessingException;
+    }
+
+    /**
+     * Serialized JSON together with the value of the {@link EntityVersions}
+     * counter before its entity was loaded
+     */
+    private static class CachedJson {
+
+        private final long builtAt;
+        private final byte[] json;
+
+        CachedJson(long builtAt, byte[] json) {
+            this.builtAt = builtAt;
+            this.json = json;
+        }
     }
 
     /**
@@ -180,14 +262,21 @@ public class JsonUtils {
 
     /**
      * Returns the data string of a componentResult limited to
-     * MAX_CHAR_PER_RESULT characters.
+     * MAX_CHAR_PER_RESULT characters. All data segments (submitted data and
+     * appended chunks) are loaded but only as many as are needed for the limit
+     * are copied.
      */
     public String componentResultDataForUI(ComponentResult componentResult) {
-        final int MAX_CHAR_PER_RESULT = 1000;
-        String data = componentResult.getData();
-        if (data != null) {
-            // Escape HTML tags and &
-            data = data.replace("&", "&amp").replace("<", "&lt;").replace(">", "&gt;");
+        final int MAX_CHAR_PER_RESULT = ComponentResultTableRow.DATA_PREVIEW_LENGTH;
+        List<String> dataSegments = componentResult.getDataSegments();
+        if (!dataSegments.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (String segment : dataSegments) {
+                sb.append(segment, 0, Math.min(segment.length(), MAX_CHAR_PER_RESULT - sb.length()));
+                if (sb.length() >= MAX_CHAR_PER_RESULT) break;
+            }
+            String data = sb.toString();
+            data = escapeHtml(data);
             if (data.length() < MAX_CHAR_PER_RESULT) {
                 return data;
             } else {
@@ -198,6 +287,13 @@ public class JsonUtils {
         }
     }
 
+    /**
+     * Escapes HTML tags and &
+     */
+    private static String escapeHtml(String data) {
+        return data.replace("&", "&amp").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
     /**
      * Returns ObjectNode of the given StudyResult. It contains the worker,
      * study's ID and title, and all ComponentResults.
@@ -210,6 +306,10 @@ public class JsonUtils {
                 .valueToTree(initializeAndUnproxy(studyResult.getWorker()));
         studyResultNode.set("worker", workerNode);
 
+        // Heartbeats are kept in memory for a while - use the freshest one
+        Timestamp lastSeenDate = heartbeatRegistry.getLastSeenDate(studyResult);
+        studyResultNode.put("lastSeenDate", formatDate(lastSeenDate));
+
         // Add extra variables
         studyResultNode.put("studyId", studyResult.getStudy().getId());
         studyResultNode.put("studyTitle", studyResult.getStudy().getTitle());
@@ -218,7 +318,7 @@ public class JsonUtils {
         if (studyResult.getEndDate() != null) {
             duration = getDurationPretty(studyResult.getStartDate(), studyResult.getEndDate());
         } else {
-            duration = getDurationPretty(studyResult.getStartDate(), studyResult.getLastSeenDate());
+            duration = getDurationPretty(studyResult.getStartDate(), lastSeenDate);
             duration = duration != null ? duration + " (not finished yet)" : "none";
         }
         studyResultNode.put("duration", duration);
@@ -272,23 +372,109 @@ public class JsonUtils {
         // Add componentResult's data
         componentResultNode.put(DATA, componentResultDataForUI(componentResult));
 
-        // Add uploaded result files
+        // Add uploaded result files (from the index - the result uploads folder isn't touched)
         ArrayNode filesNode = componentResultNode.arrayNode();
-        getResultUploadFiles(componentResult).forEach(filesNode::add);
+        componentResult.getResultFileList().stream().map(ResultFile::getFilename).forEach(filesNode::add);
         componentResultNode.set("files", filesNode);
 
         return componentResultNode;
     }
 
-    private List<String> getResultUploadFiles(ComponentResult componentResult) {
-        Path dir = Paths.get(
-                IOUtils.getResultUploadsDir(componentResult.getStudyResult().getId(), componentResult.getId()));
-        if (Files.isDirectory(dir)) {
-            try {
-                return Files.list(dir).map(filePath -> filePath.getFileName().toString()).collect(Collectors.toList());
-            } catch (IOException ignore) { }
+    /**
+     * Returns the ObjectNode of the given table row of a StudyResult. It has the same fields the ObjectNode of
+     * studyResultAsJsonNode has and that the results table in the GUI uses - but without loading any entities. Instead
+     * of the whole result data each ComponentResult has only a preview and the flag 'dataTruncated'.
+     */
+    public JsonNode studyResultTableRowAsJsonNode(StudyResultTableRow studyResult) {
+        ObjectNode studyResultNode = Json.mapper().createObjectNode();
+        studyResultNode.put("id", studyResult.getId());
+        studyResultNode.put("startDate", formatDate(studyResult.getStartDate()));
+        studyResultNode.put("endDate", formatDate(studyResult.getEndDate()));
+        studyResultNode.put("studyState", studyResult.getStudyState().name());
+        studyResultNode.put("confirmationCode", studyResult.getConfirmationCode());
+        studyResultNode.put("message", studyResult.getMessage());
+        studyResultNode.put("workerId", studyResult.getWorker().getId());
+        studyResultNode.put("workerType", studyResult.getWorker().getWorkerType());
+        studyResultNode.set("worker", Json.mapper().valueToTree(studyResult.getWorker()));
+
+        // Heartbeats are kept in memory for a while - use the freshest one
+        Timestamp lastSeenDate = heartbeatRegistry.freshest(studyResult.getLastSeenDate(), studyResult.getId());
+        studyResultNode.put("lastSeenDate", formatDate(lastSeenDate));
+
+        studyResultNode.put("studyId", studyResult.getStudyId());
+        studyResultNode.put("studyTitle", studyResult.getStudyTitle());
+        studyResultNode.put("batchTitle", studyResult.getBatchTitle());
+        String duration;
+        if (studyResult.getEndDate() != null) {
+            duration = getDurationPretty(studyResult.getStartDate(), studyResult.getEndDate());
+        } else {
+            duration = getDurationPretty(studyResult.getStartDate(), lastSeenDate);
+            duration = duration != null ? duration + " (not finished yet)" : "none";
         }
-        return new ArrayList<>();
+        studyResultNode.put("duration", duration);
+        studyResultNode.put("groupResultId", getGroupResultId(studyResult));
+
+        ArrayNode componentResultsNode = studyResultNode.arrayNode();
+        boolean hasResultFiles = false;
+        for (ComponentResultTableRow componentResult : studyResult.getComponentResults()) {
+            componentResultsNode.add(componentResultTableRowAsJsonNode(componentResult, studyResult));
+            if (!componentResult.getFiles().isEmpty()) hasResultFiles = true;
+        }
+        studyResultNode.set("componentResults", componentResultsNode);
+        studyResultNode.put("hasResultFiles", hasResultFiles);
+        return studyResultNode;
+    }
+
+    /**
+     * Returns the ObjectNode of the given table row of a ComponentResult together with some fields of its
+     * StudyResult's table row. Like in studyResultTableRowAsJsonNode it has only a preview of the result data and the
+     * flag 'dataTruncated'.
+     */
+    public ObjectNode componentResultTableRowAsJsonNode(ComponentResultTableRow componentResult,
+            StudyResultTableRow studyResult) {
+        ObjectNode componentResultNode = Json.mapper().createObjectNode();
+        componentResultNode.put("id", componentResult.getId());
+        componentResultNode.put("startDate", formatDate(componentResult.getStartDate()));
+        componentResultNode.put("endDate", formatDate(componentResult.getEndDate()));
+        componentResultNode.put("componentState", componentResult.getComponentState().name());
+        componentResultNode.put("message", componentResult.getMessage());
+        componentResultNode.put("studyId", studyResult.getStudyId());
+        componentResultNode.put("componentId", componentResult.getComponentId());
+        componentResultNode.put("componentTitle", componentResult.getComponentTitle());
+        componentResultNode.put("duration",
+                getDurationPretty(componentResult.getStartDate(), componentResult.getEndDate()));
+        componentResultNode.put("studyResultId", studyResult.getId());
+        componentResultNode.put("groupResultId", getGroupResultId(studyResult));
+        componentResultNode.put("batchTitle", studyResult.getBatchTitle());
+        componentResultNode.put(DATA, dataPreviewForUI(componentResult));
+        componentResultNode.put("dataTruncated", componentResult.isDataTruncated());
+
+        ArrayNode filesNode = componentResultNode.putArray("files");
+        componentResult.getFiles().forEach(filesNode::add);
+        return componentResultNode;
+    }
+
+    private String getGroupResultId(StudyResultTableRow studyResult) {
+        return studyResult.getGroupResultId() != null ? studyResult.getGroupResultId().toString() : null;
+    }
+
+    /**
+     * Returns the data preview of the given table row of a ComponentResult in the same format as
+     * componentResultDataForUI does
+     */
+    private String dataPreviewForUI(ComponentResultTableRow componentResult) {
+        String preview = componentResult.getDataPreview();
+        if (Strings.isNullOrEmpty(preview) && !componentResult.isDataTruncated()) return "none";
+        preview = escapeHtml(Strings.nullToEmpty(preview));
+        return componentResult.isDataTruncated() ? preview + " ..." : preview;
+    }
+
+    /**
+     * Formats the date the same way as the @JsonFormat annotations of the models do. Returns null if date is null.
+     */
+    private static String formatDate(Timestamp date) {
+        if (date == null) return null;
+        return new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(date);
     }
 
     private static String getDurationPretty(Timestamp startDate, Timestamp endDate) {
@@ -0,0 +1,522 @@
+package utils.common;
+
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import akka.util.ByteStringBuilder;
+import general.common.Common;
+import play.Logger;
+import play.Logger.ALogger;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streams a ZIP archive of files while it's written - no temporary file is needed and the first bytes are sent right
+ * away. The returned Source is pull-based: the next part of the archive is written only when the stream is ready for
+ * it (the client's pace).
+ *
+ * Files up to IN_MEMORY_LIMIT are read, checksummed and compressed ahead of the stream on a bounded thread pool (size
+ * in 'jatos.resultUploads.zipThreadPoolSize'), a few files per stream at a time, so several files are compressed in
+ * parallel. Bigger files are compressed by the stream itself chunk by chunk and get their checksum and sizes in a
+ * data descriptor after their data. Files in formats that are already compressed (e.g. audio, video, images) are not
+ * compressed again: small ones are STORED and big ones are deflated with level 0 (stored blocks) - this way they can
+ * still be streamed with a data descriptor, which isn't allowed for STORED entries by all unzip tools.
+ *
+ * Archives or files bigger than 4 GB get ZIP64 records.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ZipStreamer {
+
+    private static final ALogger LOGGER = Logger.of(ZipStreamer.class);
+
+    /**
+     * Files up to this size (in bytes) are prepared in memory in the thread pool
+     */
+    static final int IN_MEMORY_LIMIT = 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * File extensions of formats that are already compressed - compressing them again costs CPU and saves nothing
+     */
+    private static final Set<String> COMPRESSED_FORMATS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac", "weba",
+            "mp4", "m4v", "ogv", "webm", "mov", "avi", "mkv",
+            "pdf", "docx", "xlsx", "pptx", "odt", "ods"));
+
+    /**
+     * File separator must be '/' and NOT the system's FILE.SEPARATOR
+     */
+    private static final String ZIP_FILE_SEPARATOR = "/";
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final short ZIP64_EXTRA_ID = 0x0001;
+    private static final short STORED = 0;
+    private static final short DEFLATED = 8;
+    private static final short VERSION = 20;
+    private static final short VERSION_ZIP64 = 45;
+    private static final short FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final short FLAG_UTF8 = 0x0800;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    /**
+     * Streamed entries of at least this size get ZIP64 sizes. Their compressed size isn't known beforehand and can be a
+     * bit bigger than the file (at most about 0.01% for incompressible data), hence the margin. It's small because
+     * some unzip tools (e.g. Java's ZipInputStream) expect ZIP64 sizes in the data descriptor only above 4 GB.
+     */
+    private static final long ZIP64_THRESHOLD = ZIP64_MAGIC - 1024 * 1024;
+
+    private final ThreadPoolExecutor executor;
+
+    @Inject
+    ZipStreamer(ApplicationLifecycle applicationLifecycle) {
+        int poolSize = Common.getResultUploadsZipThreadPoolSize();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "jatos-zip-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        applicationLifecycle.addStopHook(() -> {
+            executor.shutdown();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Returns a Source of a ZIP archive with the given files. Directories are added with all their content, with the
+     * directory's name as the root of their entries. Files that don't exist are skipped.
+     */
+    public Source<ByteString, NotUsed> zip(List<Path> filesToZip) {
+        return Source.unfoldResource(
+                () -> new ZipWriter(filesToZip),
+                ZipWriter::next,
+                ZipWriter::close);
+    }
+
+    private static void addEntries(List<Entry> entries, String name, Path file) throws IOException {
+        if (Files.isDirectory(file)) {
+            List<Path> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(file)) {
+                stream.forEach(children::add);
+            }
+            Collections.sort(children);
+            for (Path child : children) {
+                addEntries(entries, name + ZIP_FILE_SEPARATOR + child.getFileName(), child);
+            }
+        } else if (Files.isRegularFile(file)) {
+            entries.add(new Entry(name, file));
+        }
+    }
+
+    /**
+     * Reads the file's size and date and, if it's small, reads, checksums and compresses it. Runs in the thread pool.
+     */
+    private static Entry prepare(Entry entry) throws IOException {
+        entry.setModified(LocalDateTime.ofInstant(Files.getLastModifiedTime(entry.file).toInstant(),
+                ZoneId.systemDefault()));
+        entry.size = Files.size(entry.file);
+        if (entry.size > IN_MEMORY_LIMIT) return entry;
+
+        byte[] bytes = Files.readAllBytes(entry.file);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        entry.crc = crc.getValue();
+        entry.size = bytes.length;
+        entry.method = STORED;
+        entry.data = bytes;
+        if (isCompressible(entry.name)) {
+            byte[] deflated = deflate(bytes);
+            if (deflated.length < bytes.length) {
+                entry.method = DEFLATED;
+                entry.data = deflated;
+            }
+        }
+        entry.compressedSize = entry.data.length;
+        return entry;
+    }
+
+    private static boolean isCompressible(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_FORMATS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[CHUNK_SIZE];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * A file in the archive
+     */
+    private static class Entry {
+
+        private final String name;
+        private final Path file;
+        private short method;
+        private boolean dataDescriptor;
+        private boolean zip64;
+        private int dosTime;
+        private int dosDate;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long offset;
+
+        /**
+         * Compressed (or stored) content of a file that was prepared in memory - or null if it's streamed
+         */
+        private byte[] data;
+
+        Entry(String name, Path file) {
+            this.name = name;
+            this.file = file;
+        }
+
+        void setModified(LocalDateTime modified) {
+            if (modified.getYear() < 1980) modified = LocalDateTime.of(1980, 1, 1, 0, 0);
+            dosTime = modified.getHour() << 11 | modified.getMinute() << 5 | modified.getSecond() / 2;
+            dosDate = (modified.getYear() - 1980) << 9 | modified.getMonthValue() << 5 | modified.getDayOfMonth();
+        }
+
+        short flags() {
+            return (short) (FLAG_UTF8 | (dataDescriptor ? FLAG_DATA_DESCRIPTOR : 0));
+        }
+    }
+
+    /**
+     * Writes one archive. Not thread-safe - it's used by one stream only.
+     */
+    private class ZipWriter {
+
+        private final Iterator<Entry> pending;
+        private final Deque<CompletableFuture<Entry>> prepared = new ArrayDeque<>();
+        private final int prepareAhead = executor.getMaximumPoolSize() * 2;
+        private final List<Entry> written = new ArrayList<>();
+        private long offset = 0;
+        private boolean finished = false;
+
+        // State of the entry that is currently streamed
+        private Entry current;
+        private InputStream in;
+        private Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private long remaining;
+        private final byte[] readBuffer = new byte[CHUNK_SIZE];
+        private final byte[] deflateBuffer = new byte[CHUNK_SIZE];
+
+        ZipWriter(List<Path> filesToZip) throws IOException {
+            List<Entry> entries = new ArrayList<>();
+            for (Path file : filesToZip) {
+                if (Files.exists(file)) addEntries(entries, file.getFileName().toString(), file);
+            }
+            pending = entries.iterator();
+            prepareNext();
+        }
+
+        /**
+         * Submits the next entries to the thread pool - only a few ahead of the stream so the memory usage is bounded
+         */
+        private void prepareNext() {
+            while (prepared.size() < prepareAhead && pending.hasNext()) {
+                Entry entry = pending.next();
+                prepared.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return prepare(entry);
+                    } catch (IOException e) {
+                        LOGGER.warn(".prepare: couldn't read file " + entry.file + " - it's skipped", e);
+                        return null;
+                    }
+                }, executor));
+            }
+        }
+
+        Optional<ByteString> next() throws Exception {
+            while (true) {
+                if (current != null) {
+                    ByteString chunk = streamCurrent();
+                    if (!chunk.isEmpty()) return Optional.of(emit(chunk));
+                } else if (!prepared.isEmpty()) {
+                    Entry entry = prepared.poll().get();
+                    prepareNext();
+                    if (entry == null) continue;
+                    ByteString bytes = entry.data != null ? writeInMemory(entry) : startStreaming(entry);
+                    if (bytes != null) return Optional.of(emit(bytes));
+                } else if (!finished) {
+                    finished = true;
+                    return Optional.of(emit(writeCentralDirectory()));
+                } else {
+                    return Optional.empty();
+                }
+            }
+        }
+
+        private ByteString emit(ByteString bytes) {
+            offset += bytes.size();
+            return bytes;
+        }
+
+        private ByteString writeInMemory(Entry entry) {
+            entry.offset = offset;
+            ByteString bytes = localHeader(entry).concat(ByteString.fromArray(entry.data));
+            entry.data = null;
+            written.add(entry);
+            return bytes;
+        }
+
+        /**
+         * Opens the file and returns the local header - or null if the file can't be opened (it's skipped then)
+         */
+        private ByteString startStreaming(Entry entry) {
+            try {
+                in = Files.newInputStream(entry.file);
+            } catch (IOException e) {
+                LOGGER.warn(".startStreaming: couldn't read file " + entry.file + " - it's skipped", e);
+                return null;
+            }
+            entry.offset = offset;
+            entry.method = DEFLATED;
+            entry.dataDescriptor = true;
+            entry.zip64 = entry.size >= ZIP64_THRESHOLD;
+            deflater = new Deflater(isCompressible(entry.name) ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION,
+                    true);
+            crc.reset();
+            remaining = entry.size;
+            current = entry;
+            return localHeader(entry);
+        }
+
+        /**
+         * Reads the next chunk of the current file and returns what the deflater has written so far (can be empty).
+         * After the file's end it returns the rest and the data descriptor.
+         */
+        private ByteString streamCurrent() throws IOException {
+            ByteStringBuilder out = ByteString.createBuilder();
+            if (deflater.needsInput() && !deflater.finished()) {
+                int length = remaining > 0 ? in.read(readBuffer, 0, (int) Math.min(readBuffer.length, remaining)) : -1;
+                if (length < 0) {
+                    deflater.finish();
+                } else {
+                    crc.update(readBuffer, 0, length);
+                    remaining -= length;
+                    deflater.setInput(readBuffer, 0, length);
+                }
+            }
+            int length;
+            while ((length = deflater.deflate(deflateBuffer)) > 0) {
+                out.putBytes(deflateBuffer, 0, length);
+            }
+            if (deflater.finished()) {
+                current.crc = crc.getValue();
+                current.size = deflater.getBytesRead();
+                current.compressedSize = deflater.getBytesWritten();
+                out.append(dataDescriptor(current));
+                written.add(current);
+                closeCurrent();
+            }
+            return out.result();
+        }
+
+        private void closeCurrent() {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {
+                LOGGER.warn(".closeCurrent: couldn't close file " + current.file, e);
+            }
+            if (deflater != null) deflater.end();
+            in = null;
+            deflater = null;
+            current = null;
+        }
+
+        private ByteString localHeader(Entry entry) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            int extraLength = entry.zip64 ? 20 : 0;
+            ByteBuffer b = ByteBuffer.allocate(30 + name.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+            b.putInt(LOCAL_HEADER_SIG);
+            b.putShort(entry.zip64 ? VERSION_ZIP64 : VERSION);
+            b.putShort(entry.flags());
+            b.putShort(entry.method);
+            b.putShort((short) entry.dosTime);
+            b.putShort((short) entry.dosDate);
+            if (entry.dataDescriptor) {
+                // Checksum and sizes follow in the data descriptor
+                b.putInt(0);
+                b.putInt(entry.zip64 ? (int) ZIP64_MAGIC : 0);
+                b.putInt(entry.zip64 ? (int) ZIP64_MAGIC : 0);
+            } else {
+                b.putInt((int) entry.crc);
+                b.putInt((int) entry.compressedSize);
+                b.putInt((int) entry.size);
+            }
+            b.putShort((short) name.length);
+            b.putShort((short) extraLength);
+            b.put(name);
+            if (entry.zip64) {
+                b.putShort(ZIP64_EXTRA_ID);
+                b.putShort((short) 16);
+                b.putLong(0);
+                b.putLong(0);
+            }
+            return ByteString.fromArray(b.array());
+        }
+
+        private ByteString dataDescriptor(Entry entry) {
+            ByteBuffer b = ByteBuffer.allocate(entry.zip64 ? 24 : 16).order(ByteOrder.LITTLE_ENDIAN);
+            b.putInt(DATA_DESCRIPTOR_SIG);
+            b.putInt((int) entry.crc);
+            if (entry.zip64) {
+                b.putLong(entry.compressedSize);
+                b.putLong(entry.size);
+            } else {
+                b.putInt((int) entry.compressedSize);
+                b.putInt((int) entry.size);
+            }
+            return ByteString.fromArray(b.array());
+        }
+
+        private ByteString centralHeader(Entry entry) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            boolean zip64Sizes = entry.zip64 || entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+            boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+            int extraLength = zip64Sizes || zip64Offset ? 4 + (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0) : 0;
+            ByteBuffer b = ByteBuffer.allocate(46 + name.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+            b.putInt(CENTRAL_HEADER_SIG);
+            b.putShort(extraLength > 0 ? VERSION_ZIP64 : VERSION); // made by
+            b.putShort(extraLength > 0 ? VERSION_ZIP64 : VERSION); // needed to extract
+            b.putShort(entry.flags());
+            b.putShort(entry.method);
+            b.putShort((short) entry.dosTime);
+            b.putShort((short) entry.dosDate);
+            b.putInt((int) entry.crc);
+            b.putInt((int) (zip64Sizes ? ZIP64_MAGIC : entry.compressedSize));
+            b.putInt((int) (zip64Sizes ? ZIP64_MAGIC : entry.size));
+            b.putShort((short) name.length);
+            b.putShort((short) extraLength);
+            b.putShort((short) 0); // comment length
+            b.putShort((short) 0); // disk number
+            b.putShort((short) 0); // internal attributes
+            b.putInt(0); // external attributes
+            b.putInt((int) (zip64Offset ? ZIP64_MAGIC : entry.offset));
+            b.put(name);
+            if (extraLength > 0) {
+                b.putShort(ZIP64_EXTRA_ID);
+                b.putShort((short) (extraLength - 4));
+                if (zip64Sizes) {
+                    b.putLong(entry.size);
+                    b.putLong(entry.compressedSize);
+                }
+                if (zip64Offset) b.putLong(entry.offset);
+            }
+            return ByteString.fromArray(b.array());
+        }
+
+        /**
+         * Returns the central directory and the end records
+         */
+        private ByteString writeCentralDirectory() {
+            ByteStringBuilder out = ByteString.createBuilder();
+            long centralDirOffset = offset;
+            written.forEach(entry -> out.append(centralHeader(entry)));
+            long centralDirSize = out.length();
+            long count = written.size();
+
+            boolean zip64 = count >= ZIP64_MAGIC_COUNT || centralDirOffset >= ZIP64_MAGIC
+                    || centralDirSize >= ZIP64_MAGIC;
+            if (zip64) {
+                long zip64EndOffset = centralDirOffset + centralDirSize;
+                ByteBuffer b = ByteBuffer.allocate(56 + 20).order(ByteOrder.LITTLE_ENDIAN);
+                b.putInt(ZIP64_END_SIG);
+                b.putLong(44); // size of the rest of this record
+                b.putShort(VERSION_ZIP64);
+                b.putShort(VERSION_ZIP64);
+                b.putInt(0); // disk number
+                b.putInt(0); // disk with the central directory
+                b.putLong(count);
+                b.putLong(count);
+                b.putLong(centralDirSize);
+                b.putLong(centralDirOffset);
+                b.putInt(ZIP64_LOCATOR_SIG);
+                b.putInt(0); // disk with the ZIP64 end record
+                b.putLong(zip64EndOffset);
+                b.putInt(1); // number of disks
+                out.putBytes(b.array());
+            }
+
+            ByteBuffer b = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+            b.putInt(END_SIG);
+            b.putShort((short) 0); // disk number
+            b.putShort((short) 0); // disk with the central directory
+            b.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+            b.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+            b.putInt((int) Math.min(centralDirSize, ZIP64_MAGIC));
+            b.putInt((int) Math.min(centralDirOffset, ZIP64_MAGIC));
+            b.putShort((short) 0); // comment length
+            out.putBytes(b.array());
+            return out.result();
+        }
+
+        /**
+         * Called when the stream completes, fails or is cancelled (e.g. the client closed the connection)
+         */
+        void close() {
+            prepared.forEach(future -> future.cancel(false));
+            if (current != null) closeCurrent();
+        }
+    }
+
+}
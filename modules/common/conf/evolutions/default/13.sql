@@ -0,0 +1,15 @@
+# --- Add table 'ResultDataChunk': appended result data are stored as chunks of a ComponentResult
+
+# --- !Ups
+CREATE TABLE `ResultDataChunk` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `componentResult_id` bigint(20) NOT NULL,
+  `data` longtext,
+  PRIMARY KEY (`id`)
+) DEFAULT CHARSET=utf8;
+
+ALTER TABLE `ResultDataChunk` ADD KEY `FK_resultdatachunk_componentresult` (`componentResult_id`);
+ALTER TABLE `ResultDataChunk` ADD CONSTRAINT `FK_resultdatachunk_componentresult` FOREIGN KEY (`componentResult_id`) REFERENCES `ComponentResult` (`id`) ON DELETE CASCADE;
+
+# --- !Downs
+DROP TABLE IF EXISTS `ResultDataChunk`;
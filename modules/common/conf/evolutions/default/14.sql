@@ -0,0 +1,7 @@
+# --- Add 'uploadsSize' column to StudyResult table: size of all files uploaded during a study run
+
+# --- !Ups
+ALTER TABLE `StudyResult` ADD `uploadsSize` bigint(20) DEFAULT NULL;
+
+# --- !Downs
+ALTER TABLE `StudyResult` DROP COLUMN `uploadsSize`;
@@ -0,0 +1,11 @@
+# --- Add indexes for the keyset pagination of results sorted by start date
+
+# --- !Ups
+CREATE INDEX `IDX_studyresult_study_startdate` ON `StudyResult` (`study_id`, `startDate`, `id`);
+CREATE INDEX `IDX_studyresult_worker_startdate` ON `StudyResult` (`worker_id`, `startDate`, `id`);
+CREATE INDEX `IDX_componentresult_component_startdate` ON `ComponentResult` (`component_id`, `startDate`, `id`);
+
+# --- !Downs
+DROP INDEX `IDX_studyresult_study_startdate` ON `StudyResult`;
+DROP INDEX `IDX_studyresult_worker_startdate` ON `StudyResult`;
+DROP INDEX `IDX_componentresult_component_startdate` ON `ComponentResult`;
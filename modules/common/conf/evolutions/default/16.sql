@@ -0,0 +1,26 @@
+# --- Add table 'ResultFile': index of the files uploaded per ComponentResult (the files themselves stay in the result uploads folder)
+
+# --- !Ups
+CREATE TABLE `ResultFile` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `componentResult_id` bigint(20) NOT NULL,
+  `filename` varchar(255) NOT NULL,
+  `size` bigint(20) NOT NULL,
+  PRIMARY KEY (`id`)
+) DEFAULT CHARSET=utf8;
+
+ALTER TABLE `ResultFile` ADD KEY `FK_resultfile_componentresult` (`componentResult_id`);
+ALTER TABLE `ResultFile` ADD UNIQUE KEY `UK_resultfile_componentresult_filename` (`componentResult_id`, `filename`);
+ALTER TABLE `ResultFile` ADD CONSTRAINT `FK_resultfile_componentresult` FOREIGN KEY (`componentResult_id`) REFERENCES `ComponentResult` (`id`);
+
+# Whether the files that were uploaded before this evolution are indexed already (see general.common.ResultFileIndexer)
+CREATE TABLE `ResultFileIndexState` (
+  `id` int(11) NOT NULL,
+  `existingUploadsIndexed` tinyint(1) NOT NULL,
+  PRIMARY KEY (`id`)
+) DEFAULT CHARSET=utf8;
+INSERT INTO `ResultFileIndexState` (`id`, `existingUploadsIndexed`) VALUES (1, 0);
+
+# --- !Downs
+DROP TABLE IF EXISTS `ResultFileIndexState`;
+DROP TABLE IF EXISTS `ResultFile`;
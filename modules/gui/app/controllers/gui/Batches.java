@@ -1,5 +1,8 @@
 package controllers.gui;
 
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
 import com.fasterxml.jackson.databind.JsonNode;
 import controllers.gui.actionannotations.AuthenticationAction.Authenticated;
 import controllers.gui.actionannotations.GuiAccessLoggingAction.GuiAccessLogging;
@@ -10,12 +13,14 @@ import daos.common.StudyResultDao;
 import exceptions.gui.BadRequestException;
 import exceptions.gui.ForbiddenException;
 import exceptions.gui.JatosGuiException;
+import general.common.Common;
 import general.gui.RequestScopeMessaging;
 import models.common.Batch;
 import models.common.GroupResult;
 import models.common.GroupResult.GroupState;
 import models.common.Study;
 import models.common.User;
+import models.common.workers.PersonalSingleWorker;
 import models.common.workers.Worker;
 import models.gui.BatchProperties;
 import models.gui.BatchSession;
@@ -512,6 +517,54 @@ public class Batches extends Controller {
         return ok(jsonUtils.asJsonNode(workerIdList));
     }
 
+    /**
+     * Ajax POST request with chunked streaming: Creates PersonalSingleWorkers or
+     * PersonalMultipleWorkers in bulk and returns their run links as CSV (one
+     * line per worker with its ID and its link). The request's JSON body
+     * specifies the worker type ('type'), the 'comment' and the 'amount'.
+     * Other than createPersonalSingleRun and createPersonalMultipleRun the
+     * workers are committed in chunks and the links of each chunk are streamed
+     * as soon as it is committed. A chunk is only created when the client is
+     * ready for it - if the client disconnects the creation stops. The amount
+     * has to be between 1 and 'jatos.workers.bulkCreationMaxAmount'.
+     */
+    @Transactional
+    @Authenticated
+    public Result createPersonalRunsCsv(Long studyId, Long batchId) throws JatosGuiException {
+        Study study = studyDao.findById(studyId);
+        User loggedInUser = authenticationService.getLoggedInUser();
+        Batch batch = batchDao.findById(batchId);
+        try {
+            checker.checkStandardForStudy(study, studyId, loggedInUser);
+            checker.checkStandardForBatch(batch, study, batchId);
+        } catch (ForbiddenException | BadRequestException e) {
+            jatosGuiExceptionThrower.throwAjax(e);
+        }
+
+        JsonNode json = request().body().asJson();
+        String workerType = json.findPath("type").asText();
+        String comment = json.findPath("comment").asText().trim();
+        int amount = json.findPath("amount").asInt();
+        Source<List<Long>, NotUsed> chunks;
+        try {
+            chunks = workerService.createAndPersistPersonalWorkersInChunks(workerType, comment, amount, batchId);
+        } catch (BadRequestException e) {
+            return badRequest(e.getMessage());
+        }
+
+        String workerIdParameter = workerType.equals(PersonalSingleWorker.WORKER_TYPE)
+                ? "personalSingleWorkerId" : "personalMultipleWorkerId";
+        String linkPrefix = HttpUtils.getHostUrl() + Common.getPlayHttpContext() + "publix/" + studyId
+                + "/start?batchId=" + batchId + "&" + workerIdParameter + "=";
+        Source<ByteString, NotUsed> source = Source.single(ByteString.fromString("workerId,link\n"))
+                .concat(chunks.map(workerIdList -> {
+                    StringBuilder csv = new StringBuilder();
+                    workerIdList.forEach(id -> csv.append(id).append(',').append(linkPrefix).append(id).append('\n'));
+                    return ByteString.fromString(csv.toString());
+                }));
+        return ok().chunked(source).as("text/csv; charset=utf-8");
+    }
+
     /**
      * Ajax GET request: Returns a list of workers for a study and a batch as JSON
      */
@@ -1,11 +1,8 @@
 package controllers.gui;
 
-import akka.NotUsed;
-import akka.actor.ActorRef;
-import akka.actor.Status;
-import akka.stream.OverflowStrategy;
 import akka.stream.javadsl.Source;
 import akka.util.ByteString;
+import com.fasterxml.jackson.databind.JsonNode;
 import controllers.gui.actionannotations.AuthenticationAction.Authenticated;
 import controllers.gui.actionannotations.GuiAccessLoggingAction.GuiAccessLogging;
 import daos.common.ComponentDao;
@@ -15,7 +12,11 @@ import exceptions.gui.BadRequestException;
 import exceptions.gui.ForbiddenException;
 import exceptions.gui.JatosGuiException;
 import exceptions.gui.NotFoundException;
+import general.common.MessagesStrings;
 import models.common.Component;
+import models.common.ComponentResult;
+import models.common.ComponentResult.ComponentState;
+import models.common.ResultPageQuery;
 import models.common.Study;
 import models.common.User;
 import play.db.jpa.Transactional;
@@ -31,7 +32,6 @@ import javax.inject.Singleton;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
 
 /**
  * Controller that deals with requests regarding ComponentResult.
@@ -131,18 +131,58 @@ public class ComponentResults extends Controller {
             jatosGuiExceptionThrower.throwAjax(e);
         }
 
-        int resultCount = componentResultDao.countByComponent(component);
-        int bufferSize = max.isDefined() ? max.get() : resultCount;
-        Source<ByteString, ?> source = Source.<ByteString>actorRef(bufferSize, OverflowStrategy.fail())
-                .mapMaterializedValue(sourceActor -> {
-                    CompletableFuture.runAsync(() -> {
-                        resultService.fetchComponentResultsAndWriteIntoActor(sourceActor, loggedInUser, max,
-                                () -> componentResultDao.findAllByComponentScrollable(component));
-                        sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                    });
-                    return sourceActor;
-                });
+        Source<ByteString, ?> source = resultService.streamComponentResults(loggedInUser, max,
+                em -> componentResultDao.findAllByComponentScrollable(em, component));
         return ok().chunked(source).as("text/html; charset=utf-8");
     }
 
+    /**
+     * Ajax request
+     *
+     * Returns one page of ComponentResults of a component as JSON (see ResultService.getPageQuery for the filter, sort
+     * and pagination parameters). The cursor of the next page is in the field 'next'.
+     */
+    @Transactional
+    @Authenticated
+    public Result tableDataPageByComponent(Long studyId, Long componentId) throws JatosGuiException {
+        Study study = studyDao.findById(studyId);
+        User loggedInUser = authenticationService.getLoggedInUser();
+        Component component = componentDao.findById(componentId);
+        JsonNode page = null;
+        try {
+            checker.checkStandardForStudy(study, studyId, loggedInUser);
+            checker.checkStandardForComponents(studyId, componentId, component);
+            ResultPageQuery pageQuery = resultService.getPageQuery(request().queryString(), ComponentState.class);
+            page = resultService.getComponentResultsPage(component, pageQuery, loggedInUser);
+        } catch (ForbiddenException | BadRequestException e) {
+            jatosGuiExceptionThrower.throwAjax(e);
+        }
+        return ok(page);
+    }
+
+    /**
+     * Ajax request with chunked streaming
+     *
+     * Returns the whole result data of the ComponentResult as plain text. The results tables only get a preview of the
+     * data and fetch the whole data with this request on demand. The appended chunks of the data are fetched from the
+     * database one by one while they are streamed.
+     */
+    @Transactional
+    @Authenticated
+    public Result resultData(Long componentResultId) throws JatosGuiException {
+        User loggedInUser = authenticationService.getLoggedInUser();
+        ComponentResult componentResult = componentResultDao.findById(componentResultId);
+        try {
+            if (componentResult == null) {
+                throw new NotFoundException(MessagesStrings.componentResultNotExist(componentResultId));
+            }
+            checker.checkComponentResult(componentResult, loggedInUser, false);
+        } catch (ForbiddenException | BadRequestException | NotFoundException e) {
+            jatosGuiExceptionThrower.throwAjax(e);
+        }
+
+        Source<ByteString, ?> source = resultService.streamResultData(componentResult);
+        return ok().chunked(source).as("text/plain; charset=utf-8");
+    }
+
 }
@@ -6,6 +6,7 @@ import daos.common.StudyDao;
 import daos.common.StudyResultDao;
 import daos.common.UserDao;
 import daos.common.worker.WorkerDao;
+import general.common.DatabaseExecutionContext;
 import general.common.JatosUpdater;
 import models.common.Study;
 import models.common.User;
@@ -52,12 +53,13 @@ public class Home extends Controller {
     private final WorkerDao workerDao;
     private final LogFileReader logFileReader;
     private final JatosUpdater jatosUpdater;
+    private final DatabaseExecutionContext dbExecutionContext;
 
     @Inject
     Home(JsonUtils jsonUtils, AuthenticationService authenticationService,
             BreadcrumbsService breadcrumbsService, StudyDao studyDao, StudyResultDao studyResultDao, UserDao userDao,
             WorkerDao workerDao, LogFileReader logFileReader,
-            JatosUpdater jatosUpdater) {
+            JatosUpdater jatosUpdater, DatabaseExecutionContext dbExecutionContext) {
         this.jsonUtils = jsonUtils;
         this.authenticationService = authenticationService;
         this.breadcrumbsService = breadcrumbsService;
@@ -67,6 +69,7 @@ public class Home extends Controller {
         this.workerDao = workerDao;
         this.logFileReader = logFileReader;
         this.jatosUpdater = jatosUpdater;
+        this.dbExecutionContext = dbExecutionContext;
     }
 
     /**
@@ -192,6 +195,10 @@ public class Home extends Controller {
         map.put("workerCount", workerDao.count());
         map.put("userCount", userDao.count());
         map.put("serverTime", (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss")).format(new Date()));
+        map.put("dbThreadPoolSize", dbExecutionContext.getPoolSize());
+        map.put("dbThreadPoolActiveCount", dbExecutionContext.getActiveCount());
+        map.put("dbThreadPoolQueueSize", dbExecutionContext.getQueueSize());
+        map.put("dbThreadPoolCompletedTaskCount", dbExecutionContext.getCompletedTaskCount());
         return ok(JsonUtils.asJson(map));
     }
 
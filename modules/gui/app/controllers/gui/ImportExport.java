@@ -1,10 +1,6 @@
 package controllers.gui;
 
-import akka.NotUsed;
-import akka.actor.ActorRef;
-import akka.actor.Status;
 import akka.stream.IOResult;
-import akka.stream.OverflowStrategy;
 import akka.stream.javadsl.FileIO;
 import akka.stream.javadsl.Source;
 import akka.util.ByteString;
@@ -33,7 +29,7 @@ import play.mvc.Result;
 import services.gui.*;
 import utils.common.IOUtils;
 import utils.common.JsonUtils;
-import utils.common.ZipUtil;
+import utils.common.ZipStreamer;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -42,10 +38,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
 /**
@@ -66,6 +64,7 @@ public class ImportExport extends Controller {
     private final ResultDataExporter resultDataExporter;
     private final IOUtils ioUtils;
     private final JsonUtils jsonUtils;
+    private final ZipStreamer zipStreamer;
     private final StudyDao studyDao;
     private final ComponentDao componentDao;
     private final StudyResultDao studyResultDao;
@@ -73,13 +72,14 @@ public class ImportExport extends Controller {
 
     @Inject
     ImportExport(JatosGuiExceptionThrower jatosGuiExceptionThrower, Checker checker, IOUtils ioUtils,
-            JsonUtils jsonUtils, AuthenticationService authenticationService, ImportExportService importExportService,
-            ResultDataExporter resultDataStringGenerator, StudyDao studyDao, ComponentDao componentDao,
-            StudyResultDao studyResultDao, ComponentResultDao componentResultDao) {
+            JsonUtils jsonUtils, ZipStreamer zipStreamer, AuthenticationService authenticationService,
+            ImportExportService importExportService, ResultDataExporter resultDataStringGenerator, StudyDao studyDao,
+            ComponentDao componentDao, StudyResultDao studyResultDao, ComponentResultDao componentResultDao) {
         this.jatosGuiExceptionThrower = jatosGuiExceptionThrower;
         this.checker = checker;
         this.jsonUtils = jsonUtils;
         this.ioUtils = ioUtils;
+        this.zipStreamer = zipStreamer;
         this.authenticationService = authenticationService;
         this.importExportService = importExportService;
         this.resultDataExporter = resultDataStringGenerator;
@@ -269,15 +269,7 @@ public class ImportExport extends Controller {
         List<Long> studyResultIdList = new ArrayList<>();
         request.body().asJson().get("resultIds").forEach(node -> studyResultIdList.add(node.asLong()));
 
-        int bufferSize = studyResultIdList.size();
-        Source<ByteString, ?> source = Source.<ByteString>actorRef(bufferSize, OverflowStrategy.fail())
-                .mapMaterializedValue(sourceActor -> {
-                    CompletableFuture.runAsync(() -> {
-                        resultDataExporter.byStudyResultIds(sourceActor, studyResultIdList, loggedInUser);
-                        sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                    });
-                    return sourceActor;
-                });
+        Source<ByteString, ?> source = resultDataExporter.byStudyResultIds(studyResultIdList, loggedInUser);
         return ok().chunked(source).as("text/plain; charset=utf-8");
     }
 
@@ -294,15 +286,7 @@ public class ImportExport extends Controller {
         List<Long> componentResultIdList = new ArrayList<>();
         request.body().asJson().get("resultIds").forEach(node -> componentResultIdList.add(node.asLong()));
 
-        int bufferSize = componentResultIdList.size();
-        Source<ByteString, ?> source = Source.<ByteString>actorRef(bufferSize, OverflowStrategy.fail())
-                .mapMaterializedValue(sourceActor -> {
-                    CompletableFuture.runAsync(() -> {
-                        resultDataExporter.byComponentResultIds(sourceActor, componentResultIdList, loggedInUser);
-                        sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                    });
-                    return sourceActor;
-                });
+        Source<ByteString, ?> source = resultDataExporter.byComponentResultIds(componentResultIdList, loggedInUser);
         return ok().chunked(source).as("text/plain; charset=utf-8");
     }
 
@@ -327,15 +311,21 @@ public class ImportExport extends Controller {
         }
     }
 
+    /**
+     * Form POST request with chunked streaming
+     * <p>
+     * Returns a ZIP archive with all uploaded result files of the StudyResults that are specified by their IDs in the
+     * form field 'resultIds' (comma separated). The archive is streamed while it's written (see ZipStreamer) and the
+     * browser saves it as a download without holding it in memory.
+     */
     @Transactional
     @Authenticated
-    public Result exportResultFilesOfStudyResults(Http.Request request) throws IOException, JatosGuiException {
+    public Result exportResultFilesOfStudyResults(Http.Request request) throws JatosGuiException {
         User loggedInUser = authenticationService.getLoggedInUser();
 
         List<Path> resultFileList = new ArrayList<>();
         try {
-            for (JsonNode node : request.body().asJson().get("resultIds")) {
-                Long studyResultId = node.asLong();
+            for (Long studyResultId : getResultIdsFromForm(request)) {
                 StudyResult studyResult = studyResultDao.findById(studyResultId);
                 checker.checkStudyResult(studyResult, loggedInUser, false);
                 Path path = Paths.get(IOUtils.getResultUploadsDir(studyResultId));
@@ -346,21 +336,22 @@ public class ImportExport extends Controller {
         }
         if (resultFileList.isEmpty()) return notFound("No result files found");
 
-        File zipFile = File.createTempFile("resultFiles", "." + IOUtils.ZIP_FILE_SUFFIX);
-        zipFile.deleteOnExit();
-        ZipUtil.zipFiles(resultFileList, zipFile);
-        return okFileStreamed(zipFile, zipFile::delete, "application/zip");
+        return okResultFilesZip(resultFileList);
     }
 
+    /**
+     * Form POST request with chunked streaming
+     * <p>
+     * Like exportResultFilesOfStudyResults but with the IDs of ComponentResults in the form field 'resultIds'
+     */
     @Transactional
     @Authenticated
-    public Result exportResultFilesOfComponentResults(Http.Request request) throws IOException, JatosGuiException {
+    public Result exportResultFilesOfComponentResults(Http.Request request) throws JatosGuiException {
         User loggedInUser = authenticationService.getLoggedInUser();
 
         List<Path> resultFileList = new ArrayList<>();
         try {
-            for (JsonNode node : request.body().asJson().get("resultIds")) {
-                Long componentResultId = node.asLong();
+            for (Long componentResultId : getResultIdsFromForm(request)) {
                 ComponentResult componentResult = componentResultDao.findById(componentResultId);
                 checker.checkComponentResult(componentResult, loggedInUser, false);
                 Path path = Paths.get(IOUtils.getResultUploadsDir(componentResult.getStudyResult().getId(),
@@ -372,11 +363,35 @@ public class ImportExport extends Controller {
         }
         if (resultFileList.isEmpty()) return notFound("No result files found");
 
-        File zipFile = File.createTempFile("resultFiles", "." + IOUtils.ZIP_FILE_SUFFIX);
-        zipFile.deleteOnExit();
-        ZipUtil.zipFiles(resultFileList, zipFile);
+        return okResultFilesZip(resultFileList);
+    }
+
+    /**
+     * Returns the IDs in the form field 'resultIds' (comma separated)
+     */
+    private List<Long> getResultIdsFromForm(Http.Request request) throws BadRequestException {
+        Map<String, String[]> form = request.body().asFormUrlEncoded();
+        if (form == null || form.get("resultIds") == null) throw new BadRequestException("No result IDs");
+        List<Long> resultIds = new ArrayList<>();
+        try {
+            for (String resultId : form.get("resultIds")[0].split(",")) {
+                if (!resultId.trim().isEmpty()) resultIds.add(Long.valueOf(resultId.trim()));
+            }
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Invalid result IDs");
+        }
+        return resultIds;
+    }
 
-        return okFileStreamed(zipFile, zipFile::delete, "application/zip");
+    /**
+     * Streams the ZIP archive of the given result files as a download named 'jatos_resultfiles_<timestamp>.zip'
+     */
+    private Result okResultFilesZip(List<Path> resultFileList) {
+        String zipFileName = "jatos_resultfiles_"
+                + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss")) + ".zip";
+        String filenameInHeader = HttpHeaderParameterEncoding.encode("filename", zipFileName);
+        return ok().chunked(zipStreamer.zip(resultFileList)).as("application/zip")
+                .withHeader(Http.HeaderNames.CONTENT_DISPOSITION, "attachment; " + filenameInHeader);
     }
 
     /**
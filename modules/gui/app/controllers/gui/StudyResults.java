@@ -1,11 +1,8 @@
 package controllers.gui;
 
-import akka.NotUsed;
-import akka.actor.ActorRef;
-import akka.actor.Status;
-import akka.stream.OverflowStrategy;
 import akka.stream.javadsl.Source;
 import akka.util.ByteString;
+import com.fasterxml.jackson.databind.JsonNode;
 import controllers.gui.actionannotations.AuthenticationAction.Authenticated;
 import controllers.gui.actionannotations.GuiAccessLoggingAction.GuiAccessLogging;
 import daos.common.BatchDao;
@@ -19,7 +16,9 @@ import exceptions.gui.JatosGuiException;
 import exceptions.gui.NotFoundException;
 import models.common.Batch;
 import models.common.GroupResult;
+import models.common.ResultPageQuery;
 import models.common.Study;
+import models.common.StudyResult.StudyState;
 import models.common.User;
 import models.common.workers.MTSandboxWorker;
 import models.common.workers.MTWorker;
@@ -37,7 +36,6 @@ import javax.inject.Singleton;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
 
 /**
  * Controller for actions around StudyResults in the JATOS GUI.
@@ -193,7 +191,8 @@ public class StudyResults extends Controller {
      * Ajax request with chunked streaming (reduces memory usage)
      *
      * Returns StudyResults of a study in JSON format. It gets up to 'max' results - or if 'max' is undefined it
-     * gets all. If their is a problem during retrieval it returns nothing.
+     * gets all. If their is a problem during retrieval it returns nothing. The result data are only a preview - the
+     * whole data of a ComponentResult can be fetched with ComponentResults.resultData.
      */
     @Transactional
     @Authenticated
@@ -206,17 +205,8 @@ public class StudyResults extends Controller {
             jatosGuiExceptionThrower.throwAjax(e);
         }
 
-        int resultCount = studyResultDao.countByStudy(study);
-        int bufferSize = max.isDefined() ? max.get() : resultCount;
-        Source<ByteString, ?> source = Source.<ByteString>actorRef(bufferSize, OverflowStrategy.fail())
-                .mapMaterializedValue(sourceActor -> {
-                    CompletableFuture.runAsync(() -> {
-                        resultService.fetchStudyResultsAndWriteIntoActor(sourceActor, loggedInUser, max,
-                                () -> studyResultDao.findAllByStudyScrollable(study));
-                        sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                    });
-                    return sourceActor;
-                });
+        Source<ByteString, ?> source = resultService.streamStudyResultTableRows(max,
+                em -> studyResultDao.findTableRowsByStudyScrollable(em, study, loggedInUser));
         return ok().chunked(source).as("text/html; charset=utf-8");
     }
 
@@ -243,37 +233,15 @@ public class StudyResults extends Controller {
 
         Source<ByteString, ?> source;
         if (workerType.isEmpty()) {
-            int resultCount = studyResultDao.countByBatch(batch);
-            int bufferSize = max.isDefined() ? max.get() : resultCount;
-            source = Source.<ByteString>actorRef(bufferSize, OverflowStrategy.fail())
-                    .mapMaterializedValue(sourceActor -> {
-                        CompletableFuture.runAsync(() -> {
-                            resultService.fetchStudyResultsAndWriteIntoActor(sourceActor, loggedInUser, max,
-                                    () -> studyResultDao.findAllByBatchScrollable(batch));
-
-                            sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                        });
-                        return sourceActor;
-                    });
+            source = resultService.streamStudyResultTableRows(max,
+                    em -> studyResultDao.findTableRowsByBatchScrollable(em, batch, loggedInUser));
         } else {
-            int resultCount = studyResultDao.countByBatchAndWorkerType(batch, workerType.get());
-            int bufferSize = max.isDefined() ? max.get() : resultCount;
-            source = Source.<ByteString>actorRef(bufferSize, OverflowStrategy.fail())
-                    .mapMaterializedValue(sourceActor -> {
-                        CompletableFuture.runAsync(() -> {
-                            resultService.fetchStudyResultsAndWriteIntoActor(sourceActor, loggedInUser, max,
-                                    () -> studyResultDao
-                                            .findAllByBatchAndWorkerTypeScrollable(batch, workerType.get()));
-                            // If worker type is MT then add MTSandbox on top
-                            if (MTWorker.WORKER_TYPE.equals(workerType.get())) {
-                                resultService.fetchStudyResultsAndWriteIntoActor(sourceActor, loggedInUser, max,
-                                        () -> studyResultDao.findAllByBatchAndWorkerTypeScrollable(batch,
-                                                MTSandboxWorker.WORKER_TYPE));
-                            }
-                            sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                        });
-                        return sourceActor;
-                    });
+            List<String> workerTypes = new ArrayList<>();
+            workerTypes.add(workerType.get());
+            // If worker type is MT then add MTSandbox on top
+            if (MTWorker.WORKER_TYPE.equals(workerType.get())) workerTypes.add(MTSandboxWorker.WORKER_TYPE);
+            source = resultService.streamStudyResultTableRows(max, em -> studyResultDao
+                    .findTableRowsByBatchAndWorkerTypesScrollable(em, batch, workerTypes, loggedInUser));
         }
 
         return ok().chunked(source).as("text/html; charset=utf-8");
@@ -298,17 +266,8 @@ public class StudyResults extends Controller {
             jatosGuiExceptionThrower.throwAjax(e);
         }
 
-        int resultCount = studyResultDao.countByGroup(groupResult);
-        int bufferSize = max.isDefined() ? max.get() : resultCount;
-        Source<ByteString, ?> source = Source.<ByteString>actorRef(bufferSize, OverflowStrategy.fail())
-                .mapMaterializedValue(sourceActor -> {
-                    CompletableFuture.runAsync(() -> {
-                        resultService.fetchStudyResultsAndWriteIntoActor(sourceActor, loggedInUser, max,
-                                () -> studyResultDao.findAllByGroupScrollable(groupResult));
-                        sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                    });
-                    return sourceActor;
-                });
+        Source<ByteString, ?> source = resultService.streamStudyResultTableRows(max,
+                em -> studyResultDao.findTableRowsByGroupScrollable(em, groupResult, loggedInUser));
         return ok().chunked(source).as("text/html; charset=utf-8");
     }
 
@@ -329,21 +288,54 @@ public class StudyResults extends Controller {
             jatosGuiExceptionThrower.throwAjax(e);
         }
 
-        int resultCount = studyResultDao.countByWorker(worker);
-        int bufferSize = max.isDefined() ? max.get() : resultCount;
-        Source<ByteString, ?> source = Source.<ByteString>actorRef(bufferSize, OverflowStrategy.fail())
-                .mapMaterializedValue(sourceActor -> {
-                    CompletableFuture.runAsync(() -> {
-                        resultService.fetchStudyResultsAndWriteIntoActor(sourceActor, loggedInUser, max,
-                                () -> studyResultDao.findAllByWorkerScrollable(worker));
-
-                        sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                    });
-                    return sourceActor;
-                });
+        Source<ByteString, ?> source = resultService.streamStudyResultTableRows(max,
+                em -> studyResultDao.findTableRowsByWorkerScrollable(em, worker, loggedInUser));
         return ok().chunked(source).as("text/html; charset=utf-8");
     }
 
+    /**
+     * Ajax request
+     *
+     * Returns one page of StudyResults of a study as JSON (see ResultService.getPageQuery for the filter, sort and
+     * pagination parameters). The cursor of the next page is in the field 'next'.
+     */
+    @Transactional
+    @Authenticated
+    public Result tableDataPageByStudy(Long studyId) throws JatosGuiException {
+        Study study = studyDao.findById(studyId);
+        User loggedInUser = authenticationService.getLoggedInUser();
+        JsonNode page = null;
+        try {
+            checker.checkStandardForStudy(study, studyId, loggedInUser);
+            ResultPageQuery pageQuery = resultService.getPageQuery(request().queryString(), StudyState.class);
+            page = resultService.getStudyResultsPage(study, pageQuery, loggedInUser);
+        } catch (ForbiddenException | BadRequestException e) {
+            jatosGuiExceptionThrower.throwAjax(e);
+        }
+        return ok(page);
+    }
+
+    /**
+     * Ajax request
+     *
+     * Returns one page of StudyResults belonging to a worker as JSON (see tableDataPageByStudy)
+     */
+    @Transactional
+    @Authenticated
+    public Result tableDataPageByWorker(Long workerId) throws JatosGuiException {
+        User loggedInUser = authenticationService.getLoggedInUser();
+        Worker worker = workerDao.findById(workerId);
+        JsonNode page = null;
+        try {
+            checker.checkWorker(worker, workerId);
+            ResultPageQuery pageQuery = resultService.getPageQuery(request().queryString(), StudyState.class);
+            page = resultService.getStudyResultsPageByWorker(worker, pageQuery, loggedInUser);
+        } catch (BadRequestException e) {
+            jatosGuiExceptionThrower.throwAjax(e);
+        }
+        return ok(page);
+    }
+
     /**
      * Ajax request
      *
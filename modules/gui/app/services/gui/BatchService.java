@@ -184,22 +184,15 @@ public class BatchService {
         return batchSession;
     }
 
+    /**
+     * Writes the given batch session into the database - but only if it's
+     * still the version that was edited. The batch session can't be written by
+     * merging the Batch (see Batch.batchSessionData).
+     */
     public boolean updateBatchSession(long batchId, BatchSession batchSession) {
-        Batch currentBatch = batchDao.findById(batchId);
-        if (currentBatch == null ||
-                !batchSession.getVersion().equals(currentBatch.getBatchSessionVersion())) {
-            return false;
-        }
-
-        currentBatch.setBatchSessionVersion(
-                currentBatch.getBatchSessionVersion() + 1);
-        if (Strings.isNullOrEmpty(batchSession.getData())) {
-            currentBatch.setBatchSessionData("{}");
-        } else {
-            currentBatch.setBatchSessionData(batchSession.getData());
-        }
-        batchDao.update(currentBatch);
-        return true;
+        long version = batchSession.getVersion();
+        String data = Strings.isNullOrEmpty(batchSession.getData()) ? "{}" : batchSession.getData();
+        return batchDao.updateBatchSession(batchId, data, version + 1, version);
     }
 
     /**
@@ -31,21 +31,14 @@ public class GroupService {
         return groupSession;
     }
 
+    /**
+     * Writes the given group session into the database - but only if it's still the version that was edited. The
+     * group session can't be written by merging the GroupResult (see GroupResult.groupSessionData).
+     */
     public boolean updateGroupSession(long groupResultId, GroupSession groupSession) {
-        GroupResult currentGroupResult = groupResultDao.findById(groupResultId);
-        if (currentGroupResult == null ||
-                !groupSession.getVersion().equals(currentGroupResult.getGroupSessionVersion())) {
-            return false;
-        }
-
-        currentGroupResult.setGroupSessionVersion(currentGroupResult.getGroupSessionVersion() + 1);
-        if (Strings.isNullOrEmpty(groupSession.getData())) {
-            currentGroupResult.setGroupSessionData("{}");
-        } else {
-            currentGroupResult.setGroupSessionData(groupSession.getData());
-        }
-        groupResultDao.update(currentGroupResult);
-        return true;
+        long version = groupSession.getVersion();
+        String data = Strings.isNullOrEmpty(groupSession.getData()) ? "{}" : groupSession.getData();
+        return groupResultDao.updateGroupSession(groupResultId, data, version + 1, version);
     }
 
     public GroupState toggleGroupFixed(GroupResult groupResult, boolean fixed) {
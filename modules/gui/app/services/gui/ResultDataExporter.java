@@ -1,7 +1,9 @@
 package services.gui;
 
-import akka.actor.ActorRef;
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
 import akka.util.ByteString;
+import akka.util.ByteStringBuilder;
 import daos.common.ComponentResultDao;
 import daos.common.StudyResultDao;
 import general.common.StudyLogger;
@@ -10,16 +12,17 @@ import models.common.Study;
 import models.common.StudyResult;
 import models.common.User;
 import play.Logger;
-import play.db.jpa.JPAApi;
+import scala.Option;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 
 /**
- * Service class that streams result data to Actor sources.
+ * Service class that streams result data.
  *
  * @author Kristian Lange
  */
@@ -32,71 +35,81 @@ public class ResultDataExporter {
     private final ComponentResultDao componentResultDao;
     private final StudyResultDao studyResultDao;
     private final StudyLogger studyLogger;
-    private final JPAApi jpaApi;
+    private final ResultStreamer resultStreamer;
 
     @Inject
     ResultDataExporter(Checker checker, ComponentResultDao componentResultDao, StudyResultDao studyResultDao,
-            StudyLogger studyLogger, JPAApi jpaApi) {
+            StudyLogger studyLogger, ResultStreamer resultStreamer) {
         this.checker = checker;
         this.componentResultDao = componentResultDao;
         this.studyResultDao = studyResultDao;
         this.studyLogger = studyLogger;
-        this.jpaApi = jpaApi;
+        this.resultStreamer = resultStreamer;
     }
 
     /**
-     * Retrieves the StudyResults that correspond to the IDs, checks them and returns all their result data.
+     * Streams the result data of the StudyResults that correspond to the IDs at the client's pace (see
+     * ResultStreamer). Each StudyResult is checked. StudyResults that don't exist are skipped.
      */
-    public void byStudyResultIds(ActorRef sourceActor, List<Long> studyResultIdList, User user) {
-        jpaApi.withTransaction(entityManager -> {
-            Set<Study> studies = new HashSet<>();
-            for (Long studyResultId : studyResultIdList) {
-                try {
-                    StudyResult studyResult = studyResultDao.findById(studyResultId);
-                    if (studyResult == null) {
-                        LOGGER.warn("A study result with ID " + studyResultId + " doesn't exist.");
-                        continue;
+    public Source<ByteString, NotUsed> byStudyResultIds(List<Long> studyResultIdList, User user) {
+        if (studyResultIdList.isEmpty()) return Source.empty();
+        Set<Long> loggedStudyIds = new HashSet<>();
+        return resultStreamer.stream(em -> studyResultDao.findByIdsScrollable(em, studyResultIdList),
+                (StudyResult studyResult) -> {
+                    try {
+                        checker.checkStudyResult(studyResult, user, false);
+                        logExport(studyResult.getStudy(), user, loggedStudyIds);
+                        ByteStringBuilder builder = ByteString.createBuilder();
+                        studyResult.getComponentResultList().forEach(cr -> appendResultData(builder, cr));
+                        return builder.length() == 0 ? Optional.empty() : Optional.of(builder.result());
+                    } catch (Exception e) {
+                        LOGGER.warn("Couldn't get result data", e);
+                        return Optional.empty();
                     }
-                    checker.checkStudyResult(studyResult, user, false);
-                    studies.add(studyResult.getStudy());
-                    studyResult.getComponentResultList().forEach(cr -> tellResultData(sourceActor, cr));
-                } catch (Exception e) {
-                    LOGGER.warn("Couldn't get result data", e);
-                }
-            }
-            studies.forEach(study -> studyLogger.log(study, user, "Exported result data to file"));
-        });
+                }, ByteString.empty(), Option.empty());
     }
 
     /**
-     * Retrieves the ComponentResults that correspond to the IDs, checks them and returns all their result data.
+     * Streams the result data of the ComponentResults that correspond to the IDs at the client's pace (see
+     * ResultStreamer). Each ComponentResult is checked. ComponentResults that don't exist are skipped.
      */
-    public void byComponentResultIds(ActorRef sourceActor, List<Long> componentResultIdList, User user) {
-        jpaApi.withTransaction(entityManager -> {
-            Set<Study> studies = new HashSet<>();
-            for (Long componentResultId : componentResultIdList) {
-                ComponentResult componentResult = componentResultDao.findById(componentResultId);
-                if (componentResult == null) {
-                    LOGGER.warn("A component result with ID " + componentResultId + " doesn't exist.");
-                    continue;
-                }
-                try {
-                    checker.checkComponentResult(componentResult, user, false);
-                    studies.add(componentResult.getStudyResult().getStudy());
-                    tellResultData(sourceActor, componentResult);
-                } catch (Exception e) {
-                    LOGGER.warn("Couldn't get result data", e);
-                }
-            }
-            studies.forEach(study -> studyLogger.log(study, user, "Exported result data to file"));
-        });
+    public Source<ByteString, NotUsed> byComponentResultIds(List<Long> componentResultIdList, User user) {
+        if (componentResultIdList.isEmpty()) return Source.empty();
+        Set<Long> loggedStudyIds = new HashSet<>();
+        return resultStreamer.stream(em -> componentResultDao.findByIdsScrollable(em, componentResultIdList),
+                (ComponentResult componentResult) -> {
+                    try {
+                        checker.checkComponentResult(componentResult, user, false);
+                        logExport(componentResult.getStudyResult().getStudy(), user, loggedStudyIds);
+                        ByteStringBuilder builder = ByteString.createBuilder();
+                        appendResultData(builder, componentResult);
+                        return builder.length() == 0 ? Optional.empty() : Optional.of(builder.result());
+                    } catch (Exception e) {
+                        LOGGER.warn("Couldn't get result data", e);
+                        return Optional.empty();
+                    }
+                }, ByteString.empty(), Option.empty());
     }
 
-    private void tellResultData(ActorRef sourceActor, ComponentResult componentResult) {
-        String resultDataStr = componentResult.getData();
-        if (resultDataStr == null) return;
-        ByteString lineToSend = ByteString.fromString(resultDataStr + System.lineSeparator());
-        sourceActor.tell(lineToSend, null);
+    /**
+     * Logs the export once per study
+     */
+    private void logExport(Study study, User user, Set<Long> loggedStudyIds) {
+        if (loggedStudyIds.add(study.getId())) {
+            studyLogger.log(study, user, "Exported result data to file");
+        }
+    }
+
+    /**
+     * Appends the result data of the given ComponentResult as one line. All its data segments (submitted data and
+     * appended chunks) are loaded and the whole line is kept in the builder - only the ComponentResults are streamed
+     * one by one.
+     */
+    private void appendResultData(ByteStringBuilder builder, ComponentResult componentResult) {
+        List<String> dataSegments = componentResult.getDataSegments();
+        if (dataSegments.isEmpty()) return;
+        dataSegments.forEach(segment -> builder.append(ByteString.fromString(segment)));
+        builder.append(ByteString.fromString(System.lineSeparator()));
     }
 
 }
@@ -145,8 +145,9 @@ public class ResultRemover {
             studyResult.removeComponentResult(componentResult);
             studyResultDao.update(studyResult);
 
-            // Remove componentResult's upload dir
-            ioUtils.removeResultUploadsDir(studyResult.getId(), componentResult.getId());
+            // Remove componentResult's upload dir and update the study result's quota ledger
+            long removedSize = ioUtils.removeResultUploadsDir(studyResult.getId(), componentResult.getId());
+            studyResultDao.addToUploadsSize(studyResult.getId(), -removedSize);
         } else {
             LOGGER.error(".removeComponentResult: StudyResult is null - "
                     + "but a ComponentResult always belongs to a StudyResult "
@@ -1,30 +1,47 @@
 package services.gui;
 
-import akka.actor.ActorRef;
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
 import akka.util.ByteString;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import daos.common.ComponentResultDao;
 import daos.common.StudyResultDao;
+import exceptions.gui.BadRequestException;
 import exceptions.gui.NotFoundException;
+import general.common.HeartbeatRegistry;
 import general.common.MessagesStrings;
+import models.common.Component;
 import models.common.ComponentResult;
+import models.common.ComponentResultTableRow;
+import models.common.ResultPageQuery;
+import models.common.Study;
 import models.common.StudyResult;
 import models.common.StudyResultStatus;
+import models.common.StudyResultTableRow;
 import models.common.User;
+import models.common.workers.MTSandboxWorker;
+import models.common.workers.MTWorker;
 import models.common.workers.Worker;
 import org.hibernate.ScrollableResults;
 import play.Logger;
-import play.db.jpa.JPAApi;
+import play.libs.Json;
 import scala.Option;
 import utils.common.JsonUtils;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Supplier;
+import java.util.Optional;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -37,20 +54,29 @@ public class ResultService {
 
     private static final Logger.ALogger LOGGER = Logger.of(ResultService.class);
 
+    private static final ByteString RESULT_SEPARATOR = ByteString.fromString(",\n");
+
+    /**
+     * Number of StudyResult table rows whose ComponentResults are fetched together
+     */
+    private static final int TABLE_ROW_BATCH_SIZE = 100;
+
     private final ComponentResultDao componentResultDao;
     private final StudyResultDao studyResultDao;
     private final Checker checker;
     private final JsonUtils jsonUtils;
-    private final JPAApi jpaApi;
+    private final ResultStreamer resultStreamer;
+    private final HeartbeatRegistry heartbeatRegistry;
 
     @Inject
     ResultService(ComponentResultDao componentResultDao, StudyResultDao studyResultDao, Checker checker,
-            JsonUtils jsonUtils, JPAApi jpaApi) {
+            JsonUtils jsonUtils, ResultStreamer resultStreamer, HeartbeatRegistry heartbeatRegistry) {
         this.componentResultDao = componentResultDao;
         this.studyResultDao = studyResultDao;
         this.checker = checker;
         this.jsonUtils = jsonUtils;
-        this.jpaApi = jpaApi;
+        this.resultStreamer = resultStreamer;
+        this.heartbeatRegistry = heartbeatRegistry;
     }
 
     /**
@@ -97,58 +123,231 @@ public class ResultService {
     }
 
     /**
-     * Retrieves StudyResults (including their result data) and uses the given Supplier function to fetches them from
-     * the database. It gets up to max results -  or if max is not defined it gets all. It also checks the StudyResult.
+     * Streams StudyResults (including their result data) as JSON that are fetched with the given query one by one at
+     * the client's pace (see ResultStreamer). It gets up to max results - or if max is not defined it gets all. It
+     * also checks the StudyResult.
      */
-    public void fetchStudyResultsAndWriteIntoActor(ActorRef sourceActor, User user, Option<Integer> max,
-            Supplier<ScrollableResults> resultFetcher) {
-        jpaApi.withTransaction(entityManager -> {
-            ScrollableResults results = resultFetcher.get();
-            int i = 0;
-            while (results.next() && (max.isEmpty() || i < max.get())) {
-                try {
-                    StudyResult result = (StudyResult) results.get(0);
-                    checker.checkStudyResult(result, user, false);
-                    JsonNode resultNode = jsonUtils.studyResultAsJsonNode(result);
-                    sourceActor.tell(ByteString.fromString(resultNode.toString()), ActorRef.noSender());
-                    i++;
-                    if (!results.isLast() && (max.isEmpty() || i < max.get())) {
-                        sourceActor.tell(ByteString.fromString(",\n"), ActorRef.noSender());
-                    }
-                } catch (Exception e) {
-                    LOGGER.warn("Couldn't get result");
-                }
+    public Source<ByteString, NotUsed> streamStudyResults(User user, Option<Integer> max,
+            Function<EntityManager, ScrollableResults> query) {
+        return resultStreamer.stream(query, (StudyResult result) -> {
+            try {
+                checker.checkStudyResult(result, user, false);
+                JsonNode resultNode = jsonUtils.studyResultAsJsonNode(result);
+                return Optional.of(ByteString.fromString(resultNode.toString()));
+            } catch (Exception e) {
+                LOGGER.warn("Couldn't get result");
+                return Optional.empty();
             }
-            results.close();
-        });
+        }, RESULT_SEPARATOR, max);
     }
 
     /**
-     * Retrieves ComponentResult (including their result data) and uses the given Supplier function to fetches them
-     * from the database. It gets up to max results - or if max is not defined it gets all. It also checks the
-     * ComponentResult.
+     * Streams the table rows of StudyResults as JSON for the results table in the GUI. The given query has to return
+     * rows like StudyResultDao.findTableRowsByStudyScrollable - it already only returns rows the user is allowed to
+     * see. Instead of loading each StudyResult with its worker, batch, study, group and ComponentResults (several
+     * queries per StudyResult) all columns are fetched set-based: the StudyResult rows with one query and the
+     * ComponentResult rows together for a batch of StudyResults. The result data are truncated in the database to a
+     * preview. It gets up to max results - or if max is not defined it gets all.
      */
-    public void fetchComponentResultsAndWriteIntoActor(ActorRef sourceActor, User user, Option<Integer> max,
-            Supplier<ScrollableResults> resultFetcher) {
-        jpaApi.withTransaction(entityManager -> {
-            ScrollableResults results = resultFetcher.get();
-            int i = 0;
-            while (results.next() && (max.isEmpty() || i < max.get())) {
+    public Source<ByteString, NotUsed> streamStudyResultTableRows(Option<Integer> max,
+            Function<EntityManager, ScrollableResults> query) {
+        return resultStreamer.streamInBatches(query, (EntityManager em, List<Object[]> rows) -> {
+            Map<Long, StudyResultTableRow> studyResults = new LinkedHashMap<>();
+            rows.forEach(row -> {
+                StudyResultTableRow studyResult = new StudyResultTableRow(row);
+                studyResults.put(studyResult.getId(), studyResult);
+            });
+            List<ComponentResultTableRow> componentResults = componentResultDao.findTableRowsByStudyResultIds(em,
+                    new ArrayList<>(studyResults.keySet()));
+            componentResults.forEach(cr -> studyResults.get(cr.getStudyResultId()).addComponentResult(cr));
+
+            List<ByteString> bytes = new ArrayList<>(studyResults.size());
+            for (StudyResultTableRow studyResult : studyResults.values()) {
                 try {
-                    ComponentResult result = (ComponentResult) results.get(0);
-                    checker.checkComponentResult(result, user, false);
-                    JsonNode resultNode = jsonUtils.componentResultAsJsonNode(result);
-                    sourceActor.tell(ByteString.fromString(resultNode.toString()), ActorRef.noSender());
-                    i++;
-                    if (!results.isLast() && (max.isEmpty() || i < max.get())) {
-                        sourceActor.tell(ByteString.fromString(",\n"), ActorRef.noSender());
-                    }
+                    JsonNode resultNode = jsonUtils.studyResultTableRowAsJsonNode(studyResult);
+                    bytes.add(ByteString.fromString(resultNode.toString()));
                 } catch (Exception e) {
                     LOGGER.warn("Couldn't get result");
                 }
             }
-            results.close();
+            return bytes;
+        }, TABLE_ROW_BATCH_SIZE, RESULT_SEPARATOR, max);
+    }
+
+    /**
+     * Creates a ResultPageQuery from the given query string of a request. All parameters are optional:
+     * 'sort' ('id' or 'startDate'), 'order' ('asc' or 'desc'), 'after' (the cursor of the page - as returned with the
+     * previous page), 'limit', 'state' (comma separated), 'workerType' (comma separated), 'from' and 'to' (start date
+     * range as milliseconds since epoch) and 'batchId'.
+     *
+     * @param stateType the state enum of the requested results: StudyResult.StudyState or
+     *                  ComponentResult.ComponentState
+     */
+    public <E extends Enum<E>> ResultPageQuery getPageQuery(Map<String, String[]> queryString, Class<E> stateType)
+            throws BadRequestException {
+        ResultPageQuery page = new ResultPageQuery();
+        String param = null;
+        try {
+            param = "sort";
+            if (has(queryString, param)) {
+                ResultPageQuery.Sort sort = ResultPageQuery.Sort.fromParam(get(queryString, param));
+                if (sort == null) throw new IllegalArgumentException();
+                page.setSort(sort);
+            }
+            param = "order";
+            if (has(queryString, param)) {
+                String order = get(queryString, param);
+                if (!order.equals("asc") && !order.equals("desc")) throw new IllegalArgumentException();
+                page.setDescending(order.equals("desc"));
+            }
+            param = "after";
+            if (has(queryString, param)) page.parseCursor(get(queryString, param));
+            param = "limit";
+            if (has(queryString, param)) page.setLimit(Integer.parseInt(get(queryString, param)));
+            param = "state";
+            if (has(queryString, param)) {
+                List<String> states = Arrays.asList(get(queryString, param).split(","));
+                states.forEach(state -> Enum.valueOf(stateType, state));
+                page.setStates(states);
+            }
+            param = "workerType";
+            if (has(queryString, param)) {
+                List<String> workerTypes = new ArrayList<>(Arrays.asList(get(queryString, param).split(",")));
+                // If worker type is MT then add MTSandbox on top
+                if (workerTypes.contains(MTWorker.WORKER_TYPE)) workerTypes.add(MTSandboxWorker.WORKER_TYPE);
+                page.setWorkerTypes(workerTypes);
+            }
+            param = "from";
+            if (has(queryString, param)) page.setFrom(new Timestamp(Long.parseLong(get(queryString, param))));
+            param = "to";
+            if (has(queryString, param)) page.setTo(new Timestamp(Long.parseLong(get(queryString, param))));
+            param = "batchId";
+            if (has(queryString, param)) page.setBatchId(Long.valueOf(get(queryString, param)));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid value of parameter '" + param + "'");
+        }
+        return page;
+    }
+
+    private boolean has(Map<String, String[]> queryString, String param) {
+        return queryString.containsKey(param) && queryString.get(param).length > 0
+                && !queryString.get(param)[0].isEmpty();
+    }
+
+    private String get(Map<String, String[]> queryString, String param) {
+        return queryString.get(param)[0];
+    }
+
+    /**
+     * Returns one page of table rows of StudyResults of the given study as JSON: the rows in 'data' and the cursor of
+     * the next page in 'next' (or null if this is the last page). The rows have the same fields as those of
+     * streamStudyResultTableRows. Only one query for the StudyResults and three for their ComponentResults are needed
+     * regardless of the page's depth.
+     */
+    public JsonNode getStudyResultsPage(Study study, ResultPageQuery page, User user) {
+        return studyResultTableRowsAsPage(studyResultDao.findTableRowsPageByStudy(study, page, user), page);
+    }
+
+    /**
+     * Like getStudyResultsPage but for the StudyResults of the given worker (only those of studies the user is a
+     * member of)
+     */
+    public JsonNode getStudyResultsPageByWorker(Worker worker, ResultPageQuery page, User user) {
+        return studyResultTableRowsAsPage(studyResultDao.findTableRowsPageByWorker(worker, page, user), page);
+    }
+
+    private JsonNode studyResultTableRowsAsPage(List<Object[]> rows, ResultPageQuery page) {
+        List<StudyResultTableRow> studyResults = new ArrayList<>();
+        rows.stream().limit(page.getLimit()).forEach(row -> studyResults.add(new StudyResultTableRow(row)));
+        Map<Long, StudyResultTableRow> studyResultsById = new HashMap<>();
+        studyResults.forEach(studyResult -> studyResultsById.put(studyResult.getId(), studyResult));
+        componentResultDao.findTableRowsByStudyResultIds(new ArrayList<>(studyResultsById.keySet()))
+                .forEach(cr -> studyResultsById.get(cr.getStudyResultId()).addComponentResult(cr));
+
+        ObjectNode pageNode = Json.mapper().createObjectNode();
+        ArrayNode dataNode = pageNode.putArray(JsonUtils.DATA);
+        studyResults.forEach(studyResult -> dataNode.add(jsonUtils.studyResultTableRowAsJsonNode(studyResult)));
+        String next = null;
+        if (rows.size() > page.getLimit()) {
+            StudyResultTableRow last = studyResults.get(studyResults.size() - 1);
+            next = page.cursorAfter(last.getId(), last.getStartDate());
+        }
+        pageNode.put("next", next);
+        return pageNode;
+    }
+
+    /**
+     * Returns one page of table rows of ComponentResults of the given component as JSON: the rows in 'data' and the
+     * cursor of the next page in 'next' (or null if this is the last page). Like the rows of getStudyResultsPage they
+     * have only a preview of the result data. Only three queries for the ComponentResults and one for their
+     * StudyResults are needed regardless of the page's depth.
+     */
+    public JsonNode getComponentResultsPage(Component component, ResultPageQuery page, User user) {
+        List<ComponentResultTableRow> rows = componentResultDao.findTableRowsPageByComponent(component, page);
+        List<ComponentResultTableRow> componentResults = rows.stream().limit(page.getLimit())
+                .collect(Collectors.toList());
+        List<Long> studyResultIds = componentResults.stream().map(ComponentResultTableRow::getStudyResultId)
+                .distinct().collect(Collectors.toList());
+        Map<Long, StudyResultTableRow> studyResultsById = new HashMap<>();
+        studyResultDao.findTableRowsByIds(studyResultIds, user).forEach(row -> {
+            StudyResultTableRow studyResult = new StudyResultTableRow(row);
+            studyResultsById.put(studyResult.getId(), studyResult);
         });
+
+        ObjectNode pageNode = Json.mapper().createObjectNode();
+        ArrayNode dataNode = pageNode.putArray(JsonUtils.DATA);
+        for (ComponentResultTableRow componentResult : componentResults) {
+            StudyResultTableRow studyResult = studyResultsById.get(componentResult.getStudyResultId());
+            if (studyResult == null) continue;
+            ObjectNode componentResultNode = jsonUtils.componentResultTableRowAsJsonNode(componentResult, studyResult);
+            componentResultNode.put("workerId", studyResult.getWorker().getId());
+            componentResultNode.put("workerType", studyResult.getWorker().getWorkerType());
+            dataNode.add(componentResultNode);
+        }
+        String next = null;
+        if (rows.size() > page.getLimit()) {
+            ComponentResultTableRow last = componentResults.get(componentResults.size() - 1);
+            next = page.cursorAfter(last.getId(), last.getStartDate());
+        }
+        pageNode.put("next", next);
+        return pageNode;
+    }
+
+    /**
+     * Streams ComponentResults (including their result data) as JSON that are fetched with the given query one by one
+     * at the client's pace (see ResultStreamer). It gets up to max results - or if max is not defined it gets all. It
+     * also checks the ComponentResult.
+     */
+    public Source<ByteString, NotUsed> streamComponentResults(User user, Option<Integer> max,
+            Function<EntityManager, ScrollableResults> query) {
+        return resultStreamer.stream(query, (ComponentResult result) -> {
+            try {
+                checker.checkComponentResult(result, user, false);
+                JsonNode resultNode = jsonUtils.componentResultAsJsonNode(result);
+                return Optional.of(ByteString.fromString(resultNode.toString()));
+            } catch (Exception e) {
+                LOGGER.warn("Couldn't get result");
+                return Optional.empty();
+            }
+        }, RESULT_SEPARATOR, max);
+    }
+
+    /**
+     * Streams the whole result data of the given ComponentResult: first its submitted data and then the data of its
+     * appended ResultDataChunks. The chunks are fetched one by one at the client's pace (see ResultStreamer) and are
+     * never held in memory all together.
+     */
+    public Source<ByteString, NotUsed> streamResultData(ComponentResult componentResult) {
+        String submittedData = componentResult.getSubmittedData();
+        Source<ByteString, NotUsed> submitted = submittedData != null
+                ? Source.single(ByteString.fromString(submittedData))
+                : Source.empty();
+        Long componentResultId = componentResult.getId();
+        Source<ByteString, NotUsed> chunks = resultStreamer.stream(
+                em -> componentResultDao.findDataChunksScrollable(em, componentResultId),
+                (String chunk) -> Optional.ofNullable(chunk).map(ByteString::fromString), ByteString.empty(),
+                Option.empty());
+        return submitted.concat(chunks);
     }
 
     /**
@@ -159,10 +358,12 @@ public class ResultService {
 
         List<StudyResultStatus> lastUnfinishedStudyResults = studyResultDao.findLastUnfinished(5);
         fillUsers(lastUnfinishedStudyResults);
+        fillLastSeenDates(lastUnfinishedStudyResults);
         studyResultStatus.put("lastUnfinishedStudyResults", lastUnfinishedStudyResults);
 
         List<StudyResultStatus> lastFinishedStudyResults = studyResultDao.findLastFinished(5);
         fillUsers(lastFinishedStudyResults);
+        fillLastSeenDates(lastFinishedStudyResults);
         studyResultStatus.put("lastFinishedStudyResults", lastFinishedStudyResults);
 
         return studyResultStatus;
@@ -179,4 +380,14 @@ public class ResultService {
         }
     }
 
+    /**
+     * Heartbeats are kept in memory for a while before they are written into the database. Sets the freshest
+     * lastSeenDate in the given list of StudyResultStatus.
+     */
+    private void fillLastSeenDates(List<StudyResultStatus> studyResultStatusList) {
+        for (StudyResultStatus srs : studyResultStatusList) {
+            srs.setLastSeenDate(heartbeatRegistry.freshest(srs.getLastSeenDate(), srs.getId()));
+        }
+    }
+
 }
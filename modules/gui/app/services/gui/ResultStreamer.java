@@ -0,0 +1,150 @@
+package services.gui;
+
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import play.db.jpa.JPAApi;
+import scala.Option;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Streams results from the database at the client's pace. The returned Source is pull-based: the next result is
+ * fetched from the ScrollableResults (a JDBC cursor) only when the stream is ready for the next element. This way
+ * the memory usage doesn't depend on the number of results, a slow client can't overflow a buffer and no count
+ * query is needed beforehand.
+ *
+ * Each stream has its own EntityManager with a read-only transaction. It is opened when the stream starts and closed
+ * when the stream completes, fails or is cancelled (e.g. the client closed the connection).
+ *
+ * A result is the entity if the query selects only one - or the whole row (an Object[]) if it selects more (e.g. a
+ * projection of only some columns).
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ResultStreamer {
+
+    /**
+     * The persistence context is cleared after this many results so it doesn't grow with the number of results
+     */
+    private static final int CLEAR_INTERVAL = 100;
+
+    private final JPAApi jpaApi;
+
+    @Inject
+    ResultStreamer(JPAApi jpaApi) {
+        this.jpaApi = jpaApi;
+    }
+
+    /**
+     * @param query      opens the ScrollableResults with the given EntityManager
+     * @param serializer turns a result into bytes - or returns an empty Optional if the result should be skipped (e.g.
+     *                   the user isn't allowed to see it)
+     * @param separator  put between two results
+     * @param max        up to max results are streamed - or all if max is undefined
+     */
+    public <T> Source<ByteString, NotUsed> stream(Function<EntityManager, ScrollableResults> query,
+            Function<T, Optional<ByteString>> serializer, ByteString separator, Option<Integer> max) {
+        return Source.unfoldResource(
+                () -> new Cursor(query),
+                cursor -> cursor.next(serializer, separator, max),
+                Cursor::close);
+    }
+
+    /**
+     * Like {@link #stream} but the results are fetched and serialized in batches of up to batchSize. This way the
+     * serializer can load everything else it needs for a whole batch of results with one set-based query instead of
+     * one query per result. It gets the EntityManager of the stream to do so.
+     *
+     * @param serializer turns a batch of results into bytes, one ByteString per result, and leaves out those results
+     *                   that should be skipped
+     */
+    public <T> Source<ByteString, NotUsed> streamInBatches(Function<EntityManager, ScrollableResults> query,
+            BiFunction<EntityManager, List<T>, List<ByteString>> serializer, int batchSize, ByteString separator,
+            Option<Integer> max) {
+        return Source.unfoldResource(
+                () -> new Cursor(query),
+                cursor -> cursor.nextInBatches(serializer, batchSize, separator, max),
+                Cursor::close);
+    }
+
+    private class Cursor {
+
+        private final EntityManager em;
+        private final ScrollableResults results;
+        private final Deque<ByteString> buffer = new ArrayDeque<>();
+        private int streamed = 0;
+        private int fetched = 0;
+
+        Cursor(Function<EntityManager, ScrollableResults> query) {
+            em = jpaApi.em("default");
+            try {
+                em.unwrap(Session.class).setDefaultReadOnly(true);
+                em.getTransaction().begin();
+                results = query.apply(em);
+            } catch (RuntimeException e) {
+                if (em.getTransaction().isActive()) em.getTransaction().rollback();
+                em.close();
+                throw e;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> Optional<ByteString> next(Function<T, Optional<ByteString>> serializer, ByteString separator,
+                Option<Integer> max) {
+            while (max.isEmpty() || streamed < max.get()) {
+                if (!results.next()) return Optional.empty();
+                Optional<ByteString> bytes = serializer.apply((T) current());
+                if (++fetched % CLEAR_INTERVAL == 0) em.clear();
+                if (!bytes.isPresent()) continue;
+                return Optional.of(streamed++ == 0 ? bytes.get() : separator.concat(bytes.get()));
+            }
+            return Optional.empty();
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> Optional<ByteString> nextInBatches(BiFunction<EntityManager, List<T>, List<ByteString>> serializer,
+                int batchSize, ByteString separator, Option<Integer> max) {
+            if (max.isDefined() && streamed >= max.get()) return Optional.empty();
+            while (buffer.isEmpty()) {
+                List<T> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && results.next()) batch.add((T) current());
+                if (batch.isEmpty()) return Optional.empty();
+                buffer.addAll(serializer.apply(em, batch));
+                em.clear();
+            }
+            ByteString bytes = buffer.poll();
+            return Optional.of(streamed++ == 0 ? bytes : separator.concat(bytes));
+        }
+
+        /**
+         * Returns the entity if the query selects only one - or the whole row
+         */
+        private Object current() {
+            Object[] row = results.get();
+            return row.length == 1 ? row[0] : row;
+        }
+
+        void close() {
+            try {
+                results.close();
+                if (em.getTransaction().isActive()) em.getTransaction().rollback();
+            } finally {
+                em.close();
+            }
+        }
+    }
+
+}
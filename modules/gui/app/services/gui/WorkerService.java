@@ -1,17 +1,22 @@
 package services.gui;
 
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
 import daos.common.BatchDao;
 import daos.common.StudyResultDao;
 import daos.common.worker.WorkerDao;
 import exceptions.gui.BadRequestException;
+import general.common.Common;
 import models.common.Batch;
 import models.common.Study;
 import models.common.workers.*;
 import play.data.validation.ValidationError;
+import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -27,13 +32,15 @@ public class WorkerService {
     private final StudyResultDao studyResultDao;
     private final WorkerDao workerDao;
     private final BatchDao batchDao;
+    private final JPAApi jpa;
 
     @Inject
     WorkerService(StudyResultDao studyResultDao, WorkerDao workerDao,
-            BatchDao batchDao) {
+            BatchDao batchDao, JPAApi jpa) {
         this.studyResultDao = studyResultDao;
         this.workerDao = workerDao;
         this.batchDao = batchDao;
+        this.jpa = jpa;
     }
 
     /**
@@ -85,15 +92,89 @@ public class WorkerService {
         while (amount > 0) {
             T worker = workerConstructor.apply(comment);
             validateWorker(worker);
-            batch.addWorker(worker);
             workerDao.create(worker);
-            batchDao.update(batch);
             workerList.add(worker);
             amount--;
         }
+        batchDao.addNewWorkers(batch, workerList);
         return workerList;
     }
 
+    /**
+     * Creates and persists PersonalSingleWorkers or PersonalMultipleWorkers in bulk. Other than
+     * createAndPersistPersonalSingleWorker and createAndPersistPersonalMultipleWorker it doesn't
+     * use the caller's transaction: the workers are created in chunks of
+     * 'jatos.workers.bulkCreationBatchSize' and each chunk is committed in its own transaction.
+     * The workers of a chunk are added to the batch with a single batched insert.
+     *
+     * The returned Source is pull-based (like ResultStreamer): a chunk is created only when the
+     * stream is ready for it and its elements are the chunk's worker IDs after it was committed.
+     * If the stream is cancelled (e.g. the client closed the connection) no further chunks are
+     * created. The chunks are created on Akka Stream's dispatcher for blocking IO.
+     *
+     * @param workerType PersonalSingleWorker.WORKER_TYPE or PersonalMultipleWorker.WORKER_TYPE
+     * @param comment    Each worker will get this label
+     * @param amount     The number of workers to be created
+     * @param batchId    Each worker will belong to the batch with this ID
+     */
+    public Source<List<Long>, NotUsed> createAndPersistPersonalWorkersInChunks(String workerType,
+            String comment, int amount, Long batchId) throws BadRequestException {
+        validatePersonalWorkers(workerType, comment, amount);
+        Function<String, ? extends Worker> workerConstructor = getPersonalWorkerConstructor(workerType);
+        int chunkSize = Common.getWorkersBulkCreationBatchSize();
+        return Source.unfoldResource(
+                () -> new AtomicInteger(amount),
+                remaining -> {
+                    if (remaining.get() <= 0) return Optional.empty();
+                    int size = Math.min(chunkSize, remaining.get());
+                    remaining.addAndGet(-size);
+                    return Optional.of(persistPersonalWorkers(workerConstructor, comment, size, batchId));
+                },
+                remaining -> {
+                });
+    }
+
+    private List<Long> persistPersonalWorkers(Function<String, ? extends Worker> workerConstructor,
+            String comment, int size, Long batchId) {
+        return jpa.withTransaction(entityManager -> {
+            Batch batch = batchDao.findById(batchId);
+            List<Worker> workerList = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                Worker worker = workerConstructor.apply(comment);
+                workerDao.create(worker);
+                workerList.add(worker);
+            }
+            batchDao.addNewWorkers(batch, workerList);
+            return workerList.stream().map(Worker::getId).collect(Collectors.toList());
+        });
+    }
+
+    /**
+     * Checks the worker type, comment and amount for a bulk creation of personal workers and
+     * throws a BadRequestException if they are not valid. The amount has to be between 1 and
+     * 'jatos.workers.bulkCreationMaxAmount'.
+     */
+    public void validatePersonalWorkers(String workerType, String comment, int amount)
+            throws BadRequestException {
+        validateWorker(getPersonalWorkerConstructor(workerType).apply(comment));
+        int maxAmount = Common.getWorkersBulkCreationMaxAmount();
+        if (amount < 1 || amount > maxAmount) {
+            throw new BadRequestException("Amount must be between 1 and " + maxAmount);
+        }
+    }
+
+    private Function<String, ? extends Worker> getPersonalWorkerConstructor(String workerType)
+            throws BadRequestException {
+        switch (workerType) {
+            case PersonalSingleWorker.WORKER_TYPE:
+                return PersonalSingleWorker::new;
+            case PersonalMultipleWorker.WORKER_TYPE:
+                return PersonalMultipleWorker::new;
+            default:
+                throw new BadRequestException("Unknown worker type " + workerType);
+        }
+    }
+
     private void validateWorker(Worker worker) throws BadRequestException {
         List<ValidationError> errorList = worker.validate();
         if (errorList != null && !errorList.isEmpty()) {
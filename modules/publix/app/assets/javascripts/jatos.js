@@ -127,6 +127,19 @@ var jatos = {};
 	 * Waiting time in ms between checking if channels are closed unexpectedly
 	 */
 	jatos.channelClosedCheckInterval = 2000;
+	/**
+	 * Encoding of the messages JATOS sends via the batch and group channel:
+	 * "json" (default) or "compact" (CBOR in binary frames with short codes
+	 * for the keys and actions - fewer bytes and faster parsing if the session
+	 * data change often). Has to be set before the channel is opened.
+	 */
+	jatos.channelEncoding = "json";
+	/**
+	 * If true JATOS sends large channel messages deflated (the threshold is
+	 * configured in JATOS). Only possible if the browser has a
+	 * DecompressionStream. Has to be set before the channel is opened.
+	 */
+	jatos.channelDeflate = typeof DecompressionStream !== "undefined";
 	/**
 	 * Min and max waiting time between channel reopening attempts 
 	 */
@@ -567,16 +580,17 @@ var jatos = {};
 		batchChannel = new WebSocket(
 			((window.location.protocol === "https:") ? "wss://" : "ws://") +
 			window.location.host + jatos.urlBasePath + "publix/" + jatos.studyId +
-			"/batch/open" + "?srid=" + jatos.studyResultId);
+			"/batch/open" + "?srid=" + jatos.studyResultId +
+			"&encoding=" + jatos.channelEncoding +
+			"&deflate=" + jatos.channelDeflate);
+		batchChannel.binaryType = "arraybuffer";
 		batchChannel.onopen = function (event) {
 			batchChannelHeartbeat();
 			batchChannelClosedCheck();
 			// The actual batch channel opening is done when we have the 
 			// current version of the batch session
 		};
-		batchChannel.onmessage = function (event) {
-			handleBatchMsg(event.data);
-		};
+		batchChannel.onmessage = channelMsgReceiver(handleBatchMsg);
 		batchChannel.onerror = function () {
 			callingOnError(null, "Batch channel error");
 			openingBatchChannelDeferred.reject();
@@ -663,7 +677,7 @@ var jatos = {};
 	function handleBatchMsg(msg) {
 		var batchMsg;
 		try {
-			batchMsg = JSON.parse(msg);
+			batchMsg = parseChannelMsg(msg);
 		} catch (error) {
 			callingOnError(null, error);
 			return;
@@ -1458,16 +1472,17 @@ var jatos = {};
 		groupChannel = new WebSocket(
 			((window.location.protocol === "https:") ? "wss://" : "ws://") +
 			window.location.host + jatos.urlBasePath + "publix/" + jatos.studyId +
-			"/group/join" + "?srid=" + jatos.studyResultId);
+			"/group/join" + "?srid=" + jatos.studyResultId +
+			"&encoding=" + jatos.channelEncoding +
+			"&deflate=" + jatos.channelDeflate);
+		groupChannel.binaryType = "arraybuffer";
 		groupChannel.onopen = function (event) {
 			groupChannelHeartbeat();
 			groupChannelClosedCheck();
 			// The actual group channel opening is done when we have the current
 			// version of the group session
 		};
-		groupChannel.onmessage = function (event) {
-			handleGroupMsg(event.data);
-		};
+		groupChannel.onmessage = channelMsgReceiver(handleGroupMsg);
 		groupChannel.onerror = function () {
 			callingOnError(groupChannelCallbacks.onError, "Group channel error");
 			openingGroupChannelDeferred.reject();
@@ -1580,7 +1595,7 @@ var jatos = {};
 	function handleGroupMsg(msg) {
 		var groupMsg;
 		try {
-			groupMsg = JSON.parse(msg);
+			groupMsg = parseChannelMsg(msg);
 		} catch (error) {
 			callingOnError(groupChannelCallbacks.onError, error);
 			return;
@@ -2617,6 +2632,181 @@ var jatos = {};
 		console.error(errorMsg);
 	}
 
+	/**
+	 * Keys and actions of the compact channel encoding: their codes are the
+	 * positions in these lists (same as in JATOS' CompactChannelCodec)
+	 */
+	var compactChannelKeys = ["action", "data", "patches", "id", "version",
+		"versioning", "errorMsg", "recipient", "groupResultId", "groupState",
+		"memberId", "members", "channels", "sessionData", "sessionPatches",
+		"sessionActionId", "sessionVersion", "sessionVersioning", "heartbeat",
+		"msg"];
+	var compactChannelActions = ["OPENED", "CLOSED", "SESSION", "SESSION_ACK",
+		"SESSION_FAIL", "ERROR", "JOINED", "LEFT", "FIXED"];
+
+	/**
+	 * Returns a WebSocket onmessage function that passes the received messages
+	 * on to handleMsg. Deflated messages are inflated first, which is
+	 * asynchronous - the messages are still handled in the order they were
+	 * received.
+	 */
+	function channelMsgReceiver(handleMsg) {
+		var pending = null;
+		return function (event) {
+			var data = event.data;
+			if (!pending && !isDeflatedChannelMsg(data)) {
+				handleMsg(data);
+				return;
+			}
+			var inflating = isDeflatedChannelMsg(data) ?
+				inflateChannelMsg(data) : data;
+			var current = (pending || Promise.resolve()).then(function () {
+				return inflating;
+			}).then(handleMsg, function (error) {
+				callingOnError(null, error);
+			});
+			pending = current;
+			current.then(function () {
+				if (pending === current) pending = null;
+			});
+		};
+	}
+
+	/**
+	 * A deflated message is a binary frame in zlib format (first byte 0x78)
+	 */
+	function isDeflatedChannelMsg(data) {
+		return data instanceof ArrayBuffer && data.byteLength > 1 &&
+			new Uint8Array(data)[0] === 0x78;
+	}
+
+	/**
+	 * Inflates a deflated channel message. Returns a Promise with the message:
+	 * an ArrayBuffer if it's in the compact encoding (starts with a CBOR map)
+	 * or a JSON string.
+	 */
+	function inflateChannelMsg(buffer) {
+		var stream = new Blob([buffer]).stream()
+			.pipeThrough(new DecompressionStream("deflate"));
+		return new Response(stream).arrayBuffer().then(function (inflated) {
+			var firstByte = new Uint8Array(inflated)[0];
+			if ((firstByte & 0xE0) === 0xA0) return inflated;
+			return new TextDecoder().decode(inflated);
+		});
+	}
+
+	/**
+	 * Parses a message received via the batch or group channel: JSON in a
+	 * text frame or, with the compact encoding, CBOR in a binary frame
+	 */
+	function parseChannelMsg(data) {
+		if (typeof data === "string") return JSON.parse(data);
+		return decodeCompactChannelMsg(data);
+	}
+
+	/**
+	 * Decodes a CBOR message (ArrayBuffer) of the compact channel encoding. The
+	 * codes of the top-level keys and of the action are turned back into
+	 * their names.
+	 */
+	function decodeCompactChannelMsg(buffer) {
+		var view = new DataView(buffer);
+		var offset = 0;
+
+		function readLength(info) {
+			if (info < 24) return info;
+			if (info === 31) return -1; // Indefinite length
+			if (info > 27) throw "Invalid message in compact channel encoding";
+			if (info === 24) return view.getUint8(offset++);
+			offset += [2, 4, 8][info - 25];
+			if (info === 25) return view.getUint16(offset - 2);
+			if (info === 26) return view.getUint32(offset - 4);
+			return view.getUint32(offset - 8) * 4294967296 + view.getUint32(offset - 4);
+		}
+
+		function readString(length) {
+			var bytes = new Uint8Array(buffer, offset, length);
+			offset += length;
+			if (typeof TextDecoder !== "undefined") return new TextDecoder("utf-8").decode(bytes);
+			return decodeURIComponent(escape(String.fromCharCode.apply(null, bytes)));
+		}
+
+		function hasNext(length, i) {
+			if (length >= 0) return i < length;
+			if (view.getUint8(offset) !== 0xff) return true;
+			offset++; // Skip 'break' of indefinite length
+			return false;
+		}
+
+		// Bignums and decimal fractions become JavaScript numbers - like with JSON.parse
+		// they may lose precision
+		function readTaggedNumber(tag, item) {
+			var value = 0, i;
+			if (tag === 2 || tag === 3) {
+				for (i = 0; i < item.length; i++) value = value * 256 + item[i];
+				return tag === 2 ? value : -1 - value;
+			}
+			// Decimal fraction [exponent, mantissa]
+			if (tag === 4) {
+				return item[0] < 0 ? item[1] / Math.pow(10, -item[0]) : item[1] * Math.pow(10, item[0]);
+			}
+			throw "Invalid message in compact channel encoding";
+		}
+
+		function readItem(topLevel) {
+			var initial = view.getUint8(offset++);
+			var info = initial & 0x1f;
+			var length, i, item, key;
+			switch (initial >> 5) {
+				case 0:
+					return readLength(info);
+				case 1:
+					return -1 - readLength(info);
+				case 2:
+					length = readLength(info);
+					item = new Uint8Array(buffer, offset, length);
+					offset += length;
+					return item;
+				case 3:
+					return readString(readLength(info));
+				case 4:
+					length = readLength(info);
+					item = [];
+					for (i = 0; hasNext(length, i); i++) item.push(readItem(false));
+					return item;
+				case 5:
+					length = readLength(info);
+					item = {};
+					for (i = 0; hasNext(length, i); i++) {
+						key = readItem(false);
+						if (topLevel && typeof key === "number") key = compactChannelKeys[key];
+						item[key] = readItem(false);
+					}
+					if (topLevel && typeof item.action === "number") {
+						item.action = compactChannelActions[item.action];
+					}
+					return item;
+				case 6:
+					return readTaggedNumber(readLength(info), readItem(false));
+				case 7:
+					if (info === 20) return false;
+					if (info === 21) return true;
+					if (info === 22) return null;
+					if (info === 26) {
+						offset += 4;
+						return view.getFloat32(offset - 4);
+					}
+					if (info === 27) {
+						offset += 8;
+						return view.getFloat64(offset - 8);
+					}
+			}
+			throw "Invalid message in compact channel encoding";
+		}
+
+		return readItem(true);
+	}
+
 	/**
 	 * Sets a timeout and puts an object with two functions, 'cancel' and 'trigger'
 	 * into the given sessionTimeouts
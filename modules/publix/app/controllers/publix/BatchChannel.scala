@@ -9,17 +9,19 @@ import batch.BatchChannelActor
 import batch.BatchDispatcher.PoisonChannel
 import batch.BatchDispatcherRegistry.{GetOrCreate, ItsThisOne}
 import exceptions.publix.PublixException
+import general.{ChannelOptions, ChannelOutQueue}
 import javax.inject.{Inject, Named, Singleton}
 import models.common.workers._
 import play.api.Logger
-import play.api.libs.streams.ActorFlow
+import play.api.http.websocket.Message
+import play.api.libs.json.JsValue
 import play.api.mvc._
 import services.publix.idcookie.IdCookieService
 import services.publix.workers._
 import services.publix.{PublixUtils, StudyAuthorisation}
 
-import scala.concurrent.Await
 import scala.concurrent.duration._
+import scala.concurrent.{ExecutionContext, Future}
 
 /**
   * Abstract class that handles opening of the batch channel. It has concrete implementations for
@@ -38,6 +40,9 @@ abstract class BatchChannel[A <: Worker](components: ControllerComponents,
   @Inject
   implicit var materializer: Materializer = _
 
+  @Inject
+  implicit var executionContext: ExecutionContext = _
+
   @Inject
   var idCookieService: IdCookieService = _
 
@@ -51,46 +56,48 @@ abstract class BatchChannel[A <: Worker](components: ControllerComponents,
   implicit val timeout: Timeout = 30.seconds
 
   /**
-    * HTTP endpoint that opens a batch channel and returns a Akka stream Flow that will be turned
-    * into WebSocket. In case of an error/problem an PublixException is thrown.
+    * HTTP endpoint that opens a batch channel and returns (in a Future) a Akka stream Flow that will
+    * be turned into WebSocket. The checks are done right away and in case of an error/problem an
+    * PublixException is thrown. The communication with the BatchDispatcher doesn't block. The
+    * messages to the client are sent with the given options (encoding and deflate).
     */
   @throws(classOf[PublixException])
-  def open(studyId: Long, studyResultId: Long): Flow[Any, Nothing, _] = {
+  def open(studyId: Long, studyResultId: Long,
+           options: ChannelOptions): Future[Flow[JsValue, Message, _]] = {
     logger.info(s".open: studyId $studyId, studyResultId $studyResultId")
     val idCookie = idCookieService.getIdCookie(studyResultId)
-    val worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId)
-    val study = publixUtils.retrieveStudy(studyId)
-    val batch = publixUtils.retrieveBatch(idCookie.getBatchId)
+    val run = publixUtils.retrieveRunContext(idCookie, studyId, null)
+    val worker = run.getWorker
+    val study = run.getStudy
+    val batch = run.getBatch
     studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch)
-    val studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId)
-
-    // Get the BatchDispatcher that will handle this batch.
-    val batchDispatcher = getOrCreateBatchDispatcher(batch.getId)
-    // If this BatchDispatcher already has a batch channel for this
-    // StudyResult, close the old one before opening a new one.
-    closeBatchChannel(studyResult.getId, batchDispatcher)
-    ActorFlow.actorRef { out => BatchChannelActor.props(out, studyResult.getId, batchDispatcher) }
+
+    // Get the BatchDispatcher that will handle this batch. If this BatchDispatcher already has a
+    // batch channel for this StudyResult, close the old one before opening a new one.
+    for {
+      batchDispatcher <- getOrCreateBatchDispatcher(batch.getId)
+      _ <- closeBatchChannel(studyResultId, batchDispatcher)
+    } yield ChannelOutQueue.flow[JsValue] { out =>
+      BatchChannelActor.props(out, studyResultId, batchDispatcher, options)
+    }
   }
 
   /**
-    * Asks the BatchDispatcherRegistry to get or create a batch dispatcher for the given ID. It
-    * waits until it receives an answer. The answer is an ActorRef (to a BatchDispatcher).
+    * Asks the BatchDispatcherRegistry to get or create a batch dispatcher for the given ID. The
+    * answer is an ActorRef (to a BatchDispatcher).
     */
-  private def getOrCreateBatchDispatcher(batchId: Long): ActorRef = {
-    val future = batchDispatcherRegistry ? GetOrCreate(batchId)
-    Await.result(future, timeout.duration).asInstanceOf[ItsThisOne].dispatcher
+  private def getOrCreateBatchDispatcher(batchId: Long): Future[ActorRef] = {
+    (batchDispatcherRegistry ? GetOrCreate(batchId)).mapTo[ItsThisOne].map(_.dispatcher)
   }
 
   /**
     * Closes the batch channel that belongs to the given study result ID and is managed by the
-    * given BatchDispatcher. Waits until it receives a result from the BatchDispatcher actor. It
-    * returns true if the BatchChannel was managed by the BatchDispatcher and was successfully
-    * removed from the BatchDispatcher, false otherwise (it was probably never managed by the
-    * dispatcher).
+    * given BatchDispatcher. The answer from the BatchDispatcher actor is true if the BatchChannel
+    * was managed by the BatchDispatcher and was successfully removed from the BatchDispatcher,
+    * false otherwise (it was probably never managed by the dispatcher).
     */
-  private def closeBatchChannel(studyResultId: Long, batchDispatcher: ActorRef) = {
-    val future = batchDispatcher ? PoisonChannel(studyResultId)
-    Await.result(future, timeout.duration).asInstanceOf[Boolean]
+  private def closeBatchChannel(studyResultId: Long, batchDispatcher: ActorRef): Future[Boolean] = {
+    (batchDispatcher ? PoisonChannel(studyResultId)).mapTo[Boolean]
   }
 
 }
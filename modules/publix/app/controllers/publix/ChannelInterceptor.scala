@@ -1,11 +1,17 @@
 package controllers.publix
 
+import akka.stream.scaladsl.Flow
 import controllers.publix.actionannotation.PublixAccessLoggingAction.PublixAccessLogging
 import exceptions.publix.{BadRequestPublixException, ForbiddenPublixException, NotFoundPublixException, PublixException}
+import general.common.Common
+import general.{ChannelEncoding, ChannelOptions, CompactChannelCodec}
 import javax.inject.{Inject, Singleton}
 import models.common.workers._
 import play.api.Logger
-import play.api.libs.json.JsValue
+import play.api.http.websocket._
+import play.api.libs.json.{JsValue, Json}
+import play.api.libs.streams.AkkaStreams
+import play.api.mvc.WebSocket.MessageFlowTransformer
 import play.api.mvc._
 import play.core.j.JavaHelpers
 import play.db.jpa.JPAApi
@@ -13,7 +19,8 @@ import play.libs.concurrent.HttpExecutionContext
 import services.publix.idcookie.IdCookieService
 
 import scala.compat.java8.FunctionConverters.asJavaSupplier
-import scala.concurrent.Future
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.control.NonFatal
 
 /**
   * This class intercepts a request before it gets to the BatchChannel or GroupChannel. It has
@@ -38,10 +45,41 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
                                    generalSingleGroupChannel: GeneralSingleGroupChannel,
                                    generalMultipleGroupChannel: GeneralMultipleGroupChannel,
                                    mTGroupChannel: MTGroupChannel)
+                                  (implicit executionContext: ExecutionContext)
   extends AbstractController(components) {
 
   private val logger: Logger = Logger(this.getClass)
 
+  private type ChannelFlow = Flow[JsValue, Message, _]
+
+  /**
+    * Like Play's JSON MessageFlowTransformer it parses the incoming WebSocket frames into JSON, but
+    * the outgoing frames are WebSocket messages already. This way the channel actors can send frames
+    * that were serialized only once for all channels (general.SerializedMsg). Binary frames can be
+    * JSON or CBOR.
+    */
+  private implicit val jsonInMessageOut: MessageFlowTransformer[JsValue, Message] =
+    new MessageFlowTransformer[JsValue, Message] {
+      def transform(flow: Flow[JsValue, Message, _]): Flow[Message, Message, _] = {
+        AkkaStreams.bypassWith[Message, JsValue, Message](Flow[Message].collect {
+          case BinaryMessage(data) => closeOnException(parseBinary(data.toArray))
+          case TextMessage(text) => closeOnException(Json.parse(text))
+        })(flow)
+      }
+    }
+
+  private def parseBinary(bytes: Array[Byte]): JsValue = {
+    if (CompactChannelCodec.isCbor(bytes)) CompactChannelCodec.decode(bytes)
+    else Json.parse(bytes)
+  }
+
+  private def closeOnException(block: => JsValue): Either[JsValue, Message] = {
+    try Left(block) catch {
+      case NonFatal(_) =>
+        Right(CloseMessage(Some(CloseCodes.Unacceptable), "Unable to parse json message"))
+    }
+  }
+
   /**
     * HTTP type: WebSocket
     *
@@ -49,55 +87,46 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
     * session data) between study runs of a batch. All batch session data are stored in a Batch
     * model and the batch channels will be handled by a BatchDispatcher which uses Akka.
     *
+    * The query parameter 'encoding' chooses the encoding of the messages to the client: 'json'
+    * (default) or 'compact' (see general.ChannelEncoding). With the query parameter 'deflate=true'
+    * the client says it can inflate messages: then messages from 'jatos.channel.deflateThreshold'
+    * bytes on are sent deflated in binary frames.
+    *
     * @param studyId       Study's ID
     * @param studyResultId StudyResult's ID
     * @return WebSocket that transports JSON strings.
     */
   def openBatch(studyId: Long, studyResultId: Long): WebSocket =
-    WebSocket.acceptOrResult[JsValue, JsValue] { request =>
-
-      Future.successful({
-        // Set Http.Context used in Play with Java. Needed by IdCookieService
-        play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
-        val idCookie = idCookieService.getIdCookie(studyResultId)
+    WebSocket.acceptOrResult[JsValue, Message] { request =>
+      // Set Http.Context used in Play with Java. Needed by IdCookieService
+      play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
+      val idCookie = idCookieService.getIdCookie(studyResultId)
+      val options = channelOptions(request)
 
-        jpa.withTransaction(asJavaSupplier(() =>
-          try {
-            idCookie.getWorkerType match {
-              case JatosWorker.WORKER_TYPE =>
-                Right(jatosBatchChannel.open(studyId, studyResultId))
-              case PersonalSingleWorker.WORKER_TYPE =>
-                Right(personalSingleBatchChannel.open(studyId, studyResultId))
-              case PersonalMultipleWorker.WORKER_TYPE =>
-                Right(personalMultipleBatchChannel.open(studyId, studyResultId))
-              case GeneralSingleWorker.WORKER_TYPE =>
-                Right(generalSingleBatchChannel.open(studyId, studyResultId))
-              case GeneralMultipleWorker.WORKER_TYPE =>
-                Right(generalMultipleBatchChannel.open(studyId, studyResultId))
-              case MTSandboxWorker.WORKER_TYPE =>
-                Right(mTBatchChannel.open(studyId, studyResultId))
-              case MTWorker.WORKER_TYPE =>
-                Right(mTBatchChannel.open(studyId, studyResultId))
-              case _ => Left(Results.BadRequest)
-            }
-          } catch {
-            // Due to returning a WebSocket we can't throw a PublixExceptions like
-            // with other publix endpoints
-            case e: NotFoundPublixException =>
-              logger.info(s".open: ${e.getMessage}")
-              Left(Results.NotFound)
-            case e: ForbiddenPublixException =>
-              logger.info(s".open: ${e.getMessage}")
-              Left(Results.Forbidden)
-            case e: BadRequestPublixException =>
-              logger.info(s".open: ${e.getMessage}")
-              Left(Results.BadRequest)
-            case e: Exception =>
-              logger.error(".open: Exception during opening of batch channel", e)
-              Left(Results.InternalServerError)
+      val opened: Future[Either[Result, ChannelFlow]] = jpa.withTransaction(asJavaSupplier(() =>
+        try {
+          idCookie.getWorkerType match {
+            case JatosWorker.WORKER_TYPE =>
+              accept(jatosBatchChannel.open(studyId, studyResultId, options))
+            case PersonalSingleWorker.WORKER_TYPE =>
+              accept(personalSingleBatchChannel.open(studyId, studyResultId, options))
+            case PersonalMultipleWorker.WORKER_TYPE =>
+              accept(personalMultipleBatchChannel.open(studyId, studyResultId, options))
+            case GeneralSingleWorker.WORKER_TYPE =>
+              accept(generalSingleBatchChannel.open(studyId, studyResultId, options))
+            case GeneralMultipleWorker.WORKER_TYPE =>
+              accept(generalMultipleBatchChannel.open(studyId, studyResultId, options))
+            case MTSandboxWorker.WORKER_TYPE =>
+              accept(mTBatchChannel.open(studyId, studyResultId, options))
+            case MTWorker.WORKER_TYPE =>
+              accept(mTBatchChannel.open(studyId, studyResultId, options))
+            case _ => Future.successful(Left(Results.BadRequest))
           }
-        ))
-      })
+        } catch {
+          case e: Exception => Future.successful(reject("open", "batch")(e))
+        }
+      ))
+      opened.recover(reject("open", "batch"))
     }
 
   /**
@@ -108,75 +137,49 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
     * stored in a GroupResult and the group channels will be handled by a GroupDispatcher which
     * uses Akka.
     *
+    * The query parameters 'encoding' and 'deflate' choose how the messages are sent to the client
+    * like in openBatch.
+    *
     * @param studyId       studyId Study's ID
     * @param studyResultId StudyResult's ID
     * @return WebSocket that transfers JSON
     */
   def joinGroup(studyId: Long, studyResultId: Long): WebSocket =
-    WebSocket.acceptOrResult[JsValue, JsValue] {
-      request =>
-
-        Future.successful({
-          // Set Http.Context used in Play with Java. Needed by IdCookieService
-          play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
-          val idCookie = idCookieService.getIdCookie(studyResultId)
+    WebSocket.acceptOrResult[JsValue, Message] { request =>
+      // Set Http.Context used in Play with Java. Needed by IdCookieService
+      play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
+      val idCookie = idCookieService.getIdCookie(studyResultId)
+      val options = channelOptions(request)
 
-          try {
-            idCookie.getWorkerType match {
-              case JatosWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  jatosGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(jatosGroupChannel.open(studyResult))
-              case PersonalSingleWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  personalSingleGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(personalSingleGroupChannel.open(studyResult))
-              case PersonalMultipleWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  personalMultipleGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(personalMultipleGroupChannel.open(studyResult))
-              case GeneralSingleWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  generalSingleGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(generalSingleGroupChannel.open(studyResult))
-              case GeneralMultipleWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  generalMultipleGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(generalMultipleGroupChannel.open(studyResult))
-              case MTSandboxWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  mTGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(mTGroupChannel.open(studyResult))
-              case MTWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  mTGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(mTGroupChannel.open(studyResult))
-              case _ => Left(Results.BadRequest)
-            }
-          } catch {
-            // Due to returning a WebSocket we can't throw a PublixExceptions like
-            // with other publix endpoints
-            case e: NotFoundPublixException =>
-              logger.info(s".join: ${e.getMessage}")
-              Left(Results.NotFound)
-            case e: ForbiddenPublixException =>
-              logger.info(s".join: ${e.getMessage}")
-              Left(Results.Forbidden)
-            case e: BadRequestPublixException =>
-              logger.info(s".join: ${e.getMessage}")
-              Left(Results.BadRequest)
-            case e: Exception =>
-              logger.error(".join: Exception during opening of group channel", e)
-              Left(Results.InternalServerError)
-          }
-        })
+      val opened: Future[Either[Result, ChannelFlow]] = try {
+        idCookie.getWorkerType match {
+          case JatosWorker.WORKER_TYPE =>
+            val studyResult = jatosGroupChannel.join(studyId, studyResultId)
+            accept(jatosGroupChannel.open(studyResult, options))
+          case PersonalSingleWorker.WORKER_TYPE =>
+            val studyResult = personalSingleGroupChannel.join(studyId, studyResultId)
+            accept(personalSingleGroupChannel.open(studyResult, options))
+          case PersonalMultipleWorker.WORKER_TYPE =>
+            val studyResult = personalMultipleGroupChannel.join(studyId, studyResultId)
+            accept(personalMultipleGroupChannel.open(studyResult, options))
+          case GeneralSingleWorker.WORKER_TYPE =>
+            val studyResult = generalSingleGroupChannel.join(studyId, studyResultId)
+            accept(generalSingleGroupChannel.open(studyResult, options))
+          case GeneralMultipleWorker.WORKER_TYPE =>
+            val studyResult = generalMultipleGroupChannel.join(studyId, studyResultId)
+            accept(generalMultipleGroupChannel.open(studyResult, options))
+          case MTSandboxWorker.WORKER_TYPE =>
+            val studyResult = mTGroupChannel.join(studyId, studyResultId)
+            accept(mTGroupChannel.open(studyResult, options))
+          case MTWorker.WORKER_TYPE =>
+            val studyResult = mTGroupChannel.join(studyId, studyResultId)
+            accept(mTGroupChannel.open(studyResult, options))
+          case _ => Future.successful(Left(Results.BadRequest))
+        }
+      } catch {
+        case e: Exception => Future.successful(reject("join", "group")(e))
+      }
+      opened.recover(reject("join", "group"))
     }
 
   /**
@@ -193,32 +196,29 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
     * @throws PublixException will be handled in the global ErrorHandler
     */
   @throws(classOf[PublixException])
-  def reassignGroup(studyId: Long, studyResultId: Long): Action[AnyContent] = Action {
+  def reassignGroup(studyId: Long, studyResultId: Long): Action[AnyContent] = Action.async {
     request =>
       // Set Http.Context used in Play with Java. Needed by IdCookieService
       play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
       val idCookie = idCookieService.getIdCookie(studyResultId)
 
-      jpa.withTransaction(asJavaSupplier(() => {
-
-        idCookie.getWorkerType match {
-          case JatosWorker.WORKER_TYPE =>
-            jatosGroupChannel.reassign(studyId, studyResultId)
-          case PersonalSingleWorker.WORKER_TYPE =>
-            personalSingleGroupChannel.reassign(studyId, studyResultId)
-          case PersonalMultipleWorker.WORKER_TYPE =>
-            personalMultipleGroupChannel.reassign(studyId, studyResultId)
-          case GeneralSingleWorker.WORKER_TYPE =>
-            generalSingleGroupChannel.reassign(studyId, studyResultId)
-          case GeneralMultipleWorker.WORKER_TYPE =>
-            generalMultipleGroupChannel.reassign(studyId, studyResultId)
-          case MTSandboxWorker.WORKER_TYPE =>
-            mTGroupChannel.reassign(studyId, studyResultId)
-          case MTWorker.WORKER_TYPE =>
-            mTGroupChannel.reassign(studyId, studyResultId)
-          case _ => Results.BadRequest
-        }
-      }))
+      idCookie.getWorkerType match {
+        case JatosWorker.WORKER_TYPE =>
+          jatosGroupChannel.reassign(studyId, studyResultId)
+        case PersonalSingleWorker.WORKER_TYPE =>
+          personalSingleGroupChannel.reassign(studyId, studyResultId)
+        case PersonalMultipleWorker.WORKER_TYPE =>
+          personalMultipleGroupChannel.reassign(studyId, studyResultId)
+        case GeneralSingleWorker.WORKER_TYPE =>
+          generalSingleGroupChannel.reassign(studyId, studyResultId)
+        case GeneralMultipleWorker.WORKER_TYPE =>
+          generalMultipleGroupChannel.reassign(studyId, studyResultId)
+        case MTSandboxWorker.WORKER_TYPE =>
+          mTGroupChannel.reassign(studyId, studyResultId)
+        case MTWorker.WORKER_TYPE =>
+          mTGroupChannel.reassign(studyId, studyResultId)
+        case _ => Future.successful(Results.BadRequest)
+      }
   }
 
   /**
@@ -239,26 +239,60 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
       play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
       val idCookie = idCookieService.getIdCookie(studyResultId)
 
-      jpa.withTransaction(asJavaSupplier(() => {
+      idCookie.getWorkerType match {
+        case JatosWorker.WORKER_TYPE =>
+          jatosGroupChannel.leave(studyId, studyResultId)
+        case PersonalSingleWorker.WORKER_TYPE =>
+          personalSingleGroupChannel.leave(studyId, studyResultId)
+        case PersonalMultipleWorker.WORKER_TYPE =>
+          personalMultipleGroupChannel.leave(studyId, studyResultId)
+        case GeneralSingleWorker.WORKER_TYPE =>
+          generalSingleGroupChannel.leave(studyId, studyResultId)
+        case GeneralMultipleWorker.WORKER_TYPE =>
+          generalMultipleGroupChannel.leave(studyId, studyResultId)
+        case MTSandboxWorker.WORKER_TYPE =>
+          mTGroupChannel.leave(studyId, studyResultId)
+        case MTWorker.WORKER_TYPE =>
+          mTGroupChannel.leave(studyId, studyResultId)
+        case _ => Results.BadRequest
+      }
+  }
 
-        idCookie.getWorkerType match {
-          case JatosWorker.WORKER_TYPE =>
-            jatosGroupChannel.leave(studyId, studyResultId)
-          case PersonalSingleWorker.WORKER_TYPE =>
-            personalSingleGroupChannel.leave(studyId, studyResultId)
-          case PersonalMultipleWorker.WORKER_TYPE =>
-            personalMultipleGroupChannel.leave(studyId, studyResultId)
-          case GeneralSingleWorker.WORKER_TYPE =>
-            generalSingleGroupChannel.leave(studyId, studyResultId)
-          case GeneralMultipleWorker.WORKER_TYPE =>
-            generalMultipleGroupChannel.leave(studyId, studyResultId)
-          case MTSandboxWorker.WORKER_TYPE =>
-            mTGroupChannel.leave(studyId, studyResultId)
-          case MTWorker.WORKER_TYPE =>
-            mTGroupChannel.leave(studyId, studyResultId)
-          case _ => Results.BadRequest
-        }
-      }))
+  /**
+    * Reads how the messages are sent to the client from the request's query parameters 'encoding'
+    * and 'deflate'
+    */
+  private def channelOptions(request: RequestHeader): ChannelOptions = {
+    val encoding = ChannelEncoding.fromName(request.getQueryString("encoding"))
+    val deflate = request.getQueryString("deflate").exists(_.equalsIgnoreCase("true"))
+    ChannelOptions(encoding, if (deflate) Common.getChannelDeflateThreshold else 0)
+  }
+
+  /**
+    * Wraps the Flow of an opened channel for WebSocket.acceptOrResult
+    */
+  private def accept(flow: Future[ChannelFlow])
+  : Future[Either[Result, ChannelFlow]] = flow.map(Right(_))
+
+  /**
+    * Turns an exception during the opening of a batch or group channel into the result of the
+    * WebSocket request. Due to returning a WebSocket we can't throw a PublixExceptions like with
+    * other publix endpoints.
+    */
+  private def reject(method: String, channel: String)
+  : PartialFunction[Throwable, Either[Result, ChannelFlow]] = {
+    case e: NotFoundPublixException =>
+      logger.info(s".$method: ${e.getMessage}")
+      Left(Results.NotFound)
+    case e: ForbiddenPublixException =>
+      logger.info(s".$method: ${e.getMessage}")
+      Left(Results.Forbidden)
+    case e: BadRequestPublixException =>
+      logger.info(s".$method: ${e.getMessage}")
+      Left(Results.BadRequest)
+    case e: Exception =>
+      logger.error(s".$method: Exception during opening of $channel channel", e)
+      Left(Results.InternalServerError)
   }
 
 }
@@ -5,22 +5,28 @@ import akka.pattern.ask
 import akka.stream.Materializer
 import akka.stream.scaladsl.Flow
 import akka.util.Timeout
+import com.google.common.util.concurrent.Striped
 import exceptions.publix.{ForbiddenPublixException, PublixException}
+import general.{ChannelOptions, ChannelOutQueue}
 import group.GroupDispatcher.{JoinedGroup, LeftGroup, PoisonChannel, ReassignChannel}
 import group.GroupDispatcherRegistry.{Get, GetOrCreate, ItsThisOne}
 import group.{GroupAdministration, GroupChannelActor, GroupDispatcher}
+import java.util.concurrent.locks.Lock
 import javax.inject.{Inject, Named, Singleton}
 import models.common.workers._
 import models.common.{GroupResult, StudyResult}
 import play.api.Logger
-import play.api.libs.streams.ActorFlow
+import play.api.http.websocket.Message
+import play.api.libs.json.JsValue
 import play.api.mvc._
+import play.db.jpa.JPAApi
 import services.publix.idcookie.IdCookieService
 import services.publix.workers._
 import services.publix.{PublixErrorMessages, PublixUtils, StudyAuthorisation}
 
-import scala.concurrent.Await
+import scala.compat.java8.FunctionConverters.asJavaSupplier
 import scala.concurrent.duration._
+import scala.concurrent.{ExecutionContext, Future}
 
 /**
   * Abstract class that handles opening of the group channel. It has concrete implementations for
@@ -39,6 +45,9 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
   @Inject
   implicit var materializer: Materializer = _
 
+  @Inject
+  implicit var executionContext: ExecutionContext = _
+
   @Inject
   var idCookieService: IdCookieService = _
 
@@ -49,120 +58,150 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
   @Inject
   var groupAdministration: GroupAdministration = _
 
+  @Inject
+  var jpa: JPAApi = _
+
   /**
     * Time to wait for an answer after asking an Akka actor
     */
   implicit val timeout: Timeout = 30.seconds
 
+  /**
+    * Runs the given block in its own transaction while holding the lock of the given batch.
+    * Joining, reassigning and leaving change the batch's GroupResults and have to run one after
+    * another within a batch - but different batches can run in parallel. The lock is taken before
+    * the transaction starts (the batch ID comes from the ID cookie) and released after the
+    * transaction is committed. This way the next one of the batch reads the StudyResult and
+    * GroupResults only after the previous one's changes are committed.
+    */
+  private def inBatchTransaction[T](batchId: java.lang.Long)(block: => T): T = {
+    val lock = GroupChannel.batchLocks.get(batchId)
+    lock.lock()
+    try jpa.withTransaction(asJavaSupplier(() => block)) finally lock.unlock()
+  }
+
   /**
     * Joins a group but doesn't open the group channel. In case of an error/problem an PublixException is thrown.
-    * Synchronized to prevent race conditions with group members joining, leaving, reassigning.
+    * Serialized per batch to prevent race conditions with group members joining, leaving, reassigning. Runs in its
+    * own transaction.
     */
   @throws(classOf[PublixException])
-  def join(studyId: Long, studyResultId: Long): StudyResult = synchronized {
+  def join(studyId: Long, studyResultId: Long): StudyResult = {
     logger.info(s".join: studyId $studyId, studyResultId $studyResultId")
     val idCookie = idCookieService.getIdCookie(studyResultId)
-    val worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId)
-    val study = publixUtils.retrieveStudy(studyId)
-    val batch = publixUtils.retrieveBatch(idCookie.getBatchId)
-    studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch)
-    publixUtils.checkStudyIsGroupStudy(study)
-    val studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId)
-
-    if (studyResult.getHistoryGroupResult != null) {
-      logger.info(s".join: It's not allowed to join a group after it was explicitly left " +
-          s"(studyId $studyId, studyResultId $studyResultId)."
-      )
-      throw new ForbiddenPublixException("It's not allowed to join a group after it was explicitly left.")
-    }
-
-    if (studyResult.getActiveGroupResult != null)
-      logger.info(s".join: studyId $studyId, workerId ${idCookie.getWorkerId}" +
-          s" already member of group ${studyResult.getActiveGroupResult.getId}")
-    else {
-      val groupResult = groupAdministration.join(studyResult, batch)
-      sendJoinedMsg(studyResult)
-      logger.info(s".join: studyId $studyId, workerId ${idCookie.getWorkerId} joined group ${groupResult.getId}")
+    inBatchTransaction(idCookie.getBatchId) {
+      val run = publixUtils.retrieveRunContext(idCookie, studyId, null)
+      val worker = run.getWorker
+      val study = run.getStudy
+      val batch = run.getBatch
+      studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch)
+      publixUtils.checkStudyIsGroupStudy(study)
+      val studyResult = run.getStudyResult
+
+      if (studyResult.getHistoryGroupResult != null) {
+        logger.info(s".join: It's not allowed to join a group after it was explicitly left " +
+            s"(studyId $studyId, studyResultId $studyResultId)."
+        )
+        throw new ForbiddenPublixException("It's not allowed to join a group after it was explicitly left.")
+      }
+
+      if (studyResult.getActiveGroupResult != null)
+        logger.info(s".join: studyId $studyId, workerId ${idCookie.getWorkerId}" +
+            s" already member of group ${studyResult.getActiveGroupResult.getId}")
+      else {
+        val groupResult = groupAdministration.join(studyResult, batch)
+        sendJoinedMsg(studyResult)
+        logger.info(s".join: studyId $studyId, workerId ${idCookie.getWorkerId} joined group ${groupResult.getId}")
+      }
+
+      studyResult
     }
-
-    studyResult
   }
 
   /**
-    * Opens a group channel and returns a Akka stream Flow that will be turned into WebSocket. In
-    * case of an error/problem an PublixException is thrown.
+    * Opens a group channel and returns (in a Future) a Akka stream Flow that will be turned into
+    * WebSocket. The communication with the GroupDispatcher doesn't block. The messages to the
+    * client are sent with the given options (encoding and deflate).
     */
-  @throws(classOf[PublixException])
-  def open(studyResult: StudyResult): Flow[Any, Nothing, _] = {
+  def open(studyResult: StudyResult, options: ChannelOptions): Future[Flow[JsValue, Message, _]] = {
     logger.info(s".open: studyResultId ${studyResult.getId}")
-    val groupResult: GroupResult = studyResult.getActiveGroupResult
-    // Get the GroupDispatcher that will handle this GroupResult.
-    val groupDispatcher = getOrCreateDispatcher(groupResult.getId)
-    // If this GroupDispatcher already has a group channel for this
-    // StudyResult, close the old one before opening a new one.
-    closeGroupChannelBlocking(studyResult.getId, groupDispatcher)
-    ActorFlow.actorRef { out => GroupChannelActor.props(out, studyResult.getId, groupDispatcher) }
+    val groupResultId: Long = studyResult.getActiveGroupResult.getId
+    val studyResultId: Long = studyResult.getId
+    // Get the GroupDispatcher that will handle this GroupResult. If this GroupDispatcher already has
+    // a group channel for this StudyResult, close the old one before opening a new one.
+    for {
+      groupDispatcher <- getOrCreateDispatcher(groupResultId)
+      _ <- closeGroupChannel(studyResultId, groupDispatcher)
+    } yield ChannelOutQueue.flow[JsValue] { out =>
+      GroupChannelActor.props(out, studyResultId, groupDispatcher, options)
+    }
   }
 
   /**
     * Tries to reassign this study run (specified by study result ID) to a different group. If the
-    * reassignment was successful an Ok is returned. If it was unsuccessful a Forbidden is returned.
-    * In case of an error/problem an PublixException is thrown. Synchronized to prevent race conditions with group
-    * members joining, leaving, reassigning.
+    * reassignment was successful an Ok is returned (after the group channel was moved to the
+    * different GroupDispatcher). If it was unsuccessful a Forbidden is returned. In case of an
+    * error/problem an PublixException is thrown. Serialized per batch to prevent race conditions with
+    * group members joining, leaving, reassigning.
     */
   @throws(classOf[PublixException])
-  def reassign(studyId: Long, studyResultId: Long): Result = synchronized {
+  def reassign(studyId: Long, studyResultId: Long): Future[Result] = {
     logger.info(s".reassign: studyId $studyId, studyResultId $studyResultId")
     val idCookie = idCookieService.getIdCookie(studyResultId)
-    val worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId)
-    val study = publixUtils.retrieveStudy(studyId)
-    val batch = publixUtils.retrieveBatch(idCookie.getBatchId)
-    studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch)
-    publixUtils.checkStudyIsGroupStudy(study)
-    val studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId)
-
-    if (studyResult.getHistoryGroupResult != null) {
-      logger.info(s".reassign: It's not allowed to run a group study twice in the same study run " +
-          s"(studyId $studyId, studyResultId $studyResultId).")
-      return Forbidden
-    }
-
-    val currentGroupResult = studyResult.getActiveGroupResult
-    groupAdministration.reassign(studyResult, batch) match {
-      case Left(msg) =>
-        logger.info(s".reassign: $msg")
-        return Forbidden(msg)
-      case Right(differentGroupResult) =>
-        reassignGroupChannel(studyResult, currentGroupResult, differentGroupResult)
-        logger.info(s".reassign: studyId $studyId, workerId ${idCookie.getWorkerId} reassigned from group" +
-          s" ${currentGroupResult.getId} to group ${differentGroupResult.getId}")
+    inBatchTransaction(idCookie.getBatchId) {
+      val run = publixUtils.retrieveRunContext(idCookie, studyId, null)
+      val worker = run.getWorker
+      val study = run.getStudy
+      val batch = run.getBatch
+      studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch)
+      publixUtils.checkStudyIsGroupStudy(study)
+      val studyResult = run.getStudyResult
+
+      if (studyResult.getHistoryGroupResult != null) {
+        logger.info(s".reassign: It's not allowed to run a group study twice in the same study run " +
+            s"(studyId $studyId, studyResultId $studyResultId).")
+        Future.successful(Forbidden)
+      } else {
+        val currentGroupResult = studyResult.getActiveGroupResult
+        groupAdministration.reassign(studyResult, batch) match {
+          case Left(msg) =>
+            logger.info(s".reassign: $msg")
+            Future.successful(Forbidden(msg))
+          case Right(differentGroupResult) =>
+            logger.info(s".reassign: studyId $studyId, workerId ${idCookie.getWorkerId} reassigned from group" +
+              s" ${currentGroupResult.getId} to group ${differentGroupResult.getId}")
+            reassignGroupChannel(studyResult.getId, currentGroupResult.getId, differentGroupResult.getId)
+                .map(_ => Ok(" ")) // jQuery.ajax cannot handle empty responses
+        }
+      }
     }
-    Ok(" ") // jQuery.ajax cannot handle empty responses
   }
 
   /**
-    * Let this study run (specified by the study result ID) leave the group that it joined before. Synchronized to
-    * prevent race conditions with group members joining, leaving, reassigning.
+    * Let this study run (specified by the study result ID) leave the group that it joined before. Serialized per batch
+    * to prevent race conditions with group members joining, leaving, reassigning.
     */
   @throws(classOf[PublixException])
-  def leave(studyId: Long, studyResultId: Long): Result = synchronized {
+  def leave(studyId: Long, studyResultId: Long): Result = {
     logger.info(s".leave: studyId $studyId, studyResultId $studyResultId")
     val idCookie = idCookieService.getIdCookie(studyResultId)
-    val worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId)
-    val study = publixUtils.retrieveStudy(studyId)
-    val batch = publixUtils.retrieveBatch(idCookie.getBatchId)
-    studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch)
-    val studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId)
-    publixUtils.checkStudyIsGroupStudy(study)
-    val groupResult = studyResult.getActiveGroupResult
-    if (groupResult == null) {
-      logger.info(s".leave: studyId $studyId, workerId ${idCookie.getWorkerId} isn't member of a group - can't leave.")
-      return Ok(" ") // jQuery.ajax cannot handle empty responses
+    inBatchTransaction(idCookie.getBatchId) {
+      val run = publixUtils.retrieveRunContext(idCookie, studyId, null)
+      val worker = run.getWorker
+      val study = run.getStudy
+      val batch = run.getBatch
+      studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch)
+      val studyResult = run.getStudyResult
+      publixUtils.checkStudyIsGroupStudy(study)
+      val groupResult = studyResult.getActiveGroupResult
+      if (groupResult == null) {
+        logger.info(s".leave: studyId $studyId, workerId ${idCookie.getWorkerId} isn't member of a group - can't leave.")
+      } else {
+        closeGroupChannelAndLeaveGroup(studyResult)
+        logger.info(s".leave: studyId $studyId, workerId ${idCookie.getWorkerId} left group ${groupResult.getId}")
+      }
+      Ok(" ") // jQuery.ajax cannot handle empty responses
     }
-
-    closeGroupChannelAndLeaveGroup(studyResult)
-    logger.info(s".leave: studyId $studyId, workerId ${idCookie.getWorkerId} left group ${groupResult.getId}")
-    Ok(" ") // jQuery.ajax cannot handle empty responses
   }
 
   /**
@@ -185,87 +224,84 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
     * the process of leaving a GroupResult.
     */
   private def closeGroupChannel(studyResult: StudyResult, groupResult: GroupResult): Unit = {
-    val groupDispatcherOption = getDispatcher(groupResult.getId)
-    if (groupDispatcherOption.isDefined) {
-      groupDispatcherOption.get ! PoisonChannel(studyResult.getId)
-      sendLeftMsg(studyResult, groupResult)
-    }
+    val studyResultId = studyResult.getId
+    getDispatcher(groupResult.getId).foreach(_.foreach(groupDispatcher => {
+      groupDispatcher ! PoisonChannel(studyResultId)
+      groupDispatcher ! LeftGroup(studyResultId)
+    }))
   }
 
   /**
     * Closes the group channel that belongs to the given StudyResult and is managed by the given
-    * GroupDispatcher. Waits (and blocks) until it receives a result from the GroupDispatcher actor.
-    * It returns true if the GroupChannelActor was managed by the GroupDispatcher and was
-    * successfully removed from the GroupDispatcher - false otherwise (it was probably never managed
-    * by the dispatcher).
+    * GroupDispatcher. The answer from the GroupDispatcher actor is true if the GroupChannelActor was
+    * managed by the GroupDispatcher and was successfully removed from the GroupDispatcher - false
+    * otherwise (it was probably never managed by the dispatcher).
     */
-  private def closeGroupChannelBlocking(studyResultId: Long, groupDispatcher: ActorRef): Boolean = {
-    val future = groupDispatcher ? PoisonChannel(studyResultId)
-    Await.result(future, timeout.duration).asInstanceOf[Boolean]
+  private def closeGroupChannel(studyResultId: Long, groupDispatcher: ActorRef): Future[Boolean] = {
+    (groupDispatcher ? PoisonChannel(studyResultId)).mapTo[Boolean]
   }
 
   /**
     * Sends a message to each member of the group (the GroupResult this studyResult is in). This
-    * message tells that this member has joined the GroupResult.
+    * message tells that this member has joined the GroupResult. Doesn't wait for the
+    * GroupDispatcher.
     */
   private def sendJoinedMsg(studyResult: StudyResult): Unit = {
     val groupResult = studyResult.getActiveGroupResult
     if (groupResult != null) {
-      val groupDispatcherOption = getDispatcher(groupResult.getId)
-      if (groupDispatcherOption.isDefined)
-        groupDispatcherOption.get ! JoinedGroup(studyResult.getId)
+      val studyResultId = studyResult.getId
+      getDispatcher(groupResult.getId).foreach(_.foreach(_ ! JoinedGroup(studyResultId)))
     }
   }
 
   /**
-    * Sends a message to each member of the GroupResult that this member (specified by StudyResult)
-    * has left the GroupResult.
+    * Get the GroupDispatcher to this GroupResult. The answer is an ActorRef (to a GroupDispatcher)
+    * or None if there is currently no GroupDispatcher for this GroupResult.
     */
-  private def sendLeftMsg(studyResult: StudyResult, groupResult: GroupResult): Unit = {
-    if (groupResult != null) {
-      val groupDispatcherOption = getDispatcher(groupResult.getId)
-      if (groupDispatcherOption.isDefined)
-        groupDispatcherOption.get ! LeftGroup(studyResult.getId)
-    }
+  private def getDispatcher(groupResultId: Long): Future[Option[ActorRef]] = {
+    (groupDispatcherRegistry ? Get(groupResultId)).mapTo[ItsThisOne].map(_.groupDispatcherOption)
   }
 
   /**
-    * Get the GroupDispatcher to this GroupResult. The answer is an ActorRef (to a GroupDispatcher).
+    * Asks the GroupDispatcherRegistry to get or create a group dispatcher for the given ID. The
+    * answer is an ActorRef (to a GroupDispatcher).
     */
-  private def getDispatcher(groupResultId: Long): Option[ActorRef] = {
-    val future = groupDispatcherRegistry ? Get(groupResultId)
-    Await.result(future, timeout.duration).asInstanceOf[ItsThisOne]
-        .groupDispatcherOption
+  private def getOrCreateDispatcher(groupResultId: Long): Future[ActorRef] = {
+    (groupDispatcherRegistry ? GetOrCreate(groupResultId)).mapTo[ItsThisOne]
+        .map(_.groupDispatcherOption.get)
   }
 
   /**
-    * Asks the GroupDispatcherRegistry to get or create a group dispatcher for the given ID. It
-    * waits until it receives an answer. The answer is an ActorRef (to a GroupDispatcher).
+    * Reassigns the given group channel that is associated with the given StudyResult. It moves the group channel from
+    * the current GroupDispatcher to a different one that is associated with the given GroupResult. The returned
+    * Future completes after the messages are sent.
     */
-  private def getOrCreateDispatcher(groupResultId: Long): ActorRef = {
-    val future = groupDispatcherRegistry ? GetOrCreate(groupResultId)
-    Await.result(future, timeout.duration).asInstanceOf[ItsThisOne]
-        .groupDispatcherOption.get
+  def reassignGroupChannel(studyResultId: Long,
+                           currentGroupResultId: Long,
+                           differentGroupResultId: Long): Future[Unit] = {
+    for {
+      currentDispatcher <- getDispatcher(currentGroupResultId).map(_.get)
+      // Get or create, because if the dispatcher was empty it was shutdown and has to be recreated
+      differentDispatcher <- getOrCreateDispatcher(differentGroupResultId)
+    } yield {
+      currentDispatcher ! ReassignChannel(studyResultId, differentDispatcher)
+      currentDispatcher ! GroupDispatcher.LeftGroup(studyResultId)
+      differentDispatcher ! JoinedGroup(studyResultId)
+    }
   }
 
+}
+
+object GroupChannel {
+
   /**
-    * Reassigns the given group channel that is associated with the given StudyResult. It moves the group channel from
-    * the current GroupDispatcher to a different one that is associated with the given GroupResult.
+    * Striped locks keyed by the batch ID. Shared by all worker types' GroupChannels since study runs
+    * of different worker types can be in the same batch.
     */
-  def reassignGroupChannel(studyResult: StudyResult,
-                           currentGroupResult: GroupResult,
-                           differentGroupResult: GroupResult): Unit = {
-    val currentDispatcher = getDispatcher(currentGroupResult.getId).get
-    // Get or create, because if the dispatcher was empty it was shutdown and has to be recreated
-    val differentDispatcher = getOrCreateDispatcher(differentGroupResult.getId)
-    currentDispatcher ! ReassignChannel(studyResult.getId, differentDispatcher)
-    currentDispatcher ! GroupDispatcher.LeftGroup(studyResult.getId())
-    differentDispatcher ! JoinedGroup(studyResult.getId)
-  }
+  private val batchLocks: Striped[Lock] = Striped.lazyWeakLock(1024)
 
 }
 
-
 @Singleton
 class JatosGroupChannel @Inject()(components: ControllerComponents,
                                   publixUtils: JatosPublixUtils,
@@ -55,7 +55,8 @@ public interface IPublix {
      * HTTP type: Ajax POST request
      * <p>
      * Heartbeat of a study result: when was the study run last seen. jatos.js periodically sends an Ajax request to
-     * this endpoint. The time when this request arrives is stored in StudyResult's lastSeenDate field.
+     * this endpoint. The time when this request arrives is stored in StudyResult's lastSeenDate field. To spare the
+     * database a write per heartbeat they are collected in the HeartbeatRegistry and written in batches.
      */
     Result heartbeat(Long studyId, Long studyResultId) throws PublixException;
 
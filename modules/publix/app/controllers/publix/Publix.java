@@ -1,11 +1,14 @@
 package controllers.publix;
 
+import controllers.publix.ResultFileBodyParser.HashedFile;
 import daos.common.ComponentResultDao;
 import daos.common.StudyResultDao;
 import exceptions.publix.ForbiddenNonLinearFlowException;
 import exceptions.publix.ForbiddenReloadException;
 import exceptions.publix.PublixException;
 import general.common.Common;
+import general.common.EntityVersions;
+import general.common.HeartbeatRegistry;
 import general.common.StudyLogger;
 import models.common.*;
 import models.common.ComponentResult.ComponentState;
@@ -15,12 +18,14 @@ import play.Logger;
 import play.Logger.ALogger;
 import play.db.jpa.JPAApi;
 import play.mvc.Controller;
+import play.mvc.Http;
 import play.mvc.Http.MultipartFormData;
 import play.mvc.Result;
 import scala.Option;
 import services.publix.PublixErrorMessages;
 import services.publix.PublixHelpers;
 import services.publix.PublixUtils;
+import services.publix.RunContext;
 import services.publix.StudyAuthorisation;
 import services.publix.idcookie.IdCookieModel;
 import services.publix.idcookie.IdCookieService;
@@ -31,9 +36,8 @@ import utils.common.JsonUtils;
 import javax.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.sql.Timestamp;
-import java.util.Date;
 import java.util.Optional;
 
 import static play.libs.Files.TemporaryFile;
@@ -62,12 +66,14 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
     protected final StudyResultDao studyResultDao;
     protected final StudyLogger studyLogger;
     protected final IOUtils ioUtils;
+    protected final HeartbeatRegistry heartbeatRegistry;
 
     public Publix(JPAApi jpa, PublixUtils<T> publixUtils,
             StudyAuthorisation<T> studyAuthorisation, GroupChannel<T> groupChannel,
             IdCookieService idCookieService, PublixErrorMessages errorMessages,
             StudyAssets studyAssets, JsonUtils jsonUtils, ComponentResultDao componentResultDao,
-            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils) {
+            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils,
+            HeartbeatRegistry heartbeatRegistry) {
         this.jpa = jpa;
         this.publixUtils = publixUtils;
         this.studyAuthorisation = studyAuthorisation;
@@ -80,6 +86,7 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
         this.studyResultDao = studyResultDao;
         this.studyLogger = studyLogger;
         this.ioUtils = ioUtils;
+        this.heartbeatRegistry = heartbeatRegistry;
     }
 
     @Override
@@ -88,11 +95,12 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
         LOGGER.info(".startComponent: studyId " + studyId + ", " + "componentId " + componentId + ", "
                 + "studyResultId " + studyResultId + ", " + "message '" + message + "'");
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        T worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
+        RunContext<T> run = publixUtils.retrieveRunContext(idCookie, studyId, componentId);
+        T worker = run.getWorker();
+        Study study = run.getStudy();
+        Batch batch = run.getBatch();
+        StudyResult studyResult = run.getStudyResult();
         Component component = publixUtils.retrieveComponent(study, componentId);
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
         publixUtils.setPreStudyStateByComponentId(studyResult, study, componentId);
 
         ComponentResult componentResult;
@@ -113,14 +121,17 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
             throws PublixException, IOException {
         LOGGER.info(".getInitData: studyId " + studyId + ", " + "componentId "
                 + componentId + ", " + "studyResultId " + studyResultId);
+        // Has to be read before the entities are loaded (see EntityVersions)
+        long versionsSeen = EntityVersions.current();
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        T worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
+        RunContext<T> run = publixUtils.retrieveRunContext(idCookie, studyId, componentId);
+        T worker = run.getWorker();
+        Study study = run.getStudy();
+        Batch batch = run.getBatch();
+        StudyResult studyResult = run.getStudyResult();
         Component component = publixUtils.retrieveComponent(study, componentId);
         studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch);
         publixUtils.checkComponentBelongsToStudy(study, component);
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
         ComponentResult componentResult;
         try {
             componentResult = publixUtils.retrieveStartedComponentResult(component, studyResult);
@@ -135,7 +146,8 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
         componentResult.setComponentState(ComponentState.DATA_RETRIEVED);
         componentResultDao.update(componentResult);
 
-        return ok(jsonUtils.initData(batch, studyResult, study, component));
+        byte[] initData = jsonUtils.initData(batch, studyResult, study, component, versionsSeen);
+        return ok(initData).as(Http.MimeTypes.JSON);
     }
 
     @Override
@@ -143,11 +155,9 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
         LOGGER.info(".setStudySessionData: studyId " + studyId + ", "
                 + "studyResultId " + studyResultId);
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        T worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
-        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch);
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
+        RunContext<T> run = publixUtils.retrieveRunContext(idCookie, studyId, null);
+        studyAuthorisation.checkWorkerAllowedToDoStudy(run.getWorker(), run.getStudy(), run.getBatch());
+        StudyResult studyResult = run.getStudyResult();
         String studySessionData = request().body().asText();
         studyResult.setStudySessionData(studySessionData);
         studyResultDao.update(studyResult);
@@ -157,11 +167,9 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
     @Override
     public Result heartbeat(Long studyId, Long studyResultId) throws PublixException {
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        Study study = publixUtils.retrieveStudy(studyId);
-        T worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
-        studyResult.setLastSeenDate(new Timestamp(new Date().getTime()));
-        studyResultDao.update(studyResult);
+        RunContext<T> run = publixUtils.retrieveRunContext(idCookie, studyId, null);
+        // Heartbeats are collected in memory and written into the DB in batches
+        heartbeatRegistry.beat(run.getStudyResult().getId());
         return ok(" "); // jQuery.ajax cannot handle empty responses
     }
 
@@ -186,32 +194,43 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
     private Result submitOrAppendResultData(Long studyId, Long componentId,
             Long studyResultId, boolean append) throws PublixException {
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
-        T worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
+        RunContext<T> run = publixUtils.retrieveRunContext(idCookie, studyId, componentId);
+        Study study = run.getStudy();
         Component component = publixUtils.retrieveComponent(study, componentId);
-        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch);
+        studyAuthorisation.checkWorkerAllowedToDoStudy(run.getWorker(), study, run.getBatch());
         publixUtils.checkComponentBelongsToStudy(study, component);
 
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
+        StudyResult studyResult = run.getStudyResult();
         Optional<ComponentResult> componentResult = publixUtils.retrieveCurrentComponentResult(studyResult);
         if (!componentResult.isPresent()) {
             String error = PublixErrorMessages.componentNeverStarted(studyId, componentId, "submitOrAppendResultData");
             return redirect(routes.PublixInterceptor.finishStudy(studyId, studyResult.getId(), false, error));
         }
 
-        String postedResultData = request().body().asText();
-        String resultData;
-        if (append) {
-            String currentResultData = componentResult.get().getData();
-            resultData = currentResultData != null ? currentResultData + postedResultData : postedResultData;
-        } else {
-            resultData = postedResultData;
+        // The ResultDataBodyParser already streamed the posted result data into a temporary file
+        TemporaryFile resultDataFile = request().body().as(TemporaryFile.class);
+        if (resultDataFile == null) return badRequest("Missing result data");
+        try {
+            long existingSize = append ? componentResultDao.sizeOfData(componentResult.get()) : 0;
+            if (existingSize + Files.size(resultDataFile.path()) > Common.getResultDataMaxSize()) {
+                return ResultDataBodyParser.resultDataTooLarge();
+            }
+            String resultDataHash = publixUtils.storeResultData(componentResult.get(), resultDataFile.path(),
+                    HttpUtils.getCharset(), append);
+            componentResult.get().setComponentState(ComponentState.RESULTDATA_POSTED);
+            componentResultDao.update(componentResult.get());
+            if (append) {
+                studyLogger.logResultDataAppending(componentResult.get(), resultDataHash);
+            } else {
+                studyLogger.logResultDataStoring(componentResult.get(), resultDataHash);
+            }
+        } catch (IOException e) {
+            LOGGER.error(".submitOrAppendResultData: couldn't store result data of study result "
+                    + studyResultId, e);
+            return internalServerError("Storing result data failed");
+        } finally {
+            resultDataFile.path().toFile().delete();
         }
-        componentResult.get().setData(resultData);
-        componentResult.get().setComponentState(ComponentState.RESULTDATA_POSTED);
-        componentResultDao.update(componentResult.get());
-        studyLogger.logResultDataStoring(componentResult.get());
         return ok(" "); // jQuery.ajax cannot handle empty responses
     }
 
@@ -221,39 +240,44 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
         if (!Common.isResultUploadsEnabled()) return forbidden("File upload not allowed. Contact your admin.");
 
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
-        T worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
+        RunContext<T> run = publixUtils.retrieveRunContext(idCookie, studyId, componentId);
+        Study study = run.getStudy();
         Component component = publixUtils.retrieveComponent(study, componentId);
-        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch);
+        studyAuthorisation.checkWorkerAllowedToDoStudy(run.getWorker(), study, run.getBatch());
         publixUtils.checkComponentBelongsToStudy(study, component);
 
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
+        StudyResult studyResult = run.getStudyResult();
         Optional<ComponentResult> componentResult = publixUtils.retrieveCurrentComponentResult(studyResult);
         if (!componentResult.isPresent()) {
             String error = PublixErrorMessages.componentNeverStarted(studyId, componentId, "uploadResultFile");
             return redirect(routes.PublixInterceptor.finishStudy(studyId, studyResult.getId(), false, error));
         }
 
-        MultipartFormData<TemporaryFile> body = request.body().asMultipartFormData();
-        MultipartFormData.FilePart<TemporaryFile> filePart = body.getFile("file");
+        // The ResultFileBodyParser already streamed the file into a temporary file and hashed it on the way
+        MultipartFormData<HashedFile> body = request.body().asMultipartFormData();
+        MultipartFormData.FilePart<HashedFile> filePart = body.getFile("file");
         if (filePart == null) return badRequest("Missing file");
-        TemporaryFile tmpFile = filePart.getRef();
+        TemporaryFile tmpFile = filePart.getRef().getTemporaryFile();
         try {
             if (filePart.getFileSize() > Common.getResultUploadsMaxFileSize()) {
                 return badRequest("File size too large");
             }
-            if (ioUtils.getResultUploadDirSize(studyResultId) > Common.getResultUploadsLimitPerStudyRun()) {
-                return badRequest("Reached max file size limit per study run");
-            }
             if (!IOUtils.checkFilename(filename)) {
                 return badRequest("Bad filename");
             }
 
             Path destFile = ioUtils.getResultUploadFileSecurely(
                     studyResultId, componentResult.get().getId(), filename).toPath();
+            // An already existing file with the same name gets overwritten and doesn't count anymore
+            long replacedFileSize = Files.exists(destFile) ? Files.size(destFile) : 0;
+            long uploadsSize = publixUtils.retrieveResultUploadsSize(studyResultId);
+            if (uploadsSize - replacedFileSize + filePart.getFileSize() > Common.getResultUploadsLimitPerStudyRun()) {
+                return badRequest("Reached max file size limit per study run");
+            }
             tmpFile.moveFileTo(destFile, true);
-            studyLogger.logResultUploading(destFile, componentResult.get());
+            studyResultDao.addToUploadsSize(studyResultId, filePart.getFileSize() - replacedFileSize);
+            componentResultDao.putResultFile(componentResult.get(), filename, filePart.getFileSize());
+            studyLogger.logResultUploading(destFile, componentResult.get(), filePart.getRef().getHash());
         } catch (IOException e) {
             return badRequest("File upload failed");
         }
@@ -264,17 +288,15 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
     public Result downloadResultFile(Long studyId, Long studyResultId, String filename, Optional<Long> componentId)
             throws PublixException {
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
-        T worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
-        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch);
+        RunContext<T> run = publixUtils.retrieveRunContext(idCookie, studyId, componentId.orElse(null));
+        Study study = run.getStudy();
+        studyAuthorisation.checkWorkerAllowedToDoStudy(run.getWorker(), study, run.getBatch());
         Component component = null;
         if (componentId.isPresent()) {
             component = publixUtils.retrieveComponent(study, componentId.get());
             publixUtils.checkComponentBelongsToStudy(study, component);
         }
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
-        Optional<File> file = publixUtils.retrieveLastUploadedResultFile(studyResult, component, filename);
+        Optional<File> file = publixUtils.retrieveLastUploadedResultFile(run.getStudyResult(), component, filename);
         return file.isPresent() ? ok(file.get(), false) : notFound("Result file not found: " + filename);
     }
 
@@ -285,12 +307,12 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
                 + "studyResultId " + studyResultId + ", " + "message '"
                 + message + "'");
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
-        T worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
-        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch);
+        RunContext<T> run = publixUtils.retrieveRunContext(idCookie, studyId, null);
+        T worker = run.getWorker();
+        Study study = run.getStudy();
+        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, run.getBatch());
 
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
+        StudyResult studyResult = run.getStudyResult();
         if (!PublixHelpers.studyDone(studyResult)) {
             publixUtils.abortStudy(message, studyResult);
             groupChannel.closeGroupChannelAndLeaveGroup(studyResult);
@@ -312,12 +334,12 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
                 + studyResultId + ", " + "successful " + successful + ", "
                 + "message '" + message + "'");
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
-        T worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
-        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch);
+        RunContext<T> run = publixUtils.retrieveRunContext(idCookie, studyId, null);
+        T worker = run.getWorker();
+        Study study = run.getStudy();
+        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, run.getBatch());
 
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
+        StudyResult studyResult = run.getStudyResult();
         if (!PublixHelpers.studyDone(studyResult)) {
             publixUtils.finishStudyResult(successful, message, studyResult);
             groupChannel.closeGroupChannelAndLeaveGroup(studyResult);
@@ -4,9 +4,10 @@ import controllers.publix.actionannotation.PublixAccessLoggingAction.PublixAcces
 import controllers.publix.workers.*;
 import exceptions.publix.BadRequestPublixException;
 import exceptions.publix.PublixException;
+import general.common.DatabaseExecutionContext;
 import models.common.workers.*;
 import play.Application;
-import play.db.jpa.Transactional;
+import play.mvc.BodyParser;
 import play.mvc.Controller;
 import play.mvc.Http;
 import play.mvc.Result;
@@ -19,6 +20,8 @@ import javax.inject.Provider;
 import javax.inject.Singleton;
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Interceptor for Publix: it intercepts requests for JATOS' public API (Publix)
@@ -42,461 +45,485 @@ import java.util.Optional;
  * GeneralMultiplePublix. They use the GeneralMultipleWorker.<br>
  * 6. Requests coming from MechTurk or MechTurk Sandbox will be forwarded to
  * MTPublix. They use MTWorker and MTSandboxWorker.<br>
+ * <p>
+ * All actions return a CompletionStage: the forwarded call runs within a JPA transaction on the
+ * DatabaseExecutionContext and not on Play's default dispatcher (if 'jatos.publix.async' is true).
  *
  * @author Kristian Lange
  */
 @Singleton
 @PublixAccessLogging
-public class PublixInterceptor extends Controller implements IPublix {
+public class PublixInterceptor extends Controller {
 
     private final IdCookieService idCookieService;
     private final Provider<Application> application;
+    private final DatabaseExecutionContext dbExecutionContext;
 
     @Inject
-    public PublixInterceptor(IdCookieService idCookieService, Provider<Application> application) {
+    public PublixInterceptor(IdCookieService idCookieService, Provider<Application> application,
+            DatabaseExecutionContext dbExecutionContext) {
         this.idCookieService = idCookieService;
         this.application = application;
+        this.dbExecutionContext = dbExecutionContext;
     }
 
-    @Override
-    @Transactional
-    public Result startStudy(Long studyId, Long batchId) throws PublixException {
-        Result result;
-        String workerType = getWorkerTypeFromQuery();
-        switch (workerType) {
-            case JatosWorker.WORKER_TYPE:
-                result = instanceOfPublix(JatosPublix.class).startStudy(studyId, batchId);
-                break;
-            case PersonalSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalSinglePublix.class).startStudy(studyId, batchId);
-                break;
-            case PersonalMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalMultiplePublix.class)
-                        .startStudy(studyId, batchId);
-                break;
-            case GeneralSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralSinglePublix.class).startStudy(studyId, batchId);
-                break;
-            case GeneralMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralMultiplePublix.class).startStudy(studyId, batchId);
-                break;
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                result = instanceOfPublix(MTPublix.class).startStudy(studyId, batchId);
-                break;
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
-        return result;
+    public CompletionStage<Result> startStudy(Long studyId, Long batchId) {
+        return transactional(() -> {
+            Result result;
+            String workerType = getWorkerTypeFromQuery();
+            switch (workerType) {
+                case JatosWorker.WORKER_TYPE:
+                    result = instanceOfPublix(JatosPublix.class).startStudy(studyId, batchId);
+                    break;
+                case PersonalSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalSinglePublix.class).startStudy(studyId, batchId);
+                    break;
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalMultiplePublix.class)
+                            .startStudy(studyId, batchId);
+                    break;
+                case GeneralSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralSinglePublix.class).startStudy(studyId, batchId);
+                    break;
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralMultiplePublix.class).startStudy(studyId, batchId);
+                    break;
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    result = instanceOfPublix(MTPublix.class).startStudy(studyId, batchId);
+                    break;
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+            return result;
+        });
     }
 
-    @Override
-    @Transactional
-    public Result startComponent(Long studyId, Long componentId, Long studyResultId, String message)
-            throws PublixException {
-        Result result;
-        switch (getWorkerTypeFromIdCookie(studyResultId)) {
-            case JatosWorker.WORKER_TYPE:
-                result = instanceOfPublix(JatosPublix.class)
-                        .startComponent(studyId, componentId, studyResultId, message);
-                break;
-            case PersonalSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalSinglePublix.class)
-                        .startComponent(studyId, componentId, studyResultId, message);
-                break;
-            case PersonalMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalMultiplePublix.class)
-                        .startComponent(studyId, componentId, studyResultId, message);
-                break;
-            case GeneralSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralSinglePublix.class)
-                        .startComponent(studyId, componentId, studyResultId, message);
-                break;
-            case GeneralMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralMultiplePublix.class)
-                        .startComponent(studyId, componentId, studyResultId, message);
-                break;
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                result = instanceOfPublix(MTPublix.class).startComponent(studyId,
-                        componentId, studyResultId, message);
-                break;
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
-        return result;
+    public CompletionStage<Result> startComponent(Long studyId, Long componentId, Long studyResultId, String message) {
+        return transactional(() -> {
+            Result result;
+            switch (getWorkerTypeFromIdCookie(studyResultId)) {
+                case JatosWorker.WORKER_TYPE:
+                    result = instanceOfPublix(JatosPublix.class)
+                            .startComponent(studyId, componentId, studyResultId, message);
+                    break;
+                case PersonalSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalSinglePublix.class)
+                            .startComponent(studyId, componentId, studyResultId, message);
+                    break;
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalMultiplePublix.class)
+                            .startComponent(studyId, componentId, studyResultId, message);
+                    break;
+                case GeneralSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralSinglePublix.class)
+                            .startComponent(studyId, componentId, studyResultId, message);
+                    break;
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralMultiplePublix.class)
+                            .startComponent(studyId, componentId, studyResultId, message);
+                    break;
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    result = instanceOfPublix(MTPublix.class).startComponent(studyId,
+                            componentId, studyResultId, message);
+                    break;
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+            return result;
+        });
     }
 
-    @Override
-    @Transactional
-    public Result getInitData(Long studyId, Long componentId, Long studyResultId)
-            throws PublixException, IOException {
-        Result result;
-        switch (getWorkerTypeFromIdCookie(studyResultId)) {
-            case JatosWorker.WORKER_TYPE:
-                result = instanceOfPublix(JatosPublix.class)
-                        .getInitData(studyId, componentId, studyResultId);
-                break;
-            case PersonalSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalSinglePublix.class)
-                        .getInitData(studyId, componentId, studyResultId);
-                break;
-            case PersonalMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalMultiplePublix.class)
-                        .getInitData(studyId, componentId, studyResultId);
-                break;
-            case GeneralSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralSinglePublix.class)
-                        .getInitData(studyId, componentId, studyResultId);
-                break;
-            case GeneralMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralMultiplePublix.class)
-                        .getInitData(studyId, componentId, studyResultId);
-                break;
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                result = instanceOfPublix(MTPublix.class)
-                        .getInitData(studyId, componentId, studyResultId);
-                break;
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
-        return result;
+    public CompletionStage<Result> getInitData(Long studyId, Long componentId, Long studyResultId) {
+        return transactional(() -> {
+            Result result;
+            switch (getWorkerTypeFromIdCookie(studyResultId)) {
+                case JatosWorker.WORKER_TYPE:
+                    result = instanceOfPublix(JatosPublix.class)
+                            .getInitData(studyId, componentId, studyResultId);
+                    break;
+                case PersonalSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalSinglePublix.class)
+                            .getInitData(studyId, componentId, studyResultId);
+                    break;
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalMultiplePublix.class)
+                            .getInitData(studyId, componentId, studyResultId);
+                    break;
+                case GeneralSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralSinglePublix.class)
+                            .getInitData(studyId, componentId, studyResultId);
+                    break;
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralMultiplePublix.class)
+                            .getInitData(studyId, componentId, studyResultId);
+                    break;
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    result = instanceOfPublix(MTPublix.class)
+                            .getInitData(studyId, componentId, studyResultId);
+                    break;
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+            return result;
+        });
     }
 
-    @Override
-    @Transactional
-    public Result setStudySessionData(Long studyId, Long studyResultId) throws PublixException {
-        Result result;
-        switch (getWorkerTypeFromIdCookie(studyResultId)) {
-            case JatosWorker.WORKER_TYPE:
-                result = instanceOfPublix(JatosPublix.class)
-                        .setStudySessionData(studyId, studyResultId);
-                break;
-            case PersonalSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalSinglePublix.class)
-                        .setStudySessionData(studyId, studyResultId);
-                break;
-            case PersonalMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalMultiplePublix.class)
-                        .setStudySessionData(studyId, studyResultId);
-                break;
-            case GeneralSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralSinglePublix.class)
-                        .setStudySessionData(studyId, studyResultId);
-                break;
-            case GeneralMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralMultiplePublix.class)
-                        .setStudySessionData(studyId, studyResultId);
-                break;
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                result = instanceOfPublix(MTPublix.class)
-                        .setStudySessionData(studyId, studyResultId);
-                break;
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
-        return result;
+    public CompletionStage<Result> setStudySessionData(Long studyId, Long studyResultId) {
+        return transactional(() -> {
+            Result result;
+            switch (getWorkerTypeFromIdCookie(studyResultId)) {
+                case JatosWorker.WORKER_TYPE:
+                    result = instanceOfPublix(JatosPublix.class)
+                            .setStudySessionData(studyId, studyResultId);
+                    break;
+                case PersonalSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalSinglePublix.class)
+                            .setStudySessionData(studyId, studyResultId);
+                    break;
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalMultiplePublix.class)
+                            .setStudySessionData(studyId, studyResultId);
+                    break;
+                case GeneralSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralSinglePublix.class)
+                            .setStudySessionData(studyId, studyResultId);
+                    break;
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralMultiplePublix.class)
+                            .setStudySessionData(studyId, studyResultId);
+                    break;
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    result = instanceOfPublix(MTPublix.class)
+                            .setStudySessionData(studyId, studyResultId);
+                    break;
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+            return result;
+        });
     }
 
-    @Override
-    @Transactional
-    public Result heartbeat(Long studyId, Long studyResultId) throws PublixException {
-        Result result;
-        switch (getWorkerTypeFromIdCookie(studyResultId)) {
-            case JatosWorker.WORKER_TYPE:
-                result = instanceOfPublix(JatosPublix.class).heartbeat(studyId,
-                        studyResultId);
-                break;
-            case PersonalSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalSinglePublix.class)
-                        .heartbeat(studyId, studyResultId);
-                break;
-            case PersonalMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalMultiplePublix.class)
-                        .heartbeat(studyId, studyResultId);
-                break;
-            case GeneralSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralSinglePublix.class)
-                        .heartbeat(studyId, studyResultId);
-                break;
-            case GeneralMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralMultiplePublix.class)
-                        .heartbeat(studyId, studyResultId);
-                break;
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                result = instanceOfPublix(MTPublix.class).heartbeat(studyId,
-                        studyResultId);
-                break;
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
-        return result;
+    public CompletionStage<Result> heartbeat(Long studyId, Long studyResultId) {
+        return transactional(() -> {
+            Result result;
+            switch (getWorkerTypeFromIdCookie(studyResultId)) {
+                case JatosWorker.WORKER_TYPE:
+                    result = instanceOfPublix(JatosPublix.class).heartbeat(studyId,
+                            studyResultId);
+                    break;
+                case PersonalSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalSinglePublix.class)
+                            .heartbeat(studyId, studyResultId);
+                    break;
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalMultiplePublix.class)
+                            .heartbeat(studyId, studyResultId);
+                    break;
+                case GeneralSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralSinglePublix.class)
+                            .heartbeat(studyId, studyResultId);
+                    break;
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralMultiplePublix.class)
+                            .heartbeat(studyId, studyResultId);
+                    break;
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    result = instanceOfPublix(MTPublix.class).heartbeat(studyId,
+                            studyResultId);
+                    break;
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+            return result;
+        });
     }
 
-    @Override
-    @Transactional
-    public Result submitResultData(Long studyId, Long componentId, Long studyResultId)
-            throws PublixException {
-        Result result;
-        switch (getWorkerTypeFromIdCookie(studyResultId)) {
-            case JatosWorker.WORKER_TYPE:
-                result = instanceOfPublix(JatosPublix.class)
-                        .submitResultData(studyId, componentId, studyResultId);
-                break;
-            case PersonalSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalSinglePublix.class)
-                        .submitResultData(studyId, componentId, studyResultId);
-                break;
-            case PersonalMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalMultiplePublix.class)
-                        .submitResultData(studyId, componentId, studyResultId);
-                break;
-            case GeneralSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralSinglePublix.class)
-                        .submitResultData(studyId, componentId, studyResultId);
-                break;
-            case GeneralMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralMultiplePublix.class)
-                        .submitResultData(studyId, componentId, studyResultId);
-                break;
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                result = instanceOfPublix(MTPublix.class)
-                        .submitResultData(studyId, componentId, studyResultId);
-                break;
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
-        return result;
+    @BodyParser.Of(ResultDataBodyParser.class)
+    public CompletionStage<Result> submitResultData(Long studyId, Long componentId, Long studyResultId) {
+        return transactional(() -> {
+            Result result;
+            switch (getWorkerTypeFromIdCookie(studyResultId)) {
+                case JatosWorker.WORKER_TYPE:
+                    result = instanceOfPublix(JatosPublix.class)
+                            .submitResultData(studyId, componentId, studyResultId);
+                    break;
+                case PersonalSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalSinglePublix.class)
+                            .submitResultData(studyId, componentId, studyResultId);
+                    break;
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalMultiplePublix.class)
+                            .submitResultData(studyId, componentId, studyResultId);
+                    break;
+                case GeneralSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralSinglePublix.class)
+                            .submitResultData(studyId, componentId, studyResultId);
+                    break;
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralMultiplePublix.class)
+                            .submitResultData(studyId, componentId, studyResultId);
+                    break;
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    result = instanceOfPublix(MTPublix.class)
+                            .submitResultData(studyId, componentId, studyResultId);
+                    break;
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+            return result;
+        });
     }
 
-    @Override
-    @Transactional
-    public Result appendResultData(Long studyId, Long componentId, Long studyResultId)
-            throws PublixException {
-        Result result;
-        switch (getWorkerTypeFromIdCookie(studyResultId)) {
-            case JatosWorker.WORKER_TYPE:
-                result = instanceOfPublix(JatosPublix.class)
-                        .appendResultData(studyId, componentId, studyResultId);
-                break;
-            case PersonalSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalSinglePublix.class)
-                        .appendResultData(studyId, componentId, studyResultId);
-                break;
-            case PersonalMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalMultiplePublix.class)
-                        .appendResultData(studyId, componentId, studyResultId);
-                break;
-            case GeneralSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralSinglePublix.class)
-                        .appendResultData(studyId, componentId, studyResultId);
-                break;
-            case GeneralMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralMultiplePublix.class)
-                        .appendResultData(studyId, componentId, studyResultId);
-                break;
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                result = instanceOfPublix(MTPublix.class)
-                        .appendResultData(studyId, componentId, studyResultId);
-                break;
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
-        return result;
+    @BodyParser.Of(ResultDataBodyParser.class)
+    public CompletionStage<Result> appendResultData(Long studyId, Long componentId, Long studyResultId) {
+        return transactional(() -> {
+            Result result;
+            switch (getWorkerTypeFromIdCookie(studyResultId)) {
+                case JatosWorker.WORKER_TYPE:
+                    result = instanceOfPublix(JatosPublix.class)
+                            .appendResultData(studyId, componentId, studyResultId);
+                    break;
+                case PersonalSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalSinglePublix.class)
+                            .appendResultData(studyId, componentId, studyResultId);
+                    break;
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalMultiplePublix.class)
+                            .appendResultData(studyId, componentId, studyResultId);
+                    break;
+                case GeneralSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralSinglePublix.class)
+                            .appendResultData(studyId, componentId, studyResultId);
+                    break;
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralMultiplePublix.class)
+                            .appendResultData(studyId, componentId, studyResultId);
+                    break;
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    result = instanceOfPublix(MTPublix.class)
+                            .appendResultData(studyId, componentId, studyResultId);
+                    break;
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+            return result;
+        });
     }
 
-    @Override
-    @Transactional
-    public Result uploadResultFile(Http.Request request, Long studyId, Long componentId, Long studyResultId, String filename)
-            throws PublixException {
-        Result result;
-        switch (getWorkerTypeFromIdCookie(studyResultId)) {
-            case JatosWorker.WORKER_TYPE:
-                result = instanceOfPublix(JatosPublix.class).uploadResultFile(request, studyId, componentId, studyResultId,
-                        filename);
-                break;
-            case PersonalSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalSinglePublix.class).uploadResultFile(request, studyId, componentId,
-                        studyResultId, filename);
-                break;
-            case PersonalMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalMultiplePublix.class).uploadResultFile(request, studyId, componentId,
-                        studyResultId, filename);
-                break;
-            case GeneralSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralSinglePublix.class).uploadResultFile(request, studyId, componentId,
-                        studyResultId, filename);
-                break;
-            case GeneralMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralMultiplePublix.class).uploadResultFile(request, studyId, componentId,
-                        studyResultId, filename);
-                break;
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                result = instanceOfPublix(MTPublix.class).uploadResultFile(request, studyId, componentId, studyResultId,
-                        filename);
-                break;
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
-        return result;
+    @BodyParser.Of(ResultFileBodyParser.class)
+    public CompletionStage<Result> uploadResultFile(Http.Request request, Long studyId, Long componentId,
+            Long studyResultId, String filename) {
+        return transactional(() -> {
+            Result result;
+            switch (getWorkerTypeFromIdCookie(studyResultId)) {
+                case JatosWorker.WORKER_TYPE:
+                    result = instanceOfPublix(JatosPublix.class)
+                            .uploadResultFile(request, studyId, componentId, studyResultId, filename);
+                    break;
+                case PersonalSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalSinglePublix.class)
+                            .uploadResultFile(request, studyId, componentId, studyResultId, filename);
+                    break;
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalMultiplePublix.class)
+                            .uploadResultFile(request, studyId, componentId, studyResultId, filename);
+                    break;
+                case GeneralSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralSinglePublix.class)
+                            .uploadResultFile(request, studyId, componentId, studyResultId, filename);
+                    break;
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralMultiplePublix.class)
+                            .uploadResultFile(request, studyId, componentId, studyResultId, filename);
+                    break;
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    result = instanceOfPublix(MTPublix.class)
+                            .uploadResultFile(request, studyId, componentId, studyResultId, filename);
+                    break;
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+            return result;
+        });
     }
 
-    @Override
-    @Transactional
-    public Result downloadResultFile(Long studyId, Long studyResultId, String filename, Optional<Long> componentId)
-            throws PublixException {
-        Result result;
-        switch (getWorkerTypeFromIdCookie(studyResultId)) {
-            case JatosWorker.WORKER_TYPE:
-                result = instanceOfPublix(JatosPublix.class).downloadResultFile(studyId, studyResultId, filename,
-                        componentId);
-                break;
-            case PersonalSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalSinglePublix.class).downloadResultFile(studyId, studyResultId,
-                        filename, componentId);
-                break;
-            case PersonalMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalMultiplePublix.class).downloadResultFile(studyId, studyResultId,
-                        filename, componentId);
-                break;
-            case GeneralSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralSinglePublix.class).downloadResultFile(studyId, studyResultId,
-                        filename, componentId);
-                break;
-            case GeneralMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralMultiplePublix.class).downloadResultFile(studyId, studyResultId,
-                        filename, componentId);
-                break;
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                result = instanceOfPublix(MTPublix.class).downloadResultFile(studyId, studyResultId, filename,
-                        componentId);
-                break;
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
-        return result;
+    public CompletionStage<Result> downloadResultFile(Long studyId, Long studyResultId, String filename,
+            Optional<Long> componentId) {
+        return transactional(() -> {
+            Result result;
+            switch (getWorkerTypeFromIdCookie(studyResultId)) {
+                case JatosWorker.WORKER_TYPE:
+                    result = instanceOfPublix(JatosPublix.class).downloadResultFile(studyId, studyResultId, filename,
+                            componentId);
+                    break;
+                case PersonalSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalSinglePublix.class).downloadResultFile(studyId, studyResultId,
+                            filename, componentId);
+                    break;
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalMultiplePublix.class).downloadResultFile(studyId, studyResultId,
+                            filename, componentId);
+                    break;
+                case GeneralSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralSinglePublix.class).downloadResultFile(studyId, studyResultId,
+                            filename, componentId);
+                    break;
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralMultiplePublix.class).downloadResultFile(studyId, studyResultId,
+                            filename, componentId);
+                    break;
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    result = instanceOfPublix(MTPublix.class).downloadResultFile(studyId, studyResultId, filename,
+                            componentId);
+                    break;
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+            return result;
+        });
     }
 
-    @Override
-    @Transactional
-    public Result abortStudy(Long studyId, Long studyResultId, String message)
-            throws PublixException {
-        Result result;
-        switch (getWorkerTypeFromIdCookie(studyResultId)) {
-            case JatosWorker.WORKER_TYPE:
-                result = instanceOfPublix(JatosPublix.class)
-                        .abortStudy(studyId, studyResultId, message);
-                break;
-            case PersonalSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalSinglePublix.class)
-                        .abortStudy(studyId, studyResultId, message);
-                break;
-            case PersonalMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalMultiplePublix.class)
-                        .abortStudy(studyId, studyResultId, message);
-                break;
-            case GeneralSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralSinglePublix.class)
-                        .abortStudy(studyId, studyResultId, message);
-                break;
-            case GeneralMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralMultiplePublix.class)
-                        .abortStudy(studyId, studyResultId, message);
-                break;
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                result = instanceOfPublix(MTPublix.class)
-                        .abortStudy(studyId, studyResultId, message);
-                break;
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
-        return result;
+    public CompletionStage<Result> abortStudy(Long studyId, Long studyResultId, String message) {
+        return transactional(() -> {
+            Result result;
+            switch (getWorkerTypeFromIdCookie(studyResultId)) {
+                case JatosWorker.WORKER_TYPE:
+                    result = instanceOfPublix(JatosPublix.class)
+                            .abortStudy(studyId, studyResultId, message);
+                    break;
+                case PersonalSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalSinglePublix.class)
+                            .abortStudy(studyId, studyResultId, message);
+                    break;
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalMultiplePublix.class)
+                            .abortStudy(studyId, studyResultId, message);
+                    break;
+                case GeneralSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralSinglePublix.class)
+                            .abortStudy(studyId, studyResultId, message);
+                    break;
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralMultiplePublix.class)
+                            .abortStudy(studyId, studyResultId, message);
+                    break;
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    result = instanceOfPublix(MTPublix.class)
+                            .abortStudy(studyId, studyResultId, message);
+                    break;
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+            return result;
+        });
     }
 
-    @Override
-    @Transactional
-    public Result finishStudy(Long studyId, Long studyResultId, Boolean successful, String message)
-            throws PublixException {
-        Result result;
-        switch (getWorkerTypeFromIdCookie(studyResultId)) {
-            case JatosWorker.WORKER_TYPE:
-                result = instanceOfPublix(JatosPublix.class)
-                        .finishStudy(studyId, studyResultId, successful, message);
-                break;
-            case PersonalSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalSinglePublix.class)
-                        .finishStudy(studyId, studyResultId, successful, message);
-                break;
-            case PersonalMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(PersonalMultiplePublix.class)
-                        .finishStudy(studyId, studyResultId, successful, message);
-                break;
-            case GeneralSingleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralSinglePublix.class)
-                        .finishStudy(studyId, studyResultId, successful, message);
-                break;
-            case GeneralMultipleWorker.WORKER_TYPE:
-                result = instanceOfPublix(GeneralMultiplePublix.class)
-                        .finishStudy(studyId, studyResultId, successful, message);
-                break;
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                result = instanceOfPublix(MTPublix.class)
-                        .finishStudy(studyId, studyResultId, successful, message);
-                break;
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
-        return result;
+    public CompletionStage<Result> finishStudy(Long studyId, Long studyResultId, Boolean successful, String message) {
+        return transactional(() -> {
+            Result result;
+            switch (getWorkerTypeFromIdCookie(studyResultId)) {
+                case JatosWorker.WORKER_TYPE:
+                    result = instanceOfPublix(JatosPublix.class)
+                            .finishStudy(studyId, studyResultId, successful, message);
+                    break;
+                case PersonalSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalSinglePublix.class)
+                            .finishStudy(studyId, studyResultId, successful, message);
+                    break;
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(PersonalMultiplePublix.class)
+                            .finishStudy(studyId, studyResultId, successful, message);
+                    break;
+                case GeneralSingleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralSinglePublix.class)
+                            .finishStudy(studyId, studyResultId, successful, message);
+                    break;
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    result = instanceOfPublix(GeneralMultiplePublix.class)
+                            .finishStudy(studyId, studyResultId, successful, message);
+                    break;
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    result = instanceOfPublix(MTPublix.class)
+                            .finishStudy(studyId, studyResultId, successful, message);
+                    break;
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+            return result;
+        });
     }
 
-    @Override
-    @Transactional
-    public Result log(Long studyId, Long componentId, Long studyResultId)
-            throws PublixException {
-        switch (getWorkerTypeFromIdCookie(studyResultId)) {
-            case JatosWorker.WORKER_TYPE:
-                return instanceOfPublix(JatosPublix.class)
-                        .log(studyId, componentId, studyResultId);
-            case PersonalSingleWorker.WORKER_TYPE:
-                return instanceOfPublix(PersonalSinglePublix.class)
-                        .log(studyId, componentId, studyResultId);
-            case PersonalMultipleWorker.WORKER_TYPE:
-                return instanceOfPublix(PersonalMultiplePublix.class)
-                        .log(studyId, componentId, studyResultId);
-            case GeneralSingleWorker.WORKER_TYPE:
-                return instanceOfPublix(GeneralSinglePublix.class)
-                        .log(studyId, componentId, studyResultId);
-            case GeneralMultipleWorker.WORKER_TYPE:
-                return instanceOfPublix(GeneralMultiplePublix.class)
-                        .log(studyId, componentId, studyResultId);
-            // Handle MTWorker like MTSandboxWorker
-            case MTSandboxWorker.WORKER_TYPE:
-            case MTWorker.WORKER_TYPE:
-                return instanceOfPublix(MTPublix.class)
-                        .log(studyId, componentId, studyResultId);
-            default:
-                throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
-        }
+    public CompletionStage<Result> log(Long studyId, Long componentId, Long studyResultId) {
+        return transactional(() -> {
+            switch (getWorkerTypeFromIdCookie(studyResultId)) {
+                case JatosWorker.WORKER_TYPE:
+                    return instanceOfPublix(JatosPublix.class)
+                            .log(studyId, componentId, studyResultId);
+                case PersonalSingleWorker.WORKER_TYPE:
+                    return instanceOfPublix(PersonalSinglePublix.class)
+                            .log(studyId, componentId, studyResultId);
+                case PersonalMultipleWorker.WORKER_TYPE:
+                    return instanceOfPublix(PersonalMultiplePublix.class)
+                            .log(studyId, componentId, studyResultId);
+                case GeneralSingleWorker.WORKER_TYPE:
+                    return instanceOfPublix(GeneralSinglePublix.class)
+                            .log(studyId, componentId, studyResultId);
+                case GeneralMultipleWorker.WORKER_TYPE:
+                    return instanceOfPublix(GeneralMultiplePublix.class)
+                            .log(studyId, componentId, studyResultId);
+                // Handle MTWorker like MTSandboxWorker
+                case MTSandboxWorker.WORKER_TYPE:
+                case MTWorker.WORKER_TYPE:
+                    return instanceOfPublix(MTPublix.class)
+                            .log(studyId, componentId, studyResultId);
+                default:
+                    throw new BadRequestPublixException(PublixErrorMessages.UNKNOWN_WORKER_TYPE);
+            }
+        });
+    }
+
+    /**
+     * A call to one of the Publix implementations
+     */
+    @FunctionalInterface
+    private interface PublixCall {
+        Result call() throws PublixException, IOException;
+    }
+
+    /**
+     * Runs the given call within a JPA transaction on the DatabaseExecutionContext. Checked exceptions are wrapped in
+     * a CompletionException - the ErrorHandler unwraps them again.
+     */
+    private CompletionStage<Result> transactional(PublixCall publixCall) {
+        return dbExecutionContext.withTransaction(() -> {
+            try {
+                return publixCall.call();
+            } catch (PublixException | IOException e) {
+                throw new CompletionException(e);
+            }
+        });
     }
 
     /**
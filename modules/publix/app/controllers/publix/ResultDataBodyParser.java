@@ -0,0 +1,90 @@
+package controllers.publix;
+
+import akka.stream.IOResult;
+import akka.stream.javadsl.FileIO;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.util.ByteString;
+import general.common.Common;
+import play.libs.F;
+import play.libs.Files.TemporaryFile;
+import play.libs.Files.TemporaryFileCreator;
+import play.libs.streams.Accumulator;
+import play.mvc.BodyParser;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+
+import javax.inject.Inject;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Body parser for result data (jatos.submitResultData and jatos.appendResultData). Play's text body parser buffers the
+ * whole request body in memory - this one streams it into a temporary file instead. The size of the body is checked
+ * while it is received: if it exceeds 'jatos.resultData.maxSize' the request is answered with 413 (Request Entity Too
+ * Large) right away. The result data are later read from the temporary file and stored chunk by chunk (see
+ * {@link services.publix.PublixUtils#storeResultData}).
+ *
+ * @author Kristian Lange
+ */
+public class ResultDataBodyParser implements BodyParser<TemporaryFile> {
+
+    private final TemporaryFileCreator temporaryFileCreator;
+    private final Executor executor;
+
+    @Inject
+    ResultDataBodyParser(TemporaryFileCreator temporaryFileCreator, Executor executor) {
+        this.temporaryFileCreator = temporaryFileCreator;
+        this.executor = executor;
+    }
+
+    @Override
+    public Accumulator<ByteString, F.Either<Result, TemporaryFile>> apply(Http.RequestHeader request) {
+        long maxSize = Common.getResultDataMaxSize();
+        Optional<String> contentLength = request.getHeaders().get(Http.HeaderNames.CONTENT_LENGTH);
+        if (contentLength.isPresent() && parseLong(contentLength.get()) > maxSize) {
+            return Accumulator.done(F.Either.<Result, TemporaryFile>Left(resultDataTooLarge()));
+        }
+
+        TemporaryFile resultDataFile = temporaryFileCreator.create("resultData", ".txt");
+        AtomicLong size = new AtomicLong();
+        Sink<ByteString, CompletionStage<IOResult>> sink = Flow.<ByteString>create()
+                .map(bytes -> {
+                    if (size.addAndGet(bytes.size()) > maxSize) {
+                        throw new IllegalStateException("Result data exceed max size of " + maxSize + " bytes");
+                    }
+                    return bytes;
+                })
+                .toMat(FileIO.toPath(resultDataFile.path()), Keep.right());
+
+        return Accumulator.fromSink(sink)
+                .map(ioResult -> {
+                    if (ioResult.wasSuccessful()) return F.Either.<Result, TemporaryFile>Right(resultDataFile);
+                    temporaryFileCreator.delete(resultDataFile);
+                    if (size.get() > maxSize) return F.Either.<Result, TemporaryFile>Left(resultDataTooLarge());
+                    throw new RuntimeException(ioResult.getError());
+                }, executor)
+                .recover(throwable -> {
+                    temporaryFileCreator.delete(resultDataFile);
+                    if (size.get() > maxSize) return F.Either.<Result, TemporaryFile>Left(resultDataTooLarge());
+                    throw new RuntimeException(throwable);
+                }, executor);
+    }
+
+    private static long parseLong(String str) {
+        try {
+            return Long.parseLong(str.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static Result resultDataTooLarge() {
+        return Results.status(Http.Status.REQUEST_ENTITY_TOO_LARGE, "Result data too large");
+    }
+
+}
@@ -0,0 +1,95 @@
+package controllers.publix;
+
+import akka.stream.IOResult;
+import akka.stream.Materializer;
+import akka.stream.javadsl.FileIO;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.util.ByteString;
+import com.typesafe.config.Config;
+import play.core.parsers.Multipart;
+import play.http.HttpErrorHandler;
+import play.libs.Files.TemporaryFile;
+import play.libs.Files.TemporaryFileCreator;
+import play.libs.streams.Accumulator;
+import play.mvc.BodyParser;
+import play.mvc.Http.MultipartFormData.FilePart;
+import utils.common.HashUtils;
+
+import javax.inject.Inject;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Multipart body parser for result file uploads (jatos.uploadResultFile). Like Play's default multipart parser it
+ * streams each file into a temporary file, but additionally it hashes the bytes on their way to the disk. This way
+ * an upload costs only one pass over its bytes: the hash doesn't have to be calculated later by reading the stored
+ * file again.
+ *
+ * @author Kristian Lange
+ */
+public class ResultFileBodyParser
+        extends BodyParser.DelegatingMultipartFormDataBodyParser<ResultFileBodyParser.HashedFile> {
+
+    private final TemporaryFileCreator temporaryFileCreator;
+    private final Executor executor;
+
+    @Inject
+    ResultFileBodyParser(Materializer materializer, Config config, HttpErrorHandler errorHandler,
+            TemporaryFileCreator temporaryFileCreator, Executor executor) {
+        super(materializer, config.getBytes("play.http.parser.maxMemoryBuffer"),
+                config.getBytes("play.http.parser.maxDiskBuffer"), errorHandler);
+        this.temporaryFileCreator = temporaryFileCreator;
+        this.executor = executor;
+    }
+
+    @Override
+    public Function<Multipart.FileInfo, Accumulator<ByteString, FilePart<HashedFile>>> createFilePartHandler() {
+        return fileInfo -> {
+            TemporaryFile tmpFile = temporaryFileCreator.create("resultFile", ".tmp");
+            MessageDigest digest = HashUtils.getDigest(HashUtils.SHA_256);
+            Sink<ByteString, CompletionStage<IOResult>> sink = Flow.<ByteString>create()
+                    .map(bytes -> {
+                        digest.update(bytes.asByteBuffer());
+                        return bytes;
+                    })
+                    .toMat(FileIO.toPath(tmpFile.path()), Keep.right());
+            String contentType = fileInfo.contentType().isDefined() ? fileInfo.contentType().get() : null;
+            return Accumulator.fromSink(sink).map(ioResult -> {
+                if (!ioResult.wasSuccessful()) {
+                    temporaryFileCreator.delete(tmpFile);
+                    throw new RuntimeException(ioResult.getError());
+                }
+                HashedFile hashedFile = new HashedFile(tmpFile, HashUtils.getHash(digest));
+                return new FilePart<>(fileInfo.partName(), fileInfo.fileName(), contentType,
+                        hashedFile, ioResult.getCount());
+            }, executor);
+        };
+    }
+
+    /**
+     * An uploaded file that is stored in a temporary file together with its SHA-256 hash
+     */
+    public static class HashedFile {
+
+        private final TemporaryFile temporaryFile;
+        private final String hash;
+
+        HashedFile(TemporaryFile temporaryFile, String hash) {
+            this.temporaryFile = temporaryFile;
+            this.hash = hash;
+        }
+
+        public TemporaryFile getTemporaryFile() {
+            return temporaryFile;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+}
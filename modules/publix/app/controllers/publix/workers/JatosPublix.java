@@ -8,6 +8,7 @@ import daos.common.ComponentResultDao;
 import daos.common.StudyResultDao;
 import exceptions.publix.*;
 import general.common.Common;
+import general.common.HeartbeatRegistry;
 import general.common.StudyLogger;
 import models.common.*;
 import models.common.workers.JatosWorker;
@@ -19,6 +20,7 @@ import play.mvc.Result;
 import services.publix.PublixErrorMessages;
 import services.publix.PublixHelpers;
 import services.publix.ResultCreator;
+import services.publix.RunContext;
 import services.publix.idcookie.IdCookieModel;
 import services.publix.idcookie.IdCookieService;
 import services.publix.workers.JatosErrorMessages;
@@ -92,10 +94,11 @@ public class JatosPublix extends Publix<JatosWorker> implements IPublix {
             IdCookieService idCookieService, JatosErrorMessages errorMessages,
             StudyAssets studyAssets, JsonUtils jsonUtils,
             ComponentResultDao componentResultDao,
-            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils) {
+            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils,
+            HeartbeatRegistry heartbeatRegistry) {
         super(jpa, publixUtils, studyAuthorisation, groupChannel,
                 idCookieService, errorMessages, studyAssets, jsonUtils,
-                componentResultDao, studyResultDao, studyLogger, ioUtils);
+                componentResultDao, studyResultDao, studyLogger, ioUtils, heartbeatRegistry);
         this.publixUtils = publixUtils;
         this.studyAuthorisation = studyAuthorisation;
         this.resultCreator = resultCreator;
@@ -146,15 +149,16 @@ public class JatosPublix extends Publix<JatosWorker> implements IPublix {
                 + "studyResultId " + studyResultId + ", " + "logged-in username " + session(SESSION_USERNAME)
                 + ", " + "message '" + message + "'");
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
-        JatosWorker worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
+        RunContext<JatosWorker> run = publixUtils.retrieveRunContext(idCookie, studyId, componentId);
+        Study study = run.getStudy();
+        Batch batch = run.getBatch();
+        JatosWorker worker = run.getWorker();
         Component component = publixUtils.retrieveComponent(study, componentId);
         studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch);
         publixUtils.checkComponentBelongsToStudy(study, component);
 
         // Check if it's a single component show or a whole study show
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
+        StudyResult studyResult = run.getStudyResult();
         JatosRun jatosRun = idCookie.getJatosRun();
         switch (jatosRun) {
             case RUN_STUDY:
@@ -195,12 +199,12 @@ public class JatosPublix extends Publix<JatosWorker> implements IPublix {
         LOGGER.info(".abortStudy: studyId " + studyId + ", " + "studyResultId " + studyResultId + ", "
                 + "logged-in username " + session(SESSION_USERNAME) + ", " + "message \"" + message + "\"");
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
-        JatosWorker worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
-        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch);
+        RunContext<JatosWorker> run = publixUtils.retrieveRunContext(idCookie, studyId, null);
+        Study study = run.getStudy();
+        JatosWorker worker = run.getWorker();
+        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, run.getBatch());
 
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
+        StudyResult studyResult = run.getStudyResult();
         if (!PublixHelpers.studyDone(studyResult)) {
             publixUtils.abortStudy(message, studyResult);
             groupChannel.closeGroupChannelAndLeaveGroup(studyResult);
@@ -225,12 +229,12 @@ public class JatosPublix extends Publix<JatosWorker> implements IPublix {
                 + "logged-in username " + session(SESSION_USERNAME) + ", " + "successful " + successful + ", "
                 + "message \"" + message + "\"");
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
-        JatosWorker worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
-        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch);
+        RunContext<JatosWorker> run = publixUtils.retrieveRunContext(idCookie, studyId, null);
+        Study study = run.getStudy();
+        JatosWorker worker = run.getWorker();
+        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, run.getBatch());
 
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
+        StudyResult studyResult = run.getStudyResult();
         if (!PublixHelpers.studyDone(studyResult)) {
             publixUtils.finishStudyResult(successful, message, studyResult);
             groupChannel.closeGroupChannelAndLeaveGroup(studyResult);
@@ -6,6 +6,7 @@ import daos.common.StudyResultDao;
 import daos.common.worker.MTWorkerDao;
 import exceptions.publix.BadRequestPublixException;
 import exceptions.publix.PublixException;
+import general.common.HeartbeatRegistry;
 import general.common.StudyLogger;
 import models.common.Batch;
 import models.common.Component;
@@ -21,6 +22,7 @@ import scala.Some;
 import services.publix.PublixErrorMessages;
 import services.publix.PublixHelpers;
 import services.publix.ResultCreator;
+import services.publix.RunContext;
 import services.publix.WorkerCreator;
 import services.publix.idcookie.IdCookieModel;
 import services.publix.idcookie.IdCookieService;
@@ -74,11 +76,12 @@ public class MTPublix extends Publix<MTWorker> implements IPublix {
             MTGroupChannel groupChannel, IdCookieService idCookieService,
             MTErrorMessages errorMessages, StudyAssets studyAssets,
             JsonUtils jsonUtils, ComponentResultDao componentResultDao,
-            StudyResultDao studyResultDao, MTWorkerDao mtWorkerDao, StudyLogger studyLogger, IOUtils ioUtils) {
+            StudyResultDao studyResultDao, MTWorkerDao mtWorkerDao, StudyLogger studyLogger, IOUtils ioUtils,
+            HeartbeatRegistry heartbeatRegistry) {
         super(jpa, publixUtils, studyAuthorisation,
                 groupChannel, idCookieService,
                 errorMessages, studyAssets, jsonUtils, componentResultDao,
-                studyResultDao, studyLogger, ioUtils);
+                studyResultDao, studyLogger, ioUtils, heartbeatRegistry);
         this.publixUtils = publixUtils;
         this.studyAuthorisation = studyAuthorisation;
         this.resultCreator = resultCreator;
@@ -140,14 +143,12 @@ public class MTPublix extends Publix<MTWorker> implements IPublix {
                 + studyResultId + ", " + "successful " + successful + ", "
                 + "message '" + message + "'");
         IdCookieModel idCookie = idCookieService.getIdCookie(studyResultId);
-        Study study = publixUtils.retrieveStudy(studyId);
-        Batch batch = publixUtils.retrieveBatch(idCookie.getBatchId());
-        MTWorker worker = publixUtils
-                .retrieveTypedWorker(idCookie.getWorkerId());
-        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch);
+        RunContext<MTWorker> run = publixUtils.retrieveRunContext(idCookie, studyId, null);
+        Study study = run.getStudy();
+        MTWorker worker = run.getWorker();
+        studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, run.getBatch());
 
-        StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study,
-                studyResultId);
+        StudyResult studyResult = run.getStudyResult();
         String confirmationCode;
         if (!PublixHelpers.studyDone(studyResult)) {
             confirmationCode = publixUtils.finishStudyResult(successful, message, studyResult);
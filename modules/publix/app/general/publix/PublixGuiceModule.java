@@ -4,9 +4,12 @@ import batch.BatchDispatcher;
 import batch.BatchDispatcherRegistry;
 import com.google.inject.AbstractModule;
 import com.google.inject.TypeLiteral;
+import com.typesafe.config.Config;
+import general.DispatcherRegistryShards;
 import group.GroupDispatcherRegistry;
 import group.GroupDispatcher;
 import models.common.workers.*;
+import play.Environment;
 import play.libs.akka.AkkaGuiceSupport;
 import services.publix.PublixUtils;
 import services.publix.StudyAuthorisation;
@@ -19,6 +22,12 @@ import services.publix.workers.*;
  */
 public class PublixGuiceModule extends AbstractModule implements AkkaGuiceSupport {
 
+	private final Config config;
+
+	public PublixGuiceModule(Environment environment, Config config) {
+		this.config = config;
+	}
+
 	@Override
 	protected void configure() {
 		// Config Worker generics binding for IStudyAuthorisation
@@ -50,8 +59,12 @@ public class PublixGuiceModule extends AbstractModule implements AkkaGuiceSuppor
 		}).to(MTPublixUtils.class);
 
 		// Config which Akka actors should be handled by Guice
-		bindActor(GroupDispatcherRegistry.class, "group-dispatcher-registry-actor");
-		bindActor(BatchDispatcherRegistry.class, "batch-dispatcher-registry-actor");
+		// The dispatcher registries are split into shards (Common isn't initialized yet - read the config directly)
+		int registryShards = config.getInt("jatos.channel.registryShards");
+		bindActor(GroupDispatcherRegistry.class, "group-dispatcher-registry-actor",
+				props -> DispatcherRegistryShards.props(props, registryShards));
+		bindActor(BatchDispatcherRegistry.class, "batch-dispatcher-registry-actor",
+				props -> DispatcherRegistryShards.props(props, registryShards));
 		bindActorFactory(BatchDispatcher.class, BatchDispatcher.Factory.class);
 		bindActorFactory(GroupDispatcher.class, GroupDispatcher.Factory.class);
 	}
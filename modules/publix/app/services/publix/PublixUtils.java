@@ -10,12 +10,22 @@ import models.common.ComponentResult.ComponentState;
 import models.common.StudyResult.StudyState;
 import models.common.workers.Worker;
 import play.Logger;
+import services.publix.idcookie.IdCookieModel;
 import services.publix.idcookie.IdCookieService;
+import utils.common.HashUtils;
 import utils.common.IOUtils;
 import utils.common.JsonUtils;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -30,6 +40,11 @@ public abstract class PublixUtils<T extends Worker> {
 
     private static final Logger.ALogger LOGGER = Logger.of(PublixUtils.class);
 
+    /**
+     * Number of characters of result data that are stored together in one database row
+     */
+    public static final int RESULT_DATA_CHUNK_SIZE = 1024 * 1024;
+
     private final ResultCreator resultCreator;
     private final IdCookieService idCookieService;
     private final GroupAdministration groupAdministration;
@@ -155,8 +170,10 @@ public abstract class PublixUtils<T extends Worker> {
         // Finish the other ComponentResults
         finishAllComponentResults(studyResult);
 
-        // Clear all data and set ABORTED for all(!) ComponentResults
+        // Clear all data, the index of uploaded files and set ABORTED for all(!) ComponentResults
         for (ComponentResult componentResult : studyResult.getComponentResultList()) {
+            componentResultDao.removeDataChunks(componentResult);
+            componentResultDao.removeResultFiles(componentResult);
             componentResult.setData(null);
             componentResult.setComponentState(ComponentState.ABORTED);
             componentResultDao.update(componentResult);
@@ -165,6 +182,7 @@ public abstract class PublixUtils<T extends Worker> {
         // Remove all uploaded result files
         try {
             ioUtils.removeResultUploadsDir(studyResult.getId());
+            studyResultDao.updateUploadsSize(studyResult.getId(), 0);
         } catch (IOException e) {
             LOGGER.error("Cannot delete result upload files (srid " + studyResult.getId() + "): " + e.getMessage());
         }
@@ -260,23 +278,52 @@ public abstract class PublixUtils<T extends Worker> {
             throw new BadRequestPublixException(
                     PublixErrorMessages.STUDY_RESULT_DOESN_T_EXIST);
         }
-        // Check that the given worker actually did this study result
-        if (!worker.getStudyResultList().contains(studyResult)) {
+        checkStudyResult(worker, study, studyResult);
+        return studyResult;
+    }
+
+    /**
+     * Checks that the given worker did the given study result, that it belongs to the given study and that it isn't
+     * finished yet. The study result's worker is compared by ID - the worker's StudyResult list would load all the
+     * worker's study runs.
+     */
+    private void checkStudyResult(Worker worker, Study study, StudyResult studyResult)
+            throws ForbiddenPublixException {
+        if (!studyResult.getWorker().getId().equals(worker.getId())) {
             throw new ForbiddenPublixException(
                     PublixErrorMessages.workerNeverDidStudy(worker, study.getId()));
         }
-        // Check that this study result belongs to the given study
         if (!studyResult.getStudy().getId().equals(study.getId())) {
             throw new ForbiddenPublixException(
                     PublixErrorMessages.STUDY_RESULT_DOESN_T_BELONG_TO_THIS_STUDY);
         }
-        // Check that this study result isn't finished
         if (PublixHelpers.studyDone(studyResult)) {
             throw new ForbiddenPublixException(
                     PublixErrorMessages.workerFinishedStudyAlready(worker, study.getId()));
         }
-        return studyResult;
+    }
 
+    /**
+     * Retrieves the worker, study, batch and study result of the study run that belongs to the given ID cookie and
+     * does the same checks as {@link #retrieveTypedWorker(Long)}, {@link #retrieveStudy(Long)},
+     * {@link #retrieveBatch(Long)} and {@link #retrieveStudyResult(Worker, Study, Long)}. All entities (and the
+     * component with the given componentId, if not null) are loaded with one query beforehand. Hence in the common
+     * case this method and later calls of e.g. {@link #retrieveComponent(Study, Long)} need only one round trip to
+     * the database.
+     */
+    public RunContext<T> retrieveRunContext(IdCookieModel idCookie, Long studyId, Long componentId)
+            throws PublixException {
+        Long studyResultId = idCookie.getStudyResultId();
+        // Only for loading the entities into the persistence context - the following finds are served from there
+        StudyResult studyResult = studyResultDao.findByIdWithRunEntities(studyResultId, componentId);
+        T worker = retrieveTypedWorker(idCookie.getWorkerId());
+        Study study = retrieveStudy(studyId);
+        Batch batch = retrieveBatch(idCookie.getBatchId());
+        if (studyResult == null) {
+            throw new BadRequestPublixException(PublixErrorMessages.STUDY_RESULT_DOESN_T_EXIST);
+        }
+        checkStudyResult(worker, study, studyResult);
+        return new RunContext<>(idCookie, worker, study, batch, studyResult);
     }
 
     /**
@@ -299,6 +346,79 @@ public abstract class PublixUtils<T extends Worker> {
         }
     }
 
+    /**
+     * Returns the size of all files uploaded during the study run with the given StudyResult ID. It's taken from the
+     * quota ledger (StudyResult's uploadsSize) that is kept up-to-date with each upload and removal. Only if the ledger
+     * was never set for this study run (e.g. it was started with an older JATOS version) the size is calculated once
+     * from the files in the upload directory and then stored in the ledger.
+     */
+    public long retrieveResultUploadsSize(Long studyResultId) throws IOException {
+        Long uploadsSize = studyResultDao.findUploadsSize(studyResultId);
+        if (uploadsSize == null) {
+            uploadsSize = ioUtils.getResultUploadDirSize(studyResultId);
+            studyResultDao.updateUploadsSize(studyResultId, uploadsSize);
+        }
+        return uploadsSize;
+    }
+
+    /**
+     * Stores the result data from the given file (usually the temporary file created by the ResultDataBodyParser) in
+     * the given ComponentResult. The file is read in chunks of {@link #RESULT_DATA_CHUNK_SIZE} characters and each
+     * chunk is written into the database before the next one is read - the result data are never held in memory as a
+     * whole. If the data are submitted (and not appended) the first chunk replaces the ComponentResult's data and all
+     * its former ResultDataChunks are removed. All other chunks are stored as new ResultDataChunks.
+     *
+     * @param componentResult ComponentResult the data belong to
+     * @param resultDataFile  file with the result data
+     * @param charset         charset of the file's content
+     * @param append          if true the data are appended to the already stored data - if false they replace them
+     * @return SHA-256 hash of the stored data - it's calculated on the fly and is the same as
+     * HashUtils.getHash(String, String) would return for the whole data
+     */
+    public String storeResultData(ComponentResult componentResult, Path resultDataFile, Charset charset,
+            boolean append) throws IOException {
+        MessageDigest digest = HashUtils.getDigest(HashUtils.SHA_256);
+        if (!append) componentResultDao.removeDataChunks(componentResult);
+        boolean first = !append;
+        try (Reader reader = new InputStreamReader(new BufferedInputStream(Files.newInputStream(resultDataFile)),
+                charset)) {
+            char[] buffer = new char[RESULT_DATA_CHUNK_SIZE];
+            int offset = 0;
+            int length;
+            do {
+                length = fillBuffer(reader, buffer, offset);
+                // Don't split a surrogate pair between two chunks
+                int chunkLength = length;
+                if (length == buffer.length && Character.isHighSurrogate(buffer[length - 1])) chunkLength--;
+                String chunk = new String(buffer, 0, chunkLength);
+                digest.update(chunk.getBytes(StandardCharsets.ISO_8859_1));
+                if (first) {
+                    componentResult.setData(chunk);
+                    componentResultDao.update(componentResult);
+                    first = false;
+                } else if (!chunk.isEmpty()) {
+                    componentResultDao.appendDataAndDetach(componentResult, chunk);
+                }
+                offset = length - chunkLength;
+                if (offset > 0) buffer[0] = buffer[length - 1];
+            } while (length == buffer.length);
+        }
+        return HashUtils.getHash(digest);
+    }
+
+    /**
+     * Reads from the reader into the buffer, starting at the given offset, until the buffer is full or the end of
+     * the stream is reached. Returns the number of characters in the buffer.
+     */
+    private int fillBuffer(Reader reader, char[] buffer, int offset) throws IOException {
+        int length = offset;
+        int read;
+        while (length < buffer.length && (read = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        return length;
+    }
+
     /**
      * Gets the current ComponentResult from the storage or if it doesn't exist
      * yet starts one for the given component. The current ComponentResult
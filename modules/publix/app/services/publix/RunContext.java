@@ -0,0 +1,53 @@
+package services.publix;
+
+import models.common.Batch;
+import models.common.Study;
+import models.common.StudyResult;
+import models.common.workers.Worker;
+import services.publix.idcookie.IdCookieModel;
+
+/**
+ * Bundles everything a Publix action needs to know about the study run it is called for: the ID cookie, the worker,
+ * the study, the batch and the study result. It is retrieved once per request via
+ * {@link PublixUtils#retrieveRunContext(IdCookieModel, Long, Long)} and all its entities are loaded within a single
+ * database query.
+ *
+ * @author Kristian Lange
+ */
+public class RunContext<T extends Worker> {
+
+    private final IdCookieModel idCookie;
+    private final T worker;
+    private final Study study;
+    private final Batch batch;
+    private final StudyResult studyResult;
+
+    RunContext(IdCookieModel idCookie, T worker, Study study, Batch batch, StudyResult studyResult) {
+        this.idCookie = idCookie;
+        this.worker = worker;
+        this.study = study;
+        this.batch = batch;
+        this.studyResult = studyResult;
+    }
+
+    public IdCookieModel getIdCookie() {
+        return idCookie;
+    }
+
+    public T getWorker() {
+        return worker;
+    }
+
+    public Study getStudy() {
+        return study;
+    }
+
+    public Batch getBatch() {
+        return batch;
+    }
+
+    public StudyResult getStudyResult() {
+        return studyResult;
+    }
+
+}
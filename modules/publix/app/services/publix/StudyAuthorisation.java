@@ -27,17 +27,19 @@ public abstract class StudyAuthorisation<T extends Worker> {
 
 	/**
 	 * Check if the max total worker number is reached for this batch. Only
-	 * non-JatosWorker count here.
+	 * non-JatosWorker count here. The batch's worker list is extra lazy, so
+	 * size() and contains() are single queries on BatchWorkerMap and the
+	 * workers themselves are never loaded.
 	 */
 	public void checkMaxTotalWorkers(Batch batch, Worker worker)
 			throws ForbiddenPublixException {
+		if (batch.getMaxTotalWorkers() == null) return;
 		Set<Worker> workerSet = batch.getWorkerList();
-		// Add the worker who wants to run the study (he might have run it
-		// already)
-		workerSet.add(worker);
+		// Count the worker who wants to run the study too (he might have run
+		// it already)
 		int potentialWorkerNumber = workerSet.size();
-		if (batch.getMaxTotalWorkers() != null
-				&& potentialWorkerNumber > batch.getMaxTotalWorkers()) {
+		if (!workerSet.contains(worker)) potentialWorkerNumber++;
+		if (potentialWorkerNumber > batch.getMaxTotalWorkers()) {
 			throw new ForbiddenPublixException(PublixErrorMessages
 					.batchMaxTotalWorkerReached(batch.getId()));
 		}
@@ -39,9 +39,8 @@ public class WorkerCreator {
         } else {
             worker = new MTWorker(mtWorkerId);
         }
-        batch.addWorker(worker);
         workerDao.create(worker);
-        batchDao.update(batch);
+        batchDao.addWorker(batch, worker);
         return worker;
     }
 
@@ -50,9 +49,8 @@ public class WorkerCreator {
      */
     public GeneralSingleWorker createAndPersistGeneralSingleWorker(Batch batch) {
         GeneralSingleWorker worker = new GeneralSingleWorker();
-        batch.addWorker(worker);
         workerDao.create(worker);
-        batchDao.update(batch);
+        batchDao.addWorker(batch, worker);
         return worker;
     }
 
@@ -61,9 +59,8 @@ public class WorkerCreator {
      */
     public GeneralMultipleWorker createAndPersistGeneralMultipleWorker(Batch batch) {
         GeneralMultipleWorker worker = new GeneralMultipleWorker();
-        batch.addWorker(worker);
         workerDao.create(worker);
-        batchDao.update(batch);
+        batchDao.addWorker(batch, worker);
         return worker;
     }
 
@@ -1,11 +1,10 @@
 package batch
 
-import batch.BatchDispatcher.{BatchAction, BatchActionJsonKey, BatchMsg, TellWhom}
+import batch.BatchDispatcher.{BatchAction, BatchActionJsonKey, BatchMsg, BatchSession, TellWhom}
 import com.google.common.base.Strings
 import daos.common.BatchDao
 import gnieh.diffson.playJson._
 import javax.inject.{Inject, Singleton}
-import models.common.Batch
 import play.api.Logger
 import play.api.libs.json.Reads._
 import play.api.libs.json.{JsObject, JsValue, Json}
@@ -15,6 +14,9 @@ import scala.compat.java8.FunctionConverters.asJavaSupplier
 
 /**
   * Handles batch action messages received by a BatchDispatcher from a client via a batch channel.
+  * The batch session is kept by the BatchDispatcher in memory: patches are applied to the in-memory
+  * session and only the BatchDispatcher decides when the session is written into the database
+  * (see loadSession and persistSession).
   *
   * @author Kristian Lange
   */
@@ -28,87 +30,95 @@ class BatchActionHandler @Inject()(jpa: JPAApi,
   /**
     * Handles batch action messages originating from a client: Gets a BatchMsg that contains a field
     * 'action' in their JSON. The only action handled here is the a patch for the batch session.
-    * The function returns BatchMsges that will be send out to the batch members.
+    * The function returns the (maybe) changed batch session and the BatchMsges that will be send out
+    * to the batch members.
     */
-  def handleActionMsg(actionMsg: BatchMsg, batchId: Long): List[BatchMsg] = {
+  def handleActionMsg(actionMsg: BatchMsg, session: BatchSession): (BatchSession, List[BatchMsg]) = {
     val actionValue = (actionMsg.json \ BatchActionJsonKey.Action.toString).as[String]
     val action = BatchAction.withName(actionValue)
     action match {
-      case BatchAction.Session => handlePatch(actionMsg.json, batchId)
+      case BatchAction.Session => handlePatch(actionMsg.json, session)
       case _ =>
-        List(msgBuilder.buildError(s"Unknown action $action", TellWhom.SenderOnly))
+        (session, List(msgBuilder.buildError(s"Unknown action $action", TellWhom.SenderOnly)))
     }
   }
 
   /**
-    * Applies JSON Patch for the batch session and tells everyone in the batch
+    * Applies JSON Patch to the batch session - but only if the session's version is equal to the
+    * received one or versioning is turned off - and tells everyone in the batch. Each successful
+    * patch increases the session version by 1.
     */
-  private def handlePatch(json: JsObject, batchId: Long): List[BatchMsg] = {
-    jpa.withTransaction(asJavaSupplier(() => {
-      val batch = batchDao.findById(batchId)
-      if (batch == null) {
-        val errorMsg = s"Couldn't find batch with ID $batchId in database."
-        List(msgBuilder.buildError(errorMsg, TellWhom.SenderOnly))
+  private def handlePatch(json: JsObject, session: BatchSession): (BatchSession, List[BatchMsg]) = {
+    val sessionActionId = (json \ BatchActionJsonKey.SessionActionId.toString).as[Long]
+    val clientsVersion = (json \ BatchActionJsonKey.SessionVersion.toString).as[Long]
+    val versioning = (json \ BatchActionJsonKey.SessionVersioning.toString).as[Boolean]
+    try {
+      if (versioning && session.version != clientsVersion) {
+        return (session, List(
+          msgBuilder.buildSimple(session, BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly)))
       }
 
-      val sessionActionId = (json \ BatchActionJsonKey.SessionActionId.toString).as[Long]
-      val clientsVersion = (json \ BatchActionJsonKey.SessionVersion.toString).as[Long]
-      val versioning = (json \ BatchActionJsonKey.SessionVersioning.toString).as[Boolean]
-      try {
-        val patches = (json \ BatchActionJsonKey.SessionPatches.toString).get
-        val patchedSessionData = patchSessionData(patches, batch)
-        logger.debug(s".handlePatch: batchId $batchId, " +
-          s"clientsVersion $clientsVersion, versioning $versioning, batchSessionPatch ${Json.stringify(patches)}, " +
-          s"updatedSessionData ${Json.stringify(patchedSessionData)}")
+      val patches = (json \ BatchActionJsonKey.SessionPatches.toString).get
+      val patchedSession = BatchSession(patchSessionData(patches, session.data), session.version + 1L)
+      logger.debug(s".handlePatch: clientsVersion $clientsVersion, versioning $versioning, " +
+        s"batchSessionPatch ${Json.stringify(patches)}, updatedSessionData ${Json.stringify(patchedSession.data)}")
 
-        val success = checkVersionAndPersistSessionData(patchedSessionData, batch, clientsVersion, versioning)
-        if (success) {
-          val msg1 = msgBuilder.buildSessionPatch(batch, patches, TellWhom.All)
-          val msg2 = msgBuilder.buildSimple(batch, BatchAction.SessionAck, sessionActionId, TellWhom.SenderOnly)
-          List(msg1, msg2)
-        } else {
-          List(msgBuilder.buildSimple(batch, BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly))
-        }
-
-      } catch {
-        case e: Exception =>
-          logger.warn(s".handlePatch: batchId $batchId, json ${Json.stringify(json)}, " +
-            s"${e.getClass.getName}: ${e.getMessage}")
-          List(msgBuilder.buildSimple(batch, BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly))
-      }
-    }))
+      val msg1 = msgBuilder.buildSessionPatch(patchedSession, patches, TellWhom.All)
+      val msg2 = msgBuilder.buildSimple(patchedSession, BatchAction.SessionAck, sessionActionId, TellWhom.SenderOnly)
+      (patchedSession, List(msg1, msg2))
+    } catch {
+      case e: Exception =>
+        logger.warn(s".handlePatch: json ${Json.stringify(json)}, ${e.getClass.getName}: ${e.getMessage}")
+        (session, List(
+          msgBuilder.buildSimple(session, BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly)))
+    }
   }
 
-  private def patchSessionData(patches: JsValue, batch: Batch): JsValue = {
-    val currentSessionData =
-      if (!Strings.isNullOrEmpty(batch.getBatchSessionData))
-        Json.parse(batch.getBatchSessionData)
-      else Json.obj()
-
+  private def patchSessionData(patches: JsValue, sessionData: JsValue): JsValue = {
     // Fix for gnieh.diffson JsonPatch for "remove" and "/" - clear all session data
     // Assumes the 'remove' operation is in the first JSON patch
     if ((patches \ 0 \ "op").as[String] == "remove" && (patches \ 0 \ "path").as[String] == "/") {
       return Json.obj()
     }
 
-    JsonPatch.apply(patches)(currentSessionData)
+    JsonPatch.apply(patches)(sessionData)
   }
 
   /**
-    * Persists the given sessionData in the Batch and increases the batchSessionVersion by 1 - but only if the stored
-    * version is equal to the received one or versioning is turned off. Returns true if this was successful -
-    * otherwise false.
+    * Loads the batch session of the batch with the given ID from the database. Returns None if the
+    * batch doesn't exist.
     */
-  private def checkVersionAndPersistSessionData(sessionData: JsValue, batch: Batch,
-                                                version: Long,
-                                                versioning: Boolean): Boolean = {
-    if (batch != null && sessionData != null && (!versioning || batch.getBatchSessionVersion == version)) {
-      batch.setBatchSessionData(sessionData.toString)
-      batch.setBatchSessionVersion(batch.getBatchSessionVersion + 1L)
-      batchDao.update(batch)
-      return true
+  def loadSession(batchId: Long): Option[BatchSession] = {
+    jpa.withTransaction(asJavaSupplier(() => {
+      val batch = batchDao.findById(batchId)
+      if (batch == null) None
+      else Some(BatchSession(parseSessionData(batchId, batch.getBatchSessionData),
+        batch.getBatchSessionVersion))
+    }))
+  }
+
+  private def parseSessionData(batchId: Long, sessionData: String): JsValue = {
+    try
+        if (Strings.isNullOrEmpty(sessionData)) Json.obj()
+        else Json.parse(sessionData)
+    catch {
+      case e: Exception =>
+        logger.error(s".parseSessionData: invalid session data in DB - batchId $batchId, " +
+          s"batchSessionData $sessionData, error: ${e.getMessage}")
+        Json.obj()
     }
-    false
+  }
+
+  /**
+    * Writes the given batch session into the database - but only if the session version stored in
+    * the database is still the given persistedVersion. Returns false if the batch session was
+    * changed by someone else in the meantime (or the batch doesn't exist anymore). Exceptions (e.g.
+    * the database isn't reachable) are thrown.
+    */
+  def persistSession(batchId: Long, session: BatchSession, persistedVersion: Long): Boolean = {
+    jpa.withTransaction(asJavaSupplier(() =>
+      batchDao.updateBatchSession(batchId, Json.stringify(session.data), session.version,
+        persistedVersion)))
   }
 
 }
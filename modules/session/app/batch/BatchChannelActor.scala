@@ -1,8 +1,14 @@
 package batch
 
 import akka.actor.{Actor, ActorRef, PoisonPill, Props}
+import akka.stream.QueueOfferResult
+import akka.stream.scaladsl.SourceQueueWithComplete
+import batch.BatchChannelActor.FrameDropped
 import batch.BatchDispatcher._
 import javax.inject.Inject
+import general.{ChannelOptions, SerializedMsg}
+import play.api.Logger
+import play.api.http.websocket.Message
 import play.api.libs.json.{JsObject, Json}
 
 /**
@@ -20,27 +26,47 @@ import play.api.libs.json.{JsObject, Json}
   * UnregisterChannel message. A BatchChannelActor can, if it's told to, reassign itself to a
   * different BatchDispatcher.
   *
+  * The messages to the client are sent in the channel's encoding (JSON or compact) and, if they
+  * are large, deflated (see ChannelOptions). They are offered to a bounded queue (see
+  * ChannelOutQueue). If the queue is full (e.g. slow connection) the message is dropped and the
+  * BatchChannelActor asks its BatchDispatcher for the current batch session (ResendSession). Until
+  * it arrives the now stale session patches are dropped right away.
+  *
   * @author Kristian Lange (2017)
   */
 object BatchChannelActor {
-  def props(out: ActorRef, studyResultId: Long, batchDispatcher: ActorRef) =
-    Props(new BatchChannelActor(out, studyResultId, batchDispatcher))
+  def props(out: SourceQueueWithComplete[Message], studyResultId: Long, batchDispatcher: ActorRef,
+            options: ChannelOptions) =
+    Props(new BatchChannelActor(out, studyResultId, batchDispatcher, options))
+
+  /**
+    * Message a BatchChannelActor sends to itself if a message couldn't be offered to the queue
+    */
+  private[batch] case class FrameDropped(msg: SerializedMsg)
 }
 
-class BatchChannelActor @Inject()(out: ActorRef,
+class BatchChannelActor @Inject()(out: SourceQueueWithComplete[Message],
                                   studyResultId: Long,
-                                  batchDispatcher: ActorRef) extends Actor {
+                                  batchDispatcher: ActorRef,
+                                  options: ChannelOptions) extends Actor {
+
+  private val logger: Logger = Logger(this.getClass)
+
+  /**
+    * True after a message was dropped and until the batch session snapshot arrives
+    */
+  private var waitingForSnapshot = false
 
   override def preStart() = batchDispatcher ! RegisterChannel(studyResultId)
 
   override def postStop() = batchDispatcher ! UnregisterChannel(studyResultId)
 
-  val pong = Json.obj("heartbeat" -> "pong")
+  val pong = SerializedMsg(Json.obj("heartbeat" -> "pong"))
 
   def receive = {
     case msg: JsObject if msg.keys.contains("heartbeat") =>
       // If we receive a heartbeat ping, answer directly with a pong
-      out ! pong
+      send(pong)
     case msg: JsObject =>
       // If we receive an JSON object (can only come from the client), wrap it in a
       // BatchMsg and forward it to the BatchDispatcher
@@ -48,10 +74,44 @@ class BatchChannelActor @Inject()(out: ActorRef,
     case msg: BatchMsg =>
       // If we receive a BatchMsg (can only come from the BatchDispatcher),
       // send the unwrapped JSON to the client
-      out ! msg.json
+      send(SerializedMsg(msg.json))
+    case msg: SerializedMsg =>
+      // A message the BatchDispatcher sends to several channels is already serialized. Session
+      // patches are stale if we wait for the session snapshot.
+      if (!(waitingForSnapshot && isSessionPatch(msg))) send(msg)
+    case SessionSnapshot(msg) =>
+      waitingForSnapshot = false
+      send(msg)
+    case FrameDropped(msg) =>
+      frameDropped(msg)
     case _: PoisonChannel =>
       // Kill this batch channel
       self ! PoisonPill
   }
 
+  /**
+    * Offers the message to the queue of the WebSocket. If the queue is full we get a FrameDropped.
+    */
+  private def send(msg: SerializedMsg): Unit = {
+    val me = self
+    out.offer(msg.frame(options)).foreach {
+      case QueueOfferResult.Dropped => me ! FrameDropped(msg)
+      case _ =>
+    }(context.dispatcher)
+  }
+
+  private def frameDropped(msg: SerializedMsg): Unit = {
+    if (!isSessionPatch(msg)) {
+      logger.warn(s".frameDropped: studyResultId $studyResultId, outbound buffer full - " +
+        s"dropped message ${msg.json}")
+    }
+    if (!waitingForSnapshot) {
+      waitingForSnapshot = true
+      batchDispatcher ! ResendSession(studyResultId)
+    }
+  }
+
+  private def isSessionPatch(msg: SerializedMsg): Boolean =
+    (msg.json \ BatchActionJsonKey.Action.toString).asOpt[String].contains(BatchAction.Session.toString)
+
 }
@@ -2,14 +2,18 @@ package batch
 
 import javax.inject.Inject
 
-import akka.actor.{Actor, ActorRef, PoisonPill}
+import akka.Done
+import akka.actor.{Actor, ActorRef, Cancellable, PoisonPill}
 import batch.BatchDispatcher.TellWhom.TellWhom
 import batch.BatchDispatcher._
 import batch.BatchDispatcherRegistry.Unregister
 import com.google.inject.assistedinject.Assisted
-import general.ChannelRegistry
+import general.{ChannelRegistry, SerializedMsg, SessionPatchCoalescer}
+import general.common.Common
 import play.api.Logger
-import play.api.libs.json.{JsObject, Json}
+import play.api.libs.json.{JsArray, JsNumber, JsObject, JsValue, Json}
+
+import scala.compat.java8.DurationConverters._
 
 /**
   * A BatchDispatcher is an Akka Actor responsible for distributing messages (BatchMsg) within a
@@ -28,6 +32,23 @@ import play.api.libs.json.{JsObject, Json}
   * batch. These messages are essentially JSON Patches after RFC 6902 and used to describe
   * changes in the batch session data. The session data are stored and persisted with the Batch.
   *
+  * While a BatchDispatcher is alive its in-memory batch session is the source of truth: it's loaded
+  * from the database once, patches are applied in memory, and it's written back into the database
+  * (write-behind) in the interval configured in 'jatos.batchSession.persistInterval' and when the
+  * BatchDispatcher stops. The write is a compare-and-set on the batch session version: if the
+  * session was changed in the database in the meantime (e.g. edited in the GUI) the database wins,
+  * the BatchDispatcher reloads the session and sends it to all batch members. If the write fails
+  * (e.g. the database is unreachable) the session stays in memory and is written the next time. This
+  * way at most the patches of one interval are lost if JATOS crashes, and the stored session data
+  * and version always belong together.
+  *
+  * Optionally patches are coalesced ('jatos.batchSession.coalesceWindow'): the patches that arrive
+  * within the window are sent to the batch members together in one SESSION message with the
+  * version of the last one. The SESSION_ACK and SESSION_FAIL answers are held back until this
+  * message is sent and then carry its version - this way a member never gets a version whose
+  * patches it hasn't got yet. Every other message sends the held back patches first, so the order
+  * of the messages is kept (see SessionPatchCoalescer).
+  *
   * @author Kristian Lange (2017)
   */
 object BatchDispatcher {
@@ -102,6 +123,39 @@ object BatchDispatcher {
     */
   case class BatchMsg(json: JsObject, tellWhom: TellWhom = TellWhom.Unknown)
 
+  /**
+    * The batch session data (parsed) together with their version
+    */
+  case class BatchSession(data: JsValue, version: Long)
+
+  /**
+    * Message a BatchDispatcher sends to itself to write its batch session into the database
+    */
+  case object PersistSession
+
+  /**
+    * Like PersistSession but answered with Done after the batch session was written into the
+    * database. Used during JATOS' shutdown.
+    */
+  case object PersistSessionNow
+
+  /**
+    * Message a BatchDispatcher sends to itself when the coalescing window is over
+    */
+  case object FlushPatches
+
+  /**
+    * Message a BatchChannelActor sends to its BatchDispatcher after it had to drop messages to
+    * its client (outbound buffer full, e.g. slow connection). It's answered with a SessionSnapshot.
+    */
+  case class ResendSession(studyResultId: Long)
+
+  /**
+    * Answer to ResendSession: the current batch session in one SESSION message that replaces the
+    * client's whole batch session
+    */
+  case class SessionSnapshot(msg: SerializedMsg)
+
 }
 
 class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
@@ -113,13 +167,107 @@ class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
 
   private val channelRegistry = new ChannelRegistry
 
-  override def postStop() = dispatcherRegistry ! Unregister(batchId)
+  /**
+    * The in-memory batch session. It's loaded lazily from the database. None if it's not loaded
+    * yet (or the batch doesn't exist).
+    */
+  private var session: Option[BatchSession] = None
+
+  /**
+    * The batch session version that is currently stored in the database
+    */
+  private var persistedVersion: Long = 0L
+
+  private var persistTask: Option[Cancellable] = None
+
+  private val coalescer = new SessionPatchCoalescer[BatchMsg](
+    Common.getBatchSessionCoalesceWindow.toScala,
+    window => context.system.scheduler.scheduleOnce(window, self, FlushPatches)(context.dispatcher),
+    msg => if (actionOf(msg) == BatchAction.Session.toString && msg.tellWhom == TellWhom.All)
+      Some((msg.json \ BatchActionJsonKey.SessionPatches.toString).as[JsArray].value) else None,
+    msg => (actionOf(msg) == BatchAction.SessionAck.toString
+      || actionOf(msg) == BatchAction.SessionFail.toString) && msg.tellWhom == TellWhom.SenderOnly,
+    sendPending)
+
+  override def preStart() = {
+    val interval = Common.getBatchSessionPersistInterval.toScala
+    persistTask = Some(context.system.scheduler.schedule(
+      interval, interval, self, PersistSession)(context.dispatcher))
+  }
+
+  override def postStop() = {
+    persistTask.foreach(_.cancel())
+    coalescer.flush()
+    // Persist before unregistering - a new dispatcher for this batch must load the latest session
+    persistSession()
+    dispatcherRegistry ! Unregister(batchId)
+  }
 
   def receive = {
     case actionMsg: BatchMsg => handleActionMsg(actionMsg)
     case RegisterChannel(studyResultId: Long) => registerChannel(studyResultId)
     case UnregisterChannel(studyResultId: Long) => unregisterChannel(studyResultId)
     case p: PoisonChannel => poisonChannel(p)
+    case PersistSession => persistSession()
+    case FlushPatches => coalescer.flush()
+    case ResendSession(studyResultId: Long) => resendSession(studyResultId)
+    case PersistSessionNow =>
+      persistSession()
+      sender ! Done
+  }
+
+  /**
+    * Returns the in-memory batch session and loads it from the database if it isn't loaded yet
+    */
+  private def currentSession: Option[BatchSession] = {
+    if (session.isEmpty) {
+      session = actionHandler.loadSession(batchId)
+      persistedVersion = session.map(_.version).getOrElse(0L)
+    }
+    session
+  }
+
+  /**
+    * Writes the in-memory batch session into the database if it has changes that are not yet
+    * persisted. If the session was changed in the database by someone else in the meantime, the
+    * database's version is taken over and sent to everyone in the batch.
+    */
+  private def persistSession(): Unit = {
+    if (session.isEmpty || session.get.version == persistedVersion) return
+    val toPersist = session.get
+    try {
+      if (actionHandler.persistSession(batchId, toPersist, persistedVersion)) {
+        persistedVersion = toPersist.version
+        logger.debug(s".persistSession: batchId $batchId, version ${toPersist.version}")
+      } else {
+        takeOverChangedSession(toPersist)
+      }
+    } catch {
+      case e: Exception =>
+        logger.error(s".persistSession: couldn't persist batch session of batch $batchId " +
+          s"(version ${toPersist.version}) - will try again", e)
+    }
+  }
+
+  /**
+    * The batch session was changed in the database in the meantime: reload it and tell everyone in
+    * the batch. The version is set above the in-memory one, so the members' versions never decrease,
+    * and the session is persisted again with this version the next time.
+    */
+  private def takeOverChangedSession(lost: BatchSession) = {
+    logger.warn(s".takeOverChangedSession: batch session of batch $batchId was changed in the " +
+      s"database - patches up to version ${lost.version} that weren't persisted yet are dropped")
+    coalescer.flush()
+    actionHandler.loadSession(batchId) match {
+      case Some(loaded) =>
+        persistedVersion = loaded.version
+        session = Some(BatchSession(loaded.data, math.max(loaded.version, lost.version) + 1L))
+        tellActionMsg(List(actionMsgBuilder.buildSessionReplace(session.get, TellWhom.All)))
+      case None =>
+        // The batch was removed
+        session = None
+        persistedVersion = 0L
+    }
   }
 
   /**
@@ -129,8 +277,15 @@ class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     logger.debug(s".handleActionMsg: batchId $batchId, " +
         s"studyResultId ${channelRegistry.getStudyResult(sender).get}, " +
         s"actionMsg ${Json.stringify(actionMsg.json)}")
-    val msgList = actionHandler.handleActionMsg(actionMsg, batchId)
-    tellActionMsg(msgList)
+    currentSession match {
+      case Some(current) =>
+        val (patchedSession, msgList) = actionHandler.handleActionMsg(actionMsg, current)
+        session = Some(patchedSession)
+        coalescer.coalesce(msgList, sender)(msg => tellActionMsg(List(msg)))
+      case None =>
+        tellActionMsg(List(actionMsgBuilder.buildError(
+          s"Couldn't find batch with ID $batchId in database.", TellWhom.SenderOnly)))
+    }
   }
 
   /**
@@ -138,9 +293,17 @@ class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     */
   private def registerChannel(studyResultId: Long) = {
     logger.debug(s".registerChannel: batchId $batchId, studyResultId $studyResultId")
+    // The new member gets the current session data - they must not get the pending patches again
+    coalescer.flush()
     channelRegistry.register(studyResultId, sender)
-    tellActionMsg(List(actionMsgBuilder.buildSessionData(
-      batchId, BatchAction.Opened, TellWhom.SenderOnly)))
+    currentSession match {
+      case Some(current) =>
+        tellActionMsg(List(actionMsgBuilder.buildSessionData(
+          current, BatchAction.Opened, TellWhom.SenderOnly)))
+      case None =>
+        tellActionMsg(List(actionMsgBuilder.buildError(
+          s"Couldn't find batch with ID $batchId in database.", TellWhom.SenderOnly)))
+    }
   }
 
   /**
@@ -178,6 +341,38 @@ class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     else tellSenderOnly(false)
   }
 
+  /**
+    * A channel had to drop messages to its client: sends it the current session that replaces
+    * the dropped patches. The pending patches are sent before so the snapshot is the newest
+    * message.
+    */
+  private def resendSession(studyResultId: Long): Unit = {
+    logger.debug(s".resendSession: batchId $batchId, studyResultId $studyResultId")
+    coalescer.flush()
+    currentSession.foreach(current => sender ! SessionSnapshot(SerializedMsg(
+      actionMsgBuilder.buildSessionReplace(current, TellWhom.SenderOnly).json)))
+  }
+
+  /**
+    * Sends the pending patches to everyone in the batch in one SESSION message with the current
+    * session version and afterwards the held back answers with the same version
+    */
+  private def sendPending(patches: Option[JsArray], answers: Seq[(ActorRef, BatchMsg)]): Unit = {
+    session.foreach(current => {
+      patches.foreach(p => tellAll(actionMsgBuilder.buildSessionPatch(current, p, TellWhom.All)))
+      val version = BatchActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(current.version))
+      answers.foreach { case (recipient, answer) =>
+        recipient ! BatchMsg(answer.json + version, answer.tellWhom)
+      }
+    })
+  }
+
+  /**
+    * Returns the action of a batch action message (the JSON's 'action' field)
+    */
+  private def actionOf(msg: BatchMsg): String =
+    (msg.json \ BatchActionJsonKey.Action.toString).as[String]
+
   private def tellActionMsg(msgList: List[BatchMsg]) = {
     msgList.foreach(msg =>
       msg.tellWhom match {
@@ -189,12 +384,13 @@ class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
   }
 
   /**
-    * Sends the message to everyone in batch channelRegistry.
+    * Sends the message to everyone in batch channelRegistry. The message is serialized only once.
     */
   private def tellAll(msg: BatchMsg) = {
-    logger.debug(s".tellAll: batchId $batchId, msg ${Json.stringify(msg.json)}")
+    val serializedMsg = SerializedMsg(msg.json)
+    logger.debug(s".tellAll: batchId $batchId, msg ${serializedMsg.json}")
     for (actorRef <- channelRegistry.getAllChannels) {
-      actorRef ! msg
+      actorRef ! serializedMsg
     }
   }
 
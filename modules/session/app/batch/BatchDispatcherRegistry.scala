@@ -1,18 +1,29 @@
 package batch
 
+import akka.Done
 import akka.actor.SupervisorStrategy.Resume
 import akka.actor.{Actor, ActorRef, ActorSystem, OneForOneStrategy}
-import batch.BatchDispatcherRegistry.{GetOrCreate, ItsThisOne, Unregister}
-import javax.inject.{Inject, Singleton}
+import akka.pattern.{ask, pipe}
+import akka.routing.ConsistentHashingRouter.ConsistentHashable
+import akka.util.Timeout
+import batch.BatchDispatcher.PersistSessionNow
+import batch.BatchDispatcherRegistry.{GetOrCreate, ItsThisOne, PersistAllSessions, Unregister}
+import javax.inject.Inject
 import play.api.Logger
+import play.api.inject.ApplicationLifecycle
 import play.api.libs.concurrent.InjectedActorSupport
 
 import scala.collection.mutable
+import scala.concurrent.Future
 import scala.concurrent.duration._
 
 /**
   * A BatchDispatcherRegistry is an Akka Actor that keeps track of all BatchDispatcher Actors.
   *
+  * The registry can be split into several shards (see DispatcherRegistryShards and
+  * 'jatos.channel.registryShards'). Then each shard keeps track of the BatchDispatchers of the batch
+  * IDs routed to it.
+  *
   * @author Kristian Lange (2017)
   */
 object BatchDispatcherRegistry {
@@ -23,7 +34,9 @@ object BatchDispatcherRegistry {
     * Used by the BatchChannel service to ask which BatchDispatcher actor manages a particular
     * batch. If it doesn't exist, create a new one.
     */
-  case class GetOrCreate(batchId: Long) extends RegistryProtocol
+  case class GetOrCreate(batchId: Long) extends RegistryProtocol with ConsistentHashable {
+    override def consistentHashKey: Any = batchId
+  }
 
   /**
     * Used to answer the BatchChannel service which BatchDispatcher actor manages a particular
@@ -36,17 +49,29 @@ object BatchDispatcherRegistry {
     */
   case class Unregister(batchId: Long) extends RegistryProtocol
 
+  /**
+    * Used during JATOS' shutdown to let all BatchDispatchers write their batch sessions into the
+    * database (while the database is still available). Answered with Done.
+    */
+  case object PersistAllSessions extends RegistryProtocol
+
 }
 
-@Singleton
 class BatchDispatcherRegistry @Inject()(actorSystem: ActorSystem,
                                         dispatcherFactory: BatchDispatcher.Factory,
                                         actionHandler: BatchActionHandler,
-                                        actionMsgBuilder: BatchActionMsgBuilder)
+                                        actionMsgBuilder: BatchActionMsgBuilder,
+                                        applicationLifecycle: ApplicationLifecycle)
     extends Actor with InjectedActorSupport {
 
   private val logger: Logger = Logger(this.getClass)
 
+  private implicit val timeout: Timeout = Timeout(10.seconds)
+
+  // Stop hooks run in reverse order of registration - this one runs before the database is closed.
+  // Each shard registers its own hook.
+  applicationLifecycle.addStopHook(() => self ? PersistAllSessions)
+
   /**
     * Override this Actor's supervisor strategy: in case of an Exception resume child actor without
     * stopping. This means that even if a BatchDispatcher throws an Exceptions it continues
@@ -76,6 +101,11 @@ class BatchDispatcherRegistry @Inject()(actorSystem: ActorSystem,
     case Unregister(batchId: Long) =>
       dispatcherMap -= batchId
       logger.debug(s".receive: unregistered dispatcher for batch ID $batchId")
+    case PersistAllSessions =>
+      import context.dispatcher
+      val persisted = dispatcherMap.values.map(dispatcher =>
+        (dispatcher ? PersistSessionNow).recover { case _ => Done })
+      Future.sequence(persisted).map(_ => Done) pipeTo sender
   }
 
 }
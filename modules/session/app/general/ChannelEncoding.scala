@@ -0,0 +1,25 @@
+package general
+
+/**
+  * Encodings of the messages a batch or group channel sends to its client. The client chooses the
+  * encoding with the query parameter 'encoding' when it opens the channel's WebSocket.
+  *
+  * Json: JSON in text frames (default)
+  * Compact: CBOR in binary frames with short codes for the JSON keys and actions that are used by
+  * JATOS (see CompactChannelCodec)
+  *
+  * Messages from the client can always be JSON (text or binary frames) or CBOR (binary frames).
+  *
+  * @author Kristian Lange
+  */
+object ChannelEncoding extends Enumeration {
+  type ChannelEncoding = Value
+  val Json = Value("json")
+  val Compact = Value("compact")
+
+  /**
+    * Returns the encoding with the given name or Json if there is none with this name
+    */
+  def fromName(name: Option[String]): ChannelEncoding =
+    name.flatMap(n => values.find(_.toString.equalsIgnoreCase(n))).getOrElse(Json)
+}
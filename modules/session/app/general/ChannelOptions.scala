@@ -0,0 +1,13 @@
+package general
+
+import general.ChannelEncoding.ChannelEncoding
+
+/**
+  * How the messages of a batch or group channel are sent to its client: in which encoding and
+  * from which size (in bytes) on they are deflated (0 - never). Both are chosen by the client when
+  * it opens the channel.
+  *
+  * @author Kristian Lange
+  */
+case class ChannelOptions(encoding: ChannelEncoding = ChannelEncoding.Json,
+                          deflateThreshold: Int = 0)
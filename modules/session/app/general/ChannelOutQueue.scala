@@ -0,0 +1,53 @@
+package general
+
+import akka.actor._
+import akka.stream.scaladsl.{Flow, Keep, Sink, Source, SourceQueueWithComplete}
+import akka.stream.{Materializer, OverflowStrategy}
+import general.common.Common
+import play.api.http.websocket.Message
+
+/**
+  * Creates the Akka stream Flow of a batch or group channel's WebSocket - like Play's
+  * ActorFlow.actorRef but the channel actor doesn't get an ActorRef to send its messages to the
+  * client but a bounded queue (jatos.channel.outBufferSize). If the client can't keep up (e.g. slow
+  * connection) offering to the queue returns QueueOfferResult.Dropped and the channel actor can
+  * decide what to do (e.g. drop stale session patches and ask its dispatcher for the current
+  * session instead).
+  *
+  * Messages from the client are forwarded to the channel actor. If the WebSocket is closed the
+  * channel actor is stopped, and if the channel actor stops the WebSocket is closed.
+  *
+  * @author Kristian Lange
+  */
+object ChannelOutQueue {
+
+  def flow[In](props: SourceQueueWithComplete[Message] => Props)
+              (implicit factory: ActorRefFactory, mat: Materializer): Flow[In, Message, _] = {
+    val (queue, publisher) = Source
+      .queue[Message](Common.getChannelOutBufferSize, OverflowStrategy.dropNew)
+      .toMat(Sink.asPublisher(false))(Keep.both)
+      .run()
+
+    Flow.fromSinkAndSource(
+      Sink.actorRef(factory.actorOf(Props(new Actor {
+        private val channel = context.watch(context.actorOf(props(queue), "channel"))
+
+        def receive = {
+          case Status.Success(_) | Status.Failure(_) =>
+            // WebSocket was closed
+            channel ! PoisonPill
+          case Terminated(_) =>
+            // Channel actor stopped
+            queue.complete()
+            context.stop(self)
+          case other => channel ! other
+        }
+
+        override def supervisorStrategy = OneForOneStrategy() {
+          case _ => SupervisorStrategy.Stop
+        }
+      })), Status.Success(())),
+      Source.fromPublisher(publisher))
+  }
+
+}
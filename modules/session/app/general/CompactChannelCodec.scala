@@ -0,0 +1,150 @@
+package general
+
+import java.io.ByteArrayOutputStream
+
+import com.fasterxml.jackson.core.{JsonParser, JsonToken}
+import com.fasterxml.jackson.dataformat.cbor.{CBORFactory, CBORGenerator, CBORParser}
+import play.api.libs.json._
+
+import scala.collection.mutable.ListBuffer
+
+/**
+  * Encodes batch and group channel messages in the compact encoding (ChannelEncoding.Compact):
+  * CBOR (RFC 7049) where the top-level JSON keys used by JATOS (e.g. 'action', 'sessionPatches',
+  * 'sessionVersion', 'members') are written as integer keys and the values of the 'action' key
+  * (e.g. 'SESSION', 'JOINED') as integers. The codes are the positions in the lists Keys and
+  * Actions. Keys and actions that are not in the lists stay strings, and everything below the top
+  * level (e.g. the session data, patches or a group message's 'msg') is plain CBOR. jatos.js has
+  * the same lists - never change the order, only append.
+  *
+  * Numbers keep their precision: integers that don't fit into a long are written as CBOR bignums
+  * and decimals that aren't exactly a double as CBOR decimal fractions (RFC 7049, 2.4.2 and 2.4.3).
+  *
+  * Decoding of messages from the client is plain CBOR without codes.
+  *
+  * @author Kristian Lange
+  */
+object CompactChannelCodec {
+
+  val Keys: Vector[String] = Vector("action", "data", "patches", "id", "version", "versioning",
+    "errorMsg", "recipient", "groupResultId", "groupState", "memberId", "members", "channels",
+    "sessionData", "sessionPatches", "sessionActionId", "sessionVersion", "sessionVersioning",
+    "heartbeat", "msg")
+
+  val Actions: Vector[String] = Vector("OPENED", "CLOSED", "SESSION", "SESSION_ACK", "SESSION_FAIL",
+    "ERROR", "JOINED", "LEFT", "FIXED")
+
+  private val ActionKey = "action"
+
+  private val keyCodes: Map[String, Int] = Keys.zipWithIndex.toMap
+
+  private val actionCodes: Map[String, Int] = Actions.zipWithIndex.toMap
+
+  private val cborFactory = new CBORFactory()
+
+  private val DecimalFractionTag = 4
+
+  def encode(json: JsValue): Array[Byte] = {
+    val out = new ByteArrayOutputStream()
+    val generator = cborFactory.createGenerator(out)
+    try json match {
+      case obj: JsObject => writeTopLevel(obj, generator)
+      case other => writeValue(other, generator)
+    } finally generator.close()
+    out.toByteArray
+  }
+
+  private def writeTopLevel(obj: JsObject, generator: CBORGenerator): Unit = {
+    generator.writeStartObject()
+    obj.fields.foreach { case (key, value) =>
+      keyCodes.get(key) match {
+        case Some(code) => generator.writeFieldId(code)
+        case None => generator.writeFieldName(key)
+      }
+      value match {
+        case JsString(action) if key == ActionKey && actionCodes.contains(action) =>
+          generator.writeNumber(actionCodes(action))
+        case _ => writeValue(value, generator)
+      }
+    }
+    generator.writeEndObject()
+  }
+
+  private def writeValue(value: JsValue, generator: CBORGenerator): Unit = value match {
+    case JsNull => generator.writeNull()
+    case JsBoolean(bool) => generator.writeBoolean(bool)
+    case JsNumber(number) =>
+      if (number.isValidLong) generator.writeNumber(number.toLong)
+      else if (number.isWhole) generator.writeNumber(number.toBigInt.bigInteger)
+      else if (number.isDecimalDouble) generator.writeNumber(number.toDouble)
+      else generator.writeNumber(number.bigDecimal)
+    case JsString(string) => generator.writeString(string)
+    case JsArray(items) =>
+      generator.writeStartArray(items.size)
+      items.foreach(writeValue(_, generator))
+      generator.writeEndArray()
+    case obj: JsObject =>
+      generator.writeStartObject()
+      obj.fields.foreach { case (key, fieldValue) =>
+        generator.writeFieldName(key)
+        writeValue(fieldValue, generator)
+      }
+      generator.writeEndObject()
+  }
+
+  /**
+    * Parses a CBOR message into JSON. Throws an exception if it isn't valid CBOR.
+    */
+  def decode(bytes: Array[Byte]): JsValue = {
+    val parser = cborFactory.createParser(bytes)
+    try {
+      parser.nextToken()
+      readValue(parser)
+    } finally parser.close()
+  }
+
+  private def readValue(parser: JsonParser): JsValue = parser.getCurrentToken match {
+    case JsonToken.START_OBJECT =>
+      val fields = ListBuffer[(String, JsValue)]()
+      while (parser.nextToken() != JsonToken.END_OBJECT) {
+        val key = parser.getCurrentName
+        parser.nextToken()
+        fields += (key -> readValue(parser))
+      }
+      JsObject(fields)
+    case JsonToken.START_ARRAY if currentTag(parser) == DecimalFractionTag =>
+      // Decimal fraction: [exponent, mantissa] - bignums are already decoded by the parser
+      parser.nextToken()
+      val exponent = parser.getIntValue
+      parser.nextToken()
+      val mantissa = parser.getBigIntegerValue
+      parser.nextToken()
+      JsNumber(BigDecimal(new java.math.BigDecimal(mantissa, -exponent)))
+    case JsonToken.START_ARRAY =>
+      val items = ListBuffer[JsValue]()
+      while (parser.nextToken() != JsonToken.END_ARRAY) items += readValue(parser)
+      JsArray(items.toIndexedSeq)
+    case JsonToken.VALUE_STRING => JsString(parser.getText)
+    case JsonToken.VALUE_NUMBER_INT | JsonToken.VALUE_NUMBER_FLOAT => JsNumber(BigDecimal(parser.getDecimalValue))
+    case JsonToken.VALUE_TRUE => JsTrue
+    case JsonToken.VALUE_FALSE => JsFalse
+    case JsonToken.VALUE_NULL => JsNull
+    case token => throw new IllegalArgumentException(s"Unexpected CBOR token $token")
+  }
+
+  /**
+    * The CBOR tag of the current value or -1 if it has none
+    */
+  private def currentTag(parser: JsonParser): Int = parser match {
+    case cborParser: CBORParser => cborParser.getCurrentTag
+    case _ => -1
+  }
+
+  /**
+    * A message is taken for CBOR if it starts with a CBOR map (a JSON message would start with '{'
+    * or a whitespace)
+    */
+  def isCbor(bytes: Array[Byte]): Boolean =
+    bytes.nonEmpty && (bytes(0) & 0xE0) == 0xA0
+
+}
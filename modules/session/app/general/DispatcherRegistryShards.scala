@@ -0,0 +1,43 @@
+package general
+
+import akka.actor.SupervisorStrategy.Resume
+import akka.actor.{OneForOneStrategy, Props}
+import akka.routing.ConsistentHashingPool
+
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+/**
+  * Splits a dispatcher registry (BatchDispatcherRegistry or GroupDispatcherRegistry) into several
+  * registry actors (shards). Otherwise a single registry actor's mailbox serializes the lookup and
+  * creation of the dispatchers for the whole server, e.g. when many channels are opened at once.
+  *
+  * The shards are routees of a consistent hashing pool: messages that are ConsistentHashable (e.g.
+  * GetOrCreate) are routed by their batch ID or group result ID, so the same ID always ends up in the
+  * same shard and each dispatcher exists only once. Each shard is the parent and registry of its
+  * dispatchers - a dispatcher unregisters itself directly with its shard.
+  *
+  * @author Kristian Lange
+  */
+object DispatcherRegistryShards {
+
+  /**
+    * Like the registries' own supervisor strategy: a shard that throws an Exception is resumed and
+    * keeps its dispatchers
+    */
+  private val shardSupervisorStrategy =
+    OneForOneStrategy(maxNrOfRetries = 10, withinTimeRange = 1 minute, true) {
+      case _: Exception => Resume
+    }
+
+  /**
+    * Returns the Props of a router with the given number of registry shards. With only one shard
+    * the registry's Props are returned unchanged.
+    */
+  def props(registryProps: Props, shards: Int): Props = {
+    if (shards <= 1) registryProps
+    else registryProps.withRouter(ConsistentHashingPool(shards,
+      supervisorStrategy = shardSupervisorStrategy))
+  }
+
+}
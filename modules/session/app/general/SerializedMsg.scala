@@ -0,0 +1,68 @@
+package general
+
+import java.io.ByteArrayOutputStream
+import java.util.zip.Deflater
+
+import akka.util.ByteString
+import play.api.http.websocket.{BinaryMessage, Message, TextMessage}
+import play.api.libs.json.{JsValue, Json}
+
+/**
+  * A message whose JSON is serialized into a WebSocket frame only once. A dispatcher that sends
+  * the same message to many channels (e.g. a session patch to all members of a batch) sends this
+  * SerializedMsg to every channel actor, who passes the frame in its channel's encoding on to its
+  * WebSocket. The frame of an encoding is created the first time a channel needs it.
+  *
+  * Large frames can be deflated (zlib format, RFC 1950) for channels whose client supports it.
+  * They are sent as binary frames and inflated by the client into JSON or CBOR.
+  *
+  * @author Kristian Lange
+  */
+class SerializedMsg(val json: JsValue) {
+
+  private lazy val text: String = Json.stringify(json)
+
+  private lazy val textBytes: ByteString = ByteString(text)
+
+  private lazy val compactBytes: ByteString = ByteString(CompactChannelCodec.encode(json))
+
+  lazy val textFrame: Message = TextMessage(text)
+
+  lazy val binaryFrame: Message = BinaryMessage(compactBytes)
+
+  private lazy val deflatedTextFrame: Message = BinaryMessage(SerializedMsg.deflate(textBytes))
+
+  private lazy val deflatedBinaryFrame: Message = BinaryMessage(SerializedMsg.deflate(compactBytes))
+
+  def frame(options: ChannelOptions): Message = options.encoding match {
+    case ChannelEncoding.Compact =>
+      if (isDeflated(options, compactBytes)) deflatedBinaryFrame else binaryFrame
+    case _ =>
+      if (isDeflated(options, textBytes)) deflatedTextFrame else textFrame
+  }
+
+  private def isDeflated(options: ChannelOptions, bytes: => ByteString): Boolean =
+    options.deflateThreshold > 0 && bytes.size >= options.deflateThreshold
+
+}
+
+object SerializedMsg {
+
+  def apply(json: JsValue): SerializedMsg = new SerializedMsg(json)
+
+  private def deflate(bytes: ByteString): ByteString = {
+    val deflater = new Deflater()
+    try {
+      deflater.setInput(bytes.toArray)
+      deflater.finish()
+      val out = new ByteArrayOutputStream(bytes.size / 2)
+      val buffer = new Array[Byte](8192)
+      while (!deflater.finished()) {
+        val length = deflater.deflate(buffer)
+        out.write(buffer, 0, length)
+      }
+      ByteString(out.toByteArray)
+    } finally deflater.end()
+  }
+
+}
@@ -0,0 +1,94 @@
+package general
+
+import akka.actor.{ActorRef, Cancellable}
+import play.api.libs.json.{JsArray, JsValue}
+
+import scala.concurrent.duration.{Duration, FiniteDuration}
+
+/**
+  * Coalesces the session patches of a dispatcher (BatchDispatcher and GroupDispatcher): the patches
+  * of the SESSION messages that arrive within the window are held back and then sent to the
+  * members together in one SESSION message. The SESSION_ACK and SESSION_FAIL answers are held back
+  * too and sent afterwards - the dispatcher gives them the version of this SESSION message, this way
+  * a member never gets a version whose patches it hasn't got yet. Every other message sends the
+  * held back patches and answers first, so the order of the messages is kept. Patches that clear
+  * the whole session (the first patch is a 'remove' of '/') make all patches before void.
+  *
+  * A SessionPatchCoalescer is not thread-safe: it's meant to be used only from within its
+  * dispatcher's actor.
+  *
+  * @param window         Coalescing window - if it's zero every message is sent right away
+  * @param scheduleFlush  Schedules the flush at the end of the window (the dispatcher sends itself
+  *                       a message that calls flush)
+  * @param sessionPatches Returns the patches if the message is a SESSION message for all members
+  * @param isAnswer       Whether the message is a SESSION_ACK or SESSION_FAIL for the sender only
+  * @param send           Sends the patches in one SESSION message (if there are any) and afterwards
+  *                       the answers together with their recipients
+  * @author Kristian Lange
+  */
+class SessionPatchCoalescer[M](window: FiniteDuration,
+                               scheduleFlush: FiniteDuration => Cancellable,
+                               sessionPatches: M => Option[Seq[JsValue]],
+                               isAnswer: M => Boolean,
+                               send: (Option[JsArray], Seq[(ActorRef, M)]) => Unit) {
+
+  /**
+    * Patches that were applied to the in-memory session but are not yet sent to the members
+    */
+  private var pendingPatches: Vector[JsValue] = Vector.empty
+
+  /**
+    * SESSION_ACK and SESSION_FAIL answers together with their recipient that wait for the pending
+    * patches to be sent
+    */
+  private var pendingAnswers: Vector[(ActorRef, M)] = Vector.empty
+
+  private var flushTask: Option[Cancellable] = None
+
+  /**
+    * Holds back the SESSION messages (their patches) and the SESSION_ACK/SESSION_FAIL answers until
+    * the window is over. Other messages are passed to 'tell' right away, after the pending patches.
+    * Without a window every message is passed to 'tell' right away.
+    */
+  def coalesce(msgList: List[M], sender: ActorRef)(tell: M => Unit): Unit = {
+    if (window <= Duration.Zero) {
+      msgList.foreach(tell)
+      return
+    }
+    msgList.foreach(msg => sessionPatches(msg) match {
+      case Some(patches) =>
+        if (SessionPatchCoalescer.clearsSession(patches)) pendingPatches = patches.toVector
+        else pendingPatches ++= patches
+      case None if isAnswer(msg) && pendingPatches.nonEmpty =>
+        pendingAnswers :+= ((sender, msg))
+      case None =>
+        flush()
+        tell(msg)
+    })
+    if (flushTask.isEmpty && pendingPatches.nonEmpty) flushTask = Some(scheduleFlush(window))
+  }
+
+  /**
+    * Sends the pending patches and afterwards the held back answers
+    */
+  def flush(): Unit = {
+    flushTask.foreach(_.cancel())
+    flushTask = None
+    if (pendingPatches.isEmpty && pendingAnswers.isEmpty) return
+    val patches = if (pendingPatches.nonEmpty) Some(JsArray(pendingPatches)) else None
+    val answers = pendingAnswers
+    pendingPatches = Vector.empty
+    pendingAnswers = Vector.empty
+    send(patches, answers)
+  }
+
+}
+
+object SessionPatchCoalescer {
+
+  def clearsSession(patches: Seq[JsValue]): Boolean = {
+    patches.nonEmpty && (patches.head \ "op").asOpt[String].contains("remove") &&
+      (patches.head \ "path").asOpt[String].contains("/")
+  }
+
+}
@@ -3,9 +3,8 @@ package group
 import com.google.common.base.Strings
 import daos.common.GroupResultDao
 import gnieh.diffson.playJson._
-import group.GroupDispatcher.{GroupAction, GroupActionJsonKey, GroupMsg, TellWhom}
+import group.GroupDispatcher.{GroupAction, GroupActionJsonKey, GroupMsg, GroupSession, TellWhom}
 import javax.inject.{Inject, Singleton}
-import models.common.GroupResult
 import models.common.GroupResult.GroupState
 import play.api.Logger
 import play.api.libs.json.{JsObject, JsValue, Json}
@@ -16,7 +15,9 @@ import scala.compat.java8.FunctionConverters.asJavaSupplier
 /**
   * Handles group action messages. Those messages are of type GroupMsg with a JSON object that
   * contains an 'action' field. It was received by an GroupDispatcher and comes from a client via
-  * a GroupChannelActor.
+  * a GroupChannelActor. The group session is kept by the GroupDispatcher in memory: patches are
+  * applied to the in-memory session and only the GroupDispatcher decides when the session is
+  * written into the database (see loadSession and persistSession).
   *
   * @author Kristian Lange (2017)
   */
@@ -30,103 +31,79 @@ class GroupActionHandler @Inject()(jpa: JPAApi,
   /**
     * Handles group actions originating from a client: Gets a GroupMsg that contains a field
     * 'action' in their JSON. The only action handled here are 1) the a patch for the group
-    * session, or 2) the msg to fix the group. The function returns GroupMsges that will be send
-    * out to the group members.
+    * session, or 2) the msg to fix the group. The function returns the (maybe) changed group
+    * session and the GroupMsges that will be send out to the group members.
     */
-  def handleActionMsg(msg: GroupMsg, groupResultId: Long, studyResultId: Long): List[GroupMsg] = {
+  def handleActionMsg(msg: GroupMsg, groupResultId: Long, studyResultId: Long,
+                      session: GroupSession): (GroupSession, List[GroupMsg]) = {
     logger.debug(s".handleActionMsg: groupResultId $groupResultId, studyResultId $studyResultId, " +
       s"jsonNode ${Json.stringify(msg.json)}")
     val actionValue = (msg.json \ GroupActionJsonKey.Action.toString).as[String]
     val action = GroupAction.withName(actionValue)
     action match {
-      case GroupAction.Session => handlePatch(msg.json, groupResultId, studyResultId)
-      case GroupAction.Fixed => handleActionFix(groupResultId);
+      case GroupAction.Session => handlePatch(msg.json, groupResultId, session)
+      case GroupAction.Fixed => (session, handleActionFix(groupResultId, session))
       case _ =>
-        List(msgBuilder.buildError(groupResultId, s"Unknown action $action", TellWhom.SenderOnly))
+        (session, List(msgBuilder.buildError(groupResultId, s"Unknown action $action", TellWhom.SenderOnly)))
     }
   }
 
   /**
-    * Applies the patch to the group session
+    * Applies the patch to the in-memory group session - but only if the session's version is equal
+    * to the received one or versioning is turned off. Each successful patch increases the session
+    * version by 1.
     */
-  private def handlePatch(json: JsObject, groupResultId: Long, studyResultId: Long): List[GroupMsg] = {
-    jpa.withTransaction(asJavaSupplier(() => {
-      val groupResult = groupResultDao.findById(groupResultId)
-      if (groupResult == null) {
-        val errorMsg = s"Couldn't find group result with ID $groupResultId in database."
-        List(msgBuilder.buildError(groupResultId, errorMsg, TellWhom.SenderOnly))
+  private def handlePatch(json: JsObject, groupResultId: Long,
+                          session: GroupSession): (GroupSession, List[GroupMsg]) = {
+    val sessionActionId = (json \ GroupActionJsonKey.SessionActionId.toString).as[Long]
+    val clientsVersion = (json \ GroupActionJsonKey.SessionVersion.toString).as[Long]
+    val versioning = (json \ GroupActionJsonKey.SessionVersioning.toString).as[Boolean]
+    try {
+      if (versioning && session.version != clientsVersion) {
+        return (session, List(msgBuilder.buildSessionAnswer(groupResultId, session, GroupAction.SessionFail,
+          sessionActionId, TellWhom.SenderOnly)))
       }
 
-      val sessionActionId = (json \ GroupActionJsonKey.SessionActionId.toString).as[Long]
-      val clientsVersion = (json \ GroupActionJsonKey.SessionVersion.toString).as[Long]
-      val versioning = (json \ GroupActionJsonKey.SessionVersioning.toString).as[Boolean]
-      try {
-        val patches = (json \ GroupActionJsonKey.SessionPatches.toString).get
-        val patchedSessionData = patchSessionData(patches, groupResult)
-        logger.debug(s".handlePatch: groupResultId $groupResultId, " +
-          s"clientsVersion $clientsVersion, versioning $versioning, groupSessionPatch ${Json.stringify(patches)}, " +
-          s"updatedSessionData ${Json.stringify(patchedSessionData)}")
+      val patches = (json \ GroupActionJsonKey.SessionPatches.toString).get
+      val patchedSession = GroupSession(patchSessionData(patches, session.data), session.version + 1L)
+      logger.debug(s".handlePatch: groupResultId $groupResultId, " +
+        s"clientsVersion $clientsVersion, versioning $versioning, groupSessionPatch ${Json.stringify(patches)}, " +
+        s"updatedSessionData ${Json.stringify(patchedSession.data)}")
 
-        val success = checkVersionAndPersistSessionData(patchedSessionData, groupResult, clientsVersion, versioning)
-        if (success) {
-          val msg1 = msgBuilder.buildSessionPatch(groupResult, studyResultId, patches, TellWhom.All)
-          val msg2 = msgBuilder.buildSimple(groupResult, GroupAction.SessionAck, Some(sessionActionId), TellWhom.SenderOnly)
-          List(msg1, msg2)
-        } else {
-          List(msgBuilder.buildSimple(groupResult, GroupAction.SessionFail, Some(sessionActionId), TellWhom.SenderOnly))
-        }
-      } catch {
-        case e: Exception =>
-          logger.warn(s".handlePatch: groupResultId $groupResultId, json ${Json.stringify(json)}," +
-            s" ${e.getClass.getName}: ${e.getMessage}")
-          List(msgBuilder.buildSimple(groupResult, GroupAction.SessionFail, Some(sessionActionId), TellWhom.SenderOnly))
-      }
-    }))
+      val msg1 = msgBuilder.buildSessionPatch(patchedSession, patches, TellWhom.All)
+      val msg2 = msgBuilder.buildSessionAnswer(groupResultId, patchedSession, GroupAction.SessionAck,
+        sessionActionId, TellWhom.SenderOnly)
+      (patchedSession, List(msg1, msg2))
+    } catch {
+      case e: Exception =>
+        logger.warn(s".handlePatch: groupResultId $groupResultId, json ${Json.stringify(json)}," +
+          s" ${e.getClass.getName}: ${e.getMessage}")
+        (session, List(msgBuilder.buildSessionAnswer(groupResultId, session, GroupAction.SessionFail,
+          sessionActionId, TellWhom.SenderOnly)))
+    }
   }
 
-  private def patchSessionData(patches: JsValue, groupResult: GroupResult): JsValue = {
-    val currentSessionData =
-      if (!Strings.isNullOrEmpty(groupResult.getGroupSessionData))
-        Json.parse(groupResult.getGroupSessionData)
-      else Json.obj()
-
+  private def patchSessionData(patches: JsValue, sessionData: JsValue): JsValue = {
     // Fix for gnieh.diffson JsonPatch for "remove" and "/" - clear session data
     // Assumes the 'remove' operation is in the first JSON patch
     if ((patches \ 0 \ "op").as[String] == "remove" && (patches \ 0 \ "path").as[String] == "/") {
       return Json.obj()
     }
 
-    JsonPatch.apply(patches)(currentSessionData)
-  }
-
-  /**
-    * Persists the given sessionData in the GroupResult and increases the groupSessionVersion by 1 - but only if the
-    * stored version is equal to the received one or versioning is turned off. Returns true if this was successful -
-    * otherwise false.
-    */
-  private def checkVersionAndPersistSessionData(sessionData: JsValue, groupResult: GroupResult,
-                                                version: Long,
-                                                versioning: Boolean): Boolean = {
-    if (groupResult != null && sessionData != null && (!versioning || groupResult.getGroupSessionVersion == version)) {
-      groupResult.setGroupSessionData(sessionData.toString)
-      groupResult.setGroupSessionVersion(groupResult.getGroupSessionVersion + 1L)
-      groupResultDao.update(groupResult)
-      return true
-    }
-    false
+    JsonPatch.apply(patches)(sessionData)
   }
 
   /**
     * Changes state of GroupResult to FIXED and sends an update to all group
     * members
     */
-  private def handleActionFix(groupResultId: Long) = {
+  private def handleActionFix(groupResultId: Long, session: GroupSession) = {
     jpa.withTransaction(asJavaSupplier(() => {
       val groupResult = groupResultDao.findById(groupResultId)
       if (groupResult != null) {
         groupResult.setGroupState(GroupState.FIXED)
         groupResultDao.update(groupResult)
-        List(msgBuilder.buildSimple(groupResult, GroupAction.Fixed, None, TellWhom.SenderOnly))
+        List(msgBuilder.buildSimple(groupResult, session, GroupAction.Fixed, TellWhom.SenderOnly))
       } else {
         val errorMsg = s"Couldn't find group result with ID $groupResultId in database."
         List(msgBuilder.buildError(groupResultId, errorMsg, TellWhom.SenderOnly))
@@ -134,4 +111,41 @@ class GroupActionHandler @Inject()(jpa: JPAApi,
     }))
   }
 
+  /**
+    * Loads the group session of the GroupResult with the given ID from the database. Returns None
+    * if the GroupResult doesn't exist or is already finished (a finished group has no session).
+    */
+  def loadSession(groupResultId: Long): Option[GroupSession] = {
+    jpa.withTransaction(asJavaSupplier(() => {
+      val groupResult = groupResultDao.findById(groupResultId)
+      if (groupResult == null || groupResult.getGroupState == GroupState.FINISHED) None
+      else Some(GroupSession(parseSessionData(groupResultId, groupResult.getGroupSessionData),
+        groupResult.getGroupSessionVersion))
+    }))
+  }
+
+  private def parseSessionData(groupResultId: Long, sessionData: String): JsValue = {
+    try
+        if (Strings.isNullOrEmpty(sessionData)) Json.obj()
+        else Json.parse(sessionData)
+    catch {
+      case e: Exception =>
+        logger.error(s".parseSessionData: invalid session data in DB - groupResultId $groupResultId, " +
+          s"groupSessionData $sessionData, error: ${e.getMessage}")
+        Json.obj()
+    }
+  }
+
+  /**
+    * Writes the given group session into the database - but only if the session version stored in
+    * the database is still the given persistedVersion. Returns false if the group session was
+    * changed by someone else in the meantime (or the GroupResult doesn't exist anymore). Exceptions
+    * (e.g. the database isn't reachable) are thrown.
+    */
+  def persistSession(groupResultId: Long, session: GroupSession, persistedVersion: Long): Boolean = {
+    jpa.withTransaction(asJavaSupplier(() =>
+      groupResultDao.updateGroupSession(groupResultId, Json.stringify(session.data), session.version,
+        persistedVersion)))
+  }
+
 }
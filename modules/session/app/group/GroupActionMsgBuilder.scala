@@ -37,26 +37,42 @@ class GroupActionMsgBuilder @Inject()(jpa: JPAApi, groupResultDao: GroupResultDa
   }
 
   /**
-    * Builds a simple GroupMsg with the action, group result ID, and the session version
+    * Builds a simple GroupMsg with the action, group result ID, group state and the session version
     */
-  def buildSimple(groupResult: GroupResult, action: GroupAction, sessionActionId: Option[Long], tellWhom: TellWhom): GroupMsg = {
+  def buildSimple(groupResult: GroupResult, session: GroupSession, action: GroupAction,
+                  tellWhom: TellWhom): GroupMsg = {
     logger.debug(s".buildSimple: groupResult ${groupResult.getId}")
-    var json = Json.obj(
+    val json = Json.obj(
       GroupActionJsonKey.Action.toString -> action.toString,
       GroupActionJsonKey.GroupResultId.toString -> groupResult.getId.toString,
       GroupActionJsonKey.GroupState.toString -> groupResult.getGroupState.name,
-      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(groupResult.getGroupSessionVersion)))
-    if (sessionActionId.isDefined) {
-      json = json + (GroupActionJsonKey.SessionActionId.toString -> JsNumber(BigDecimal(sessionActionId.get)))
-    }
+      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(session.version)))
     GroupMsg(json, tellWhom)
   }
 
   /**
-    * Builds a GroupMsg with or without session data but always with session version
+    * Builds a GroupMsg that answers a group session patch (SESSION_ACK or SESSION_FAIL) with the
+    * group result ID, the session action ID and the session version. The group session is kept in
+    * memory by the GroupDispatcher, so no GroupResult is loaded and no group state is included.
+    */
+  def buildSessionAnswer(groupResultId: Long, session: GroupSession, action: GroupAction,
+                         sessionActionId: Long, tellWhom: TellWhom): GroupMsg = {
+    val json = Json.obj(
+      GroupActionJsonKey.Action.toString -> action.toString,
+      GroupActionJsonKey.GroupResultId.toString -> groupResultId.toString,
+      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(session.version)),
+      GroupActionJsonKey.SessionActionId.toString -> JsNumber(BigDecimal(sessionActionId)))
+    GroupMsg(json, tellWhom)
+  }
+
+  /**
+    * Builds a GroupMsg with or without session data but always with session version. The session
+    * is the GroupDispatcher's in-memory one. If there is none (e.g. the group is finished) the
+    * session stored in the GroupResult is used.
     */
   def build(groupResultId: Long, studyResultId: Long, registry: ChannelRegistry,
-            includeSessionData: Boolean, action: GroupAction, tellWhom: TellWhom): GroupMsg = {
+            session: Option[GroupSession], includeSessionData: Boolean, action: GroupAction,
+            tellWhom: TellWhom): GroupMsg = {
     // The current group data are persisted in a GroupResult entity.
     // The GroupResult determines who is member of the group - and not the group registry.
     jpa.withTransaction(asJavaSupplier(() => {
@@ -64,7 +80,8 @@ class GroupActionMsgBuilder @Inject()(jpa: JPAApi, groupResultDao: GroupResultDa
         s"$action , tellWhom ${tellWhom.toString}")
       val groupResult = groupResultDao.findById(groupResultId)
       if (groupResult != null)
-        buildAction(groupResult, studyResultId, registry, includeSessionData, action, tellWhom)
+        buildAction(groupResult, studyResultId, registry, session, includeSessionData, action,
+          tellWhom)
       else
         buildError(groupResultId, s"Couldn't find group result with ID $groupResultId in database" +
           s".", TellWhom.SenderOnly)
@@ -74,17 +91,27 @@ class GroupActionMsgBuilder @Inject()(jpa: JPAApi, groupResultDao: GroupResultDa
   /**
     * Builds a GroupMsg with the group session patch and version
     */
-  def buildSessionPatch(groupResult: GroupResult, studyResultId: Long, patches: JsValue, tellWhom: TellWhom): GroupMsg = {
-    logger.debug(s".buildSessionPatch: groupResultId ${groupResult.getId}, studyResultId $studyResultId")
+  def buildSessionPatch(session: GroupSession, patches: JsValue, tellWhom: TellWhom): GroupMsg = {
     val json = Json.obj(
       GroupActionJsonKey.Action.toString -> GroupAction.Session.toString,
       GroupActionJsonKey.SessionPatches.toString -> patches,
-      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(groupResult.getGroupSessionVersion)))
+      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(session.version)))
     GroupMsg(json, tellWhom)
   }
 
+  /**
+    * Builds a GroupMsg with a patch that replaces the whole group session with the current session
+    * data. It is sent to the group members if the session was changed from outside (e.g. in the
+    * GUI).
+    */
+  def buildSessionReplace(session: GroupSession, tellWhom: TellWhom): GroupMsg = {
+    val patches = Json.arr(Json.obj("op" -> "replace", "path" -> "", "value" -> session.data))
+    buildSessionPatch(session, patches, tellWhom)
+  }
+
   private def buildAction(groupResult: GroupResult, studyResultId: Long, registry: ChannelRegistry,
-                          includeSessionData: Boolean, action: GroupAction, tellWhom: TellWhom): GroupMsg = {
+                          session: Option[GroupSession], includeSessionData: Boolean,
+                          action: GroupAction, tellWhom: TellWhom): GroupMsg = {
     val members = JsArray(
       groupResult.getActiveMemberList.asScala.map(sr => JsString(sr.getId.toString)).toSeq
     )
@@ -96,9 +123,14 @@ class GroupActionMsgBuilder @Inject()(jpa: JPAApi, groupResultDao: GroupResultDa
       GroupActionJsonKey.GroupState.toString -> groupResult.getGroupState.name,
       GroupActionJsonKey.Members.toString -> members,
       GroupActionJsonKey.Channels.toString -> channels,
-      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(groupResult.getGroupSessionVersion)))
-    if (includeSessionData)
-      json = json + (GroupActionJsonKey.SessionData.toString -> Json.parse(groupResult.getGroupSessionData))
+      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(
+        session.map(_.version).getOrElse(groupResult.getGroupSessionVersion.longValue))))
+    if (includeSessionData) {
+      val sessionData = session.map(_.data).getOrElse(
+        if (groupResult.getGroupSessionData != null) Json.parse(groupResult.getGroupSessionData)
+        else JsNull)
+      json = json + (GroupActionJsonKey.SessionData.toString -> sessionData)
+    }
     GroupMsg(json, tellWhom)
   }
 
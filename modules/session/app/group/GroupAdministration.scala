@@ -9,7 +9,6 @@ import models.common.GroupResult.GroupState
 import models.common.{Batch, GroupResult, StudyResult}
 import play.db.jpa.JPAApi
 
-import scala.collection.JavaConverters._
 import scala.compat.java8.FunctionConverters.asJavaSupplier
 
 /**
@@ -24,25 +23,25 @@ import scala.compat.java8.FunctionConverters.asJavaSupplier
 @Singleton
 class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
                                     groupResultDao: GroupResultDao,
+                                    groupAllocator: GroupAllocator,
                                     jpa: JPAApi) {
 
   /**
     * Joins the a GroupResult or create a new one. Persists changes.
     *
-    * Looks in the database whether we have an incomplete GroupResult (state STARTED, maxActiveMember not reached,
+    * Asks the GroupAllocator for an incomplete GroupResult (state STARTED, maxActiveMember not reached,
     * maxTotalMembers not reached). If there is none, create a new GroupResult.
     */
   def join(studyResult: StudyResult, batch: Batch): GroupResult = {
     jpa.withTransaction(asJavaSupplier(() => {
-      val allGroupMaxNotReached = groupResultDao.findAllMaxNotReached(batch)
-      val groupMaxNotReached =
-        if (allGroupMaxNotReached.isEmpty) groupResultDao.create(new GroupResult(batch))
-        else allGroupMaxNotReached.get(0)
+      val groupMaxNotReached = groupAllocator.findOpenGroup(batch)
+          .getOrElse(groupResultDao.create(new GroupResult(batch)))
 
       groupMaxNotReached.addActiveMember(studyResult)
       studyResult.setActiveGroupResult(groupMaxNotReached)
       groupResultDao.update(groupMaxNotReached)
       studyResultDao.update(studyResult)
+      groupAllocator.update(groupMaxNotReached)
       groupMaxNotReached
     }))
   }
@@ -71,13 +70,14 @@ class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
       studyResult.setHistoryGroupResult(groupResult)
       groupResultDao.update(groupResult)
       studyResultDao.update(studyResult)
+      groupAllocator.update(groupResult)
     }))
   }
 
   /**
     * Reassigns this StudyResult to a different GroupResult if possible.
     *
-    * Looks in the database whether we have other incomplete GroupResult. If there are more than one, it returns the
+    * Asks the GroupAllocator whether we have other incomplete GroupResult. If there are more than one, it returns the
     * one with the most active members. If there is no other GroupResult it returns an error msg.
     *
     * @return Either with String if error or a GroupResult if success
@@ -90,16 +90,15 @@ class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
 
     // We need this transaction here because later on in the GroupDispatcher the updated data are needed
     val differentGroupResult = jpa.withTransaction(asJavaSupplier(() => {
-      val allGroupMaxNotReached = groupResultDao.findAllMaxNotReached(batch).asScala
       // Don't reassign to the same group again
-      allGroupMaxNotReached -= currentGroupResult
-      if (allGroupMaxNotReached.isEmpty) {
+      val otherGroupMaxNotReached = groupAllocator.findOpenGroup(batch, Some(currentGroupResult.getId.longValue))
+      if (otherGroupMaxNotReached.isEmpty) {
         // No other possible group result found
         return Left(s"Couldn't reassign the study result with ID ${studyResult.getId} to any other group.")
       }
+      val differentGroupResult = otherGroupMaxNotReached.get
 
       // Found a possible group: put into active members of new group - do not put into history members of old group
-      val differentGroupResult = allGroupMaxNotReached.head
       currentGroupResult.removeActiveMember(studyResult)
       differentGroupResult.addActiveMember(studyResult)
       studyResult.setActiveGroupResult(differentGroupResult)
@@ -107,6 +106,8 @@ class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
       groupResultDao.update(currentGroupResult)
       groupResultDao.update(differentGroupResult)
       studyResultDao.update(studyResult)
+      groupAllocator.update(currentGroupResult)
+      groupAllocator.update(differentGroupResult)
       differentGroupResult
     }))
 
@@ -131,9 +132,11 @@ class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
     jpa.withTransaction(asJavaSupplier(() => {
       groupResult.setGroupState(GroupState.FINISHED)
       groupResult.setEndDate(new Timestamp(new Date().getTime))
-      // All session data are temporarily and have to be deleted when the group is finished
-      groupResult.setGroupSessionData(null)
       groupResultDao.update(groupResult)
+      // All session data are temporarily and have to be deleted when the group is finished. This increases the
+      // session version too and a GroupDispatcher that is still around drops its in-memory session.
+      groupResultDao.removeGroupSession(groupResult.getId)
+      groupAllocator.update(groupResult)
     }))
   }
 
@@ -0,0 +1,154 @@
+package group
+
+import java.util.concurrent.ConcurrentHashMap
+
+import daos.common.GroupResultDao
+import javax.inject.{Inject, Singleton}
+import models.common.GroupResult.GroupState
+import models.common.{Batch, GroupResult}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+  * Keeps the open groups of each batch in memory and picks the group a study run joins. Open groups are GroupResults in
+  * state STARTED where neither the batch's maxActiveMembers nor its maxTotalMembers is reached. Per batch they are
+  * ordered like in GroupResultDao.findAllMaxNotReached: by activeMemberCount (highest first) and then by
+  * historyMemberCount (highest first). Picking a group and updating it after a member joined or left is O(log n) - it
+  * doesn't depend on how many GroupResults a batch has.
+  *
+  * The in-memory state is a cache of the database: The open groups of a batch are loaded from the database with
+  * findAllMaxNotReached the first time they are needed (e.g. after JATOS' start), and again if the batch's max
+  * members changed or if the picked group turns out to be outdated (e.g. study results were removed in the GUI). If
+  * there is no open group in memory the database isn't asked again - the caller creates a new group right away. The
+  * picked group is always locked and checked in the database. The membership itself is still written into the
+  * database by the GroupAdministration.
+  *
+  * @author Kristian Lange
+  */
+@Singleton
+class GroupAllocator @Inject()(groupResultDao: GroupResultDao) {
+
+  private val batchGroupsMap = new ConcurrentHashMap[Long, BatchGroups]()
+
+  /**
+    * Returns the open group of the given batch with the most members (except the one with the given ID). The
+    * GroupResult is loaded with a PESSIMISTIC_WRITE lock. Returns None if there is no open group. Has to be called
+    * within a transaction.
+    */
+  def findOpenGroup(batch: Batch, excludedGroupResultId: Option[Long] = None): Option[GroupResult] = {
+    val groups = getBatchGroups(batch)
+    groups.synchronized {
+      if (!groups.isLoaded || !groups.hasLimitsOf(batch)) return load(groups, batch, excludedGroupResultId)
+
+      groups.first(excludedGroupResultId) match {
+        case Some(groupResultId) =>
+          val groupResult = groupResultDao.findByIdForUpdate(groupResultId)
+          if (groupResult != null && groups.isOpen(groupResult)
+              && groups.isUpToDate(groupResult)) Some(groupResult)
+          else load(groups, batch, excludedGroupResultId)
+        case None =>
+          // No open group in memory - the cache is kept up-to-date with every change, so the caller can create a
+          // new group without asking the database
+          None
+      }
+    }
+  }
+
+  /**
+    * Has to be called after the members of a GroupResult changed, or the GroupResult was created or finished. It
+    * updates the GroupResult's position in the order of its batch's open groups (or adds or removes it).
+    */
+  def update(groupResult: GroupResult): Unit = {
+    val groups = batchGroupsMap.get(groupResult.getBatch.getId.longValue)
+    if (groups == null) return
+    groups.synchronized {
+      if (groups.isLoaded) groups.put(groupResult)
+    }
+  }
+
+  private def getBatchGroups(batch: Batch): BatchGroups = {
+    val groups = batchGroupsMap.get(batch.getId.longValue)
+    if (groups != null) return groups
+    val newGroups = new BatchGroups
+    Option(batchGroupsMap.putIfAbsent(batch.getId.longValue, newGroups)).getOrElse(newGroups)
+  }
+
+  /**
+    * Loads the open groups of the given batch from the database and returns the first one
+    */
+  private def load(groups: BatchGroups, batch: Batch,
+                   excludedGroupResultId: Option[Long]): Option[GroupResult] = {
+    val allGroupMaxNotReached = groupResultDao.findAllMaxNotReached(batch).asScala
+    groups.reload(batch, allGroupMaxNotReached)
+    allGroupMaxNotReached.find(gr => !excludedGroupResultId.contains(gr.getId.longValue))
+  }
+
+  /**
+    * An open group as it's stored in memory
+    */
+  private case class OpenGroup(groupResultId: Long, activeMemberCount: Int, historyMemberCount: Int)
+
+  /**
+    * Same order as in GroupResultDao.findAllMaxNotReached plus the ID to make it unique
+    */
+  private val openGroupOrdering: Ordering[OpenGroup] = Ordering.by((g: OpenGroup) =>
+    (-g.activeMemberCount, -g.historyMemberCount, g.groupResultId))
+
+  /**
+    * The open groups of one batch together with the batch's max members they were determined with
+    */
+  private class BatchGroups {
+
+    private val sorted = mutable.TreeSet.empty[OpenGroup](openGroupOrdering)
+    private val byId = mutable.HashMap[Long, OpenGroup]()
+    private var maxActiveMembers: Option[Int] = None
+    private var maxTotalMembers: Option[Int] = None
+    var isLoaded = false
+
+    def hasLimitsOf(batch: Batch): Boolean = maxActiveMembers == toOption(batch.getMaxActiveMembers) &&
+        maxTotalMembers == toOption(batch.getMaxTotalMembers)
+
+    def reload(batch: Batch, groupResults: Seq[GroupResult]): Unit = {
+      sorted.clear()
+      byId.clear()
+      maxActiveMembers = toOption(batch.getMaxActiveMembers)
+      maxTotalMembers = toOption(batch.getMaxTotalMembers)
+      groupResults.foreach(put)
+      isLoaded = true
+    }
+
+    /**
+      * The first open group - at most the excluded one has to be skipped
+      */
+    def first(excludedGroupResultId: Option[Long]): Option[Long] =
+      sorted.iterator.map(_.groupResultId).find(id => !excludedGroupResultId.contains(id))
+
+    def put(groupResult: GroupResult): Unit = {
+      val id = groupResult.getId.longValue
+      byId.remove(id).foreach(sorted -= _)
+      if (isOpen(groupResult)) {
+        val openGroup = OpenGroup(id, groupResult.getActiveMemberCount, groupResult.getHistoryMemberCount)
+        byId += (id -> openGroup)
+        sorted += openGroup
+      }
+    }
+
+    def isOpen(groupResult: GroupResult): Boolean = {
+      val active = groupResult.getActiveMemberCount.intValue
+      val history = groupResult.getHistoryMemberCount.intValue
+      groupResult.getGroupState == GroupState.STARTED &&
+          maxActiveMembers.forall(active < _) && maxTotalMembers.forall(active + history < _)
+    }
+
+    /**
+      * Checks whether the in-memory counts of this GroupResult are the ones from the database
+      */
+    def isUpToDate(groupResult: GroupResult): Boolean = byId.get(groupResult.getId.longValue).exists(g =>
+      g.activeMemberCount == groupResult.getActiveMemberCount.intValue
+          && g.historyMemberCount == groupResult.getHistoryMemberCount.intValue)
+
+    private def toOption(value: Integer): Option[Int] = Option(value).map(_.intValue)
+  }
+
+}
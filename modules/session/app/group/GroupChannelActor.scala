@@ -2,7 +2,13 @@ package group
 
 import javax.inject.Inject
 import akka.actor.{Actor, ActorRef, PoisonPill, Props}
+import akka.stream.QueueOfferResult
+import akka.stream.scaladsl.SourceQueueWithComplete
+import group.GroupChannelActor.FrameDropped
 import group.GroupDispatcher._
+import general.{ChannelOptions, SerializedMsg}
+import play.api.Logger
+import play.api.http.websocket.Message
 import play.api.libs.json.{JsObject, Json}
 
 /**
@@ -21,18 +27,38 @@ import play.api.libs.json.{JsObject, Json}
   * UnregisterChannel message. A GroupChannelActor can, if it's told to, reassign itself to a
   * different GroupDispatcher.
   *
+  * The messages to the client are sent in the channel's encoding (JSON or compact) and, if they
+  * are large, deflated (see ChannelOptions). They are offered to a bounded queue (see
+  * ChannelOutQueue). If the queue is full (e.g. slow connection) the message is dropped and the
+  * GroupChannelActor asks its GroupDispatcher for the current group session (ResendSession). Until
+  * it arrives the now stale session patches are dropped right away.
+  *
   * @author Kristian Lange (2015 - 2018)
   */
 object GroupChannelActor {
-  def props(out: ActorRef, studyResultId: Long, groupDispatcher: ActorRef): Props =
-    Props(new GroupChannelActor(out, studyResultId, groupDispatcher))
+  def props(out: SourceQueueWithComplete[Message], studyResultId: Long, groupDispatcher: ActorRef,
+            options: ChannelOptions): Props =
+    Props(new GroupChannelActor(out, studyResultId, groupDispatcher, options))
+
+  /**
+    * Message a GroupChannelActor sends to itself if a message couldn't be offered to the queue
+    */
+  private[group] case class FrameDropped(msg: SerializedMsg)
 }
 
-class GroupChannelActor @Inject()(out: ActorRef,
+class GroupChannelActor @Inject()(out: SourceQueueWithComplete[Message],
                                   studyResultId: Long,
-                                  var groupDispatcher: ActorRef) extends Actor {
+                                  var groupDispatcher: ActorRef,
+                                  options: ChannelOptions) extends Actor {
+
+  private val logger: Logger = Logger(this.getClass)
 
-  val pong = Json.obj("heartbeat" -> "pong")
+  /**
+    * True after a message was dropped and until the group session snapshot arrives
+    */
+  private var waitingForSnapshot = false
+
+  val pong = SerializedMsg(Json.obj("heartbeat" -> "pong"))
 
   override def preStart() = groupDispatcher ! RegisterChannel(studyResultId)
 
@@ -41,7 +67,7 @@ class GroupChannelActor @Inject()(out: ActorRef,
   def receive = {
     case msg: JsObject if msg.keys.contains("heartbeat") =>
       // If we receive a heartbeat ping, answer directly with a pong
-      out ! pong
+      send(pong)
     case json: JsObject =>
       // If we receive a JsonNode (only from the client) wrap it in a GroupMsg and forward it to
       // the GroupDispatcher
@@ -49,15 +75,49 @@ class GroupChannelActor @Inject()(out: ActorRef,
     case msg: GroupMsg =>
       // If we receive a GroupMsg (only from the GroupDispatcher) send the wrapped JsonNode to
       // the client
-      out ! msg.json
+      send(SerializedMsg(msg.json))
     case rc: ReassignChannel =>
       // This group channel has to reassign to a different dispatcher
       groupDispatcher ! UnregisterChannel(studyResultId)
       groupDispatcher = rc.differentGroupDispatcher
       groupDispatcher ! RegisterChannel(studyResultId)
+    case msg: SerializedMsg =>
+      // A message the GroupDispatcher sends to several channels is already serialized. Session
+      // patches are stale if we wait for the session snapshot.
+      if (!(waitingForSnapshot && isSessionPatch(msg))) send(msg)
+    case SessionSnapshot(msg) =>
+      waitingForSnapshot = false
+      send(msg)
+    case FrameDropped(msg) =>
+      frameDropped(msg)
     case _: PoisonChannel =>
       // Kill this group channel actor
       self ! PoisonPill
   }
 
+  /**
+    * Offers the message to the queue of the WebSocket. If the queue is full we get a FrameDropped.
+    */
+  private def send(msg: SerializedMsg): Unit = {
+    val me = self
+    out.offer(msg.frame(options)).foreach {
+      case QueueOfferResult.Dropped => me ! FrameDropped(msg)
+      case _ =>
+    }(context.dispatcher)
+  }
+
+  private def frameDropped(msg: SerializedMsg): Unit = {
+    if (!isSessionPatch(msg)) {
+      logger.warn(s".frameDropped: studyResultId $studyResultId, outbound buffer full - " +
+        s"dropped message ${msg.json}")
+    }
+    if (!waitingForSnapshot) {
+      waitingForSnapshot = true
+      groupDispatcher ! ResendSession(studyResultId)
+    }
+  }
+
+  private def isSessionPatch(msg: SerializedMsg): Boolean =
+    (msg.json \ GroupActionJsonKey.Action.toString).asOpt[String].contains(GroupAction.Session.toString)
+
 }
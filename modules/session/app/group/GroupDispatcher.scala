@@ -1,15 +1,19 @@
 package group
 
-import akka.actor.{Actor, ActorRef, PoisonPill}
+import akka.Done
+import akka.actor.{Actor, ActorRef, Cancellable, PoisonPill}
 import com.google.inject.assistedinject.Assisted
-import general.ChannelRegistry
+import general.{ChannelRegistry, SerializedMsg, SessionPatchCoalescer}
+import general.common.Common
 import group.GroupDispatcher.TellWhom.TellWhom
 import group.GroupDispatcher._
 import group.GroupDispatcherRegistry.Unregister
 import javax.inject.Inject
 import play.api.Logger
 import play.api.libs.json.Reads._
-import play.api.libs.json.{JsObject, Json}
+import play.api.libs.json.{JsArray, JsNumber, JsObject, JsValue, Json}
+
+import scala.compat.java8.DurationConverters._
 
 /**
   * A GroupDispatcher is an Akka Actor responsible for distributing messages (GroupMsg) within a
@@ -37,6 +41,19 @@ import play.api.libs.json.{JsObject, Json}
   * The group session patches are JSON Patches after RFC 6902 and used to describe changes in the
   * group session data. The session data are stored in the GroupResult.
   *
+  * While a GroupDispatcher is alive its in-memory group session is the source of truth: it's loaded
+  * from the database once, patches are applied in memory, and it's written back into the database
+  * (write-behind) in the interval configured in 'jatos.groupSession.persistInterval', after the
+  * number of patches configured in 'jatos.groupSession.persistAfterPatches' and when the
+  * GroupDispatcher stops. Like in the BatchDispatcher the write is a compare-and-set on the group
+  * session version: if the session was changed in the database in the meantime (e.g. edited in the
+  * GUI or removed because the group finished) the database wins.
+  *
+  * Like in the BatchDispatcher patches can be coalesced ('jatos.groupSession.coalesceWindow'): the
+  * patches arriving within the window are sent in one SESSION message and the SESSION_ACK and
+  * SESSION_FAIL answers follow with its version. Any other message (e.g. JOINED, a broadcast or
+  * direct message) sends the held back patches first (see SessionPatchCoalescer).
+  *
   * @author Kristian Lange (2015, 2017)
   */
 object GroupDispatcher {
@@ -147,6 +164,39 @@ object GroupDispatcher {
     */
   case class GroupMsg(json: JsObject, tellWhom: TellWhom = TellWhom.Unknown)
 
+  /**
+    * The group session data (parsed) together with their version
+    */
+  case class GroupSession(data: JsValue, version: Long)
+
+  /**
+    * Message a GroupDispatcher sends to itself to write its group session into the database
+    */
+  case object PersistSession
+
+  /**
+    * Like PersistSession but answered with Done after the group session was written into the
+    * database. Used during JATOS' shutdown.
+    */
+  case object PersistSessionNow
+
+  /**
+    * Message a GroupDispatcher sends to itself when the coalescing window is over
+    */
+  case object FlushPatches
+
+  /**
+    * Message a GroupChannelActor sends to its GroupDispatcher after it had to drop messages to
+    * its client (outbound buffer full, e.g. slow connection). It's answered with a SessionSnapshot.
+    */
+  case class ResendSession(studyResultId: Long)
+
+  /**
+    * Answer to ResendSession: the current group session in one SESSION message that replaces the
+    * client's whole group session
+    */
+  case class SessionSnapshot(msg: SerializedMsg)
+
 }
 
 class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
@@ -158,7 +208,47 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
 
   private val channelRegistry = new ChannelRegistry
 
-  override def postStop() = dispatcherRegistry ! Unregister(groupResultId)
+  /**
+    * The in-memory group session. It's loaded lazily from the database. None if it's not loaded
+    * yet (or the group doesn't exist or is finished).
+    */
+  private var session: Option[GroupSession] = None
+
+  /**
+    * Whether the group session was already loaded from the database. If it was and the session is
+    * still None, the group doesn't exist or is finished - then it isn't loaded again.
+    */
+  private var sessionLoaded = false
+
+  /**
+    * The group session version that is currently stored in the database
+    */
+  private var persistedVersion: Long = 0L
+
+  private var persistTask: Option[Cancellable] = None
+
+  private val coalescer = new SessionPatchCoalescer[GroupMsg](
+    Common.getGroupSessionCoalesceWindow.toScala,
+    window => context.system.scheduler.scheduleOnce(window, self, FlushPatches)(context.dispatcher),
+    msg => if (actionOf(msg) == GroupAction.Session.toString && msg.tellWhom == TellWhom.All)
+      Some((msg.json \ GroupActionJsonKey.SessionPatches.toString).as[JsArray].value) else None,
+    msg => (actionOf(msg) == GroupAction.SessionAck.toString
+      || actionOf(msg) == GroupAction.SessionFail.toString) && msg.tellWhom == TellWhom.SenderOnly,
+    sendPending)
+
+  override def preStart() = {
+    val interval = Common.getGroupSessionPersistInterval.toScala
+    persistTask = Some(context.system.scheduler.schedule(
+      interval, interval, self, PersistSession)(context.dispatcher))
+  }
+
+  override def postStop() = {
+    persistTask.foreach(_.cancel())
+    coalescer.flush()
+    // Persist before unregistering - a new dispatcher for this group must load the latest session
+    persistSession()
+    dispatcherRegistry ! Unregister(groupResultId)
+  }
 
   def receive = {
     case groupMsg: GroupMsg =>
@@ -182,6 +272,89 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     case p: PoisonChannel =>
       // Comes from GroupChannel service: close a group channel
       poisonChannel(p)
+    case PersistSession =>
+      // Scheduled write-behind of the group session
+      persistSession()
+    case FlushPatches =>
+      // Coalescing window is over
+      coalescer.flush()
+    case ResendSession(studyResultId: Long) =>
+      // A GroupChannelActor had to drop messages to its client
+      resendSession(studyResultId)
+    case PersistSessionNow =>
+      // JATOS shuts down
+      persistSession()
+      sender ! Done
+  }
+
+  /**
+    * Returns the in-memory group session and loads it from the database if it isn't loaded yet. A
+    * missing session (e.g. the group is finished) is only looked up once.
+    */
+  private def currentSession: Option[GroupSession] = {
+    if (!sessionLoaded) {
+      session = actionHandler.loadSession(groupResultId)
+      persistedVersion = session.map(_.version).getOrElse(0L)
+      sessionLoaded = true
+    }
+    session
+  }
+
+  /**
+    * Writes the in-memory group session into the database if it has changes that are not yet
+    * persisted. If the session was changed in the database by someone else in the meantime, the
+    * database's version is taken over and sent to everyone in the group.
+    */
+  private def persistSession(): Unit = {
+    if (session.isEmpty || session.get.version == persistedVersion) return
+    val toPersist = session.get
+    try {
+      if (actionHandler.persistSession(groupResultId, toPersist, persistedVersion)) {
+        persistedVersion = toPersist.version
+        logger.debug(s".persistSession: groupResultId $groupResultId, version ${toPersist.version}")
+      } else {
+        takeOverChangedSession(toPersist)
+      }
+    } catch {
+      case e: Exception =>
+        logger.error(s".persistSession: couldn't persist group session of group result " +
+          s"$groupResultId (version ${toPersist.version}) - will try again", e)
+    }
+  }
+
+  /**
+    * Writes the group session into the database if the number of not yet persisted patches
+    * reached 'jatos.groupSession.persistAfterPatches'
+    */
+  private def persistSessionIfManyPatches(): Unit = {
+    val afterPatches = Common.getGroupSessionPersistAfterPatches
+    if (afterPatches > 0 && session.exists(_.version - persistedVersion >= afterPatches))
+      persistSession()
+  }
+
+  /**
+    * The group session was changed in the database in the meantime: reload it and tell everyone in
+    * the group. The version is set above the in-memory one, so the members' versions never
+    * decrease, and the session is persisted again with this version the next time. If the group is
+    * finished in the meantime its session is just dropped (and not loaded again).
+    */
+  private def takeOverChangedSession(lost: GroupSession) = {
+    coalescer.flush()
+    actionHandler.loadSession(groupResultId) match {
+      case Some(loaded) =>
+        logger.warn(s".takeOverChangedSession: group session of group result $groupResultId was " +
+          s"changed in the database - patches up to version ${lost.version} that weren't " +
+          s"persisted yet are dropped")
+        persistedVersion = loaded.version
+        session = Some(GroupSession(loaded.data, math.max(loaded.version, lost.version) + 1L))
+        tellActionMsg(List(actionMsgBuilder.buildSessionReplace(session.get, TellWhom.All)))
+      case None =>
+        // Usual when the group was finished: its session data are removed anyway
+        logger.debug(s".takeOverChangedSession: group result $groupResultId is finished - " +
+          s"dropping group session")
+        session = None
+        persistedVersion = 0L
+    }
   }
 
   /**
@@ -196,18 +369,29 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     if (msg.json.keys.contains(GroupActionJsonKey.Action.toString)) {
       // We have a group action message
       val studyResultId = channelRegistry.getStudyResult(sender).get
-      val msgList = actionHandler.handleActionMsg(msg, groupResultId, studyResultId)
-      tellActionMsg(msgList)
+      currentSession match {
+        case Some(current) =>
+          val (changedSession, msgList) =
+            actionHandler.handleActionMsg(msg, groupResultId, studyResultId, current)
+          session = Some(changedSession)
+          coalescer.coalesce(msgList, sender)(msg => tellActionMsg(List(msg)))
+          persistSessionIfManyPatches()
+        case None =>
+          val errorMsg = s"Couldn't find group result with ID $groupResultId in database."
+          tellActionMsg(List(actionMsgBuilder.buildError(groupResultId, errorMsg, TellWhom.SenderOnly)))
+      }
 
     } else if (msg.json.keys.contains(GroupActionJsonKey.Recipient.toString)) {
       // We have a message intended for only one recipient (direct msg)
       // Recipient's study result ID comes as a string with quotes and we have to convert to Long
       val recipient = (msg.json \ GroupActionJsonKey.Recipient.toString).as[String]
           .replace("\"", "").toLong
+      coalescer.flush()
       tellRecipientOnly(msg, recipient)
 
     } else {
       // We have broadcast msg: Tell everyone except the sender
+      coalescer.flush()
       tellAllButSender(msg)
     }
   }
@@ -218,11 +402,13 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     */
   private def registerChannel(studyResultId: Long) = {
     logger.debug(s".registerChannel: groupResultId $groupResultId, studyResultId $studyResultId")
+    // The new member gets the current session data - they must not get the pending patches again
+    coalescer.flush()
     channelRegistry.register(studyResultId, sender)
     val msg1 = actionMsgBuilder.build(groupResultId, studyResultId,
-      channelRegistry, true, GroupAction.Opened, TellWhom.SenderOnly)
+      channelRegistry, currentSession, true, GroupAction.Opened, TellWhom.SenderOnly)
     val msg2 = actionMsgBuilder.build(groupResultId, studyResultId,
-      channelRegistry, false, GroupAction.Opened, TellWhom.AllButSender)
+      channelRegistry, currentSession, false, GroupAction.Opened, TellWhom.AllButSender)
     tellActionMsg(List(msg1, msg2))
   }
 
@@ -232,6 +418,7 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     */
   private def unregisterChannel(studyResultId: Long) = {
     logger.debug(s".unregisterChannel: groupResultId $groupResultId, studyResultId $studyResultId")
+    coalescer.flush()
 
     // Only unregister GroupChannelActor if it's the one from the sender (there
     // might be a new GroupChannelActor for the same StudyResult after a reload)
@@ -239,7 +426,7 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
         && channelRegistry.getChannel(studyResultId).get == sender) {
       channelRegistry.unregister(studyResultId)
       val msg = actionMsgBuilder.build(groupResultId, studyResultId,
-        channelRegistry, false, GroupAction.Closed, TellWhom.AllButSender)
+        channelRegistry, currentSession, false, GroupAction.Closed, TellWhom.AllButSender)
       tellActionMsg(List(msg))
     }
 
@@ -288,8 +475,9 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     */
   private def joined(studyResultId: Long) {
     logger.debug(s".joined: groupResultId $groupResultId studyResultId $studyResultId")
+    coalescer.flush()
     val msg = actionMsgBuilder.build(groupResultId, studyResultId,
-      channelRegistry, false, GroupAction.Joined, TellWhom.AllButSender)
+      channelRegistry, currentSession, false, GroupAction.Joined, TellWhom.AllButSender)
     tellAllButSender(msg)
   }
 
@@ -299,8 +487,9 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     */
   private def left(studyResultId: Long) = {
     logger.debug(s".left: groupResultId $groupResultId, studyResultId $studyResultId")
-    val msg = actionMsgBuilder.build(groupResultId, studyResultId, channelRegistry, false,
-      GroupAction.Left, TellWhom.AllButSender)
+    coalescer.flush()
+    val msg = actionMsgBuilder.build(groupResultId, studyResultId, channelRegistry,
+      currentSession, false, GroupAction.Left, TellWhom.AllButSender)
     tellAllButSender(msg)
   }
 
@@ -321,6 +510,38 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     }
   }
 
+  /**
+    * A channel had to drop messages to its client: sends it the current session that replaces
+    * the dropped patches. The pending patches are sent before so the snapshot is the newest
+    * message.
+    */
+  private def resendSession(studyResultId: Long): Unit = {
+    logger.debug(s".resendSession: groupResultId $groupResultId, studyResultId $studyResultId")
+    coalescer.flush()
+    currentSession.foreach(current => sender ! SessionSnapshot(SerializedMsg(
+      actionMsgBuilder.buildSessionReplace(current, TellWhom.SenderOnly).json)))
+  }
+
+  /**
+    * Sends the pending patches to everyone in the group in one SESSION message with the current
+    * session version and afterwards the held back answers with the same version
+    */
+  private def sendPending(patches: Option[JsArray], answers: Seq[(ActorRef, GroupMsg)]): Unit = {
+    session.foreach(current => {
+      patches.foreach(p => tellAll(actionMsgBuilder.buildSessionPatch(current, p, TellWhom.All)))
+      val version = GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(current.version))
+      answers.foreach { case (recipient, answer) =>
+        recipient ! GroupMsg(answer.json + version, answer.tellWhom)
+      }
+    })
+  }
+
+  /**
+    * Returns the action of a group action message (the JSON's 'action' field)
+    */
+  private def actionOf(msg: GroupMsg): String =
+    (msg.json \ GroupActionJsonKey.Action.toString).as[String]
+
   private def tellActionMsg(msgList: List[GroupMsg]) = {
     msgList.foreach(msg =>
       msg.tellWhom match {
@@ -333,22 +554,25 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
   }
 
   /**
-    * Sends the message to everyone in channelRegistry.
+    * Sends the message to everyone in channelRegistry. The message is serialized only once.
     */
   private def tellAll(msg: GroupMsg) = {
-    logger.debug(s".tellAll: groupResultId $groupResultId, msg ${Json.stringify(msg.json)}")
+    val serializedMsg = SerializedMsg(msg.json)
+    logger.debug(s".tellAll: groupResultId $groupResultId, msg ${serializedMsg.json}")
     for (actorRef <- channelRegistry.getAllChannels)
-      actorRef ! msg
+      actorRef ! serializedMsg
   }
 
   /**
-    * Sends the message to everyone in the group registry except the sender of this message.
+    * Sends the message to everyone in the group registry except the sender of this message. The
+    * message is serialized only once.
     */
   private def tellAllButSender(msg: GroupMsg) = {
+    val serializedMsg = SerializedMsg(msg.json)
     logger.debug(s".tellAllButSender: groupResultId $groupResultId, " +
-        s"msg ${Json.stringify(msg.json)}")
+        s"msg ${serializedMsg.json}")
     for (actorRef <- channelRegistry.getAllChannels)
-      if (actorRef != sender) actorRef ! msg
+      if (actorRef != sender) actorRef ! serializedMsg
   }
 
   /**
@@ -1,13 +1,20 @@
 package group
 
+import akka.Done
 import akka.actor.SupervisorStrategy.Resume
 import akka.actor.{Actor, ActorRef, ActorSystem, OneForOneStrategy}
-import group.GroupDispatcherRegistry.{Get, GetOrCreate, ItsThisOne, Unregister}
-import javax.inject.{Inject, Singleton}
+import akka.pattern.{ask, pipe}
+import akka.routing.ConsistentHashingRouter.ConsistentHashable
+import akka.util.Timeout
+import group.GroupDispatcher.PersistSessionNow
+import group.GroupDispatcherRegistry.{Get, GetOrCreate, ItsThisOne, PersistAllSessions, Unregister}
+import javax.inject.Inject
 import play.api.Logger
+import play.api.inject.ApplicationLifecycle
 import play.api.libs.concurrent.InjectedActorSupport
 
 import scala.collection.mutable
+import scala.concurrent.Future
 import scala.concurrent.duration._
 import scala.language.postfixOps
 
@@ -15,6 +22,10 @@ import scala.language.postfixOps
   * A GroupDispatcherRegistry is an Akka Actor keeps track of all
   * GroupDispatchers Actors.
   *
+  * The registry can be split into several shards (see DispatcherRegistryShards and
+  * 'jatos.channel.registryShards'). Then each shard keeps track of the GroupDispatchers of the
+  * group result IDs routed to it.
+  *
   * @author Kristian Lange (2015, 2017)
   */
 object GroupDispatcherRegistry {
@@ -25,13 +36,17 @@ object GroupDispatcherRegistry {
     * Used by the GroupChannel service to ask which GroupDispatcher actor manages a particular
     * group (specified by the group result ID).
     */
-  case class Get(groupResultId: Long) extends RegistryProtocol
+  case class Get(groupResultId: Long) extends RegistryProtocol with ConsistentHashable {
+    override def consistentHashKey: Any = groupResultId
+  }
 
   /**
     * Used by the GroupChannel service to ask which GroupDispatcher actor manages a particular
     * group (specified by the group result ID). If it doesn't exist, create a new one.
     */
-  case class GetOrCreate(groupResultId: Long) extends RegistryProtocol
+  case class GetOrCreate(groupResultId: Long) extends RegistryProtocol with ConsistentHashable {
+    override def consistentHashKey: Any = groupResultId
+  }
 
   /**
     * Used to answer the GroupChannel service which GroupDispatcher manages a particular group.
@@ -43,17 +58,29 @@ object GroupDispatcherRegistry {
     */
   case class Unregister(groupResultId: Long) extends RegistryProtocol
 
+  /**
+    * Used during JATOS' shutdown to let all GroupDispatchers write their group sessions into the
+    * database (while the database is still available). Answered with Done.
+    */
+  case object PersistAllSessions extends RegistryProtocol
+
 }
 
-@Singleton
 class GroupDispatcherRegistry @Inject()(actorSystem: ActorSystem,
                                         dispatcherFactory: GroupDispatcher.Factory,
                                         actionHandler: GroupActionHandler,
-                                        actionMsgBuilder: GroupActionMsgBuilder)
+                                        actionMsgBuilder: GroupActionMsgBuilder,
+                                        applicationLifecycle: ApplicationLifecycle)
     extends Actor with InjectedActorSupport {
 
   private val logger: Logger = Logger(this.getClass)
 
+  private implicit val timeout: Timeout = Timeout(10.seconds)
+
+  // Stop hooks run in reverse order of registration - this one runs before the database is closed.
+  // Each shard registers its own hook.
+  applicationLifecycle.addStopHook(() => self ? PersistAllSessions)
+
   /**
     * Override this Actor's supervisor strategy: in case of an Exception resume child actor without
     * stopping. This means that even if a GroupDispatcher throws an Exceptions it continues
@@ -88,5 +115,10 @@ class GroupDispatcherRegistry @Inject()(actorSystem: ActorSystem,
       // A Dispatcher closed down and wants to unregister
       dispatcherMap -= groupResultId
       logger.debug(s".receive: unregistered dispatcher for groupResult ID $groupResultId")
+    case PersistAllSessions =>
+      import context.dispatcher
+      val persisted = dispatcherMap.values.map(dispatcher =>
+        (dispatcher ? PersistSessionNow).recover { case _ => Done })
+      Future.sequence(persisted).map(_ => Done) pipeTo sender
   }
 }
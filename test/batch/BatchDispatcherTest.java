@@ -0,0 +1,185 @@
+package batch;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.testkit.javadsl.TestKit;
+import batch.BatchDispatcher.BatchMsg;
+import batch.BatchDispatcher.FlushPatches$;
+import batch.BatchDispatcher.RegisterChannel;
+import batch.BatchDispatcherRegistry.Unregister;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import general.SerializedMsg;
+import general.TestHelper;
+import models.common.Study;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.api.libs.json.JsObject;
+import play.api.libs.json.JsValue;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import play.libs.Json;
+
+import javax.inject.Inject;
+import java.time.Duration;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests the coalescing of batch session patches in the BatchDispatcher: the batch members get the patches of one
+ * coalescing window in one SESSION message and the SESSION_ACK/SESSION_FAIL answers afterwards with its version
+ *
+ * @author Kristian Lange
+ */
+public class BatchDispatcherTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private ActorSystem system;
+
+    @Inject
+    private BatchActionHandler actionHandler;
+
+    @Inject
+    private BatchActionMsgBuilder actionMsgBuilder;
+
+    private TestKit registry;
+    private ActorRef dispatcher;
+    private TestKit memberA;
+    private TestKit memberB;
+    private long version;
+
+    @Before
+    public void startApp() throws Exception {
+        // The window is never over by itself - the tests end it with FlushPatches
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()))
+                .configure("jatos.batchSession.coalesceWindow", "1h");
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        long batchId = study.getDefaultBatch().getId();
+        registry = new TestKit(system);
+        dispatcher = system.actorOf(Props.create(BatchDispatcher.class,
+                () -> new BatchDispatcher(registry.getRef(), actionHandler, actionMsgBuilder, batchId)));
+        memberA = new TestKit(system);
+        memberB = new TestKit(system);
+        dispatcher.tell(new RegisterChannel(1L), memberA.getRef());
+        version = toJsonNode(memberA.expectMsgClass(BatchMsg.class).json()).get("version").asLong();
+        dispatcher.tell(new RegisterChannel(2L), memberB.getRef());
+        memberB.expectMsgClass(BatchMsg.class);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Wait until the dispatcher persisted its session and stopped
+        dispatcher.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        registry.expectMsgClass(Unregister.class);
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    /**
+     * The patches of one window are sent in one SESSION message in the order they arrived and with the version of
+     * the last one. The SESSION_ACKs follow in their order and with the same version.
+     */
+    @Test
+    public void checkCoalescedPatchesKeepOrder() {
+        dispatcher.tell(patch(1, false, "[{\"op\":\"add\",\"path\":\"/a\",\"value\":1}]"), memberA.getRef());
+        dispatcher.tell(patch(2, false, "[{\"op\":\"add\",\"path\":\"/b\",\"value\":2}]"), memberA.getRef());
+        dispatcher.tell(patch(3, false, "[{\"op\":\"replace\",\"path\":\"/a\",\"value\":3}]"), memberA.getRef());
+
+        // Nothing is sent before the window is over
+        memberB.expectNoMessage(Duration.ofMillis(100));
+        flushPatches();
+
+        JsonNode session = toJsonNode(memberB.expectMsgClass(SerializedMsg.class).json());
+        assertThat(session.get("action").asText()).isEqualTo("SESSION");
+        assertThat(session.get("version").asLong()).isEqualTo(version + 3);
+        assertThat(session.get("patches")).isEqualTo(Json.parse("[{\"op\":\"add\",\"path\":\"/a\",\"value\":1},"
+                + "{\"op\":\"add\",\"path\":\"/b\",\"value\":2},{\"op\":\"replace\",\"path\":\"/a\",\"value\":3}]"));
+
+        assertThat(toJsonNode(memberA.expectMsgClass(SerializedMsg.class).json())).isEqualTo(session);
+        for (int id = 1; id <= 3; id++) {
+            JsonNode ack = toJsonNode(memberA.expectMsgClass(BatchMsg.class).json());
+            assertThat(ack.get("action").asText()).isEqualTo("SESSION_ACK");
+            assertThat(ack.get("id").asLong()).isEqualTo(id);
+            assertThat(ack.get("version").asLong()).isEqualTo(version + 3);
+        }
+    }
+
+    /**
+     * A SESSION_FAIL that is held back gets the version of the coalesced SESSION message too - not the version at
+     * the time it was created
+     */
+    @Test
+    public void checkHeldBackAnswersGetVersionOfCoalescedMsg() {
+        dispatcher.tell(patch(1, false, "[{\"op\":\"add\",\"path\":\"/a\",\"value\":1}]"), memberA.getRef());
+        // Wrong version with versioning: fails
+        dispatcher.tell(patch(2, true, "[{\"op\":\"add\",\"path\":\"/b\",\"value\":2}]"), memberA.getRef());
+        dispatcher.tell(patch(3, false, "[{\"op\":\"add\",\"path\":\"/c\",\"value\":3}]"), memberA.getRef());
+        flushPatches();
+
+        JsonNode session = toJsonNode(memberA.expectMsgClass(SerializedMsg.class).json());
+        assertThat(session.get("version").asLong()).isEqualTo(version + 2);
+        JsonNode ack1 = toJsonNode(memberA.expectMsgClass(BatchMsg.class).json());
+        assertThat(ack1.get("action").asText()).isEqualTo("SESSION_ACK");
+        assertThat(ack1.get("version").asLong()).isEqualTo(version + 2);
+        JsonNode fail = toJsonNode(memberA.expectMsgClass(BatchMsg.class).json());
+        assertThat(fail.get("action").asText()).isEqualTo("SESSION_FAIL");
+        assertThat(fail.get("id").asLong()).isEqualTo(2);
+        assertThat(fail.get("version").asLong()).isEqualTo(version + 2);
+        JsonNode ack3 = toJsonNode(memberA.expectMsgClass(BatchMsg.class).json());
+        assertThat(ack3.get("id").asLong()).isEqualTo(3);
+        assertThat(ack3.get("version").asLong()).isEqualTo(version + 2);
+    }
+
+    /**
+     * Clearing the whole session within a window makes the patches before void: only the patches from the clearing
+     * one on are sent
+     */
+    @Test
+    public void checkClearSessionWithinWindow() {
+        dispatcher.tell(patch(1, false, "[{\"op\":\"add\",\"path\":\"/a\",\"value\":1}]"), memberA.getRef());
+        dispatcher.tell(patch(2, false, "[{\"op\":\"remove\",\"path\":\"/\"},"
+                + "{\"op\":\"add\",\"path\":\"/c\",\"value\":3}]"), memberA.getRef());
+        flushPatches();
+
+        JsonNode session = toJsonNode(memberB.expectMsgClass(SerializedMsg.class).json());
+        assertThat(session.get("version").asLong()).isEqualTo(version + 2);
+        assertThat(session.get("patches")).isEqualTo(Json.parse("[{\"op\":\"remove\",\"path\":\"/\"},"
+                + "{\"op\":\"add\",\"path\":\"/c\",\"value\":3}]"));
+    }
+
+    /**
+     * Ends the coalescing window the same way the dispatcher's scheduled flush does
+     */
+    private void flushPatches() {
+        dispatcher.tell(FlushPatches$.MODULE$, ActorRef.noSender());
+    }
+
+    private BatchMsg patch(long id, boolean versioning, String patches) {
+        // With versioning the version is wrong on purpose
+        String json = "{\"action\":\"SESSION\",\"id\":" + id + ",\"version\":" + (versioning ? version - 1 : version)
+                + ",\"versioning\":" + versioning + ",\"patches\":" + patches + "}";
+        return new BatchMsg((JsObject) play.api.libs.json.Json.parse(json),
+                BatchDispatcher.TellWhom$.MODULE$.Unknown());
+    }
+
+    private static JsonNode toJsonNode(JsValue json) {
+        return Json.parse(play.api.libs.json.Json.stringify(json));
+    }
+
+}
@@ -0,0 +1,178 @@
+package controllers.publix;
+
+import akka.japi.Pair;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.scaladsl.Flow;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.StudyDao;
+import daos.common.worker.WorkerDao;
+import exceptions.publix.PublixException;
+import general.ChannelEncoding;
+import general.ChannelOptions;
+import general.TestHelper;
+import models.common.Study;
+import models.common.StudyResult;
+import models.common.workers.PersonalMultipleWorker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.api.http.websocket.Message;
+import play.api.http.websocket.TextMessage;
+import play.api.libs.json.JsValue;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import play.libs.Json;
+import scala.compat.java8.FutureConverters;
+import services.publix.ResultCreator;
+import services.publix.idcookie.IdCookieModel;
+import services.publix.idcookie.IdCookieTestHelper;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Load test for the opening of batch channels: many channels are opened at once and none of them blocks a thread while
+ * waiting for the BatchDispatcherRegistry or the BatchDispatcher.
+ *
+ * @author Kristian Lange
+ */
+public class ChannelLoadTest {
+
+    private static final int CHANNEL_NUMBER = 5000;
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private IdCookieTestHelper idCookieTestHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private StudyDao studyDao;
+
+    @Inject
+    private WorkerDao workerDao;
+
+    @Inject
+    private ResultCreator resultCreator;
+
+    @Inject
+    private PersonalMultipleBatchChannel batchChannel;
+
+    @Inject
+    private Materializer materializer;
+
+    /**
+     * The opened channels: their incoming message's promise (completing it closes the channel) and their first
+     * outgoing message
+     */
+    private final List<CompletableFuture<Pair<CompletableFuture<Optional<JsValue>>, CompletionStage<Message>>>>
+            channels = new ArrayList<>();
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Close all channels: their channel actors stop and unregister from the BatchDispatcher
+        List<CompletableFuture<?>> closed = new ArrayList<>();
+        for (CompletableFuture<Pair<CompletableFuture<Optional<JsValue>>, CompletionStage<Message>>> channel
+                : channels) {
+            closed.add(channel.thenAccept(c -> c.first().complete(Optional.empty())));
+        }
+        try {
+            CompletableFuture.allOf(closed.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            // A channel that failed to open has nothing to close
+        }
+
+        // Clean up
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    /**
+     * Opens 5000 batch channels of 5000 study runs at once from this one thread (the same way ChannelInterceptor does
+     * it) and checks that every channel gets its OPENED message
+     */
+    @Test
+    public void checkOpenManyBatchChannels() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<IdCookieModel> idCookies = createStudyRuns(study);
+
+        List<CompletableFuture<Message>> firstMsgs = new ArrayList<>();
+        ChannelOptions options = new ChannelOptions(ChannelEncoding.Json(), 0);
+        for (IdCookieModel idCookie : idCookies) {
+            // IdCookieService reads the ID cookie from the Http.Context
+            testHelper.mockContext(Collections.singletonList(idCookieTestHelper.buildCookie(idCookie)));
+            CompletionStage<Flow<JsValue, Message, ?>> flow = FutureConverters.toJava(jpaApi.withTransaction(() -> {
+                try {
+                    return batchChannel.open(study.getId(), idCookie.getStudyResultId(), options);
+                } catch (PublixException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+            // Materialize the channel like the WebSocket would do and get the first message sent to the client
+            CompletableFuture<Pair<CompletableFuture<Optional<JsValue>>, CompletionStage<Message>>> channel =
+                    flow.thenApply(f -> f.asJava().runWith(Source.<JsValue>maybe(), Sink.<Message>head(),
+                            materializer)).toCompletableFuture();
+            channels.add(channel);
+            firstMsgs.add(channel.thenCompose(Pair::second).toCompletableFuture());
+        }
+
+        CompletableFuture.allOf(firstMsgs.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        for (CompletableFuture<Message> firstMsg : firstMsgs) {
+            JsonNode json = Json.parse(((TextMessage) firstMsg.get()).data());
+            assertThat(json.get("action").asText()).isEqualTo("OPENED");
+        }
+    }
+
+    /**
+     * Creates CHANNEL_NUMBER study runs of one PersonalMultipleWorker and returns their ID cookies
+     */
+    private List<IdCookieModel> createStudyRuns(Study study) {
+        return jpaApi.withTransaction(() -> {
+            Study s = studyDao.findById(study.getId());
+            PersonalMultipleWorker worker = new PersonalMultipleWorker();
+            workerDao.create(worker);
+            List<IdCookieModel> idCookies = new ArrayList<>();
+            for (int i = 0; i < CHANNEL_NUMBER; i++) {
+                StudyResult studyResult = resultCreator.createStudyResult(s, s.getDefaultBatch(), worker);
+                IdCookieModel idCookie = idCookieTestHelper.buildDummyIdCookie(studyResult.getId());
+                idCookie.setWorkerId(worker.getId());
+                idCookie.setWorkerType(PersonalMultipleWorker.WORKER_TYPE);
+                idCookie.setBatchId(s.getDefaultBatch().getId());
+                idCookie.setStudyId(s.getId());
+                idCookies.add(idCookie);
+            }
+            return idCookies;
+        });
+    }
+
+}
@@ -0,0 +1,101 @@
+package daos.common;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import general.TestHelper;
+import models.common.Batch;
+import models.common.GroupResult;
+import models.common.Study;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+
+import javax.inject.Inject;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests GroupResultDao
+ *
+ * @author Kristian Lange
+ */
+public class GroupResultDaoTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private BatchDao batchDao;
+
+    @Inject
+    private GroupResultDao groupResultDao;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    /**
+     * Tests GroupResultDao.updateGroupSession (compare-and-set on the group session
+     * version) and GroupResultDao.removeGroupSession
+     */
+    @Test
+    public void checkUpdateAndRemoveGroupSession() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Long groupResultId = jpaApi.withTransaction(() -> {
+            Batch batch = batchDao.findById(study.getDefaultBatch().getId());
+            return groupResultDao.create(new GroupResult(batch)).getId();
+        });
+
+        boolean updated = jpaApi.withTransaction(() -> groupResultDao.updateGroupSession(
+                groupResultId, "{\"foo\":\"bar\"}", 5L, 1L));
+        assertThat(updated).isTrue();
+
+        // The stored version is now 5 - another write with the old one fails
+        boolean updatedAgain = jpaApi.withTransaction(() -> groupResultDao.updateGroupSession(
+                groupResultId, "{}", 6L, 1L));
+        assertThat(updatedAgain).isFalse();
+
+        // Changes to other fields of the GroupResult don't overwrite the group session
+        jpaApi.withTransaction(() -> {
+            GroupResult groupResult = groupResultDao.findById(groupResultId);
+            groupResult.setGroupSessionData("stale");
+            groupResultDao.update(groupResult);
+        });
+        jpaApi.withTransaction(() -> {
+            GroupResult groupResult = groupResultDao.findById(groupResultId);
+            assertThat(groupResult.getGroupSessionData()).isEqualTo("{\"foo\":\"bar\"}");
+            assertThat(groupResult.getGroupSessionVersion()).isEqualTo(5L);
+        });
+
+        // Removing the group session increases the version
+        jpaApi.withTransaction(() -> groupResultDao.removeGroupSession(groupResultId));
+        jpaApi.withTransaction(() -> {
+            GroupResult groupResult = groupResultDao.findById(groupResultId);
+            assertThat(groupResult.getGroupSessionData()).isNull();
+            assertThat(groupResult.getGroupSessionVersion()).isEqualTo(6L);
+        });
+    }
+
+}
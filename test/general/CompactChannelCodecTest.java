@@ -0,0 +1,141 @@
+package general;
+
+import org.junit.Test;
+import play.Logger;
+import play.Logger.ALogger;
+import play.api.http.websocket.BinaryMessage;
+import play.api.http.websocket.TextMessage;
+import play.api.libs.json.JsValue;
+import play.api.libs.json.Json;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests CompactChannelCodec and compares the compact channel encoding with JSON: bytes per message and the server's
+ * CPU time per serialized message
+ *
+ * @author Kristian Lange
+ */
+public class CompactChannelCodecTest {
+
+    private static final ALogger LOGGER = Logger.of(CompactChannelCodecTest.class);
+
+    private static final int ROUNDS = 100000;
+
+    private static final String[] MESSAGES = {
+            "{\"action\":\"SESSION\",\"sessionPatches\":[{\"op\":\"add\",\"path\":\"/player1\","
+                    + "\"value\":{\"x\":12,\"y\":7}}],\"sessionVersion\":1234}",
+            "{\"action\":\"SESSION_ACK\",\"sessionActionId\":57,\"sessionVersion\":1234}",
+            "{\"action\":\"JOINED\",\"groupResultId\":12,\"memberId\":101,\"members\":[101,102,103],"
+                    + "\"channels\":[101,102,103],\"groupState\":\"STARTED\"}",
+            "{\"action\":\"SESSION\",\"patches\":[{\"op\":\"replace\",\"path\":\"/count\",\"value\":3.5}],"
+                    + "\"version\":7}",
+            "{\"msg\":{\"text\":\"Hello\",\"time\":1571301234}}"
+    };
+
+    /**
+     * The compact encoding is smaller than JSON for every message
+     */
+    @Test
+    public void checkBytesPerMessage() {
+        for (String message : MESSAGES) {
+            JsValue json = Json.parse(message);
+            int jsonBytes = Json.stringify(json).getBytes(StandardCharsets.UTF_8).length;
+            int compactBytes = CompactChannelCodec.encode(json).length;
+            LOGGER.info("JSON " + jsonBytes + " bytes, compact " + compactBytes + " bytes: " + message);
+            assertThat(compactBytes).isLessThan(jsonBytes);
+        }
+    }
+
+    /**
+     * Top-level keys and actions used by JATOS are encoded as integers (CBOR map with integer keys) - everything
+     * else stays as it is
+     */
+    @Test
+    public void checkCodes() {
+        byte[] encoded = CompactChannelCodec.encode(Json.parse("{\"action\":\"SESSION\",\"foo\":\"SESSION\"}"));
+        // Indefinite-length map, key 0 ('action') with value 2 ('SESSION'), text key 'foo' with text 'SESSION'
+        assertThat(encoded[0] & 0xFF).isEqualTo(0xBF);
+        assertThat(encoded[1]).isEqualTo((byte) 0x00);
+        assertThat(encoded[2]).isEqualTo((byte) 0x02);
+        assertThat(encoded[3] & 0xFF).isEqualTo(0x63);
+        assertThat(new String(encoded, 4, 3, StandardCharsets.UTF_8)).isEqualTo("foo");
+    }
+
+    /**
+     * A CBOR message from the client is decoded into the same JSON
+     */
+    @Test
+    public void checkDecode() {
+        // Nested objects are written without codes - the same as a client would write them
+        JsValue json = Json.parse("[{\"sessionPatches\":[{\"op\":\"add\",\"path\":\"/a\",\"value\":[1,-2,3.5,true,null]}]}]");
+        byte[] nested = CompactChannelCodec.encode(json);
+        assertThat(CompactChannelCodec.isCbor(nested)).isFalse();
+        assertThat(CompactChannelCodec.decode(nested)).isEqualTo(json);
+
+        byte[] topLevel = CompactChannelCodec.encode(Json.parse("{\"foo\":\"bar\"}"));
+        assertThat(CompactChannelCodec.isCbor(topLevel)).isTrue();
+        assertThat(CompactChannelCodec.isCbor("{\"foo\":\"bar\"}".getBytes(StandardCharsets.UTF_8))).isFalse();
+        assertThat(CompactChannelCodec.decode(topLevel)).isEqualTo(Json.parse("{\"foo\":\"bar\"}"));
+    }
+
+    /**
+     * Numbers that don't fit into a long or a double are decoded with the same value they were encoded with
+     */
+    @Test
+    public void checkNumbersKeepPrecision() {
+        JsValue json = Json.parse("[{\"sessionPatches\":[{\"op\":\"add\",\"path\":\"/a\",\"value\":"
+                + "[12345678901234567890123,-98765432109876543210,0.1,3.14159265358979323846264338327950288,"
+                + "1E+400,9223372036854775807]}]}]");
+        assertThat(CompactChannelCodec.decode(CompactChannelCodec.encode(json))).isEqualTo(json);
+    }
+
+    /**
+     * Benchmark: CPU time per serialized message for JSON and the compact encoding
+     */
+    @Test
+    public void benchmarkCpuPerMessage() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        JsValue[] jsons = new JsValue[MESSAGES.length];
+        for (int i = 0; i < MESSAGES.length; i++) {
+            jsons[i] = Json.parse(MESSAGES[i]);
+        }
+
+        // Warm up
+        serialize(jsons, ROUNDS / 10, false);
+        serialize(jsons, ROUNDS / 10, true);
+
+        long start = threadMXBean.getCurrentThreadCpuTime();
+        long jsonBytes = serialize(jsons, ROUNDS, false);
+        long jsonNanos = threadMXBean.getCurrentThreadCpuTime() - start;
+
+        start = threadMXBean.getCurrentThreadCpuTime();
+        long compactBytes = serialize(jsons, ROUNDS, true);
+        long compactNanos = threadMXBean.getCurrentThreadCpuTime() - start;
+
+        long messages = (long) ROUNDS * jsons.length;
+        LOGGER.info("JSON: " + jsonBytes / messages + " bytes and " + jsonNanos / messages + " ns CPU per message");
+        LOGGER.info("Compact: " + compactBytes / messages + " bytes and " + compactNanos / messages
+                + " ns CPU per message");
+        assertThat(compactBytes).isLessThan(jsonBytes);
+    }
+
+    private long serialize(JsValue[] jsons, int rounds, boolean compact) {
+        long bytes = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (JsValue json : jsons) {
+                SerializedMsg msg = SerializedMsg.apply(json);
+                bytes += compact
+                        ? ((BinaryMessage) msg.binaryFrame()).data().size()
+                        : ((TextMessage) msg.textFrame()).data()
+                                .getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,91 @@
+package general;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.javadsl.TestKit;
+import batch.BatchDispatcherRegistry;
+import batch.BatchDispatcherRegistry.GetOrCreate;
+import batch.BatchDispatcherRegistry.ItsThisOne;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.Logger;
+import play.Logger.ALogger;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+
+import javax.inject.Inject;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Benchmark of the dispatcher registry shards: measures how many GetOrCreate messages (one per channel open) are
+ * answered per second with different numbers of shards. It checks too that the same batch ID always gets the same
+ * dispatcher.
+ *
+ * @author Kristian Lange
+ */
+public class DispatcherRegistryShardsTest {
+
+    private static final ALogger LOGGER = Logger.of(DispatcherRegistryShardsTest.class);
+
+    private static final int CHANNEL_OPENS = 20000;
+    private static final int BATCHES = 1000;
+    private static final int[] SHARDS = {1, 2, 4, 8, 16};
+
+    private Injector injector;
+
+    @Inject
+    private ActorSystem system;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @Test
+    public void benchmarkChannelOpens() {
+        for (int shards : SHARDS) {
+            new TestKit(system) {{
+                Props registryProps = Props.create(BatchDispatcherRegistry.class,
+                        () -> injector.getInstance(BatchDispatcherRegistry.class));
+                ActorRef registry = system.actorOf(DispatcherRegistryShards.props(registryProps, shards));
+
+                long start = System.nanoTime();
+                for (long i = 0; i < CHANNEL_OPENS; i++) {
+                    registry.tell(new GetOrCreate(i % BATCHES), getRef());
+                }
+                List<Object> answers = receiveN(CHANNEL_OPENS, Duration.ofSeconds(60));
+                long durationNanos = System.nanoTime() - start;
+                LOGGER.info("Registry shards " + shards + ": " + CHANNEL_OPENS + " channel opens in "
+                        + durationNanos / 1000000 + " ms (" + CHANNEL_OPENS * 1000000000L / durationNanos
+                        + " per second)");
+
+                // The same batch ID always gets the same dispatcher (answers of different shards come in any order -
+                // a dispatcher's actor name is its batch ID)
+                Map<Long, ActorRef> dispatchers = new HashMap<>();
+                for (Object answer : answers) {
+                    ActorRef dispatcher = ((ItsThisOne) answer).dispatcher();
+                    ActorRef previous = dispatchers.putIfAbsent(Long.valueOf(dispatcher.path().name()), dispatcher);
+                    if (previous != null) assertThat(previous).isEqualTo(dispatcher);
+                }
+                assertThat(dispatchers.size()).isEqualTo(BATCHES);
+                assertThat(dispatchers.values().stream().distinct().count()).isEqualTo((long) BATCHES);
+
+                system.stop(registry);
+            }};
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package general;
+
+import org.junit.Test;
+import play.api.http.websocket.BinaryMessage;
+import play.api.http.websocket.Message;
+import play.api.http.websocket.TextMessage;
+import play.api.libs.json.JsValue;
+import play.api.libs.json.Json;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests the frames of SerializedMsg in the different channel options
+ *
+ * @author Kristian Lange
+ */
+public class SerializedMsgTest {
+
+    private static final JsValue SMALL = Json.parse("{\"action\":\"SESSION_ACK\",\"sessionActionId\":57}");
+
+    private static final JsValue LARGE = Json.parse("{\"action\":\"SESSION\",\"data\":{\"text\":\""
+            + new String(new char[20000]).replace('\0', 'a') + "\"},\"version\":3}");
+
+    @Test
+    public void checkFramesWithoutDeflate() {
+        SerializedMsg msg = SerializedMsg.apply(LARGE);
+        Message json = msg.frame(new ChannelOptions(ChannelEncoding.Json(), 0));
+        Message compact = msg.frame(new ChannelOptions(ChannelEncoding.Compact(), 0));
+
+        assertThat(json).isSameAs(msg.textFrame());
+        assertThat(compact).isSameAs(msg.binaryFrame());
+    }
+
+    @Test
+    public void checkSmallFramesAreNotDeflated() {
+        SerializedMsg msg = SerializedMsg.apply(SMALL);
+        assertThat(msg.frame(new ChannelOptions(ChannelEncoding.Json(), 1000))).isSameAs(msg.textFrame());
+        assertThat(msg.frame(new ChannelOptions(ChannelEncoding.Compact(), 1000))).isSameAs(msg.binaryFrame());
+    }
+
+    @Test
+    public void checkLargeFramesAreDeflated() throws DataFormatException {
+        SerializedMsg msg = SerializedMsg.apply(LARGE);
+
+        // JSON: deflated into a binary frame and inflated into the same JSON text
+        byte[] deflatedJson = ((BinaryMessage) msg.frame(new ChannelOptions(ChannelEncoding.Json(), 1000)))
+                .data().toArray();
+        byte[] text = ((TextMessage) msg.textFrame()).data().getBytes(StandardCharsets.UTF_8);
+        assertThat(deflatedJson[0]).isEqualTo((byte) 0x78);
+        assertThat(deflatedJson.length).isLessThan(text.length);
+        assertThat(Json.parse(inflate(deflatedJson))).isEqualTo(LARGE);
+
+        // Compact: inflated into the same CBOR
+        byte[] deflatedCompact = ((BinaryMessage) msg.frame(new ChannelOptions(ChannelEncoding.Compact(), 1000)))
+                .data().toArray();
+        byte[] compact = ((BinaryMessage) msg.binaryFrame()).data().toArray();
+        assertThat(deflatedCompact[0]).isEqualTo((byte) 0x78);
+        assertThat(inflate(deflatedCompact)).isEqualTo(compact);
+    }
+
+    private byte[] inflate(byte[] deflated) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(deflated);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!inflater.finished()) {
+            out.write(buffer, 0, inflater.inflate(buffer));
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+
+}
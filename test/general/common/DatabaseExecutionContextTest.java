@@ -0,0 +1,76 @@
+package general.common;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.UserDao;
+import org.fest.assertions.Fail;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+
+import javax.inject.Inject;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests DatabaseExecutionContext
+ *
+ * @author Kristian Lange
+ */
+public class DatabaseExecutionContextTest {
+
+    private Injector injector;
+
+    @Inject
+    private DatabaseExecutionContext dbExecutionContext;
+
+    @Inject
+    private UserDao userDao;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()))
+                .configure("jatos.publix.async", true);
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    /**
+     * The supplier runs within a transaction on one of the pool's threads
+     */
+    @Test
+    public void checkWithTransaction() throws Exception {
+        String threadName = dbExecutionContext.withTransaction(() -> {
+            // Would fail without a transaction
+            assertThat(userDao.count()).isGreaterThan(0);
+            return Thread.currentThread().getName();
+        }).toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        assertThat(threadName).startsWith("jatos-db-");
+        assertThat(dbExecutionContext.getCompletedTaskCount()).isGreaterThan(0);
+        assertThat(dbExecutionContext.getQueueSize()).isEqualTo(0);
+    }
+
+    /**
+     * An exception thrown by the supplier completes the CompletionStage exceptionally
+     */
+    @Test
+    public void checkWithTransactionException() throws Exception {
+        assertThat(Common.isPublixAsync()).isTrue();
+        try {
+            dbExecutionContext.withTransaction(() -> {
+                throw new IllegalStateException("test");
+            }).toCompletableFuture().get(10, TimeUnit.SECONDS);
+            Fail.fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package general.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.ComponentDao;
+import daos.common.StudyDao;
+import general.TestHelper;
+import models.common.Batch;
+import models.common.Component;
+import models.common.Study;
+import models.common.StudyResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import play.libs.Json;
+import utils.common.JsonUtils;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests EntityVersions and the cached init data in JsonUtils
+ *
+ * @author Kristian Lange
+ */
+public class EntityVersionsTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private StudyDao studyDao;
+
+    @Inject
+    private ComponentDao componentDao;
+
+    @Inject
+    private JsonUtils jsonUtils;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    /**
+     * Changing a study increases its version only after the transaction is committed
+     */
+    @Test
+    public void checkChangedAfterCommit() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        long versionBefore = EntityVersions.lastChanged(Study.class, study.getId());
+
+        jpaApi.withTransaction(() -> {
+            Study s = studyDao.findById(study.getId());
+            s.setTitle("Changed title");
+            studyDao.update(s);
+            jpaApi.em().flush();
+            // Flushed but not yet committed
+            assertThat(EntityVersions.lastChanged(Study.class, study.getId())).isEqualTo(versionBefore);
+        });
+
+        assertThat(EntityVersions.lastChanged(Study.class, study.getId())).isGreaterThan(versionBefore);
+        assertThat(EntityVersions.isUnchangedSince(Study.class, study.getId(), versionBefore)).isFalse();
+        assertThat(EntityVersions.isUnchangedSince(Study.class, study.getId(), EntityVersions.current())).isTrue();
+    }
+
+    /**
+     * A change of a component is a change of its study too (the study's component list)
+     */
+    @Test
+    public void checkComponentChangeChangesStudy() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        long versionsSeen = EntityVersions.current();
+
+        jpaApi.withTransaction(() -> {
+            Component c = componentDao.findById(study.getFirstComponent().get().getId());
+            c.setTitle("Changed title");
+            componentDao.update(c);
+        });
+
+        Long componentId = study.getFirstComponent().get().getId();
+        assertThat(EntityVersions.isUnchangedSince(Component.class, componentId, versionsSeen)).isFalse();
+        assertThat(EntityVersions.isUnchangedSince(Study.class, study.getId(), versionsSeen)).isFalse();
+    }
+
+    /**
+     * The init data are served from the cache as long as the study doesn't change and are rebuilt after it changed
+     */
+    @Test
+    public void checkInitDataCache() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        StudyResult studyResult = new StudyResult();
+        studyResult.setStudySessionData("{\"foo\":\"bar\"}");
+        studyResult.setUrlQueryParameters("{}");
+
+        JsonNode initData1 = initData(study.getId(), studyResult);
+        assertThat(initData1.get("studySessionData").asText()).isEqualTo("{\"foo\":\"bar\"}");
+        assertThat(initData1.get("studyProperties").get("title").asText()).isEqualTo(study.getTitle());
+        assertThat(initData1.get("batchProperties")).isNotNull();
+        assertThat(initData1.get("componentList").size()).isEqualTo(study.getComponentList().size());
+        assertThat(initData1.get("componentProperties").get("id").asLong())
+                .isEqualTo(study.getFirstComponent().get().getId());
+        assertThat(initData1.get("urlQueryParameters").isObject()).isTrue();
+
+        // Same study, different session data
+        studyResult.setStudySessionData("other");
+        JsonNode initData2 = initData(study.getId(), studyResult);
+        assertThat(initData2.get("studySessionData").asText()).isEqualTo("other");
+        assertThat(initData2.get("studyProperties")).isEqualTo(initData1.get("studyProperties"));
+
+        // Change the study: the study properties must be rebuilt
+        jpaApi.withTransaction(() -> {
+            Study s = studyDao.findById(study.getId());
+            s.setTitle("Changed title");
+            studyDao.update(s);
+        });
+        JsonNode initData3 = initData(study.getId(), studyResult);
+        assertThat(initData3.get("studyProperties").get("title").asText()).isEqualTo("Changed title");
+    }
+
+    private JsonNode initData(Long studyId, StudyResult studyResult) {
+        long versionsSeen = EntityVersions.current();
+        return jpaApi.withTransaction(() -> {
+            try {
+                Study study = studyDao.findById(studyId);
+                Batch batch = study.getDefaultBatch();
+                Component component = study.getFirstComponent().get();
+                byte[] initData = jsonUtils.initData(batch, studyResult, study, component, versionsSeen);
+                return Json.mapper().readTree(initData);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+}
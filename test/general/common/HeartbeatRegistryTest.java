@@ -0,0 +1,144 @@
+package general.common;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.StudyResultDao;
+import general.TestHelper;
+import models.common.Study;
+import models.common.StudyResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import services.gui.ResultTestHelper;
+
+import javax.inject.Inject;
+import java.sql.Timestamp;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests HeartbeatRegistry: heartbeats are kept in memory until they are flushed into the database
+ *
+ * @author Kristian Lange
+ */
+public class HeartbeatRegistryTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private ResultTestHelper resultTestHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private StudyResultDao studyResultDao;
+
+    @Inject
+    private HeartbeatRegistry heartbeatRegistry;
+
+    @Before
+    public void startApp() throws Exception {
+        // The scheduled flush must not interfere with the tests
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()))
+                .configure("jatos.heartbeat.flushInterval", "1h");
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    /**
+     * A heartbeat is only kept in memory: the StudyResult's lastSeenDate in the database stays the same but
+     * getLastSeenDate returns the heartbeat's time
+     */
+    @Test
+    public void checkBeatIsBuffered() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        long studyResultId = resultTestHelper.createTwoStudyResults(study.getId()).get(0);
+        Timestamp storedBefore = findLastSeenDate(studyResultId);
+
+        long before = System.currentTimeMillis();
+        heartbeatRegistry.beat(studyResultId);
+
+        assertThat(findLastSeenDate(studyResultId)).isEqualTo(storedBefore);
+        jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(studyResultId);
+            Timestamp lastSeenDate = heartbeatRegistry.getLastSeenDate(studyResult);
+            assertThat(lastSeenDate).isNotNull();
+            assertThat(lastSeenDate.getTime()).isGreaterThanOrEqualTo(before);
+        });
+    }
+
+    /**
+     * HeartbeatRegistry.freshest returns the newer one of the given lastSeenDate and the one kept in memory
+     */
+    @Test
+    public void checkFreshest() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        long studyResultId = resultTestHelper.createTwoStudyResults(study.getId()).get(0);
+        Timestamp older = new Timestamp(System.currentTimeMillis() - 60000);
+        Timestamp newer = new Timestamp(System.currentTimeMillis() + 60000);
+
+        // No heartbeat yet: the given lastSeenDate is returned
+        assertThat(heartbeatRegistry.freshest(null, studyResultId)).isNull();
+        assertThat(heartbeatRegistry.freshest(older, studyResultId)).isEqualTo(older);
+
+        heartbeatRegistry.beat(studyResultId);
+        Timestamp pending = heartbeatRegistry.freshest(null, studyResultId);
+        assertThat(pending).isNotNull();
+        assertThat(heartbeatRegistry.freshest(older, studyResultId)).isEqualTo(pending);
+        assertThat(heartbeatRegistry.freshest(newer, studyResultId)).isEqualTo(newer);
+
+        // Other study results aren't affected
+        assertThat(heartbeatRegistry.freshest(older, studyResultId + 1)).isEqualTo(older);
+    }
+
+    /**
+     * HeartbeatRegistry.flush writes the heartbeats into the StudyResults' lastSeenDate and removes them from memory
+     */
+    @Test
+    public void checkFlush() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> studyResultIds = resultTestHelper.createTwoStudyResults(study.getId());
+        heartbeatRegistry.beat(studyResultIds.get(0));
+        heartbeatRegistry.beat(studyResultIds.get(1));
+        Timestamp pending1 = heartbeatRegistry.freshest(null, studyResultIds.get(0));
+        Timestamp pending2 = heartbeatRegistry.freshest(null, studyResultIds.get(1));
+
+        heartbeatRegistry.flush();
+
+        assertThat(findLastSeenDate(studyResultIds.get(0)).getTime()).isEqualTo(pending1.getTime());
+        assertThat(findLastSeenDate(studyResultIds.get(1)).getTime()).isEqualTo(pending2.getTime());
+        assertThat(heartbeatRegistry.freshest(null, studyResultIds.get(0))).isNull();
+        assertThat(heartbeatRegistry.freshest(null, studyResultIds.get(1))).isNull();
+
+        // Nothing left to flush
+        heartbeatRegistry.flush();
+        assertThat(findLastSeenDate(studyResultIds.get(0)).getTime()).isEqualTo(pending1.getTime());
+    }
+
+    /**
+     * Reads the StudyResult's lastSeenDate from the database in a new transaction
+     */
+    private Timestamp findLastSeenDate(long studyResultId) {
+        return jpaApi.withTransaction(() -> studyResultDao.findById(studyResultId).getLastSeenDate());
+    }
+
+}
@@ -0,0 +1,177 @@
+package group;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.BatchDao;
+import daos.common.GroupResultDao;
+import general.TestHelper;
+import models.common.Batch;
+import models.common.GroupResult;
+import models.common.Study;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import scala.Option;
+
+import javax.inject.Inject;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests GroupAllocator
+ *
+ * @author Kristian Lange
+ */
+public class GroupAllocatorTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private BatchDao batchDao;
+
+    @Inject
+    private GroupResultDao groupResultDao;
+
+    @Inject
+    private GroupAllocator groupAllocator;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    /**
+     * The open group with the most active members is picked - groups that reached the max are never picked
+     */
+    @Test
+    public void checkFindOpenGroup() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Long batchId = setMaxActiveMembers(study, 3);
+        Long groupId1 = createGroupResult(batchId, 1);
+        Long groupId2 = createGroupResult(batchId, 2);
+        createGroupResult(batchId, 3);
+
+        assertThat(findOpenGroupId(batchId, null)).isEqualTo(groupId2);
+        // Excluded group is skipped
+        assertThat(findOpenGroupId(batchId, groupId2)).isEqualTo(groupId1);
+    }
+
+    /**
+     * After a group is updated the allocator picks according to the new member counts
+     */
+    @Test
+    public void checkUpdate() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Long batchId = setMaxActiveMembers(study, 3);
+        Long groupId1 = createGroupResult(batchId, 1);
+        Long groupId2 = createGroupResult(batchId, 2);
+        assertThat(findOpenGroupId(batchId, null)).isEqualTo(groupId2);
+
+        // Group 2 is full now
+        setActiveMemberCount(groupId2, 3, true);
+        assertThat(findOpenGroupId(batchId, null)).isEqualTo(groupId1);
+
+        // No open group anymore
+        setActiveMemberCount(groupId1, 3, true);
+        assertThat(findOpenGroupId(batchId, null)).isNull();
+    }
+
+    /**
+     * Changes in the database that the allocator doesn't know of are noticed and the open groups are loaded again
+     */
+    @Test
+    public void checkOutdated() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Long batchId = setMaxActiveMembers(study, 3);
+        Long groupId1 = createGroupResult(batchId, 1);
+        Long groupId2 = createGroupResult(batchId, 2);
+        assertThat(findOpenGroupId(batchId, null)).isEqualTo(groupId2);
+
+        // Group 2 is full but the allocator isn't told
+        setActiveMemberCount(groupId2, 3, false);
+        assertThat(findOpenGroupId(batchId, null)).isEqualTo(groupId1);
+
+        // A new group is created in the database but the allocator isn't told
+        setActiveMemberCount(groupId1, 3, false);
+        Long groupId3 = createGroupResult(batchId, 0);
+        assertThat(findOpenGroupId(batchId, null)).isEqualTo(groupId3);
+
+        // Batch's max members changed: group 1 and 2 are open again
+        setMaxActiveMembers(study, 4);
+        assertThat(findOpenGroupId(batchId, null)).isNotEqualTo(groupId3);
+    }
+
+    /**
+     * If there is no open group in memory the database isn't asked again: a group the allocator isn't told of is only
+     * found after an update
+     */
+    @Test
+    public void checkNoOpenGroupTrustsMemory() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Long batchId = setMaxActiveMembers(study, 3);
+        assertThat(findOpenGroupId(batchId, null)).isNull();
+
+        Long groupId = createGroupResult(batchId, 1);
+        assertThat(findOpenGroupId(batchId, null)).isNull();
+
+        setActiveMemberCount(groupId, 1, true);
+        assertThat(findOpenGroupId(batchId, null)).isEqualTo(groupId);
+    }
+
+    private Long setMaxActiveMembers(Study study, Integer maxActiveMembers) {
+        return jpaApi.withTransaction(() -> {
+            Batch batch = batchDao.findById(study.getDefaultBatch().getId());
+            batch.setMaxActiveMembers(maxActiveMembers);
+            batchDao.update(batch);
+            return batch.getId();
+        });
+    }
+
+    private Long createGroupResult(Long batchId, int activeMemberCount) {
+        return jpaApi.withTransaction(() -> {
+            GroupResult groupResult = new GroupResult(batchDao.findById(batchId));
+            groupResult.setActiveMemberCount(activeMemberCount);
+            return groupResultDao.create(groupResult).getId();
+        });
+    }
+
+    private void setActiveMemberCount(Long groupResultId, int activeMemberCount, boolean tellAllocator) {
+        jpaApi.withTransaction(() -> {
+            GroupResult groupResult = groupResultDao.findById(groupResultId);
+            groupResult.setActiveMemberCount(activeMemberCount);
+            groupResultDao.update(groupResult);
+            if (tellAllocator) groupAllocator.update(groupResult);
+        });
+    }
+
+    private Long findOpenGroupId(Long batchId, Long excludedGroupResultId) {
+        return jpaApi.withTransaction(() -> {
+            Option<GroupResult> groupResult = groupAllocator.findOpenGroup(batchDao.findById(batchId),
+                    Option.<Object>apply(excludedGroupResultId));
+            return groupResult.isDefined() ? groupResult.get().getId() : null;
+        });
+    }
+
+}
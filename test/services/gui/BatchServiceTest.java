@@ -240,4 +240,35 @@ public class BatchServiceTest {
 
     }
 
+    /**
+     * BatchDao.updateBatchSession writes the batch session only if the stored
+     * version is the expected one (compare-and-set used by the BatchDispatcher)
+     */
+    @Test
+    public void checkUpdateBatchSession() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Long batchId = study.getDefaultBatch().getId();
+        long version = jpaApi.withTransaction(
+                () -> batchDao.findById(batchId).getBatchSessionVersion());
+
+        boolean updated = jpaApi.withTransaction(() -> batchDao.updateBatchSession(
+                batchId, "{\"foo\":\"bar\"}", version + 3, version));
+        assertThat(updated).isTrue();
+
+        // The stored version is now version + 3 - another write with the old one fails
+        boolean updatedAgain = jpaApi.withTransaction(() -> batchDao.updateBatchSession(
+                batchId, "{}", version + 4, version));
+        assertThat(updatedAgain).isFalse();
+
+        jpaApi.withTransaction(() -> {
+            Batch batch = batchDao.findById(batchId);
+            assertThat(batch.getBatchSessionData()).isEqualTo("{\"foo\":\"bar\"}");
+            assertThat(batch.getBatchSessionVersion()).isEqualTo(version + 3);
+        });
+
+        // Non-existing batch
+        assertThat(jpaApi.withTransaction(
+                () -> batchDao.updateBatchSession(-1L, "{}", 2, 1))).isFalse();
+    }
+
 }
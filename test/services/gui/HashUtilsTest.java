@@ -5,8 +5,10 @@ import org.junit.Test;
 import utils.common.HashUtils;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 
 import static org.fest.assertions.Assertions.assertThat;
 
@@ -56,6 +58,17 @@ public class HashUtilsTest {
         assertThat(hash).isEqualTo("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855");
     }
 
+    /**
+     * Hashing a string in parts with a MessageDigest gives the same hash as hashing the whole string at once
+     */
+    @Test
+    public void checkGetHashIncremental() {
+        MessageDigest digest = HashUtils.getDigest(HashUtils.SHA_256);
+        digest.update("bl".getBytes(StandardCharsets.ISO_8859_1));
+        digest.update("a".getBytes(StandardCharsets.ISO_8859_1));
+        assertThat(HashUtils.getHash(digest)).isEqualTo(HashUtils.getHash("bla", HashUtils.SHA_256));
+    }
+
     @Test
     public void checkGetFileHash() {
         String hash = null;
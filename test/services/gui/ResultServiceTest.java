@@ -1,16 +1,29 @@
 package services.gui;
 
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import daos.common.ComponentResultDao;
+import daos.common.StudyDao;
+import daos.common.StudyResultDao;
 import daos.common.UserDao;
 import exceptions.gui.BadRequestException;
 import exceptions.gui.ForbiddenException;
 import exceptions.gui.NotFoundException;
 import general.TestHelper;
 import general.common.MessagesStrings;
+import models.common.Component;
 import models.common.ComponentResult;
+import models.common.ComponentResultTableRow;
+import models.common.ResultFile;
+import models.common.ResultPageQuery;
 import models.common.Study;
 import models.common.StudyResult;
+import models.common.StudyResult.StudyState;
 import models.common.User;
 import org.fest.assertions.Fail;
 import org.junit.After;
@@ -21,10 +34,15 @@ import play.Environment;
 import play.db.jpa.JPAApi;
 import play.inject.guice.GuiceApplicationBuilder;
 import play.inject.guice.GuiceApplicationLoader;
+import play.libs.Json;
+import scala.Option;
 
 import javax.inject.Inject;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.fest.assertions.Assertions.assertThat;
 
@@ -55,6 +73,18 @@ public class ResultServiceTest {
     @Inject
     private UserDao userDao;
 
+    @Inject
+    private StudyDao studyDao;
+
+    @Inject
+    private StudyResultDao studyResultDao;
+
+    @Inject
+    private ComponentResultDao componentResultDao;
+
+    @Inject
+    private Materializer materializer;
+
     @Before
     public void startApp() throws Exception {
         GuiceApplicationBuilder builder = new GuiceApplicationLoader()
@@ -359,4 +389,344 @@ public class ResultServiceTest {
         testHelper.removeUser(TestHelper.BLA_EMAIL);
     }
 
+    /**
+     * StudyResults are streamed as JSON separated by ',\n' - all or up to max
+     */
+    @Test
+    public void checkStreamStudyResults() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> ids = resultTestHelper.createTwoStudyResults(study.getId());
+        User admin = jpaApi.withTransaction(() -> userDao.findByUsername(UserService.ADMIN_USERNAME));
+
+        JsonNode all = streamAsJsonArray(resultService.streamStudyResults(admin, Option.empty(),
+                em -> studyResultDao.findAllByStudyScrollable(em, study)));
+        assertThat(all.size()).isEqualTo(2);
+        assertThat(all.get(0).get("id").asLong()).isEqualTo(ids.get(0));
+        assertThat(all.get(1).get("id").asLong()).isEqualTo(ids.get(1));
+
+        JsonNode one = streamAsJsonArray(resultService.streamStudyResults(admin, Option.apply(1),
+                em -> studyResultDao.findAllByStudyScrollable(em, study)));
+        assertThat(one.size()).isEqualTo(1);
+    }
+
+    /**
+     * StudyResults the user isn't allowed to see are skipped
+     */
+    @Test
+    public void checkStreamStudyResultsWrongUser() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        resultTestHelper.createTwoStudyResults(study.getId());
+        User testUser = testHelper.createAndPersistUser(TestHelper.BLA_EMAIL, "Bla", "bla");
+
+        JsonNode none = streamAsJsonArray(resultService.streamStudyResults(testUser, Option.empty(),
+                em -> studyResultDao.findAllByStudyScrollable(em, study)));
+        assertThat(none.size()).isEqualTo(0);
+
+        testHelper.removeUser(TestHelper.BLA_EMAIL);
+    }
+
+    /**
+     * StudyResult table rows are streamed with their ComponentResults and a preview of the result data. Data longer
+     * than the preview (here because of an appended chunk) are truncated.
+     */
+    @Test
+    public void checkStreamStudyResultTableRows() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> ids = resultTestHelper.createTwoStudyResults(study.getId());
+        User admin = jpaApi.withTransaction(() -> userDao.findByUsername(UserService.ADMIN_USERNAME));
+        String longData = new String(new char[ComponentResultTableRow.DATA_PREVIEW_LENGTH]).replace('\0', 'a');
+        jpaApi.withTransaction(() -> {
+            ComponentResult componentResult = studyResultDao.findById(ids.get(1)).getComponentResultList().get(1);
+            componentResultDao.appendData(componentResult, longData);
+        });
+
+        JsonNode all = streamAsJsonArray(resultService.streamStudyResultTableRows(Option.empty(),
+                em -> studyResultDao.findTableRowsByStudyScrollable(em, study, admin)));
+        assertThat(all.size()).isEqualTo(2);
+        assertThat(all.get(0).get("id").asLong()).isEqualTo(ids.get(0));
+        assertThat(all.get(0).get("studyId").asLong()).isEqualTo(study.getId());
+        assertThat(all.get(0).get("worker").get("id").asLong()).isEqualTo(admin.getWorker().getId());
+
+        JsonNode componentResults1 = all.get(0).get("componentResults");
+        assertThat(componentResults1.size()).isEqualTo(2);
+        assertThat(componentResults1.get(0).get("data").asText())
+                .isEqualTo("First ComponentResult's data of the first StudyResult.");
+        assertThat(componentResults1.get(0).get("dataTruncated").asBoolean()).isFalse();
+        assertThat(componentResults1.get(1).get("data").asText())
+                .isEqualTo("Second ComponentResult's data of the first StudyResult.");
+
+        JsonNode truncated = all.get(1).get("componentResults").get(1);
+        assertThat(truncated.get("dataTruncated").asBoolean()).isTrue();
+        assertThat(truncated.get("data").asText()).startsWith("Second ComponentResult's data of the second");
+        assertThat(truncated.get("data").asText().length())
+                .isEqualTo(ComponentResultTableRow.DATA_PREVIEW_LENGTH + " ...".length());
+
+        JsonNode one = streamAsJsonArray(resultService.streamStudyResultTableRows(Option.apply(1),
+                em -> studyResultDao.findTableRowsByStudyScrollable(em, study, admin)));
+        assertThat(one.size()).isEqualTo(1);
+    }
+
+    /**
+     * StudyResult table rows of studies the user isn't a member of are never fetched
+     */
+    @Test
+    public void checkStreamStudyResultTableRowsWrongUser() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        resultTestHelper.createTwoStudyResults(study.getId());
+        User testUser = testHelper.createAndPersistUser(TestHelper.BLA_EMAIL, "Bla", "bla");
+
+        JsonNode none = streamAsJsonArray(resultService.streamStudyResultTableRows(Option.empty(),
+                em -> studyResultDao.findTableRowsByStudyScrollable(em, study, testUser)));
+        assertThat(none.size()).isEqualTo(0);
+
+        testHelper.removeUser(TestHelper.BLA_EMAIL);
+    }
+
+    /**
+     * The filenames of uploaded result files come from the index of result files - putting the same file twice only
+     * updates its entry
+     */
+    @Test
+    public void checkStreamStudyResultTableRowsFiles() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> ids = resultTestHelper.createTwoStudyResults(study.getId());
+        User admin = jpaApi.withTransaction(() -> userDao.findByUsername(UserService.ADMIN_USERNAME));
+        jpaApi.withTransaction(() -> {
+            ComponentResult componentResult = studyResultDao.findById(ids.get(0)).getComponentResultList().get(0);
+            componentResultDao.putResultFile(componentResult, "b.txt", 10);
+            componentResultDao.putResultFile(componentResult, "a.txt", 10);
+            componentResultDao.putResultFile(componentResult, "a.txt", 20);
+        });
+        // An already loaded list of result files is kept in sync
+        jpaApi.withTransaction(() -> {
+            ComponentResult componentResult = studyResultDao.findById(ids.get(0)).getComponentResultList().get(0);
+            assertThat(componentResult.getResultFileList().size()).isEqualTo(2);
+            componentResultDao.putResultFile(componentResult, "a.txt", 30);
+            componentResultDao.putResultFile(componentResult, "c.txt", 10);
+            assertThat(componentResult.getResultFileList().size()).isEqualTo(3);
+            assertThat(componentResult.getResultFileList().stream()
+                    .filter(resultFile -> resultFile.getFilename().equals("a.txt"))
+                    .mapToLong(ResultFile::getSize).sum()).isEqualTo(30);
+        });
+
+        JsonNode all = streamAsJsonArray(resultService.streamStudyResultTableRows(Option.empty(),
+                em -> studyResultDao.findTableRowsByStudyScrollable(em, study, admin)));
+        assertThat(all.get(0).get("hasResultFiles").asBoolean()).isTrue();
+        JsonNode files = all.get(0).get("componentResults").get(0).get("files");
+        assertThat(files.size()).isEqualTo(3);
+        assertThat(files.get(0).asText()).isEqualTo("a.txt");
+        assertThat(files.get(1).asText()).isEqualTo("b.txt");
+        assertThat(files.get(2).asText()).isEqualTo("c.txt");
+        assertThat(all.get(1).get("hasResultFiles").asBoolean()).isFalse();
+
+        // Removing the StudyResult's data removes its index entries too
+        jpaApi.withTransaction(() -> {
+            ComponentResult componentResult = studyResultDao.findById(ids.get(0)).getComponentResultList().get(0);
+            componentResultDao.removeResultFiles(componentResult);
+        });
+        all = streamAsJsonArray(resultService.streamStudyResultTableRows(Option.empty(),
+                em -> studyResultDao.findTableRowsByStudyScrollable(em, study, admin)));
+        assertThat(all.get(0).get("componentResults").get(0).get("files").size()).isEqualTo(0);
+    }
+
+    /**
+     * StudyResults pages are linked by the cursor in 'next' - in both sort orders and sorted by ID or start date
+     */
+    @Test
+    public void checkGetStudyResultsPage() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> ids = resultTestHelper.createTwoStudyResults(study.getId());
+
+        jpaApi.withTransaction(() -> {
+            User admin = userDao.findByUsername(UserService.ADMIN_USERNAME);
+            for (String sort : new String[]{"id", "startDate"}) {
+                // Ascending: first page has the first result, second page the second and no next page
+                ResultPageQuery page = pageQuery("sort", sort, "limit", "1");
+                JsonNode first = resultService.getStudyResultsPage(study, page, admin);
+                assertThat(first.get("data").size()).isEqualTo(1);
+                assertThat(first.get("data").get(0).get("id").asLong()).isEqualTo(ids.get(0));
+                assertThat(first.get("data").get(0).get("componentResults").size()).isEqualTo(2);
+                assertThat(first.get("next").isNull()).isFalse();
+
+                page = pageQuery("sort", sort, "limit", "1", "after", first.get("next").asText());
+                JsonNode second = resultService.getStudyResultsPage(study, page, admin);
+                assertThat(second.get("data").size()).isEqualTo(1);
+                assertThat(second.get("data").get(0).get("id").asLong()).isEqualTo(ids.get(1));
+                assertThat(second.get("next").isNull()).isTrue();
+
+                // Descending
+                page = pageQuery("sort", sort, "order", "desc", "limit", "10");
+                JsonNode all = resultService.getStudyResultsPage(study, page, admin);
+                assertThat(all.get("data").size()).isEqualTo(2);
+                assertThat(all.get("data").get(0).get("id").asLong()).isEqualTo(ids.get(1));
+                assertThat(all.get("next").isNull()).isTrue();
+            }
+        });
+    }
+
+    /**
+     * StudyResults pages can be filtered by state, worker type and batch
+     */
+    @Test
+    public void checkGetStudyResultsPageFiltered() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        resultTestHelper.createTwoStudyResults(study.getId());
+
+        jpaApi.withTransaction(() -> {
+            User admin = userDao.findByUsername(UserService.ADMIN_USERNAME);
+            ResultPageQuery page = pageQuery("state", StudyState.STARTED.name(), "workerType", "Jatos",
+                    "batchId", study.getDefaultBatch().getId().toString());
+            assertThat(resultService.getStudyResultsPage(study, page, admin).get("data").size()).isEqualTo(2);
+
+            page = pageQuery("state", StudyState.FINISHED.name() + "," + StudyState.FAIL.name());
+            assertThat(resultService.getStudyResultsPage(study, page, admin).get("data").size()).isEqualTo(0);
+
+            page = pageQuery("workerType", "MT");
+            assertThat(resultService.getStudyResultsPage(study, page, admin).get("data").size()).isEqualTo(0);
+        });
+    }
+
+    /**
+     * StudyResults pages of a worker are linked by the cursor in 'next' and have only the StudyResults of studies the
+     * user is a member of
+     */
+    @Test
+    public void checkGetStudyResultsPageByWorker() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> ids = resultTestHelper.createTwoStudyResults(study.getId());
+        testHelper.createAndPersistUser(TestHelper.BLA_EMAIL, "Bla", "bla");
+
+        jpaApi.withTransaction(() -> {
+            User admin = userDao.findByUsername(UserService.ADMIN_USERNAME);
+            ResultPageQuery page = pageQuery("limit", "1");
+            JsonNode first = resultService.getStudyResultsPageByWorker(admin.getWorker(), page, admin);
+            assertThat(first.get("data").size()).isEqualTo(1);
+            assertThat(first.get("data").get(0).get("id").asLong()).isEqualTo(ids.get(0));
+            assertThat(first.get("data").get(0).get("workerId").asLong()).isEqualTo(admin.getWorker().getId());
+
+            page = pageQuery("limit", "1", "after", first.get("next").asText());
+            JsonNode second = resultService.getStudyResultsPageByWorker(admin.getWorker(), page, admin);
+            assertThat(second.get("data").size()).isEqualTo(1);
+            assertThat(second.get("data").get(0).get("id").asLong()).isEqualTo(ids.get(1));
+            assertThat(second.get("next").isNull()).isTrue();
+
+            // Bla isn't a member of the study
+            User bla = userDao.findByUsername(TestHelper.BLA_EMAIL);
+            page = pageQuery("limit", "10");
+            assertThat(resultService.getStudyResultsPageByWorker(admin.getWorker(), page, bla).get("data").size())
+                    .isEqualTo(0);
+        });
+
+        testHelper.removeUser(TestHelper.BLA_EMAIL);
+    }
+
+    /**
+     * ComponentResults pages are linked by the cursor in 'next'. Their rows have a preview of the data and the fields
+     * of their StudyResult and worker.
+     */
+    @Test
+    public void checkGetComponentResultsPage() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> ids = resultTestHelper.createTwoStudyResults(study.getId());
+
+        jpaApi.withTransaction(() -> {
+            User admin = userDao.findByUsername(UserService.ADMIN_USERNAME);
+            Component component = studyDao.findById(study.getId()).getFirstComponent().get();
+            ResultPageQuery page = pageQuery("limit", "3");
+            JsonNode first = resultService.getComponentResultsPage(component, page, admin);
+            assertThat(first.get("data").size()).isEqualTo(3);
+            JsonNode row = first.get("data").get(0);
+            assertThat(row.get("studyResultId").asLong()).isEqualTo(ids.get(0));
+            assertThat(row.get("componentId").asLong()).isEqualTo(component.getId());
+            assertThat(row.get("studyId").asLong()).isEqualTo(study.getId());
+            assertThat(row.get("workerId").asLong()).isEqualTo(admin.getWorker().getId());
+            assertThat(row.get("workerType").asText()).isEqualTo(admin.getWorker().getWorkerType());
+            assertThat(row.get("batchTitle").asText()).isEqualTo(study.getDefaultBatch().getTitle());
+            assertThat(row.get("data").asText()).startsWith("First ComponentResult");
+            assertThat(row.get("dataTruncated").asBoolean()).isFalse();
+            assertThat(row.get("files").size()).isEqualTo(0);
+            assertThat(first.get("next").isNull()).isFalse();
+
+            page = pageQuery("limit", "3", "after", first.get("next").asText());
+            JsonNode second = resultService.getComponentResultsPage(component, page, admin);
+            assertThat(second.get("data").size()).isEqualTo(1);
+            assertThat(second.get("data").get(0).get("studyResultId").asLong()).isEqualTo(ids.get(1));
+            assertThat(second.get("next").isNull()).isTrue();
+
+            // Descending
+            page = pageQuery("order", "desc", "limit", "10");
+            JsonNode all = resultService.getComponentResultsPage(component, page, admin);
+            assertThat(all.get("data").size()).isEqualTo(4);
+            assertThat(all.get("data").get(0).get("id").asLong())
+                    .isEqualTo(second.get("data").get(0).get("id").asLong());
+        });
+    }
+
+    @Test
+    public void checkGetPageQueryInvalid() {
+        for (String[] params : new String[][]{{"sort", "title"}, {"order", "up"}, {"limit", "ten"},
+                {"state", "DONE"}, {"from", "yesterday"}, {"after", "1_2"}}) {
+            try {
+                resultService.getPageQuery(queryString(params), StudyState.class);
+                Fail.fail();
+            } catch (BadRequestException e) {
+                assertThat(e.getMessage()).contains(params[0]);
+            }
+        }
+    }
+
+    /**
+     * ResultService.streamResultData streams the submitted data followed by the appended chunks in their order
+     */
+    @Test
+    public void checkStreamResultData() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> ids = resultTestHelper.createTwoComponentResults(study.getId());
+        jpaApi.withTransaction(() -> {
+            ComponentResult componentResult = componentResultDao.findById(ids.get(0));
+            componentResultDao.appendData(componentResult, " first chunk");
+            componentResultDao.appendData(componentResult, " second chunk");
+            // No submitted data - only chunks
+            ComponentResult componentResultWithoutData = componentResultDao.findById(ids.get(1));
+            componentResultWithoutData.setData(null);
+            componentResultDao.update(componentResultWithoutData);
+            componentResultDao.appendData(componentResultWithoutData, "only chunk");
+        });
+
+        Source<ByteString, ?> source = jpaApi.withTransaction(
+                () -> resultService.streamResultData(componentResultDao.findById(ids.get(0))));
+        String expected = jpaApi.withTransaction(() -> componentResultDao.findById(ids.get(0)).getData());
+        assertThat(expected).endsWith(" first chunk second chunk");
+        assertThat(stream(source)).isEqualTo(expected);
+
+        source = jpaApi.withTransaction(() -> resultService.streamResultData(componentResultDao.findById(ids.get(1))));
+        assertThat(stream(source)).isEqualTo("only chunk");
+    }
+
+    private ResultPageQuery pageQuery(String... params) {
+        try {
+            return resultService.getPageQuery(queryString(params), StudyState.class);
+        } catch (BadRequestException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Map<String, String[]> queryString(String... params) {
+        Map<String, String[]> queryString = new HashMap<>();
+        for (int i = 0; i < params.length; i += 2) {
+            queryString.put(params[i], new String[]{params[i + 1]});
+        }
+        return queryString;
+    }
+
+    private JsonNode streamAsJsonArray(Source<ByteString, ?> source) throws Exception {
+        return Json.parse("[" + stream(source) + "]");
+    }
+
+    private String stream(Source<ByteString, ?> source) throws Exception {
+        ByteString bytes = source.runWith(Sink.fold(ByteString.empty(), ByteString::concat), materializer)
+                .toCompletableFuture().get(10, TimeUnit.SECONDS);
+        return bytes.utf8String();
+    }
+
 }
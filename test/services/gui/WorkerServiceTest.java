@@ -0,0 +1,175 @@
+package services.gui;
+
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.BatchDao;
+import daos.common.worker.WorkerDao;
+import exceptions.gui.BadRequestException;
+import general.TestHelper;
+import general.common.Common;
+import models.common.Batch;
+import models.common.Study;
+import models.common.workers.PersonalMultipleWorker;
+import models.common.workers.PersonalSingleWorker;
+import models.common.workers.Worker;
+import org.fest.assertions.Fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+
+import javax.inject.Inject;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests WorkerService class
+ *
+ * @author Kristian Lange
+ */
+public class WorkerServiceTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private BatchDao batchDao;
+
+    @Inject
+    private WorkerDao workerDao;
+
+    @Inject
+    private WorkerService workerService;
+
+    @Inject
+    private Materializer materializer;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    @Test
+    public void checkCreateAndPersistPersonalSingleWorker() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+
+        List<PersonalSingleWorker> workerList = jpaApi.withTransaction(() -> {
+            Batch batch = batchDao.findById(study.getDefaultBatch().getId());
+            try {
+                return workerService.createAndPersistPersonalSingleWorker("comment", 3, batch);
+            } catch (BadRequestException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        jpaApi.withTransaction(() -> {
+            Batch batch = batchDao.findById(study.getDefaultBatch().getId());
+            assertThat(workerList.size()).isEqualTo(3);
+            workerList.forEach(w -> assertThat(batch.hasWorker(w)).isTrue());
+        });
+    }
+
+    /**
+     * Bulk creation: more workers than fit into one chunk - each chunk is
+     * committed and streamed separately
+     */
+    @Test
+    public void checkCreateAndPersistPersonalWorkersInChunks() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Long batchId = study.getDefaultBatch().getId();
+        int chunkSize = Common.getWorkersBulkCreationBatchSize();
+        int amount = chunkSize + 1;
+
+        List<List<Long>> chunks = workerService.createAndPersistPersonalWorkersInChunks(
+                PersonalMultipleWorker.WORKER_TYPE, "bulk", amount, batchId)
+                .runWith(Sink.seq(), materializer).toCompletableFuture().get(30, TimeUnit.SECONDS);
+
+        assertThat(chunks.size()).isEqualTo(2);
+        assertThat(chunks.get(0).size()).isEqualTo(chunkSize);
+        assertThat(chunks.get(1).size()).isEqualTo(1);
+
+        jpaApi.withTransaction(() -> {
+            Batch batch = batchDao.findById(batchId);
+            chunks.stream().flatMap(List::stream).forEach(workerId -> {
+                Worker worker = workerDao.findById(workerId);
+                assertThat(worker).isInstanceOf(PersonalMultipleWorker.class);
+                assertThat(((PersonalMultipleWorker) worker).getComment()).isEqualTo("bulk");
+                assertThat(batch.hasWorker(worker)).isTrue();
+            });
+        });
+    }
+
+    /**
+     * Only as many chunks are created as the stream takes
+     */
+    @Test
+    public void checkCreateAndPersistPersonalWorkersInChunksCancelled() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Long batchId = study.getDefaultBatch().getId();
+        int chunkSize = Common.getWorkersBulkCreationBatchSize();
+        int workersBefore = jpaApi.withTransaction(() -> batchDao.findById(batchId).getWorkerList().size());
+
+        int amount = Math.min(chunkSize * 20, Common.getWorkersBulkCreationMaxAmount());
+        workerService.createAndPersistPersonalWorkersInChunks(PersonalSingleWorker.WORKER_TYPE, "bulk", amount,
+                batchId)
+                .take(1).runWith(Sink.seq(), materializer).toCompletableFuture().get(30, TimeUnit.SECONDS);
+
+        int workersAfter = jpaApi.withTransaction(() -> batchDao.findById(batchId).getWorkerList().size());
+        assertThat(workersAfter - workersBefore).isGreaterThanOrEqualTo(Math.min(chunkSize, amount));
+        assertThat(workersAfter - workersBefore).isLessThan(amount);
+    }
+
+    @Test
+    public void checkCreateAndPersistPersonalWorkersInChunksWrongType() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+
+        try {
+            workerService.createAndPersistPersonalWorkersInChunks("GeneralSingle", "bulk", 1,
+                    study.getDefaultBatch().getId());
+            Fail.fail();
+        } catch (BadRequestException e) {
+            assertThat(e.getMessage()).isEqualTo("Unknown worker type GeneralSingle");
+        }
+    }
+
+    @Test
+    public void checkCreateAndPersistPersonalWorkersInChunksWrongAmount() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        int maxAmount = Common.getWorkersBulkCreationMaxAmount();
+
+        for (int amount : new int[]{0, -1, maxAmount + 1}) {
+            try {
+                workerService.createAndPersistPersonalWorkersInChunks(PersonalSingleWorker.WORKER_TYPE, "bulk",
+                        amount, study.getDefaultBatch().getId());
+                Fail.fail();
+            } catch (BadRequestException e) {
+                assertThat(e.getMessage()).isEqualTo("Amount must be between 1 and " + maxAmount);
+            }
+        }
+    }
+
+}
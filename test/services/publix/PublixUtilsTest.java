@@ -11,6 +11,7 @@ import models.common.ComponentResult.ComponentState;
 import models.common.StudyResult.StudyState;
 import models.common.workers.JatosWorker;
 import models.common.workers.Worker;
+import org.apache.commons.lang3.StringUtils;
 import org.fest.assertions.Fail;
 import org.junit.After;
 import org.junit.Before;
@@ -28,9 +29,15 @@ import services.publix.idcookie.IdCookieCollection;
 import services.publix.idcookie.IdCookieModel;
 import services.publix.idcookie.IdCookieService;
 import services.publix.idcookie.IdCookieTestHelper;
+import utils.common.HashUtils;
+import utils.common.IOUtils;
 
 import javax.inject.Inject;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -91,6 +98,9 @@ public abstract class PublixUtilsTest<T extends Worker> {
     @Inject
     protected BatchService batchService;
 
+    @Inject
+    protected IOUtils ioUtils;
+
     @Before
     public void startApp() throws Exception {
         GuiceApplicationBuilder builder = new GuiceApplicationLoader()
@@ -368,6 +378,47 @@ public abstract class PublixUtilsTest<T extends Worker> {
         });
     }
 
+    /**
+     * Test PublixUtils.abortStudy(): appended result data (stored as chunks)
+     * are removed too
+     */
+    @Test
+    public void checkAbortStudyWithAppendedData() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        long studyResultId = createStudyResult(study);
+        startComponentAndSetData(study, studyResultId, 1, "test data 1");
+
+        // Append data twice
+        jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(studyResultId);
+            ComponentResult componentResult = studyResult.getComponentResultList().get(0);
+            componentResultDao.appendData(componentResult, " appended 1");
+            componentResultDao.appendData(componentResult, " appended 2");
+        });
+
+        // Check the appended data are returned in order
+        jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(studyResultId);
+            ComponentResult componentResult = studyResult.getComponentResultList().get(0);
+            assertThat(componentResult.getData()).isEqualTo("test data 1 appended 1 appended 2");
+            assertThat(componentResult.getDataChunkList().size()).isEqualTo(2);
+        });
+
+        // Abort
+        jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(studyResultId);
+            publixUtils.abortStudy("abort message", studyResult);
+        });
+
+        // Check
+        jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(studyResultId);
+            ComponentResult componentResult = studyResult.getComponentResultList().get(0);
+            assertThat(componentResult.getData()).isNullOrEmpty();
+            assertThat(componentResult.getDataChunkList()).isEmpty();
+        });
+    }
+
     /**
      * Test PublixUtils.finishStudyResult(): normal functioning and finish
      * successful
@@ -1371,6 +1422,118 @@ public abstract class PublixUtilsTest<T extends Worker> {
         });
     }
 
+    /**
+     * Test PublixUtils.storeResultData(): result data larger than one chunk are split into chunks and the hash is the
+     * same as if the whole data were hashed at once. A surrogate pair at a chunk boundary isn't split.
+     */
+    @Test
+    public void checkStoreResultData() throws IOException {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        long studyResultId = createStudyResultAndStartFirstComponent(study);
+
+        String resultData = StringUtils.repeat('a', PublixUtils.RESULT_DATA_CHUNK_SIZE - 1)
+                + "\uD83D\uDE00 äöü and some more data";
+        Path resultDataFile = Files.createTempFile("resultData", ".txt");
+        Files.write(resultDataFile, resultData.getBytes(StandardCharsets.UTF_8));
+
+        String hash = jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(studyResultId);
+            ComponentResult componentResult = studyResult.getLastComponentResult().get();
+            try {
+                return publixUtils.storeResultData(componentResult, resultDataFile, StandardCharsets.UTF_8, false);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Files.delete(resultDataFile);
+
+        assertThat(hash).isEqualTo(HashUtils.getHash(resultData, HashUtils.SHA_256));
+        jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(studyResultId);
+            ComponentResult componentResult = studyResult.getLastComponentResult().get();
+            assertThat(componentResult.getDataChunkList().size()).isEqualTo(1);
+            assertThat(componentResult.getDataSegments().get(0).length())
+                    .isEqualTo(PublixUtils.RESULT_DATA_CHUNK_SIZE - 1);
+            assertThat(componentResult.getData()).isEqualTo(resultData);
+        });
+    }
+
+    /**
+     * Test PublixUtils.storeResultData(): appended result data are stored after the existing ones and only the
+     * appended data are hashed
+     */
+    @Test
+    public void checkStoreResultDataAppend() throws IOException {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        long studyResultId = createStudyResult(study);
+        startComponentAndSetData(study, studyResultId, 1, "first data");
+
+        Path resultDataFile = Files.createTempFile("resultData", ".txt");
+        Files.write(resultDataFile, " appended data".getBytes(StandardCharsets.UTF_8));
+
+        String hash = jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(studyResultId);
+            ComponentResult componentResult = studyResult.getLastComponentResult().get();
+            try {
+                return publixUtils.storeResultData(componentResult, resultDataFile, StandardCharsets.UTF_8, true);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Files.delete(resultDataFile);
+
+        assertThat(hash).isEqualTo(HashUtils.getHash(" appended data", HashUtils.SHA_256));
+        jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(studyResultId);
+            ComponentResult componentResult = studyResult.getLastComponentResult().get();
+            assertThat(componentResult.getData()).isEqualTo("first data appended data");
+            assertThat(componentResultDao.sizeOfData(componentResult)).isEqualTo(24L);
+        });
+    }
+
+    /**
+     * Test PublixUtils.retrieveResultUploadsSize(): if the quota ledger isn't set yet, the size is calculated from the
+     * upload directory once - afterwards the ledger is used and the upload directory isn't looked at anymore.
+     */
+    @Test
+    public void checkRetrieveResultUploadsSize() throws IOException {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        long studyResultId = createStudyResultAndStartFirstComponent(study);
+        long componentResultId = jpaApi.withTransaction(() -> studyResultDao.findById(studyResultId)
+                .getLastComponentResult().get().getId());
+
+        Path uploadedFile = Paths.get(IOUtils.getResultUploadsDir(studyResultId, componentResultId), "test.txt");
+        Files.createDirectories(uploadedFile.getParent());
+        Files.write(uploadedFile, "0123456789".getBytes(StandardCharsets.UTF_8));
+
+        try {
+            jpaApi.withTransaction(() -> {
+                assertThat(studyResultDao.findUploadsSize(studyResultId)).isNull();
+                try {
+                    assertThat(publixUtils.retrieveResultUploadsSize(studyResultId)).isEqualTo(10L);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            // The ledger is used now: removing the file without telling the ledger doesn't change the size
+            Files.delete(uploadedFile);
+            jpaApi.withTransaction(() -> {
+                try {
+                    assertThat(publixUtils.retrieveResultUploadsSize(studyResultId)).isEqualTo(10L);
+                    studyResultDao.addToUploadsSize(studyResultId, -4);
+                    assertThat(publixUtils.retrieveResultUploadsSize(studyResultId)).isEqualTo(6L);
+                    studyResultDao.addToUploadsSize(studyResultId, -100);
+                    assertThat(publixUtils.retrieveResultUploadsSize(studyResultId)).isEqualTo(0L);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } finally {
+            ioUtils.removeResultUploadsDir(studyResultId);
+        }
+    }
+
     private long createStudyResultAndStartFirstComponent(Study study) {
         return jpaApi.withTransaction(() -> {
             User admin = userDao.findByUsername(UserService.ADMIN_USERNAME);
@@ -2,6 +2,7 @@ package services.publix.workers;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import daos.common.BatchDao;
 import daos.common.worker.WorkerDao;
 import exceptions.publix.ForbiddenPublixException;
 import exceptions.publix.PublixException;
@@ -12,6 +13,7 @@ import models.common.StudyResult;
 import models.common.StudyResult.StudyState;
 import models.common.workers.GeneralSingleWorker;
 import org.fest.assertions.Fail;
+import org.hibernate.Hibernate;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -22,6 +24,7 @@ import play.inject.guice.GuiceApplicationBuilder;
 import play.inject.guice.GuiceApplicationLoader;
 import services.publix.PublixErrorMessages;
 import services.publix.ResultCreator;
+import services.publix.WorkerCreator;
 
 import javax.inject.Inject;
 
@@ -46,6 +49,12 @@ public class GeneralSingleStudyAuthorisationTest {
     @Inject
     private ResultCreator resultCreator;
 
+    @Inject
+    private BatchDao batchDao;
+
+    @Inject
+    private WorkerCreator workerCreator;
+
     @Inject
     private GeneralSingleStudyAuthorisation studyAuthorisation;
 
@@ -97,6 +106,41 @@ public class GeneralSingleStudyAuthorisationTest {
         studyAuthorisation.checkWorkerAllowedToStartStudy(worker, study, batch);
     }
 
+    /**
+     * The max total worker number must be enforced without loading the batch's workers
+     */
+    @Test
+    public void checkWorkerAllowedToStartStudyMaxTotalWorkersReached() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+
+        jpaApi.withTransaction(() -> {
+            Batch batch = batchDao.findById(study.getDefaultBatch().getId());
+            batch.addAllowedWorkerType(GeneralSingleWorker.WORKER_TYPE);
+            // Room for exactly one more worker
+            batch.setMaxTotalWorkers(batch.getWorkerList().size() + 1);
+
+            GeneralSingleWorker worker1 = workerCreator.createAndPersistGeneralSingleWorker(batch);
+            try {
+                studyAuthorisation.checkWorkerAllowedToStartStudy(worker1, study, batch);
+            } catch (ForbiddenPublixException e) {
+                throw new RuntimeException(e);
+            }
+
+            GeneralSingleWorker worker2 = workerCreator.createAndPersistGeneralSingleWorker(batch);
+            try {
+                studyAuthorisation.checkWorkerAllowedToStartStudy(worker2, study, batch);
+                Fail.fail();
+            } catch (ForbiddenPublixException e) {
+                assertThat(e.getMessage())
+                        .isEqualTo(PublixErrorMessages.batchMaxTotalWorkerReached(batch.getId()));
+            }
+
+            assertThat(batch.hasWorker(worker1)).isTrue();
+            assertThat(batch.hasWorker(worker2)).isTrue();
+            assertThat(Hibernate.isInitialized(batch.getWorkerList())).isFalse();
+        });
+    }
+
     @Test
     public void checkWorkerAllowedToDoStudyWrongWorkerType() {
         Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
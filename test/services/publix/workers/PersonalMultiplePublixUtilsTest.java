@@ -3,13 +3,20 @@ package services.publix.workers;
 import controllers.publix.workers.PersonalMultiplePublix;
 import exceptions.publix.ForbiddenPublixException;
 import exceptions.publix.PublixException;
+import models.common.Component;
 import models.common.Study;
 import models.common.StudyResult;
 import models.common.workers.GeneralSingleWorker;
 import models.common.workers.PersonalMultipleWorker;
+import models.common.workers.Worker;
 import org.fest.assertions.Fail;
+import org.hibernate.Hibernate;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.Test;
 import services.publix.PublixUtilsTest;
+import services.publix.RunContext;
+import services.publix.idcookie.IdCookieModel;
 
 import javax.inject.Inject;
 import java.util.HashMap;
@@ -67,6 +74,117 @@ public class PersonalMultiplePublixUtilsTest extends PublixUtilsTest<PersonalMul
         });
     }
 
+    /**
+     * Checks PublixUtils.retrieveRunContext(): it should retrieve worker, study, batch, study result and component
+     * with a single SQL statement. Everything that follows in the same transaction (e.g. retrieveComponent or the
+     * check of the batch's allowed worker types) is served from the persistence context.
+     */
+    @Test
+    public void checkRetrieveRunContextSingleStatement() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        PersonalMultipleWorker worker = jpaApi.withTransaction(() -> {
+            PersonalMultipleWorker w = new PersonalMultipleWorker();
+            workerDao.create(w);
+            return w;
+        });
+        IdCookieModel idCookie = jpaApi.withTransaction(() -> {
+            Study s = studyDao.findById(study.getId());
+            StudyResult studyResult = resultCreator.createStudyResult(s, s.getDefaultBatch(),
+                    workerDao.findById(worker.getId()));
+            IdCookieModel ic = new IdCookieModel();
+            ic.setWorkerId(worker.getId());
+            ic.setBatchId(s.getDefaultBatch().getId());
+            ic.setStudyId(s.getId());
+            ic.setStudyResultId(studyResult.getId());
+            ic.setComponentId(s.getFirstComponent().get().getId());
+            return ic;
+        });
+
+        jpaApi.withTransaction(entityManager -> {
+            Statistics statistics = entityManager.getEntityManagerFactory()
+                    .unwrap(SessionFactory.class).getStatistics();
+            statistics.setStatisticsEnabled(true);
+            statistics.clear();
+            try {
+                RunContext<PersonalMultipleWorker> run = personalMultiplePublixUtils
+                        .retrieveRunContext(idCookie, study.getId(), idCookie.getComponentId());
+                Component component = personalMultiplePublixUtils
+                        .retrieveComponent(run.getStudy(), idCookie.getComponentId());
+                boolean allowed = run.getBatch().hasAllowedWorkerType(run.getWorker().getWorkerType());
+
+                assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+                assertThat(run.getWorker().getId()).isEqualTo(worker.getId());
+                assertThat(run.getStudyResult().getId()).isEqualTo(idCookie.getStudyResultId());
+                assertThat(run.getBatch().getId()).isEqualTo(idCookie.getBatchId());
+                assertThat(component.getId()).isEqualTo(idCookie.getComponentId());
+                assertThat(allowed).isTrue();
+            } catch (PublixException e) {
+                throw new RuntimeException(e);
+            } finally {
+                statistics.setStatisticsEnabled(false);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Checks PublixUtils.retrieveRunContext(): the check whether the worker did the study result must not load the
+     * worker's StudyResults. Therefore the number of SQL statements has to stay the same no matter how many study
+     * runs the worker already has.
+     */
+    @Test
+    public void checkRetrieveRunContextIndependentOfWorkersRunCount() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        PersonalMultipleWorker worker = jpaApi.withTransaction(() -> {
+            PersonalMultipleWorker w = new PersonalMultipleWorker();
+            workerDao.create(w);
+            return w;
+        });
+
+        long statementsWithFewRuns = countRetrieveRunContextStatements(study, worker, 1);
+        long statementsWithManyRuns = countRetrieveRunContextStatements(study, worker, 500);
+        assertThat(statementsWithFewRuns).isEqualTo(1);
+        assertThat(statementsWithManyRuns).isEqualTo(statementsWithFewRuns);
+    }
+
+    /**
+     * Creates study runs for the given worker until it has the given number of runs and then retrieves the run context
+     * of the last one. Returns the number of SQL statements that were needed for the retrieval.
+     */
+    private long countRetrieveRunContextStatements(Study study, PersonalMultipleWorker worker, int runCount) {
+        IdCookieModel idCookie = jpaApi.withTransaction(() -> {
+            Study s = studyDao.findById(study.getId());
+            Worker w = workerDao.findById(worker.getId());
+            StudyResult studyResult = null;
+            for (int i = studyResultDao.countByWorker(w); i < runCount; i++) {
+                studyResult = resultCreator.createStudyResult(s, s.getDefaultBatch(), w);
+            }
+            IdCookieModel ic = new IdCookieModel();
+            ic.setWorkerId(w.getId());
+            ic.setBatchId(s.getDefaultBatch().getId());
+            ic.setStudyId(s.getId());
+            ic.setStudyResultId(studyResult.getId());
+            return ic;
+        });
+
+        return jpaApi.withTransaction(entityManager -> {
+            Statistics statistics = entityManager.getEntityManagerFactory()
+                    .unwrap(SessionFactory.class).getStatistics();
+            statistics.setStatisticsEnabled(true);
+            statistics.clear();
+            try {
+                RunContext<PersonalMultipleWorker> run =
+                        personalMultiplePublixUtils.retrieveRunContext(idCookie, study.getId(), null);
+                assertThat(Hibernate.isInitialized(run.getWorker().getStudyResultList())).isFalse();
+                return statistics.getPrepareStatementCount();
+            } catch (PublixException e) {
+                throw new RuntimeException(e);
+            } finally {
+                statistics.setStatisticsEnabled(false);
+            }
+        });
+    }
+
     @Test
     public void checkSetUrlQueryParameter() {
         Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
@@ -0,0 +1,146 @@
+package utils.common;
+
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.util.ByteString;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests ZipStreamer: the streamed archive can be read by ZipFile (via the central directory) and by ZipInputStream
+ * (via the local headers and data descriptors)
+ *
+ * @author Kristian Lange
+ */
+public class ZipStreamerTest {
+
+    private Injector injector;
+    private Path tempDir;
+
+    @Inject
+    private ZipStreamer zipStreamer;
+
+    @Inject
+    private Materializer materializer;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+        tempDir = Files.createTempDirectory("zipStreamerTest");
+    }
+
+    @After
+    public void stopApp() {
+        FileUtils.deleteQuietly(tempDir.toFile());
+    }
+
+    @Test
+    public void checkZip() throws Exception {
+        Map<String, byte[]> files = new HashMap<>();
+        files.put("comp-result_1/data.csv", text(1000));
+        files.put("comp-result_1/empty.txt", new byte[0]);
+        files.put("comp-result_1/ümlaut.txt", text(10));
+        files.put("comp-result_2/audio.mp3", random(1000));
+        // Bigger than the in-memory limit - streamed with a data descriptor
+        files.put("comp-result_2/big.csv", text(ZipStreamer.IN_MEMORY_LIMIT / 10));
+        files.put("comp-result_2/video.webm", random(ZipStreamer.IN_MEMORY_LIMIT + 12345));
+        Path root = tempDir.resolve("study-result_1");
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            Path path = root.resolve(file.getKey());
+            Files.createDirectories(path.getParent());
+            Files.write(path, file.getValue());
+        }
+        Path single = tempDir.resolve("single.txt");
+        Files.write(single, text(100));
+
+        byte[] zip = zip(root, single, tempDir.resolve("notExisting"));
+
+        File zipFile = tempDir.resolve("result.zip").toFile();
+        Files.write(zipFile.toPath(), zip);
+        try (ZipFile archive = new ZipFile(zipFile)) {
+            assertThat(archive.size()).isEqualTo(files.size() + 1);
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                ZipEntry entry = archive.getEntry("study-result_1/" + file.getKey());
+                assertThat(entry).isNotNull();
+                assertThat(IOUtils.toByteArray(archive.getInputStream(entry))).isEqualTo(file.getValue());
+            }
+            assertThat(IOUtils.toByteArray(archive.getInputStream(archive.getEntry("single.txt"))))
+                    .isEqualTo(text(100));
+            // Already compressed media aren't compressed again, text is
+            assertThat(archive.getEntry("study-result_1/comp-result_2/audio.mp3").getMethod())
+                    .isEqualTo(ZipEntry.STORED);
+            ZipEntry csv = archive.getEntry("study-result_1/comp-result_1/data.csv");
+            assertThat(csv.getMethod()).isEqualTo(ZipEntry.DEFLATED);
+            assertThat(csv.getCompressedSize()).isLessThan(csv.getSize());
+        }
+
+        int count = 0;
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                byte[] content = IOUtils.toByteArray(in);
+                if (!entry.getName().equals("single.txt")) {
+                    assertThat(content).isEqualTo(files.get(entry.getName().substring("study-result_1/".length())));
+                }
+                count++;
+            }
+        }
+        assertThat(count).isEqualTo(files.size() + 1);
+    }
+
+    @Test
+    public void checkZipEmpty() throws Exception {
+        byte[] zip = zip(tempDir.resolve("notExisting"));
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            assertThat(in.getNextEntry()).isNull();
+        }
+    }
+
+    private byte[] zip(Path... filesToZip) throws Exception {
+        ByteString bytes = zipStreamer.zip(Arrays.asList(filesToZip))
+                .runWith(Sink.fold(ByteString.empty(), ByteString::concat), materializer)
+                .toCompletableFuture().get(30, TimeUnit.SECONDS);
+        return bytes.toArray();
+    }
+
+    private static byte[] text(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) sb.append(i).append(",some result data\n");
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+}